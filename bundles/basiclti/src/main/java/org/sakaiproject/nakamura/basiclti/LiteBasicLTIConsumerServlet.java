@@ -177,6 +177,20 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
   @Reference
   protected transient LiteBasicLTIContextIdResolver contextIdResolver;
 
+  @Reference
+  protected transient LiteBasicLTISettingsResolver settingsResolver;
+
+  /**
+   * Reads the settings of a placement when the resolver does not have them.
+   */
+  private final transient LiteBasicLTISettingsResolver.Loader settingsLoader = new LiteBasicLTISettingsResolver.Loader() {
+    public Map<String, Object> load(Content placement) throws RepositoryException,
+        StorageClientException,
+        org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException {
+      return getEffectiveSettings(placement);
+    }
+  };
+
   // global properties used for every tool launch
   /**
    * See: {@link BasicLTIConstants#TOOL_CONSUMER_INSTANCE_CONTACT_EMAIL}
@@ -365,17 +379,9 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
     // determine virtual toolId
     try {
-      // grab admin settings
-      final Map<String, Object> adminSettings = getAdminSettings(node, true);
-      // grab user settings
-      final Map<String, Object> userSettings = getLaunchSettings(node);
-
-      // merge admin and user properties
-      final Map<String, Object> effectiveSettings = new HashMap<String, Object>(Math.max(
-          adminSettings.size(), userSettings.size()));
-      for (final String setting : applicationSettings.keySet()) {
-        effectiveSetting(setting, effectiveSettings, adminSettings, userSettings);
-      }
+      // only the first launch of a placement since it changed needs admin sessions
+      final Map<String, Object> effectiveSettings = settingsResolver.resolve(node,
+          settingsLoader);
 
       final Map<String, String> launchProps = new HashMap<String, String>();
 
@@ -522,6 +528,33 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
     response.setStatus(HttpServletResponse.SC_OK);
   }
 
+  /**
+   * Merges the admin settings of a placement's virtual tool with its own settings,
+   * including sensitive ones, as used to launch it.
+   * 
+   * @param node
+   * @return
+   * @throws RepositoryException
+   * @throws StorageClientException
+   * @throws org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException
+   */
+  private Map<String, Object> getEffectiveSettings(final Content node)
+      throws RepositoryException, StorageClientException,
+      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException {
+    // grab admin settings
+    final Map<String, Object> adminSettings = getAdminSettings(node, true);
+    // grab user settings
+    final Map<String, Object> userSettings = getLaunchSettings(node);
+
+    // merge admin and user properties
+    final Map<String, Object> effectiveSettings = new HashMap<String, Object>(Math.max(
+        adminSettings.size(), userSettings.size()));
+    for (final String setting : applicationSettings.keySet()) {
+      effectiveSetting(setting, effectiveSettings, adminSettings, userSettings);
+    }
+    return effectiveSettings;
+  }
+
   /**
    * Intended for nodes of <code>sling:resourceType=sakai/basiclti</code> - i.e. not
    * sensitive nodes.
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.basiclti;
+
+import static org.sakaiproject.nakamura.api.basiclti.BasicLTIAppConstants.ADMIN_CONFIG_PATH;
+import static org.sakaiproject.nakamura.api.basiclti.BasicLTIAppConstants.LTI_ADMIN_NODE_NAME;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Keeps the effective settings of each <code>sakai/basiclti</code> placement, so that a
+ * launch only needs administrative sessions the first time a placement is launched
+ * after it, or the virtual tool settings it uses, last changed.
+ * <p>
+ * Settings are dropped when the placement or its sensitive node changes, and all of
+ * them are dropped when anything under <code>/var/basiclti</code> changes, as any
+ * placement may use a virtual tool. Launches of a placement that come at the same time,
+ * as when a whole class opens a tool, wait for a single load.
+ */
+@Component(immediate = true)
+@Services(value = { @Service(value = LiteBasicLTISettingsResolver.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Resolves the effective settings of Basic LTI placements."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class LiteBasicLTISettingsResolver implements EventHandler {
+
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.basiclti.settings";
+
+  /**
+   * Works out the effective settings of a placement, with whatever elevation that takes.
+   */
+  public interface Loader {
+    Map<String, Object> load(Content placement) throws RepositoryException,
+        StorageClientException, AccessDeniedException;
+  }
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  /**
+   * The placements being loaded, each with the lock that launches of it wait on. A change
+   * to a placement removes it, so that settings read before the change are not kept.
+   */
+  private final ConcurrentMap<String, Object> loading = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * @param placement
+   *          the <code>sakai/basiclti</code> node being launched.
+   * @param loader
+   *          loads the settings if they are not already known.
+   * @return the effective settings of the placement, which must not be changed.
+   */
+  public Map<String, Object> resolve(Content placement, Loader loader)
+      throws RepositoryException, StorageClientException, AccessDeniedException {
+    String path = placement.getPath();
+    Cache<Map<String, Object>> cache = getCache();
+    Map<String, Object> settings = cache.get(path);
+    if (settings != null) {
+      return settings;
+    }
+    Object lock = new Object();
+    Object existing = loading.putIfAbsent(path, lock);
+    if (existing != null) {
+      lock = existing;
+    }
+    try {
+      synchronized (lock) {
+        settings = cache.get(path);
+        if (settings == null) {
+          settings = Collections.unmodifiableMap(loader.load(placement));
+          if (loading.get(path) == lock) {
+            cache.put(path, settings);
+          }
+        }
+      }
+    } finally {
+      loading.remove(path, lock);
+    }
+    return settings;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path;
+    if (event.getTopic().startsWith(StoreListener.TOPIC_BASE)) {
+      path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    } else {
+      path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    }
+    if (path == null) {
+      return;
+    }
+    if (path.equals(ADMIN_CONFIG_PATH) || path.startsWith(ADMIN_CONFIG_PATH + "/")) {
+      loading.clear();
+      getCache().clear();
+      return;
+    }
+    if (path.endsWith("/" + LTI_ADMIN_NODE_NAME)) {
+      path = path.substring(0, path.length() - LTI_ADMIN_NODE_NAME.length() - 1);
+    }
+    loading.remove(path);
+    getCache().remove(path);
+  }
+
+  private Cache<Map<String, Object>> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+}
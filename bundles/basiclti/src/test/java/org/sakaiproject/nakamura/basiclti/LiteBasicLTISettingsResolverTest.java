@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.basiclti;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class LiteBasicLTISettingsResolverTest {
+
+  private static final String PLACEMENT = "p/abc/id123/basiclti";
+
+  /**
+   * Stands in for the admin sessions the servlet opens, counting each load. Logging in
+   * and reading the settings is taken to be some rounds of hashing.
+   */
+  private static class CountingLoader implements LiteBasicLTISettingsResolver.Loader {
+    final AtomicInteger loads = new AtomicInteger();
+    String secret = "secret";
+    int rounds;
+
+    public Map<String, Object> load(Content placement) {
+      loads.incrementAndGet();
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] work = placement.getPath().getBytes();
+        for (int i = 0; i < rounds; i++) {
+          work = digest.digest(work);
+        }
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+      Map<String, Object> settings = new HashMap<String, Object>();
+      settings.put("ltiurl", "http://tool.example.com/" + placement.getPath());
+      settings.put("ltisecret", secret);
+      return settings;
+    }
+  }
+
+  private LiteBasicLTISettingsResolver resolver;
+  private CountingLoader loader;
+  private Content placement;
+
+  @Before
+  public void setUp() throws Exception {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(LiteBasicLTISettingsResolver.CACHE_NAME,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(new MapCacheImpl<Object>());
+    resolver = new LiteBasicLTISettingsResolver();
+    resolver.cacheManagerService = cacheManagerService;
+    loader = new CountingLoader();
+    placement = new Content(PLACEMENT, new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testSettingsAreLoadedOnce() throws Exception {
+    assertEquals("secret", resolver.resolve(placement, loader).get("ltisecret"));
+    assertEquals("secret", resolver.resolve(placement, loader).get("ltisecret"));
+    resolver.resolve(new Content("p/abc/id456/basiclti", new HashMap<String, Object>()), loader);
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void testPlacementChangesInvalidate() throws Exception {
+    resolver.resolve(placement, loader);
+    resolver.handleEvent(contentEvent(StoreListener.UPDATED_TOPIC, "p/abc/id123"));
+    resolver.handleEvent(contentEvent(StoreListener.UPDATED_TOPIC, "p/abc/id123/basiclti/other"));
+    resolver.resolve(placement, loader);
+    assertEquals(1, loader.loads.get());
+
+    loader.secret = "changed";
+    resolver.handleEvent(contentEvent(StoreListener.UPDATED_TOPIC, PLACEMENT + "/ltiKeys"));
+    assertEquals("changed", resolver.resolve(placement, loader).get("ltisecret"));
+    resolver.handleEvent(contentEvent(StoreListener.DELETE_TOPIC, PLACEMENT));
+    resolver.resolve(placement, loader);
+    assertEquals(3, loader.loads.get());
+  }
+
+  @Test
+  public void testVirtualToolChangesInvalidateAll() throws Exception {
+    Content other = new Content("p/def/id789/basiclti", new HashMap<String, Object>());
+    resolver.resolve(placement, loader);
+    resolver.resolve(other, loader);
+    resolver.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/var/basiclti/sakai.resources/ltiKeys"));
+    resolver.resolve(placement, loader);
+    resolver.resolve(other, loader);
+    assertEquals(4, loader.loads.get());
+  }
+
+  @Test
+  public void testChangesDuringALoadAreNotLost() throws Exception {
+    LiteBasicLTISettingsResolver.Loader changing = new CountingLoader() {
+      @Override
+      public Map<String, Object> load(Content placement) {
+        Map<String, Object> settings = super.load(placement);
+        // the settings change after they were read.
+        resolver.handleEvent(contentEvent(StoreListener.UPDATED_TOPIC, PLACEMENT + "/ltiKeys"));
+        return settings;
+      }
+    };
+    resolver.resolve(placement, changing);
+    loader.secret = "changed";
+    assertEquals("changed", resolver.resolve(placement, loader).get("ltisecret"));
+  }
+
+  @Test
+  public void testConcurrentLaunchesShareALoad() throws Exception {
+    loader.rounds = 100000;
+    Thread[] launches = storm(placement, 20, new CountDownLatch(1));
+    for (Thread launch : launches) {
+      launch.join();
+    }
+    assertEquals(1, loader.loads.get());
+  }
+
+  /**
+   * A class of 500 opening one of 5 tools at once, ten times over, on 20 request threads:
+   * each launch reads the settings as the servlet did, with admin sessions, and then
+   * through the resolver. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkLaunchStorm() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    loader.rounds = 2000;
+    final int launches = 5000;
+    final Content[] tools = new Content[5];
+    for (int i = 0; i < tools.length; i++) {
+      tools[i] = new Content("p/course/tool" + i + "/basiclti", new HashMap<String, Object>());
+    }
+    ExecutorService requests = Executors.newFixedThreadPool(20);
+    try {
+      System.out.println("mode, ms, admin loads");
+      for (int round = 0; round < 3; round++) {
+        for (int cached = 0; cached < 2; cached++) {
+          final boolean useResolver = cached == 1;
+          loader.loads.set(0);
+          resolver.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+              "/var/basiclti"));
+          List<Future<?>> done = new ArrayList<Future<?>>();
+          long time = System.nanoTime();
+          for (int i = 0; i < launches; i++) {
+            final Content tool = tools[i % tools.length];
+            done.add(requests.submit(new Callable<Map<String, Object>>() {
+              public Map<String, Object> call() throws Exception {
+                return useResolver ? resolver.resolve(tool, loader) : loader.load(tool);
+              }
+            }));
+          }
+          for (Future<?> launch : done) {
+            launch.get();
+          }
+          time = System.nanoTime() - time;
+          System.out.println((useResolver ? "resolver" : "direct") + ", "
+              + (time / 1000000) + ", " + loader.loads.get());
+        }
+      }
+    } finally {
+      requests.shutdown();
+    }
+  }
+
+  private Thread[] storm(final Content tool, int launches, final CountDownLatch start)
+      throws Exception {
+    Thread[] threads = new Thread[launches];
+    for (int i = 0; i < launches; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            resolver.resolve(tool, loader);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    return threads;
+  }
+
+  private Event contentEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    return new Event(topic, properties);
+  }
+
+  private Event resourceEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+}
@@ -31,11 +31,11 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
 import org.sakaiproject.nakamura.util.ResponseWrapper;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -88,10 +88,25 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    // Checked before any request is made, as the results are streamed as they come.
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+
+    // Loop over the requests and handle each one. The results are streamed as they come,
+    // so once the response is committed a failed request can only be reported in the
+    // JSON, and a failure to write can only cut the response short.
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      StreamingJSONWriter write = new StreamingJSONWriter(response.getOutputStream());
       write.object();
       write.key("results");
       write.array();
@@ -101,62 +116,61 @@ public class BatchHelper {
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
+      write.flush();
     } catch (JSONException e) {
-      LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (response.isCommitted()) {
+        LOGGER.warn("Failed to write the rest of a JSON response {} ", e.getMessage());
+      } else {
+        LOGGER.warn("Failed to create a JSON response");
+        response.reset();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
     }
   }
 
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
+      JSONWriter write) throws JSONException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
-    Resource resource = resourceResolver.resolve(request, requestPath);
 
     // Wrap the request and response.
     RequestWrapper requestWrapper = new RequestWrapper(request, requestInfo);
     ResponseWrapper responseWrapper = new ResponseWrapper(response);
     RequestDispatcher requestDispatcher;
+    // Get the response
     try {
-      // Get the response
-      try {
-        if (resource != null) {
-          LOGGER.debug("Dispatching to request path='{}', resource path='{}'", requestPath, resource.getPath());
-          requestDispatcher = request.getRequestDispatcher(resource);
-        } else {
-          LOGGER.debug("Dispatching to request path='{}', no resource", requestPath);
-          requestDispatcher = request.getRequestDispatcher(requestPath);
-        }
-        requestDispatcher.forward(requestWrapper, responseWrapper);
-      } catch (ResourceNotFoundException e) {
-        responseWrapper.setStatus(HttpServletResponse.SC_NOT_FOUND);
-      } catch (SlingException e) {
-        responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      Resource resource = resourceResolver.resolve(request, requestPath);
+      if (resource != null) {
+        LOGGER.debug("Dispatching to request path='{}', resource path='{}'", requestPath, resource.getPath());
+        requestDispatcher = request.getRequestDispatcher(resource);
+      } else {
+        LOGGER.debug("Dispatching to request path='{}', no resource", requestPath);
+        requestDispatcher = request.getRequestDispatcher(requestPath);
       }
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      requestDispatcher.forward(requestWrapper, responseWrapper);
+    } catch (ResourceNotFoundException e) {
+      responseWrapper.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    } catch (SlingException e) {
+      responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
+      return;
     } catch (IOException e) {
       writeFailedRequest(write, requestInfo);
+      return;
+    } catch (RuntimeException e) {
+      // the results before this one may have been sent already, so it is failed in the
+      // JSON rather than left to the container to report.
+      LOGGER.warn("Failed to process batched request {} {} ", requestPath, e.getMessage());
+      writeFailedRequest(write, requestInfo);
+      return;
     }
-
+    // Write the response (status, headers, body) back to the client.
+    writeResponse(write, responseWrapper, requestInfo);
   }
 
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
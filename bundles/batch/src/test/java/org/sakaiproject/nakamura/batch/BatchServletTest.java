@@ -17,7 +17,16 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
@@ -26,15 +35,21 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -67,8 +82,13 @@ public class BatchServletTest {
     String json = "[{\"url\" : \"/foo/bar\",\"method\" : \"POST\",\"parameters\" : {\"val\" : 123,\"val@TypeHint\" : \"Long\"}}]";
     when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    PrintWriter writer = new PrintWriter(baos);
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
 
     RequestDispatcher dispatcher = mock(RequestDispatcher.class);
     ResourceResolver resourceResolver = mock(ResourceResolver.class);
@@ -76,8 +96,91 @@ public class BatchServletTest {
     when(request.getResourceResolver()).thenReturn(resourceResolver);
     when(resourceResolver.resolve(request, "/foo/bar")).thenReturn(resource);
     when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
-    when(response.getWriter()).thenReturn(writer);
+    when(response.getOutputStream()).thenReturn(out);
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testFailedRequestIsReportedInTheResults() throws Exception {
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(
+        "[{\"url\" : \"/foo/bar\",\"method\" : \"GET\"},"
+            + "{\"url\" : \"/foo/baz\",\"method\" : \"GET\"}]");
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    RequestDispatcher ok = dispatcher("ok");
+    when(request.getRequestDispatcher("/foo/bar")).thenReturn(ok);
+    RequestDispatcher failing = mock(RequestDispatcher.class);
+    doThrow(new IllegalStateException("broken")).when(failing).forward(
+        any(ServletRequest.class), any(ServletResponse.class));
+    when(request.getRequestDispatcher("/foo/baz")).thenReturn(failing);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(outputStream(baos));
+
+    servlet.doGet(request, response);
+
+    // the first result is streamed before the second request fails.
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(2, results.length());
+    assertTrue(results.getJSONObject(0).getBoolean("success"));
+    assertEquals("ok", results.getJSONObject(0).getString("body"));
+    assertFalse(results.getJSONObject(1).getBoolean("success"));
+    assertEquals("/foo/baz", results.getJSONObject(1).getString("url"));
+    verify(response, never()).sendError(anyInt(), anyString());
+  }
+
+  @Test
+  public void testFailedWriteIsOnlySentAsAnErrorBeforeTheResponseIsCommitted()
+      throws Exception {
+    for (boolean committed : new boolean[] { true, false }) {
+      setUp();
+      when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(
+          "[{\"url\" : \"/foo/bar\",\"method\" : \"GET\"}]");
+      ResourceResolver resourceResolver = mock(ResourceResolver.class);
+      when(request.getResourceResolver()).thenReturn(resourceResolver);
+      // bigger than the writer's buffer, so it is written out before the end.
+      StringBuilder body = new StringBuilder();
+      for (int i = 0; i < 20000; i++) {
+        body.append('x');
+      }
+      RequestDispatcher big = dispatcher(body.toString());
+      when(request.getRequestDispatcher("/foo/bar")).thenReturn(big);
+      when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          throw new IOException("Connection reset");
+        }
+      });
+      when(response.isCommitted()).thenReturn(committed);
+
+      servlet.doGet(request, response);
+
+      if (committed) {
+        verify(response, never()).sendError(anyInt(), anyString());
+      } else {
+        verify(response).reset();
+        verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  private RequestDispatcher dispatcher(final String body) throws Exception {
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write(body);
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+    return dispatcher;
+  }
+
+  private ServletOutputStream outputStream(final ByteArrayOutputStream baos) {
+    return new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+  }
 }
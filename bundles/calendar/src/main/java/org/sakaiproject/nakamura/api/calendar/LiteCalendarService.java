@@ -23,8 +23,11 @@ import net.fortuna.ical4j.model.component.VEvent;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.util.Date;
 
 /**
  * A service that allows one to fetch and store calendars.
@@ -63,6 +66,33 @@ public interface LiteCalendarService {
    */
   Calendar export(Session session, Content node, String[] types) throws CalendarException;
 
+  /**
+   * Writes a {@link Content node} out as iCalendar data without building a
+   * {@link Calendar calendar} in memory. Components are matched on type as in
+   * {@link #export(Session, Content, String[])}, and only those overlapping the range
+   * from <code>start</code> to <code>end</code> are written. Components without a
+   * DTSTART are always written.
+   *
+   * @param session
+   * @param node
+   *          The content that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes. eg: valarm,
+   *          vavailability, vevent, ..
+   * @param start
+   *          Skip components that end before this, or null for no lower bound.
+   * @param end
+   *          Skip components that start at or after this, or null for no upper bound.
+   * @param writer
+   *          Where the iCalendar data is written. It is flushed but not closed.
+   * @throws CalendarException
+   *           Failed to export a Sparse representation to valid iCalendar data.
+   * @throws IOException
+   *           Failed to write to the writer.
+   */
+  void export(Session session, Content node, String[] types, Date start, Date end,
+      Writer writer) throws CalendarException, IOException;
+
   /**
    * Creates a Sparse based representation of a {@link Calendar calendar}.
    *
@@ -17,10 +17,7 @@
  */
 package org.sakaiproject.nakamura.calendar;
 
-import net.fortuna.ical4j.data.CalendarOutputter;
-import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.ValidationException;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -29,6 +26,8 @@ import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.sakaiproject.nakamura.api.calendar.CalendarException;
 import org.sakaiproject.nakamura.api.calendar.LiteCalendarService;
@@ -37,14 +36,23 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 @ServiceDocumentation(
     bindings = {
@@ -63,10 +71,17 @@ import javax.servlet.ServletException;
                 "This servlet will generate the underlying JCR node structure into a valid ical format.",
                 "If no selector is specified it will output components of type VEvent.",
                 "More components can be looked for by adding in the type as a selecter.",
-                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics"
+                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics",
+                "The feed is written as it is read, and carries an ETag and Last-Modified so that subscribed clients can refresh conditionally."
+            },
+            parameters = {
+                @ServiceParameter(name = "start", description = "Optional, only output components that end after this day (yyyyMMdd)."),
+                @ServiceParameter(name = "end", description = "Optional, only output components that start before this day (yyyyMMdd).")
             },
             response = {
                 @ServiceResponse(code = 200, description = "Generates a calendar feed of the underlying JCR node structure."),
+                @ServiceResponse(code = 304, description = "Nothing in the calendar has changed since the client's copy."),
+                @ServiceResponse(code = 400, description = "The start or end parameter is not a yyyyMMdd date."),
                 @ServiceResponse(code = 500, description = "Something went wrong trying the serialize the underlying node structure, the failure is placed in the HTML.")
             }
         ) 
@@ -90,6 +105,9 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient LiteCalendarService liteCalendarService;
 
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
   /**
    * {@inheritDoc}
    * 
@@ -99,33 +117,87 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
-    
-    response.setContentType("text/calendar");
-    response.setCharacterEncoding("UTF-8");
 
     String[] types = getSelectors(request);
     Resource resource = request.getResource();
+    Content content = resource.adaptTo(Content.class);
+    if (content == null) {
+      response.sendError(404);
+      return;
+    }
+
+    Date start;
+    Date end;
     try {
-      Content content = resource.adaptTo(Content.class);
-      if (content != null) {
-        // Construct the Calendar from the content tree.
-        Calendar iCal = liteCalendarService.export(null, content, types);
-        // Output the calendar, we don't do any validation.
-        CalendarOutputter outputter = new CalendarOutputter(false);
-        outputter.output(iCal, response.getOutputStream());
-      } else {
-        response.sendError(404);
-      }
+      start = getDate(request, "start");
+      end = getDate(request, "end");
+    } catch (ParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "The start and end parameters should be formatted as yyyyMMdd.");
+      return;
+    }
+
+    // The calendar keeps the time it was first exported after its last change, which
+    // CalendarExportCacheInvalidator drops when anything below it changes. The time is
+    // stored before the export so a change made while exporting isn't lost.
+    Cache<Long> exports = CalendarExportCacheInvalidator.getCache(cacheManagerService);
+    Long exported = exports.get(content.getPath());
+    if (exported == null) {
+      // HTTP dates only have seconds.
+      exported = System.currentTimeMillis() / 1000 * 1000;
+      exports.put(content.getPath(), exported);
+    }
+    String etag = "\"" + Long.toHexString(exported) + "-"
+        + Integer.toHexString((Arrays.toString(types) + start + end).hashCode()) + "\"";
+    response.setHeader("ETag", etag);
+    response.setDateHeader(HttpConstants.HEADER_LAST_MODIFIED, exported);
+    if (unmodified(request, etag, exported)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    response.setContentType("text/calendar");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      // Stream the calendar from the content tree, we don't do any validation.
+      liteCalendarService.export(null, content, types, start, end, response.getWriter());
     } catch (CalendarException e) {
       LOGGER.warn(e.getMessage(),e);
+      if (response.isCommitted()) {
+        // part of the calendar has gone out already, all we can do is stop.
+        return;
+      }
+      response.reset();
       response.sendError(e.getCode(), e.getMessage());
-    } catch (ValidationException e) {
-      LOGGER.warn(e.getMessage(),e);
-      response.sendError(500, "Failed to output proper ical.");
     }
 
   }
 
+  /**
+   * @return true if the client sent a validator that still matches.
+   */
+  protected boolean unmodified(SlingHttpServletRequest request, String etag, long exported) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      // If-None-Match takes precedence over If-Modified-Since.
+      return "*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag);
+    }
+    long ims = request.getDateHeader(HttpConstants.HEADER_IF_MODIFIED_SINCE);
+    return ims >= exported;
+  }
+
+  /**
+   * @return the day in the named request parameter, or null if it isn't there.
+   */
+  protected Date getDate(SlingHttpServletRequest request, String name)
+      throws ParseException, UnsupportedEncodingException {
+    RequestParameter param = request.getRequestParameter(name);
+    if (param == null) {
+      return null;
+    }
+    return new SimpleDateFormat("yyyyMMdd").parse(param.getString("UTF-8"));
+  }
+
   /**
    * @param request
    * @return
@@ -27,9 +27,12 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.FoldingWriter;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyFactory;
 import net.fortuna.ical4j.model.PropertyFactoryImpl;
@@ -62,6 +65,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -81,6 +85,8 @@ import java.util.Set;
 public class LiteCalendarServiceImpl implements LiteCalendarService {
   public static final Logger LOGGER = LoggerFactory.getLogger(LiteCalendarServiceImpl.class);
 
+  private static final String CRLF = "\r\n";
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content)
@@ -94,24 +100,24 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[])
    */
   public Calendar export(Session session, Content node, String[] types) throws CalendarException {
-    // Translate input type strings (e.g., "VEVENT") into Sling resource types
-    // (e.g., "sakai/calendar-vevent").
-    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
-    for (String type : types) {
-      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
-    }
+    Set<String> wantedResourceTypes = getWantedResourceTypes(types);
 
     // Start constructing the iCal Calendar.
-    Calendar calendar = new Calendar();
+    final Calendar calendar = new Calendar();
     PropertyFactory propFactory = PropertyFactoryImpl.getInstance();
     try {
       // Add any Calendar properties.
       addNodePropertiesToCal(node, calendar.getProperties(), propFactory);
 
       // Traverse the tree.
+      ComponentHandler handler = new ComponentHandler() {
+        public void handle(PropertyList eventProperties) {
+          calendar.getComponents().add(new VEvent(eventProperties));
+        }
+      };
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, handler, propFactory, wantedResourceTypes, null, null);
       }
     } catch (IOException e) {
       LOGGER.error("Caught an IOException when trying to export a calendar", e);
@@ -127,6 +133,47 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     return calendar;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[], java.util.Date, java.util.Date, java.io.Writer)
+   */
+  public void export(Session session, Content node, String[] types,
+      java.util.Date start, java.util.Date end, Writer writer) throws CalendarException,
+      IOException {
+    Set<String> wantedResourceTypes = getWantedResourceTypes(types);
+
+    // Write the same text CalendarOutputter would, one component at a time, so that
+    // only the event being written is held in memory.
+    final FoldingWriter out = new FoldingWriter(writer);
+    PropertyFactory propFactory = PropertyFactoryImpl.getInstance();
+    try {
+      out.write(Calendar.BEGIN + ':' + Calendar.VCALENDAR + CRLF);
+      PropertyList calendarProperties = new PropertyList();
+      addNodePropertiesToCal(node, calendarProperties, propFactory);
+      out.write(calendarProperties.toString());
+
+      ComponentHandler handler = new ComponentHandler() {
+        public void handle(PropertyList eventProperties) throws IOException {
+          out.write(new VEvent(eventProperties).toString());
+        }
+      };
+      Iterable<Content> children = node.listChildren();
+      for (Content childContent : children) {
+        recurseForEvents(childContent, handler, propFactory, wantedResourceTypes, start,
+            end);
+      }
+
+      out.write(Calendar.END + ':' + Calendar.VCALENDAR + CRLF);
+      out.flush();
+    } catch (URISyntaxException e) {
+      LOGGER.error("Caught a URISyntaxException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (ParseException e) {
+      LOGGER.error("Caught a ParseException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#store(net.fortuna.ical4j.model.Calendar, org.sakaiproject.nakamura.api.lite.Session, java.lang.String)
@@ -270,25 +317,118 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     }
   }
 
-  private void recurseForEvents(Content node, Calendar calendar, PropertyFactory propFactory,
-      Set<String> wantedResourceTypes) throws IOException, URISyntaxException, ParseException {
+  /**
+   * Translate input type strings (e.g., "VEVENT") into Sling resource types (e.g.,
+   * "sakai/calendar-vevent").
+   */
+  private Set<String> getWantedResourceTypes(String[] types) {
+    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
+    for (String type : types) {
+      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
+    }
+    return wantedResourceTypes;
+  }
+
+  private void recurseForEvents(Content node, ComponentHandler handler,
+      PropertyFactory propFactory, Set<String> wantedResourceTypes, java.util.Date start,
+      java.util.Date end) throws IOException, URISyntaxException, ParseException {
     final String resourceType = (String) node.getProperty(SLING_RESOURCE_TYPE_PROPERTY);
     if (resourceType != null && wantedResourceTypes.contains(resourceType)) {
-      // Treat the content as event storage.
-      PropertyList eventProperties = new PropertyList();
-      addNodePropertiesToCal(node, eventProperties, propFactory);
-      VEvent event = new VEvent(eventProperties);
-
-      // Add the event to the calendar.
-      calendar.getComponents().add(event);
-    } else {
+      // Treat the content as event storage, if it falls in the range. The range is
+      // checked on the stored values so skipped events never become iCal objects,
+      // except for recurring events, whose occurrences are only known once their rules
+      // are expanded.
+      if (isRecurring(node)) {
+        PropertyList eventProperties = new PropertyList();
+        addNodePropertiesToCal(node, eventProperties, propFactory);
+        if (recursInRange(node, new VEvent(eventProperties), start, end)) {
+          handler.handle(eventProperties);
+        }
+      } else if (isInRange(node, start, end)) {
+        PropertyList eventProperties = new PropertyList();
+        addNodePropertiesToCal(node, eventProperties, propFactory);
+        handler.handle(eventProperties);
+      }
+    } else if (resourceType == null || !resourceType.startsWith(SAKAI_CALENDAR_RT + "-")) {
+      // Components we don't want only have signups below them, which can be large and
+      // never hold events, so only descend into the date folders.
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, handler, propFactory, wantedResourceTypes, start,
+            end);
       }
     }
   }
 
+  /**
+   * @return true if the component stored in <code>node</code> overlaps the range, or
+   *         has no start we can read.
+   */
+  private boolean isInRange(Content node, java.util.Date start, java.util.Date end) {
+    if (start == null && end == null) {
+      return true;
+    }
+    Long dtStart = getTime(node, "DTSTART");
+    if (dtStart == null) {
+      return true;
+    }
+    Long dtEnd = getTime(node, "DTEND");
+    if (dtEnd == null) {
+      dtEnd = dtStart;
+    }
+    return (end == null || dtStart < end.getTime())
+        && (start == null || dtEnd > start.getTime() || dtStart >= start.getTime());
+  }
+
+  private boolean isRecurring(Content node) {
+    return node.hasProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.RRULE)
+        || node.hasProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.RDATE);
+  }
+
+  /**
+   * @return true if any occurrence of the recurring <code>event</code> overlaps the
+   *         range. A range with no end is always overlapped, as the rules are not
+   *         expanded without a bound.
+   */
+  private boolean recursInRange(Content node, VEvent event, java.util.Date start,
+      java.util.Date end) {
+    if (end == null || event.getStartDate() == null) {
+      return true;
+    }
+    if (start == null) {
+      // the first occurrence is the earliest.
+      return isInRange(node, null, end);
+    }
+    return !event.calculateRecurrenceSet(
+        new Period(new DateTime(start), new DateTime(end))).isEmpty();
+  }
+
+  private Long getTime(Content node, String name) {
+    Object value = node.getProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + name);
+    if (value instanceof java.util.Calendar) {
+      return ((java.util.Calendar) value).getTimeInMillis();
+    } else if (value != null) {
+      String stringValue = String.valueOf(value);
+      try {
+        return new DateTime(stringValue).getTime();
+      } catch (ParseException e) {
+        try {
+          return new Date(stringValue).getTime();
+        } catch (ParseException e1) {
+          LOGGER.debug("Unable to read {} of {} as a date", name, node.getPath());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Takes the properties of each component found while walking a calendar.
+   */
+  private interface ComponentHandler {
+    void handle(PropertyList eventProperties) throws IOException;
+  }
+
   private void addCalPropertiesToNode(PropertyList propertyList, Content node) {
     @SuppressWarnings("unchecked")
     Iterator<Property> propIter = (Iterator<Property>) propertyList.iterator();
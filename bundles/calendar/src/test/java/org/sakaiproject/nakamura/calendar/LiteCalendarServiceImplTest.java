@@ -25,6 +25,7 @@ import com.google.common.collect.Lists;
 
 
 import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.CalendarOutputter;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
@@ -32,6 +33,7 @@ import net.fortuna.ical4j.model.ComponentList;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyList;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
@@ -50,6 +52,12 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.Collections;
 import java.util.List;
 
@@ -119,6 +127,220 @@ public class LiteCalendarServiceImplTest {
     assertEquals(veventUid, prop.getValue());
   }
 
+  @Test
+  public void testStreamingExportMatchesExport() throws Exception {
+    Calendar inputCalendar = loadTestCalendar();
+    String calendarPath = testKey + "/stream-calendar";
+    Content createdContent = liteCalendarService.store(inputCalendar, session, calendarPath);
+
+    StringWriter writer = new StringWriter();
+    liteCalendarService.export(session, createdContent, new String[] { "vevent" }, null,
+        null, writer);
+    Calendar streamed = new CalendarBuilder().build(new StringReader(writer.toString()));
+    assertEquivalentCalendar(inputCalendar, streamed);
+
+    StringWriter outputterWriter = new StringWriter();
+    new CalendarOutputter(false).output(
+        liteCalendarService.export(session, createdContent), outputterWriter);
+    assertEquals(outputterWriter.toString(), writer.toString());
+  }
+
+  @Test
+  public void testStreamingExportFiltersOnRange() throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/range-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/01/early", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110107T172000Z",
+        "sakai:vcal-DTEND", "20110107T180000Z",
+        "sakai:vcal-UID", "early"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/02/inside", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110207T172000Z",
+        "sakai:vcal-DTEND", "20110207T180000Z",
+        "sakai:vcal-UID", "inside"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/03/late", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110307T172000Z",
+        "sakai:vcal-UID", "late"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/02/todo", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vtodo",
+        "sakai:vcal-DTSTART", "20110207T172000Z",
+        "sakai:vcal-UID", "todo"
+    )));
+    Content calendarContent = contentManager.get(calendarPath);
+
+    java.util.Calendar start = java.util.Calendar.getInstance();
+    start.clear();
+    start.set(2011, java.util.Calendar.FEBRUARY, 1);
+    java.util.Calendar end = java.util.Calendar.getInstance();
+    end.clear();
+    end.set(2011, java.util.Calendar.MARCH, 1);
+    StringWriter writer = new StringWriter();
+    liteCalendarService.export(session, calendarContent, new String[] { "VEVENT" },
+        start.getTime(), end.getTime(), writer);
+
+    ComponentList components = new CalendarBuilder().build(
+        new StringReader(writer.toString())).getComponents();
+    assertEquals(1, components.size());
+    assertEquals("inside", ((Component) components.get(0)).getProperty(Property.UID)
+        .getValue());
+
+    // open ended ranges.
+    writer = new StringWriter();
+    liteCalendarService.export(session, calendarContent, new String[] { "VEVENT" },
+        start.getTime(), null, writer);
+    components = new CalendarBuilder().build(new StringReader(writer.toString()))
+        .getComponents();
+    assertEquals(2, components.size());
+  }
+
+  @Test
+  public void testStreamingExportExpandsRecurringEvents() throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/recurring-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar"
+    )));
+    // weekly from the 3rd of January until the middle of March.
+    contentManager.update(new Content(calendarPath + "/2011/01/weekly", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110103T090000Z",
+        "sakai:vcal-DTEND", "20110103T100000Z",
+        "sakai:vcal-RRULE", "FREQ=WEEKLY;COUNT=10",
+        "sakai:vcal-UID", "weekly"
+    )));
+    // weekly, but over before February.
+    contentManager.update(new Content(calendarPath + "/2011/01/over", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110103T090000Z",
+        "sakai:vcal-DTEND", "20110103T100000Z",
+        "sakai:vcal-RRULE", "FREQ=WEEKLY;COUNT=2",
+        "sakai:vcal-UID", "over"
+    )));
+    // one extra date in February.
+    contentManager.update(new Content(calendarPath + "/2011/01/extra", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110103T090000Z",
+        "sakai:vcal-DTEND", "20110103T100000Z",
+        "sakai:vcal-RDATE", "20110214T090000Z",
+        "sakai:vcal-UID", "extra"
+    )));
+    Content calendarContent = contentManager.get(calendarPath);
+
+    java.util.Calendar start = java.util.Calendar.getInstance();
+    start.clear();
+    start.set(2011, java.util.Calendar.FEBRUARY, 1);
+    java.util.Calendar end = java.util.Calendar.getInstance();
+    end.clear();
+    end.set(2011, java.util.Calendar.MARCH, 1);
+    StringWriter writer = new StringWriter();
+    liteCalendarService.export(session, calendarContent, new String[] { "VEVENT" },
+        start.getTime(), end.getTime(), writer);
+
+    ComponentList components = new CalendarBuilder().build(
+        new StringReader(writer.toString())).getComponents();
+    List<String> uids = Lists.newArrayList();
+    for (Object component : components) {
+      uids.add(((Component) component).getProperty(Property.UID).getValue());
+    }
+    Collections.sort(uids);
+    assertEquals(Lists.newArrayList("extra", "weekly"), uids);
+  }
+
+  /**
+   * Compares building a 50k event calendar with {@link LiteCalendarServiceImpl#export}
+   * and writing it with {@link CalendarOutputter}, against streaming it. Reports the
+   * time taken and the peak heap over the export, which is only a rough figure as it
+   * includes garbage the collector hasn't got to. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkLargeCalendarExport() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/large-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar"
+    )));
+    int events = 50000;
+    for (int i = 0; i < events; i++) {
+      String day = String.format("2011%02d%02d", 1 + (i / 28) % 12, 1 + i % 28);
+      contentManager.update(new Content(calendarPath + "/" + day.substring(0, 4) + "/"
+          + day.substring(4, 6) + "/" + day.substring(6) + "/event" + i, ImmutableMap.of(
+          "sling:resourceType", (Object) "sakai/calendar-vevent",
+          "sakai:vcal-DTSTART", day + "T090000Z",
+          "sakai:vcal-DTEND", day + "T100000Z",
+          "sakai:vcal-UID", "event-" + i,
+          "sakai:vcal-SUMMARY", "Lecture number " + i + " of the course"
+      )));
+    }
+    Content calendarContent = contentManager.get(calendarPath);
+
+    System.out.println("mode, ms, peak heap MB");
+    for (int run = 0; run < 3; run++) {
+      resetPeakHeap();
+      long time = System.nanoTime();
+      CountingWriter out = new CountingWriter();
+      new CalendarOutputter(false).output(
+          liteCalendarService.export(session, calendarContent), out);
+      time = System.nanoTime() - time;
+      System.out.println("build, " + (time / 1000000) + ", " + (peakHeap() / 1048576));
+      long built = out.count;
+
+      resetPeakHeap();
+      time = System.nanoTime();
+      out = new CountingWriter();
+      liteCalendarService.export(session, calendarContent, new String[] { "vevent" },
+          null, null, out);
+      time = System.nanoTime() - time;
+      System.out.println("stream, " + (time / 1000000) + ", " + (peakHeap() / 1048576));
+      assertEquals(built, out.count);
+    }
+  }
+
+  private void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  private long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * Throws the calendar away, so only the export is measured.
+   */
+  private static class CountingWriter extends Writer {
+    long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
   @Test
   public void testStoreAsCalendar() throws CalendarException, IOException, ParserException {
     Calendar inputCalendar = loadTestCalendar();
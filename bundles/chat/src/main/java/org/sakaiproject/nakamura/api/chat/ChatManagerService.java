@@ -49,4 +49,31 @@ public interface ChatManagerService {
    * Flush the entire cache.
    */
   public void clear();
+
+  /**
+   * Park a waiter until the user has a chat update newer than <code>since</code>. The
+   * waiter is resumed and forgotten when a newer time is put for the user on this
+   * server, when one put on another server is noticed, or once it has waited for
+   * <code>timeout</code> milliseconds.
+   *
+   * @param userID
+   *          The ID of the user the waiter is interested in.
+   * @param since
+   *          The last time the waiter knows about.
+   * @param timeout
+   *          How long the waiter may stay parked.
+   * @param waiter
+   *          The waiter.
+   * @return false if the waiter could not be parked because too many are already
+   *         waiting, in which case the caller should answer straight away.
+   */
+  public boolean addWaiter(String userID, long since, long timeout, ChatWaiter waiter);
+
+  /**
+   * Forget a waiter without resuming it.
+   *
+   * @param userID
+   * @param waiter
+   */
+  public void removeWaiter(String userID, ChatWaiter waiter);
 }
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.auth.core.AuthenticationSupport;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.osgi.service.http.HttpContext;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.http.NamespaceException;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.chat.ChatWaiter;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Long poll version of the {@link ChatServlet}. Rather than answering straight away, a
+ * request with nothing new is parked on a Jetty continuation until a chat message is
+ * recorded for the user or the poll times out, so idle chat windows cost one request
+ * per timeout instead of one per poll interval. The answer is the same JSON as the
+ * chatupdate selector.
+ * <p>
+ * Like the UI event servlet this is registered with the HttpService rather than Sling,
+ * as a suspended request is retried from the top when it is resumed. Authentication is
+ * still done by Sling, through this servlet's HttpContext.
+ */
+@Component(immediate = true, metatype = true)
+public class ChatLongPollServlet extends HttpServlet implements HttpContext {
+
+  private static final long serialVersionUID = 2451036287645328147L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatLongPollServlet.class);
+
+  @Property(value = "/system/chat/wait", label = "Path", description = "Where the long poll endpoint is registered.")
+  static final String REGISTRATION_PATH = "sakai.chat.longpoll.path";
+
+  @Property(longValue = ChatLongPollServlet.DEFAULT_TIMEOUT, label = "Poll timeout (ms)", description = "How long a request waits for a chat message before answering that there is none.")
+  static final String TIMEOUT = "sakai.chat.longpoll.timeout";
+  static final long DEFAULT_TIMEOUT = 30000L;
+
+  @Reference
+  protected transient HttpService httpService;
+
+  @Reference
+  protected transient ChatManagerService chatManagerService;
+
+  @Reference
+  protected transient AuthenticationSupport authenticationSupport;
+
+  private String registrationPath;
+  private long timeout;
+
+  @Activate
+  protected void activate(Map<?, ?> props) throws ServletException, NamespaceException {
+    registrationPath = OsgiUtil.toString(props.get(REGISTRATION_PATH), "/system/chat/wait");
+    timeout = OsgiUtil.toLong(props.get(TIMEOUT), DEFAULT_TIMEOUT);
+    httpService.registerServlet(registrationPath, this, null, this);
+    LOGGER.info("Registered {} at {} ", this, registrationPath);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    httpService.unregister(registrationPath);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    try {
+      String userID = getUserID(request);
+      if (userID == null || UserConstants.ANON_USERID.equals(userID)) {
+        response.sendError(HttpServletResponse.SC_FORBIDDEN,
+            "Anonymous users can't wait for chat messages.");
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+      long since;
+      try {
+        since = Long.parseLong(request.getParameter("t"));
+      } catch (NumberFormatException e) {
+        // no usable time, so the client has to fetch its messages anyway.
+        ChatServlet.writeUpdate(response, true, now, now);
+        return;
+      }
+
+      Long lastUpdate = chatManagerService.get(userID);
+      if (lastUpdate == null) {
+        chatManagerService.put(userID, now);
+        ChatServlet.writeUpdate(response, true, now, since);
+        return;
+      }
+      if (since < lastUpdate) {
+        ChatServlet.writeUpdate(response, true, now, since);
+        return;
+      }
+
+      Continuation continuation = ContinuationSupport.getContinuation(request, null);
+      if (continuation.isNew()) {
+        ChatWaiter waiter = new ContinuationChatWaiter(continuation);
+        if (!chatManagerService.addWaiter(userID, since, timeout, waiter)) {
+          // too many parked already, answer like a plain poll.
+          ChatServlet.writeUpdate(response, false, now, since);
+          return;
+        }
+        // On a NIO connector this throws a RetryRequest and the request comes back
+        // through doGet once resumed or timed out, with the continuation no longer
+        // new. Elsewhere it blocks this thread.
+        continuation.suspend(timeout);
+        chatManagerService.removeWaiter(userID, waiter);
+      }
+
+      lastUpdate = chatManagerService.get(userID);
+      ChatServlet.writeUpdate(response, lastUpdate != null && since < lastUpdate,
+          System.currentTimeMillis(), since);
+    } catch (JSONException e) {
+      LOGGER.warn("Unable to write chat update JSON {}", e.getMessage());
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Unable to parse JSON.");
+    } finally {
+      // Sling left a resolver on the request when it authenticated it, and won't be
+      // around to close it.
+      ResourceResolver resolver = (ResourceResolver) request
+          .getAttribute(AuthenticationSupport.REQUEST_ATTRIBUTE_RESOLVER);
+      if (resolver != null) {
+        request.removeAttribute(AuthenticationSupport.REQUEST_ATTRIBUTE_RESOLVER);
+        resolver.close();
+      }
+    }
+  }
+
+  protected String getUserID(HttpServletRequest request) {
+    return request.getRemoteUser();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.http.HttpContext#handleSecurity(javax.servlet.http.HttpServletRequest,
+   *      javax.servlet.http.HttpServletResponse)
+   */
+  public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    return authenticationSupport.handleSecurity(request, response);
+  }
+
+  public URL getResource(String name) {
+    return null;
+  }
+
+  public String getMimeType(String name) {
+    return null;
+  }
+
+  /**
+   * Resumes a suspended request.
+   */
+  static class ContinuationChatWaiter implements ChatWaiter {
+    private final Continuation continuation;
+
+    ContinuationChatWaiter(Continuation continuation) {
+      this.continuation = continuation;
+    }
+
+    public void resume() {
+      continuation.resume();
+    }
+  }
+}
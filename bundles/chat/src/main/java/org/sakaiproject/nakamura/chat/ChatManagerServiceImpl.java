@@ -17,20 +17,33 @@
  */
 package org.sakaiproject.nakamura.chat;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.chat.ChatWaiter;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The <code>ChatManagerServiceImpl</code>
  */
-@Component(immediate = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
+@Component(immediate = true, metatype = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
 @Service(value = ChatManagerService.class)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -38,10 +51,68 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
 public class ChatManagerServiceImpl implements ChatManagerService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatManagerServiceImpl.class);
+
   private static final String CHAT_CACHE = "chat";
 
+  @Property(intValue = ChatManagerServiceImpl.DEFAULT_MAX_WAITERS, label = "Maximum waiters", description = "The most chat requests parked on this server at once.")
+  static final String MAX_WAITERS = "sakai.chat.waiters.max";
+  static final int DEFAULT_MAX_WAITERS = 10000;
+
+  @Property(intValue = ChatManagerServiceImpl.DEFAULT_MAX_WAITERS_PER_USER, label = "Maximum waiters per user", description = "The most chat requests parked on this server for one user.")
+  static final String MAX_WAITERS_PER_USER = "sakai.chat.waiters.max.user";
+  static final int DEFAULT_MAX_WAITERS_PER_USER = 5;
+
+  @Property(longValue = ChatManagerServiceImpl.DEFAULT_SWEEP_INTERVAL, label = "Sweep interval (ms)", description = "How often parked chat requests are checked for updates made on other servers.")
+  static final String SWEEP_INTERVAL = "sakai.chat.waiters.sweep";
+  static final long DEFAULT_SWEEP_INTERVAL = 2000L;
+
   private CacheManagerService cacheManagerService;
 
+  private final ChatWaiterRegistry waiters = new ChatWaiterRegistry(DEFAULT_MAX_WAITERS,
+      DEFAULT_MAX_WAITERS_PER_USER);
+
+  private ScheduledExecutorService sweeper;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    modified(props);
+    final long sweepInterval = OsgiUtil.toLong(props.get(SWEEP_INTERVAL),
+        DEFAULT_SWEEP_INTERVAL);
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "chat-waiter-sweep");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sweep(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          LOGGER.warn("Failed to sweep chat waiters", e);
+        }
+      }
+    }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    waiters.configure(OsgiUtil.toInteger(props.get(MAX_WAITERS), DEFAULT_MAX_WAITERS),
+        OsgiUtil.toInteger(props.get(MAX_WAITERS_PER_USER), DEFAULT_MAX_WAITERS_PER_USER));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+    // let the parked requests answer rather than hang until they time out.
+    waiters.clear();
+  }
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
   }
@@ -89,6 +160,7 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    waiters.update(userID, time);
   }
 
   /**
@@ -101,4 +173,40 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     getCachedMap().remove(userID);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#addWaiter(java.lang.String,
+   *      long, long, org.sakaiproject.nakamura.api.chat.ChatWaiter)
+   */
+  public boolean addWaiter(String userID, long since, long timeout, ChatWaiter waiter) {
+    return waiters.add(userID, since, System.currentTimeMillis() + timeout, waiter);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#removeWaiter(java.lang.String,
+   *      org.sakaiproject.nakamura.api.chat.ChatWaiter)
+   */
+  public void removeWaiter(String userID, ChatWaiter waiter) {
+    waiters.remove(userID, waiter);
+  }
+
+  /**
+   * Resume the waiters whose user was updated on another server, and drop the ones past
+   * their timeout.
+   */
+  void sweep(long now) {
+    waiters.sweep(new ChatWaiterRegistry.LastUpdate() {
+      public Long get(String userID) {
+        return ChatManagerServiceImpl.this.get(userID);
+      }
+    }, now);
+  }
+
+  int getWaiterCount() {
+    return waiters.size();
+  }
+
 }
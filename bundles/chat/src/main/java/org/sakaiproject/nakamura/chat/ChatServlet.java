@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.util.Calendar;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Will check if a user has any chat updates.
@@ -99,35 +100,17 @@ public class ChatServlet extends SlingSafeMethodsServlet {
         } catch (NumberFormatException e) {
           hasUpdate = true;
           LOGGER
-              .info("User requested non-Long timestamp: {}", timestampParam.getString());
+              .debug("User requested non-Long timestamp: {}", timestampParam.getString());
         }
       } else {
         hasUpdate = true;
       }
     }
 
-    LOGGER.info("Returned time = {}, update = {}", time, hasUpdate);
+    LOGGER.debug("Returned time = {}, update = {}", time, hasUpdate);
 
-    Calendar cal = Calendar.getInstance();
-    cal.setTimeInMillis(time);
-
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-
-
-    JSONWriter write = new JSONWriter(response.getWriter());
     try {
-      write.object();
-      write.key("update");
-      write.value(hasUpdate);
-      write.key("time");
-      write.value(requestTime);
-      write.key("pulltime");
-      // We use this format rather than ISO8601 because Jackrabbit uses a subset
-      // (8601:2000)
-      // See jsr170.pdf - 6.2.5.1
-      write.value(dateFormat.format(cal));
-      write.endObject();
+      writeUpdate(response, hasUpdate, requestTime, time);
     } catch (JSONException e) {
       LOGGER.warn("Unable to parse JSON for user {} and time {}", userID, time);
       response.sendError(500, "Unable to parse JSON.");
@@ -136,4 +119,39 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     // Make sure the connection is not keep-alive.
     response.setHeader("Connection", "close");
   }
+
+  /**
+   * Write the answer to a chat update check.
+   *
+   * @param response
+   * @param hasUpdate
+   *          Whether there is a chat message the client has not seen.
+   * @param requestTime
+   *          The server time the client should send back on its next check.
+   * @param time
+   *          The time the client sent, or the current time.
+   * @throws IOException
+   * @throws JSONException
+   */
+  static void writeUpdate(HttpServletResponse response, boolean hasUpdate,
+      long requestTime, long time) throws IOException, JSONException {
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(time);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("update");
+    write.value(hasUpdate);
+    write.key("time");
+    write.value(requestTime);
+    write.key("pulltime");
+    // We use this format rather than ISO8601 because Jackrabbit uses a subset
+    // (8601:2000)
+    // See jsr170.pdf - 6.2.5.1
+    write.value(dateFormat.format(cal));
+    write.endObject();
+  }
 }
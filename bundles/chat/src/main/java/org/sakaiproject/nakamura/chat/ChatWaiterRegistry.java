@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.sakaiproject.nakamura.api.chat.ChatWaiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The waiters parked on this server, by user. The registry is bounded both overall and
+ * per user, so a flood of chat windows can't hold an unbounded number of requests.
+ * Waiters are always resumed outside the registry lock.
+ */
+public class ChatWaiterRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatWaiterRegistry.class);
+
+  /**
+   * Looks up the last chat time of a user, which may have been set on another server.
+   */
+  public interface LastUpdate {
+    Long get(String userID);
+  }
+
+  private final Map<String, List<Registration>> waiters = new HashMap<String, List<Registration>>();
+  private int size;
+  private int maxWaiters;
+  private int maxWaitersPerUser;
+
+  public ChatWaiterRegistry(int maxWaiters, int maxWaitersPerUser) {
+    configure(maxWaiters, maxWaitersPerUser);
+  }
+
+  public synchronized void configure(int maxWaiters, int maxWaitersPerUser) {
+    this.maxWaiters = maxWaiters;
+    this.maxWaitersPerUser = maxWaitersPerUser;
+  }
+
+  /**
+   * @return false if the registry, or the user's share of it, is full.
+   */
+  public synchronized boolean add(String userID, long since, long deadline,
+      ChatWaiter waiter) {
+    if (size >= maxWaiters) {
+      LOGGER.debug("Chat waiter registry is full at {} waiters", size);
+      return false;
+    }
+    List<Registration> userWaiters = waiters.get(userID);
+    if (userWaiters == null) {
+      userWaiters = new ArrayList<Registration>(2);
+      waiters.put(userID, userWaiters);
+    } else if (userWaiters.size() >= maxWaitersPerUser) {
+      LOGGER.debug("{} already has {} chat waiters", userID, userWaiters.size());
+      return false;
+    }
+    userWaiters.add(new Registration(waiter, since, deadline));
+    size++;
+    return true;
+  }
+
+  public synchronized void remove(String userID, ChatWaiter waiter) {
+    List<Registration> userWaiters = waiters.get(userID);
+    if (userWaiters != null) {
+      for (Iterator<Registration> i = userWaiters.iterator(); i.hasNext();) {
+        if (i.next().waiter == waiter) {
+          i.remove();
+          size--;
+          break;
+        }
+      }
+      if (userWaiters.isEmpty()) {
+        waiters.remove(userID);
+      }
+    }
+  }
+
+  /**
+   * Resume the user's waiters that have not seen <code>time</code> yet.
+   */
+  public void update(String userID, long time) {
+    List<ChatWaiter> ready = new ArrayList<ChatWaiter>();
+    synchronized (this) {
+      List<Registration> userWaiters = waiters.get(userID);
+      if (userWaiters == null) {
+        return;
+      }
+      takeReady(userWaiters, time, Long.MIN_VALUE, ready);
+      if (userWaiters.isEmpty()) {
+        waiters.remove(userID);
+      }
+    }
+    resume(ready);
+  }
+
+  /**
+   * Resume the waiters whose user has been updated elsewhere, and drop the ones that
+   * have waited too long.
+   */
+  public void sweep(LastUpdate lastUpdate, long now) {
+    List<String> userIDs;
+    synchronized (this) {
+      userIDs = new ArrayList<String>(waiters.keySet());
+    }
+    List<ChatWaiter> ready = new ArrayList<ChatWaiter>();
+    for (String userID : userIDs) {
+      // the lookup may go to the cluster cache, so keep it outside the lock.
+      Long last = lastUpdate.get(userID);
+      synchronized (this) {
+        List<Registration> userWaiters = waiters.get(userID);
+        if (userWaiters != null) {
+          takeReady(userWaiters, last == null ? Long.MIN_VALUE : last, now, ready);
+          if (userWaiters.isEmpty()) {
+            waiters.remove(userID);
+          }
+        }
+      }
+    }
+    resume(ready);
+  }
+
+  /**
+   * Resume and forget every waiter.
+   */
+  public void clear() {
+    List<ChatWaiter> ready = new ArrayList<ChatWaiter>();
+    synchronized (this) {
+      for (Entry<String, List<Registration>> e : waiters.entrySet()) {
+        for (Registration r : e.getValue()) {
+          ready.add(r.waiter);
+        }
+      }
+      waiters.clear();
+      size = 0;
+    }
+    resume(ready);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private void takeReady(List<Registration> userWaiters, long time, long now,
+      List<ChatWaiter> ready) {
+    for (Iterator<Registration> i = userWaiters.iterator(); i.hasNext();) {
+      Registration r = i.next();
+      if (r.since < time || r.deadline <= now) {
+        i.remove();
+        size--;
+        ready.add(r.waiter);
+      }
+    }
+  }
+
+  private void resume(List<ChatWaiter> ready) {
+    for (ChatWaiter waiter : ready) {
+      try {
+        waiter.resume();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Failed to resume chat waiter {} ", e.getMessage());
+      }
+    }
+  }
+
+  private static final class Registration {
+    private final ChatWaiter waiter;
+    private final long since;
+    private final long deadline;
+
+    private Registration(ChatWaiter waiter, long since, long deadline) {
+      this.waiter = waiter;
+      this.since = since;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.osgi.service.http.HttpService;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the long poll servlet in an embedded Jetty on a NIO connector, so that requests
+ * really are suspended.
+ */
+public class ChatLongPollLoadTest {
+
+  private Server server;
+  private ChatManagerServiceImpl chatManagerService;
+  private CountingLongPollServlet servlet;
+  private volatile boolean running;
+
+  private static class CountingLongPollServlet extends ChatLongPollServlet {
+    private static final long serialVersionUID = 1L;
+    final AtomicLong dispatches = new AtomicLong();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+      dispatches.incrementAndGet();
+      super.doGet(request, response);
+    }
+
+    @Override
+    protected String getUserID(HttpServletRequest request) {
+      return request.getParameter("u");
+    }
+  }
+
+  private static class SynchronizedMapCache extends MapCacheImpl<Object> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Object get(String key) {
+      return super.get(key);
+    }
+
+    @Override
+    public synchronized Object put(String key, Object payload) {
+      return super.put(key, payload);
+    }
+  }
+
+  private int start(long timeout, int maxWaiters) throws Exception {
+    Cache<Object> chatCache = new SynchronizedMapCache();
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(eq("chat"), eq(CacheScope.CLUSTERREPLICATED)))
+        .thenReturn(chatCache);
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+    Map<String, Object> managerProps = new HashMap<String, Object>();
+    managerProps.put(ChatManagerServiceImpl.MAX_WAITERS, maxWaiters);
+    managerProps.put(ChatManagerServiceImpl.SWEEP_INTERVAL, 500L);
+    chatManagerService.activate(managerProps);
+
+    servlet = new CountingLongPollServlet();
+    servlet.httpService = mock(HttpService.class);
+    servlet.chatManagerService = chatManagerService;
+    Map<String, Object> servletProps = new HashMap<String, Object>();
+    servletProps.put(ChatLongPollServlet.TIMEOUT, timeout);
+    servlet.activate(servletProps);
+
+    server = new Server();
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(0);
+    server.addConnector(connector);
+    Context context = new Context(server, "/");
+    context.addServlet(new ServletHolder(servlet), "/system/chat/wait");
+    server.start();
+    return connector.getLocalPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    running = false;
+    if (chatManagerService != null) {
+      chatManagerService.deactivate();
+    }
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private static JSONObject get(String url) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setReadTimeout(60000);
+    InputStream in = connection.getInputStream();
+    try {
+      Reader reader = new InputStreamReader(in, "UTF-8");
+      StringBuilder body = new StringBuilder();
+      char[] buffer = new char[512];
+      for (int n = reader.read(buffer); n != -1; n = reader.read(buffer)) {
+        body.append(buffer, 0, n);
+      }
+      return new JSONObject(body.toString());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testParkedRequestIsResumedByMessage() throws Exception {
+    int port = start(20000, 100);
+    chatManagerService.put("jack", 100);
+    final String url = "http://localhost:" + port + "/system/chat/wait?u=jack&t=100";
+    final List<JSONObject> result = new ArrayList<JSONObject>();
+    Thread client = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result.add(get(url));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    long start = System.currentTimeMillis();
+    client.start();
+    while (chatManagerService.getWaiterCount() == 0) {
+      Thread.sleep(10);
+    }
+    chatManagerService.put("jack", 200);
+    client.join(10000);
+
+    assertEquals(1, result.size());
+    assertEquals(true, result.get(0).get("update"));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(0, chatManagerService.getWaiterCount());
+  }
+
+  @Test
+  public void testParkedRequestTimesOut() throws Exception {
+    int port = start(300, 100);
+    chatManagerService.put("jack", 100);
+
+    JSONObject result = get("http://localhost:" + port + "/system/chat/wait?u=jack&t=100");
+    assertEquals(false, result.get("update"));
+  }
+
+  @Test
+  public void testFullRegistryAnswersStraightAway() throws Exception {
+    int port = start(20000, 0);
+    chatManagerService.put("jack", 100);
+
+    long start = System.currentTimeMillis();
+    JSONObject result = get("http://localhost:" + port + "/system/chat/wait?u=jack&t=100");
+    assertEquals(false, result.get("update"));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  /**
+   * Compares idle chat clients polling once a second, which is what a full registry
+   * degrades to, with the same clients parked on the long poll. Reports the request
+   * rate the server sees and the CPU the server threads use. The clients run in the
+   * same JVM but their CPU is not counted. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkIdleClients() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int[] clientCounts = { 50, 200, 500 };
+    long duration = 10000;
+    System.out.println("clients, mode, requests/s, server cpu ms/s");
+    for (int clients : clientCounts) {
+      for (boolean longPoll : new boolean[] { false, true }) {
+        int port = start(5000, longPoll ? clients : 0);
+        List<Thread> threads = runClients(port, clients, longPoll ? 0 : 1000);
+        // let the clients settle before measuring.
+        Thread.sleep(1000);
+        long dispatches = servlet.dispatches.get();
+        long cpu = serverCpuTime(threads);
+        Thread.sleep(duration);
+        dispatches = servlet.dispatches.get() - dispatches;
+        cpu = serverCpuTime(threads) - cpu;
+        System.out.println(clients + ", " + (longPoll ? "long poll" : "poll") + ", "
+            + (dispatches * 1000 / duration) + ", " + (cpu / 1000000 * 1000 / duration));
+        tearDown();
+        for (Thread t : threads) {
+          t.join(10000);
+        }
+      }
+    }
+  }
+
+  private List<Thread> runClients(final int port, int clients, final long pause) {
+    running = true;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < clients; i++) {
+      final String user = "user" + i;
+      Thread t = new Thread("chat-client-" + i) {
+        @Override
+        public void run() {
+          long t = 0;
+          while (running) {
+            try {
+              JSONObject update = get("http://localhost:" + port
+                  + "/system/chat/wait?u=" + user + "&t=" + t);
+              t = update.getLong("time");
+              if (pause > 0) {
+                Thread.sleep(pause);
+              }
+            } catch (Exception e) {
+              // the server went away at the end of the run.
+              return;
+            }
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+    return threads;
+  }
+
+  /**
+   * CPU used by every live thread that isn't one of the clients or this test.
+   */
+  private long serverCpuTime(List<Thread> clients) {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    List<Long> clientIds = new ArrayList<Long>();
+    for (Thread t : clients) {
+      clientIds.add(t.getId());
+    }
+    clientIds.add(Thread.currentThread().getId());
+    long total = 0;
+    for (long id : mx.getAllThreadIds()) {
+      if (!clientIds.contains(id)) {
+        long cpu = mx.getThreadCpuTime(id);
+        if (cpu > 0) {
+          total += cpu;
+        }
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.chat.ChatWaiter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ChatWaiterRegistryTest {
+
+  private static class CountingWaiter implements ChatWaiter {
+    int resumed;
+
+    public void resume() {
+      resumed++;
+    }
+  }
+
+  @Test
+  public void testUpdateResumesOlderWaiters() {
+    ChatWaiterRegistry registry = new ChatWaiterRegistry(10, 5);
+    CountingWaiter old = new CountingWaiter();
+    CountingWaiter current = new CountingWaiter();
+    CountingWaiter other = new CountingWaiter();
+    registry.add("jack", 10, Long.MAX_VALUE, old);
+    registry.add("jack", 60, Long.MAX_VALUE, current);
+    registry.add("jill", 10, Long.MAX_VALUE, other);
+
+    registry.update("jack", 50);
+
+    assertEquals(1, old.resumed);
+    assertEquals(0, current.resumed);
+    assertEquals(0, other.resumed);
+    assertEquals(2, registry.size());
+
+    // resumed waiters are forgotten.
+    registry.update("jack", 70);
+    assertEquals(1, old.resumed);
+    assertEquals(1, current.resumed);
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void testRegistryIsBounded() {
+    ChatWaiterRegistry registry = new ChatWaiterRegistry(3, 2);
+    assertTrue(registry.add("jack", 0, Long.MAX_VALUE, new CountingWaiter()));
+    assertTrue(registry.add("jack", 0, Long.MAX_VALUE, new CountingWaiter()));
+    assertFalse(registry.add("jack", 0, Long.MAX_VALUE, new CountingWaiter()));
+    assertTrue(registry.add("jill", 0, Long.MAX_VALUE, new CountingWaiter()));
+    assertFalse(registry.add("john", 0, Long.MAX_VALUE, new CountingWaiter()));
+
+    registry.update("jack", 10);
+    assertTrue(registry.add("john", 0, Long.MAX_VALUE, new CountingWaiter()));
+  }
+
+  @Test
+  public void testRemove() {
+    ChatWaiterRegistry registry = new ChatWaiterRegistry(10, 5);
+    CountingWaiter waiter = new CountingWaiter();
+    registry.add("jack", 10, Long.MAX_VALUE, waiter);
+    registry.remove("jack", waiter);
+
+    registry.update("jack", 50);
+    assertEquals(0, waiter.resumed);
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testSweepPicksUpRemoteUpdatesAndExpires() {
+    ChatWaiterRegistry registry = new ChatWaiterRegistry(10, 5);
+    CountingWaiter updated = new CountingWaiter();
+    CountingWaiter expired = new CountingWaiter();
+    CountingWaiter waiting = new CountingWaiter();
+    registry.add("jack", 10, 1000, updated);
+    registry.add("jill", 10, 100, expired);
+    registry.add("john", 10, 1000, waiting);
+
+    final Map<String, Long> times = new HashMap<String, Long>();
+    times.put("jack", 50L);
+    times.put("john", 5L);
+    registry.sweep(new ChatWaiterRegistry.LastUpdate() {
+      public Long get(String userID) {
+        return times.get(userID);
+      }
+    }, 500);
+
+    assertEquals(1, updated.resumed);
+    assertEquals(1, expired.resumed);
+    assertEquals(0, waiting.resumed);
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void testClearResumesEveryone() {
+    ChatWaiterRegistry registry = new ChatWaiterRegistry(10, 5);
+    CountingWaiter a = new CountingWaiter();
+    CountingWaiter b = new CountingWaiter();
+    registry.add("jack", 10, Long.MAX_VALUE, a);
+    registry.add("jill", 10, Long.MAX_VALUE, b);
+
+    registry.clear();
+    assertEquals(1, a.resumed);
+    assertEquals(1, b.resumed);
+    assertEquals(0, registry.size());
+  }
+}
@@ -19,17 +19,24 @@ package org.sakaiproject.nakamura.cluster;
 
 import junit.framework.Assert;
 
+import org.junit.Assume;
 import org.junit.Test;
 import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -125,4 +132,162 @@ public class IDTest {
         + uniqueIdGenerator.getRollover());
   }
 
+
+  /**
+   * Several servers, each with several threads, all generating at once. No ID may be
+   * made twice anywhere, and every encoded ID must be distinct too.
+   */
+  @Test
+  public void testCrossNodeUniqueness() throws Exception {
+    final int servers = 8;
+    final int threadsPerServer = 8;
+    final int idsPerThread = 20000;
+    final Map<Long, Integer> ids = new ConcurrentHashMap<Long, Integer>();
+    final Set<String> encoded = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final AtomicInteger collisions = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int s = 0; s < servers; s++) {
+      // the largest server numbers as well as the smallest.
+      final int serverNumber = s % 2 == 0 ? s : UniqueIdGenerator.MAX_SERVER_ID - s;
+      final UniqueIdGenerator generator = new UniqueIdGenerator(serverNumber);
+      for (int t = 0; t < threadsPerServer; t++) {
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (int i = 0; i < idsPerThread; i++) {
+              long id = generator.nextIdLong();
+              if (id <= 0 || ids.put(id, serverNumber) != null
+                  || !encoded.add(UniqueIdGenerator.encode(id))) {
+                collisions.incrementAndGet();
+              }
+            }
+          }
+        };
+        thread.start();
+        threads.add(thread);
+      }
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(0, collisions.get());
+    Assert.assertEquals(servers * threadsPerServer * idsPerThread, ids.size());
+  }
+
+  @Test
+  public void testEncodingIsFixedWidthAndSorted() {
+    UniqueIdGenerator generator = new UniqueIdGenerator(UniqueIdGenerator.MAX_SERVER_ID);
+    String last = UniqueIdGenerator.encode(0);
+    Assert.assertEquals(UniqueIdGenerator.ENCODED_LENGTH, last.length());
+    Assert.assertEquals(UniqueIdGenerator.ENCODED_LENGTH,
+        UniqueIdGenerator.encode(Long.MAX_VALUE).length());
+    for (int i = 0; i < 10000; i++) {
+      String id = generator.nextId();
+      Assert.assertEquals(UniqueIdGenerator.ENCODED_LENGTH, id.length());
+      Assert.assertTrue(id.matches("[0-9A-Za-z]+"));
+      Assert.assertTrue(id.compareTo(last) > 0);
+      last = id;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testServerNumberMustFit() {
+    new UniqueIdGenerator(UniqueIdGenerator.MAX_SERVER_ID + 1);
+  }
+
+  /**
+   * 64 threads sharing one generator, compared with the same threads sharing a
+   * synchronized generator built like the one this replaced. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkContention() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    final int threads = 64;
+    final int idsPerThread = 200000;
+    final UniqueIdGenerator generator = new UniqueIdGenerator(1);
+    final SynchronizedIdGenerator synchronizedGenerator = new SynchronizedIdGenerator(1);
+    for (int round = 0; round < 3; round++) {
+      long lockFree = time(threads, new Runnable() {
+        public void run() {
+          for (int i = 0; i < idsPerThread; i++) {
+            generator.nextId();
+          }
+        }
+      });
+      long locked = time(threads, new Runnable() {
+        public void run() {
+          for (int i = 0; i < idsPerThread; i++) {
+            synchronizedGenerator.nextId();
+          }
+        }
+      });
+      long ids = (long) threads * idsPerThread;
+      LOGGER.info("{} threads: lock free {} ns/id, synchronized {} ns/id", new Object[] {
+          threads, lockFree / ids, locked / ids });
+    }
+  }
+
+  private long time(int threads, Runnable work) throws InterruptedException {
+    List<Thread> running = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      running.add(new Thread(work));
+    }
+    long s = System.nanoTime();
+    for (Thread t : running) {
+      t.start();
+    }
+    for (Thread t : running) {
+      t.join();
+    }
+    return System.nanoTime() - s;
+  }
+
+  /**
+   * The generator as it was, for the benchmark.
+   */
+  private static class SynchronizedIdGenerator {
+    private final long epoch = new GregorianCalendar(2010, 8, 6).getTimeInMillis();
+    private final int serverId;
+    private long last;
+    private long micro;
+
+    SynchronizedIdGenerator(int serverId) {
+      this.serverId = serverId;
+    }
+
+    String nextId() {
+      long next;
+      synchronized (this) {
+        next = System.currentTimeMillis() - epoch;
+        if (next == last) {
+          micro++;
+        } else if (next < last) {
+          next = last;
+          micro++;
+        } else {
+          micro = 0;
+          last = next;
+        }
+        if (micro > 999) {
+          next++;
+          micro = 0;
+          last = next;
+        }
+      }
+      BigInteger idNum = BigInteger.valueOf(next * 1000 + micro);
+      idNum = idNum.multiply(BigInteger.valueOf(10000));
+      idNum = idNum.add(BigInteger.valueOf(serverId));
+      return StringUtils.encode(idNum.toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+  }
+
 }
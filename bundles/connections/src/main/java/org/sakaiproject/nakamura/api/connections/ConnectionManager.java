@@ -65,4 +65,33 @@ public interface ConnectionManager {
       Session session, String actor,
       ConnectionState accepted);
 
+  /**
+   * @param session the session to read the connections with.
+   * @param user the id of the user whose view of the connection to get
+   * @param otherUser the id of the user at the other end of the connection
+   * @return the state of the connection, NONE if there is none
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  ConnectionState getConnectionState(Session session, String user, String otherUser);
+
+  /**
+   * @return the number of users both users have an accepted connection with
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  int getMutualConnectionCount(Session session, String user, String otherUser);
+
+  /**
+   * Suggests people the user may know: the contacts of their contacts and the other
+   * members of their groups, ranked by the number of contacts in common and then by the
+   * number of groups they share. People the user already has a connection with, in any
+   * state, are not suggested.
+   *
+   * @param session the session to read the connections with.
+   * @param user the id of the user to make suggestions for
+   * @param limit the most ids to return
+   * @return the ids of the suggested users, best first
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  List<String> getRelatedUsers(Session session, String user, int limit);
+
 }
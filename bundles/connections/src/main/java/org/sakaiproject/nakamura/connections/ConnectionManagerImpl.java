@@ -32,6 +32,7 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.NONE;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.REJECTED;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
@@ -40,8 +41,11 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -52,6 +56,7 @@ import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
@@ -64,6 +69,9 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,28 +79,47 @@ import org.slf4j.LoggerFactory;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
 /**
- * Service for doing operations with connections.
+ * Service for doing operations with connections. Connections are looked up through a
+ * {@link SocialGraph}, which is kept up to date as connections are made and removed, and
+ * told about changes to groups through authorizable events.
  */
 @Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+@Services(value = { @Service(value = ConnectionManager.class),
+    @Service(value = EventHandler.class) })
+public class ConnectionManagerImpl implements ConnectionManager, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
 
+  /**
+   * The ms connections and group members are kept in the graph's caches for.
+   */
+  private static final long GRAPH_TTL = 600000;
+
 
   @Reference
   protected transient Repository repository;
 
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  private final AtomicLong graphChanges = new AtomicLong();
+
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -273,6 +300,10 @@ public class ConnectionManagerImpl implements ConnectionManager {
       contentManager.update(thisNode);
       contentManager.update(otherNode);
 
+      SocialGraph graph = getSocialGraph();
+      graph.update(thisAu.getId(), otherAu.getId(), getConnectionState(thisNode));
+      graph.update(otherAu.getId(), thisAu.getId(), getConnectionState(otherNode));
+
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
             + thisNode.getPath() + " and " + otherNode.getPath());
@@ -352,28 +383,212 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(Session session, String user, ConnectionState state) {
-    List<String> connections = Lists.newArrayList();
     try {
-      ContentManager contentManager = session.getContentManager();
-      String path = ConnectionUtils.getConnectionPathBase(user);
-      Content content = contentManager.get(path);
-      if (content != null) {
-        for ( Content connection : content.listChildren() ) {
-          String resourceType = (String) connection.getProperty("sling:resourceType");
-          ConnectionState connectionState = ConnectionState.valueOf((String) connection.getProperty(ConnectionConstants.SAKAI_CONNECTION_STATE));
-          if ( ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType) && state.equals(connectionState)) {
-            connections.add(StorageClientUtils.getObjectName(connection.getPath()));
+      checkCanRead(session, user);
+      return getSocialGraph().getConnected(user, state);
+    } catch (StorageClientException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getConnectionState(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String)
+   */
+  public ConnectionState getConnectionState(Session session, String user,
+      String otherUser) {
+    try {
+      checkCanRead(session, user);
+      return getSocialGraph().getState(user, otherUser);
+    } catch (StorageClientException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getMutualConnectionCount(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String)
+   */
+  public int getMutualConnectionCount(Session session, String user, String otherUser) {
+    try {
+      checkCanRead(session, user);
+      return getSocialGraph().countMutual(user, otherUser);
+    } catch (StorageClientException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getRelatedUsers(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, int)
+   */
+  public List<String> getRelatedUsers(final Session session, String user, int limit) {
+    try {
+      checkCanRead(session, user);
+      List<String> groups = Lists.newArrayList();
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Authorizable au = authorizableManager.findAuthorizable(user);
+      if (au != null && au.getPrincipals() != null) {
+        for (String principal : au.getPrincipals()) {
+          // contact groups only hold the contacts of contacts, which are counted anyway.
+          if (!Group.EVERYONE.equals(principal) && !principal.startsWith("g-contacts-")
+              && canReadMembers(authorizableManager, principal)) {
+            groups.add(principal);
           }
         }
       }
+      // the graph is read as the administrator, so only the contacts of those contacts
+      // whose connections the session could read are suggested.
+      return getSocialGraph().getRelated(user, groups, limit, new Predicate<String>() {
+        public boolean apply(String contact) {
+          return canRead(session, contact);
+        }
+      });
     } catch (StorageClientException e) {
       throw new IllegalStateException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (authorizableId != null) {
+      getSocialGraph().invalidate(authorizableId);
+    }
+  }
+
+  /**
+   * The graph is shared by everyone, so a user's connections are only handed to sessions
+   * that could have read them from the contact store.
+   */
+  private void checkCanRead(Session session, String user) throws StorageClientException,
+      AccessDeniedException {
+    session.getAccessControlManager().check(Security.ZONE_CONTENT,
+        ConnectionUtils.getConnectionPathBase(user), Permissions.CAN_READ);
+  }
+
+  private boolean canRead(Session session, String user) {
+    try {
+      checkCanRead(session, user);
+      return true;
+    } catch (AccessDeniedException e) {
+      return false;
+    } catch (StorageClientException e) {
+      LOGGER.debug("Unable to check access to the connections of {} {} ", user,
+          e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the group can be read through the authorizable manager, so its
+   *         members are known to its user.
+   */
+  private boolean canReadMembers(AuthorizableManager authorizableManager, String group) {
+    try {
+      return authorizableManager.findAuthorizable(group) instanceof Group;
+    } catch (AccessDeniedException e) {
+      return false;
+    } catch (StorageClientException e) {
+      LOGGER.debug("Unable to read the group {} {} ", group, e.getMessage());
+      return false;
+    }
+  }
+
+  protected SocialGraph getSocialGraph() {
+    Cache<SocialGraph.Known<LinkedHashMap<String, ConnectionState>>> connections = null;
+    Cache<SocialGraph.Known<String[]>> members = null;
+    if (cacheManagerService != null) {
+      connections = cacheManagerService.getCache(SocialGraph.CACHE_NAME,
+          CacheScope.CLUSTERINVALIDATED);
+      members = cacheManagerService.getCache(SocialGraph.GROUP_CACHE_NAME,
+          CacheScope.CLUSTERINVALIDATED);
+    }
+    return new SocialGraph(connections, members, graphChanges, GRAPH_TTL,
+        new SocialGraph.Loader() {
+          public LinkedHashMap<String, ConnectionState> getConnections(String user)
+              throws StorageClientException, AccessDeniedException {
+            return loadConnections(user);
+          }
+
+          public String[] getMembers(String group) throws StorageClientException,
+              AccessDeniedException {
+            return loadMembers(group);
+          }
+        });
+  }
+
+  /**
+   * Reads a user's connections from their contact store. The graph is shared by everyone,
+   * so this reads everything, and the public methods only hand out what the caller's
+   * session could read.
+   */
+  protected LinkedHashMap<String, ConnectionState> loadConnections(String user)
+      throws StorageClientException, AccessDeniedException {
+    LinkedHashMap<String, ConnectionState> connections = new LinkedHashMap<String, ConnectionState>();
+    Session adminSession = repository.loginAdministrative();
+    try {
+      Content content = adminSession.getContentManager().get(
+          ConnectionUtils.getConnectionPathBase(user));
+      if (content != null) {
+        for (Content connection : content.listChildren()) {
+          String resourceType = (String) connection.getProperty("sling:resourceType");
+          if (ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType)) {
+            ConnectionState state = NONE;
+            try {
+              state = getConnectionState(connection);
+            } catch (ConnectionException e) {
+              LOGGER.debug("Unable to read the connection {} {} ", connection.getPath(),
+                  e.getMessage());
+            }
+            if (state != NONE) {
+              connections.put(StorageClientUtils.getObjectName(connection.getPath()),
+                  state);
+            }
+          }
+        }
+      }
+    } finally {
+      adminSession.logout();
+    }
     return connections;
   }
 
+  /**
+   * Reads the members of a group.
+   */
+  protected String[] loadMembers(String group) throws StorageClientException,
+      AccessDeniedException {
+    Session adminSession = repository.loginAdministrative();
+    try {
+      Authorizable au = adminSession.getAuthorizableManager().findAuthorizable(group);
+      if (au instanceof Group && ((Group) au).getMembers() != null) {
+        return ((Group) au).getMembers();
+      }
+      return new String[0];
+    } finally {
+      adminSession.logout();
+    }
+  }
+
   protected Content getOrCreateConnectionNode(Session session, Authorizable fromUser,
       Authorizable toUser) throws StorageClientException, AccessDeniedException {
     String nodePath = ConnectionUtils.getConnectionPath(fromUser, toUser);
@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index of each user's connections, and of the members of groups, so that connection
+ * lookups, mutual contacts and suggestions are map lookups rather than listings of the
+ * contact store and loads of every authorizable involved.
+ * <p>
+ * A user's connections are read from their contact store the first time they are
+ * needed, and kept up to date by {@link ConnectionManagerImpl} as connections change.
+ * The members of a group are dropped when the group is updated. Both are kept in cluster
+ * invalidated caches, without which everything is read from the store each time, for no
+ * longer than a time to live, so that changes made behind the graph's back are seen in
+ * the end. What was read while a change was made is not kept.
+ */
+public class SocialGraph {
+
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.connections.graph";
+  static final String GROUP_CACHE_NAME = "org.sakaiproject.nakamura.connections.groups";
+
+  /**
+   * Reads the graph from the store.
+   */
+  public interface Loader {
+    /**
+     * @return the user's view of each of their connections, in any state but NONE.
+     */
+    LinkedHashMap<String, ConnectionState> getConnections(String user)
+        throws StorageClientException, AccessDeniedException;
+
+    /**
+     * @return the members of the group, or an empty array if there is no such group.
+     */
+    String[] getMembers(String group) throws StorageClientException,
+        AccessDeniedException;
+  }
+
+  /**
+   * What was read from the store, and when.
+   */
+  public static final class Known<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final T value;
+    final long built;
+
+    Known(T value, long built) {
+      this.value = value;
+      this.built = built;
+    }
+  }
+
+  private final Cache<Known<LinkedHashMap<String, ConnectionState>>> connections;
+  private final Cache<Known<String[]>> members;
+  private final AtomicLong changes;
+  private final long timeToLive;
+  private final Loader loader;
+
+  /**
+   * @param connections
+   *          the cache of connections, keyed by user, or null to read them every time.
+   * @param members
+   *          the cache of group members, keyed by group, or null to read them every time.
+   * @param changes
+   *          moved on by every change, and shared by the graphs over the same caches.
+   * @param timeToLive
+   *          the ms what was read is kept for.
+   * @param loader
+   *          reads what isn't in the caches.
+   */
+  public SocialGraph(Cache<Known<LinkedHashMap<String, ConnectionState>>> connections,
+      Cache<Known<String[]>> members, AtomicLong changes, long timeToLive, Loader loader) {
+    this.connections = connections;
+    this.members = members;
+    this.changes = changes;
+    this.timeToLive = timeToLive;
+    this.loader = loader;
+  }
+
+  /**
+   * @return the user's view of their connection with the other user, NONE if they have
+   *         none.
+   */
+  public ConnectionState getState(String user, String otherUser)
+      throws StorageClientException, AccessDeniedException {
+    ConnectionState state = getConnections(user).get(otherUser);
+    return state == null ? ConnectionState.NONE : state;
+  }
+
+  /**
+   * @param state
+   *          the state of the connections to list, or null for all of them.
+   * @return the users the user has a connection with in that state, in the order they
+   *         were connected.
+   */
+  public List<String> getConnected(String user, ConnectionState state)
+      throws StorageClientException, AccessDeniedException {
+    List<String> users = new ArrayList<String>();
+    for (Entry<String, ConnectionState> e : getConnections(user).entrySet()) {
+      if (state == null || state == e.getValue()) {
+        users.add(e.getKey());
+      }
+    }
+    return users;
+  }
+
+  /**
+   * @return the number of accepted connections the two users have in common.
+   */
+  public int countMutual(String user, String otherUser) throws StorageClientException,
+      AccessDeniedException {
+    Map<String, ConnectionState> mine = getConnections(user);
+    Map<String, ConnectionState> theirs = getConnections(otherUser);
+    if (theirs.size() < mine.size()) {
+      Map<String, ConnectionState> smaller = theirs;
+      theirs = mine;
+      mine = smaller;
+    }
+    int n = 0;
+    for (Entry<String, ConnectionState> e : mine.entrySet()) {
+      if (e.getValue() == ConnectionState.ACCEPTED
+          && theirs.get(e.getKey()) == ConnectionState.ACCEPTED) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Ranks the people the user might know: the contacts of their contacts and the other
+   * members of their groups, by the number of contacts they have in common and then by
+   * the number of groups they share. People the user already has a connection with, in
+   * any state, are left out.
+   *
+   * @param groups
+   *          the groups the user is a member of to look for people in.
+   * @param limit
+   *          the most people to return.
+   * @return the ids of the people, best first.
+   */
+  public List<String> getRelated(String user, Collection<String> groups, int limit)
+      throws StorageClientException, AccessDeniedException {
+    return getRelated(user, groups, limit, Predicates.<String> alwaysTrue());
+  }
+
+  /**
+   * As {@link #getRelated(String, Collection, int)}, only looking at the contacts of
+   * those contacts whose connections the caller may read.
+   *
+   * @param canReadConnections
+   *          true for the contacts whose connections may be looked at.
+   */
+  public List<String> getRelated(String user, Collection<String> groups, int limit,
+      Predicate<String> canReadConnections) throws StorageClientException,
+      AccessDeniedException {
+    Map<String, ConnectionState> mine = getConnections(user);
+    Map<String, int[]> scores = new HashMap<String, int[]>();
+    for (Entry<String, ConnectionState> e : mine.entrySet()) {
+      if (e.getValue() == ConnectionState.ACCEPTED && canReadConnections.apply(e.getKey())) {
+        for (Entry<String, ConnectionState> c : getConnections(e.getKey()).entrySet()) {
+          if (c.getValue() == ConnectionState.ACCEPTED) {
+            score(scores, user, mine, c.getKey(), 0);
+          }
+        }
+      }
+    }
+    if (groups != null) {
+      for (String group : groups) {
+        for (String member : getMembers(group)) {
+          score(scores, user, mine, member, 1);
+        }
+      }
+    }
+
+    // only the best few are wanted, so they are picked out rather than sorting the lot.
+    Comparator<Entry<String, int[]>> worstFirst = new Comparator<Entry<String, int[]>>() {
+      public int compare(Entry<String, int[]> o1, Entry<String, int[]> o2) {
+        int[] s1 = o1.getValue();
+        int[] s2 = o2.getValue();
+        if (s1[0] != s2[0]) {
+          return s1[0] - s2[0];
+        }
+        if (s1[1] != s2[1]) {
+          return s1[1] - s2[1];
+        }
+        return o2.getKey().compareTo(o1.getKey());
+      }
+    };
+    PriorityQueue<Entry<String, int[]>> best = new PriorityQueue<Entry<String, int[]>>(
+        Math.max(1, limit + 1), worstFirst);
+    for (Entry<String, int[]> e : scores.entrySet()) {
+      if (best.size() < limit) {
+        best.add(e);
+      } else if (limit > 0 && worstFirst.compare(e, best.peek()) > 0) {
+        best.poll();
+        best.add(e);
+      }
+    }
+    String[] related = new String[best.size()];
+    for (int n = related.length - 1; n >= 0; n--) {
+      related[n] = best.poll().getKey();
+    }
+    return Arrays.asList(related);
+  }
+
+  private void score(Map<String, int[]> scores, String user,
+      Map<String, ConnectionState> mine, String candidate, int i) {
+    if (user.equals(candidate) || mine.containsKey(candidate)) {
+      return;
+    }
+    int[] score = scores.get(candidate);
+    if (score == null) {
+      score = new int[2];
+      scores.put(candidate, score);
+    }
+    score[i]++;
+  }
+
+  /**
+   * Records a change in a user's view of a connection.
+   */
+  public void update(String user, String otherUser, ConnectionState state) {
+    if (connections == null) {
+      return;
+    }
+    // graphs are made per use, so updates are serialised on the cache they share.
+    synchronized (connections) {
+      changes.incrementAndGet();
+      Known<LinkedHashMap<String, ConnectionState>> cached = connections.get(user);
+      if (cached != null) {
+        // the cached map may be being read, so it is replaced rather than changed.
+        LinkedHashMap<String, ConnectionState> updated = new LinkedHashMap<String, ConnectionState>(
+            cached.value);
+        if (state == null || state == ConnectionState.NONE) {
+          updated.remove(otherUser);
+        } else {
+          updated.put(otherUser, state);
+        }
+        connections.put(user, new Known<LinkedHashMap<String, ConnectionState>>(updated,
+            cached.built));
+      }
+    }
+  }
+
+  /**
+   * Forgets the members of a group, or anything else about an authorizable.
+   */
+  public void invalidate(String id) {
+    if (members != null) {
+      synchronized (members) {
+        changes.incrementAndGet();
+        members.remove(id);
+      }
+    }
+  }
+
+  private Map<String, ConnectionState> getConnections(String user)
+      throws StorageClientException, AccessDeniedException {
+    if (connections == null) {
+      return loader.getConnections(user);
+    }
+    long change;
+    synchronized (connections) {
+      LinkedHashMap<String, ConnectionState> cached = getKnown(connections, user);
+      if (cached != null) {
+        return cached;
+      }
+      change = changes.get();
+    }
+    LinkedHashMap<String, ConnectionState> loaded = loader.getConnections(user);
+    synchronized (connections) {
+      // an update made while this was read may not be in it.
+      if (changes.get() == change) {
+        connections.put(user, new Known<LinkedHashMap<String, ConnectionState>>(loaded,
+            System.currentTimeMillis()));
+      }
+    }
+    return loaded;
+  }
+
+  private String[] getMembers(String group) throws StorageClientException,
+      AccessDeniedException {
+    if (members == null) {
+      return loader.getMembers(group);
+    }
+    long change;
+    synchronized (members) {
+      String[] cached = getKnown(members, group);
+      if (cached != null) {
+        return cached;
+      }
+      change = changes.get();
+    }
+    String[] loaded = loader.getMembers(group);
+    synchronized (members) {
+      if (changes.get() == change) {
+        members.put(group, new Known<String[]>(loaded, System.currentTimeMillis()));
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * @return what is kept for the key, or null if there is nothing or it has outlived the
+   *         time to live.
+   */
+  private <T> T getKnown(Cache<Known<T>> cache, String key) {
+    Known<T> known = cache.get(key);
+    if (known == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - known.built > timeToLive) {
+      cache.remove(key);
+      return null;
+    }
+    return known.value;
+  }
+}
@@ -39,7 +39,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
@@ -55,8 +54,6 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -141,8 +138,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
     final String user = session.getUserId();
-    final List<String> connectedUsers = connectionManager.getConnectedUsers(request,
-        session.getUserId(), ConnectionState.ACCEPTED);
+    final Set<String> connectedUsers = new HashSet<String>(
+        connectionManager.getConnectedUsers(request, session.getUserId(),
+            ConnectionState.ACCEPTED));
     final long nitems = SolrSearchUtil.longRequestParameter(request,
         PARAMS_ITEMS_PER_PAGE, DEFAULT_PAGED_ITEMS);
     // TODO add proper paging support
@@ -151,7 +149,6 @@ public class RelatedContactsSearchBatchResultProcessor implements
     final Set<String> processedUsers = new HashSet<String>();
     try {
       final AuthorizableManager authMgr = session.getAuthorizableManager();
-      final Authorizable auth = authMgr.findAuthorizable(user);
       while (iterator.hasNext() && processedUsers.size() < nitems) {
         final Result result = iterator.next();
         final String resourceType = (String) result.getFirstValue("resourceType");
@@ -165,30 +162,16 @@ public class RelatedContactsSearchBatchResultProcessor implements
         }
       }
       if (processedUsers.size() < nitems) {
-        // TODO migrate to part of the primary solr query - this was a quick solution
-        /* Add people that are a member of groups I'm a member of */
-        final Set<String> relatedUsers = new HashSet<String>();
-        final String[] principals = auth.getPrincipals();
-        if (principals != null) {
-          // process the groups randomly because we might hit page size any time
-          final List<String> randomPrincipals = Arrays.asList(principals);
-          Collections.shuffle(randomPrincipals);
-          for (int i = 0; i < randomPrincipals.size() && processedUsers.size() < nitems; i++) {
-            final Group group = (Group) authMgr.findAuthorizable(randomPrincipals.get(i));
-            if (group != null) {
-              final String[] members = group.getMembers();
-              if (members != null) {
-                relatedUsers.addAll(Arrays.asList(members));
-              }
-            }
-          }
-          // randomize the list because we want different people showing up each time
-          final List<String> relatedPeopleFromGroupMembers = new ArrayList<String>(
-              relatedUsers);
-          Collections.shuffle(relatedPeopleFromGroupMembers);
-          for (final String peep : relatedPeopleFromGroupMembers) {
-            renderContact(peep, request, writer, connectedUsers, processedUsers);
-          }
+        /*
+         * Add contacts of my contacts and people that are a member of groups I'm a member
+         * of, ranked by the contacts and groups we share. The ranking comes from the
+         * connection index, so only the people shown are loaded.
+         */
+        final List<String> relatedUsers = connectionManager.getRelatedUsers(session,
+            user, (int) nitems + processedUsers.size());
+        for (int i = 0; i < relatedUsers.size() && processedUsers.size() < nitems; i++) {
+          renderContact(relatedUsers.get(i), request, writer, connectedUsers,
+              processedUsers);
         }
       }
       if (processedUsers.size() < nitems) {
@@ -255,7 +238,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   protected void renderConnection(SlingHttpServletRequest request, JSONWriter writer,
-      Result result, final List<String> connectedUsers, final Set<String> processedUsers)
+      Result result, final Set<String> connectedUsers, final Set<String> processedUsers)
       throws AccessDeniedException, JSONException, StorageClientException {
 
     final String contactUser = result.getPath().substring(
@@ -277,7 +260,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   protected void renderAuthorizable(final SlingHttpServletRequest request,
-      final JSONWriter writer, final Result result, final List<String> connectedUsers,
+      final JSONWriter writer, final Result result, final Set<String> connectedUsers,
       final Set<String> processedUsers) throws AccessDeniedException, JSONException,
       StorageClientException {
 
@@ -298,7 +281,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
    * @throws StorageClientException
    */
   protected void renderContact(final String user, final SlingHttpServletRequest request,
-      final JSONWriter writer, final List<String> connectedUsers,
+      final JSONWriter writer, final Set<String> connectedUsers,
       final Set<String> processedUsers) throws AccessDeniedException, JSONException,
       StorageClientException {
 
@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.connections;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -38,10 +41,14 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -255,4 +262,37 @@ public class ConnectionManagerImplTest {
     assertEquals(ConnectionConstants.SAKAI_CONTACT_RT, result.getProperty("sling:resourceType"));
     assertEquals("a:alice/public/authprofile", result.getProperty("reference"));
   }
+
+  @Test
+  public void testConnectionsAreReadOnceAndKeptUpToDate() throws Exception {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(SocialGraph.CACHE_NAME, CacheScope.CLUSTERINVALIDATED))
+        .thenReturn(new MapCacheImpl<Object>());
+    when(cacheManagerService.getCache(SocialGraph.GROUP_CACHE_NAME,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(new MapCacheImpl<Object>());
+    connectionManager.cacheManagerService = cacheManagerService;
+
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("a:alice/contacts", null));
+    contentManager.update(new Content("a:alice/contacts/bob", ImmutableMap.of(
+        "sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+        ConnectionConstants.SAKAI_CONNECTION_STATE, "ACCEPTED")));
+    contentManager.update(new Content("a:alice/contacts/carol", ImmutableMap.of(
+        "sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+        ConnectionConstants.SAKAI_CONNECTION_STATE, "PENDING")));
+
+    assertEquals(Arrays.asList("bob"), connectionManager.getConnectedUsers(session,
+        "alice", ConnectionState.ACCEPTED));
+    assertEquals(ConnectionState.PENDING, connectionManager.getConnectionState(session,
+        "alice", "carol"));
+    assertEquals(ConnectionState.NONE, connectionManager.getConnectionState(session,
+        "alice", "dave"));
+
+    // later reads come from the index, which connect() keeps up to date.
+    contentManager.delete("a:alice/contacts/bob");
+    connectionManager.getSocialGraph().update("alice", "carol", ConnectionState.ACCEPTED);
+    assertEquals(Arrays.asList("bob", "carol"), connectionManager.getConnectedUsers(
+        session, "alice", ConnectionState.ACCEPTED));
+  }
 }
@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.BLOCKED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.NONE;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
+
+import com.google.common.base.Predicate;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ */
+public class SocialGraphTest {
+
+  /**
+   * A store held in maps, that counts how often it is read.
+   */
+  private static class MapLoader implements SocialGraph.Loader {
+    private final Map<String, LinkedHashMap<String, ConnectionState>> connections = new HashMap<String, LinkedHashMap<String, ConnectionState>>();
+    private final Map<String, String[]> groups = new HashMap<String, String[]>();
+    int reads;
+
+    public LinkedHashMap<String, ConnectionState> getConnections(String user) {
+      reads++;
+      LinkedHashMap<String, ConnectionState> c = connections.get(user);
+      return c == null ? new LinkedHashMap<String, ConnectionState>()
+          : new LinkedHashMap<String, ConnectionState>(c);
+    }
+
+    public String[] getMembers(String group) {
+      reads++;
+      String[] members = groups.get(group);
+      return members == null ? new String[0] : members;
+    }
+
+    void connect(String user, String otherUser, ConnectionState state) {
+      LinkedHashMap<String, ConnectionState> c = connections.get(user);
+      if (c == null) {
+        c = new LinkedHashMap<String, ConnectionState>();
+        connections.put(user, c);
+      }
+      c.put(otherUser, state);
+    }
+
+    void accept(String user, String otherUser) {
+      connect(user, otherUser, ACCEPTED);
+      connect(otherUser, user, ACCEPTED);
+    }
+  }
+
+  private MapLoader loader;
+  private SocialGraph graph;
+
+  @Before
+  public void before() {
+    loader = new MapLoader();
+    graph = graph(loader, Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testLookups() throws Exception {
+    loader.accept("alice", "bob");
+    loader.accept("alice", "carol");
+    loader.connect("alice", "dave", PENDING);
+    loader.connect("dave", "alice", INVITED);
+
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    assertEquals(PENDING, graph.getState("alice", "dave"));
+    assertEquals(INVITED, graph.getState("dave", "alice"));
+    assertEquals(NONE, graph.getState("alice", "eve"));
+    assertEquals(Arrays.asList("bob", "carol"), graph.getConnected("alice", ACCEPTED));
+    assertEquals(Arrays.asList("bob", "carol", "dave"), graph.getConnected("alice", null));
+    // alice and dave were each read once.
+    assertEquals(2, loader.reads);
+  }
+
+  @Test
+  public void testUpdatesAreApplied() throws Exception {
+    loader.connect("alice", "bob", PENDING);
+    assertEquals(PENDING, graph.getState("alice", "bob"));
+
+    graph.update("alice", "bob", ACCEPTED);
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    graph.update("alice", "bob", NONE);
+    assertEquals(NONE, graph.getState("alice", "bob"));
+    assertEquals(Collections.emptyList(), graph.getConnected("alice", null));
+    assertEquals(1, loader.reads);
+  }
+
+  @Test
+  public void testReadsRacingAnUpdateAreNotKept() throws Exception {
+    MapLoader racing = new MapLoader() {
+      @Override
+      public LinkedHashMap<String, ConnectionState> getConnections(String user) {
+        LinkedHashMap<String, ConnectionState> read = super.getConnections(user);
+        if (reads == 1) {
+          // connected after the contact store was read.
+          graph.update("alice", "bob", ACCEPTED);
+        }
+        return read;
+      }
+
+      @Override
+      public String[] getMembers(String group) {
+        String[] read = super.getMembers(group);
+        graph.invalidate(group);
+        return read;
+      }
+    };
+    graph = graph(racing, Long.MAX_VALUE);
+    assertEquals(NONE, graph.getState("alice", "bob"));
+    assertEquals(NONE, graph.getState("alice", "bob"));
+    assertEquals(NONE, graph.getState("alice", "bob"));
+    graph.getRelated("alice", Arrays.asList("staff"), 10);
+    graph.getRelated("alice", Arrays.asList("staff"), 10);
+    // the first read was not kept, the second was, and the members never were.
+    assertEquals(4, racing.reads);
+  }
+
+  @Test
+  public void testReadsAreKeptForTheirTimeToLive() throws Exception {
+    loader.accept("alice", "bob");
+    graph = graph(loader, -1);
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    assertEquals(2, loader.reads);
+  }
+
+  @Test
+  public void testWithoutACache() throws Exception {
+    graph = new SocialGraph(null, null, new AtomicLong(), Long.MAX_VALUE, loader);
+    loader.accept("alice", "bob");
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    graph.update("alice", "bob", NONE);
+    assertEquals(ACCEPTED, graph.getState("alice", "bob"));
+    assertEquals(2, loader.reads);
+  }
+
+  @Test
+  public void testMutualCount() throws Exception {
+    loader.accept("alice", "carol");
+    loader.accept("alice", "dave");
+    loader.accept("alice", "eve");
+    loader.accept("bob", "carol");
+    loader.accept("bob", "dave");
+    loader.connect("bob", "eve", PENDING);
+    assertEquals(2, graph.countMutual("alice", "bob"));
+    assertEquals(2, graph.countMutual("bob", "alice"));
+    assertEquals(0, graph.countMutual("alice", "zed"));
+  }
+
+  @Test
+  public void testRelated() throws Exception {
+    loader.accept("alice", "bob");
+    loader.accept("alice", "carol");
+    // dave knows both of alice's contacts, eve one of them.
+    loader.accept("bob", "dave");
+    loader.accept("carol", "dave");
+    loader.accept("carol", "eve");
+    // alice already has a connection with frank, and has blocked gina.
+    loader.accept("bob", "frank");
+    loader.connect("alice", "frank", INVITED);
+    loader.accept("bob", "gina");
+    loader.connect("alice", "gina", BLOCKED);
+    loader.groups.put("maths", new String[] { "alice", "eve", "hal", "bob" });
+    loader.groups.put("physics", new String[] { "alice", "hal", "ian" });
+
+    List<String> related = graph.getRelated("alice", Arrays.asList("maths", "physics"), 10);
+    assertEquals(Arrays.asList("dave", "eve", "hal", "ian"), related);
+    assertEquals(Arrays.asList("dave", "eve"),
+        graph.getRelated("alice", Arrays.asList("maths", "physics"), 2));
+  }
+
+  @Test
+  public void testRelatedOnlyThroughReadableContacts() throws Exception {
+    loader.accept("alice", "bob");
+    loader.accept("alice", "carol");
+    loader.accept("bob", "dave");
+    loader.accept("carol", "eve");
+
+    Predicate<String> notCarol = new Predicate<String>() {
+      public boolean apply(String user) {
+        return !"carol".equals(user);
+      }
+    };
+    assertEquals(Arrays.asList("dave"), graph.getRelated("alice",
+        Collections.<String> emptyList(), 10, notCarol));
+  }
+
+  @Test
+  public void testGroupsAreInvalidated() throws Exception {
+    loader.groups.put("maths", new String[] { "alice", "bob" });
+    assertEquals(Arrays.asList("bob"), graph.getRelated("alice", Arrays.asList("maths"),
+        10));
+    loader.groups.put("maths", new String[] { "alice", "bob", "carol" });
+    assertEquals(Arrays.asList("bob"), graph.getRelated("alice", Arrays.asList("maths"),
+        10));
+    graph.invalidate("maths");
+    assertEquals(Arrays.asList("bob", "carol"), graph.getRelated("alice", Arrays
+        .asList("maths"), 10));
+  }
+
+  /**
+   * A synthetic graph of 100,000 users with 40 contacts each, in 200 course groups of
+   * 500 and 97 clubs of about 1000. Each user's contacts are read from the loader, which
+   * stands in for the contact store, and each call counts as a read.
+   */
+  private static class SyntheticLoader implements SocialGraph.Loader {
+    static final int USERS = 100000;
+    static final int[] OFFSETS = { 1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144, 233, 377, 610,
+        987, 1597, 2584, 4181, 6765, 10946 };
+    int reads;
+
+    public LinkedHashMap<String, ConnectionState> getConnections(String user) {
+      reads++;
+      int u = Integer.parseInt(user.substring(4));
+      LinkedHashMap<String, ConnectionState> c = new LinkedHashMap<String, ConnectionState>();
+      for (int offset : OFFSETS) {
+        c.put("user" + ((u + offset) % USERS), ACCEPTED);
+        c.put("user" + ((u - offset + USERS) % USERS), ACCEPTED);
+      }
+      return c;
+    }
+
+    public String[] getMembers(String group) {
+      reads++;
+      List<String> members = new ArrayList<String>();
+      int g = Integer.parseInt(group.substring(group.indexOf('-') + 1));
+      if (group.startsWith("course-")) {
+        for (int i = g * 500; i < g * 500 + 500; i++) {
+          members.add("user" + i);
+        }
+      } else {
+        for (int i = g; i < USERS; i += 97) {
+          members.add("user" + i);
+        }
+      }
+      return members.toArray(new String[members.size()]);
+    }
+
+    List<String> getGroups(int u) {
+      return Arrays.asList("course-" + (u / 500), "club-" + (u % 97));
+    }
+  }
+
+  /**
+   * Ranks suggestions for 1000 users of the synthetic graph, by scanning connection lists
+   * as the callers of getConnectedUsers did, and from the index. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkRelatedUsers() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    SyntheticLoader synthetic = new SyntheticLoader();
+    SocialGraph indexed = graph(synthetic, Long.MAX_VALUE);
+    int queries = 1000;
+    System.out.println("mode, ms per user, store reads per user");
+    for (int round = 0; round < 3; round++) {
+      synthetic.reads = 0;
+      long time = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        int u = (q * 7919) % SyntheticLoader.USERS;
+        listRelated("user" + u, synthetic.getGroups(u), synthetic);
+      }
+      time = System.nanoTime() - time;
+      System.out.println("lists, " + (time / queries / 1000000.0) + ", "
+          + (synthetic.reads / (double) queries));
+
+      synthetic.reads = 0;
+      time = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        int u = (q * 7919) % SyntheticLoader.USERS;
+        indexed.getRelated("user" + u, synthetic.getGroups(u), 10);
+      }
+      time = System.nanoTime() - time;
+      System.out.println("index, " + (time / queries / 1000000.0) + ", "
+          + (synthetic.reads / (double) queries));
+    }
+  }
+
+  private SocialGraph graph(SocialGraph.Loader loader, long timeToLive) {
+    return new SocialGraph(
+        new MapCacheImpl<SocialGraph.Known<LinkedHashMap<String, ConnectionState>>>(),
+        new MapCacheImpl<SocialGraph.Known<String[]>>(), new AtomicLong(), timeToLive,
+        loader);
+  }
+
+  /**
+   * Ranks suggestions from freshly read lists, testing membership with contains.
+   */
+  private List<String> listRelated(String user, List<String> groups,
+      SyntheticLoader synthetic) {
+    final List<String> mine = new ArrayList<String>(synthetic.getConnections(user)
+        .keySet());
+    final Map<String, int[]> scores = new HashMap<String, int[]>();
+    for (String friend : mine) {
+      for (String candidate : new ArrayList<String>(synthetic.getConnections(friend)
+          .keySet())) {
+        if (!candidate.equals(user) && !mine.contains(candidate)) {
+          int[] score = scores.get(candidate);
+          if (score == null) {
+            score = new int[2];
+            scores.put(candidate, score);
+          }
+          score[0]++;
+        }
+      }
+    }
+    for (String group : groups) {
+      for (String member : synthetic.getMembers(group)) {
+        if (!member.equals(user) && !mine.contains(member)) {
+          int[] score = scores.get(member);
+          if (score == null) {
+            score = new int[2];
+            scores.put(member, score);
+          }
+          score[1]++;
+        }
+      }
+    }
+    return new ArrayList<String>(scores.keySet());
+  }
+}
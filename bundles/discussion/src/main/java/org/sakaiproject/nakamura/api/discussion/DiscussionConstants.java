@@ -50,6 +50,12 @@ public interface DiscussionConstants {
    */
   public static final String PROP_REPLY_ON = "sakai:replyon";
 
+  /**
+   * Holds the ID of the top level post of the thread a post is in, set when the post is
+   * delivered.
+   */
+  public static final String PROP_THREAD_ROOT = "sakai:threadroot";
+
 
   /**
    * The property that marks a post as an initial post.
@@ -17,8 +17,6 @@
  */
 package org.sakaiproject.nakamura.api.discussion;
 
-import org.apache.sling.api.resource.ValueMap;
-import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -26,12 +24,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
-import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -134,6 +129,16 @@ public class Post {
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
+    outputPostAsJSON(writer, new PostProfiles(session.getAuthorizableManager(),
+        basicUserInfoService, presenceService));
+  }
+
+  /**
+   * Writes this post and its replies, using <code>profiles</code> for the authors and
+   * editors so that each of them is only looked up once.
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer, PostProfiles profiles)
+      throws JSONException, StorageClientException, AccessDeniedException {
     boolean canEdit = checkEdit();
     boolean canDelete = checkDelete();
 
@@ -148,7 +153,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, profiles);
     } else {
       writer.object();
 
@@ -161,7 +166,6 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      AuthorizableManager authMgr = session.getAuthorizableManager();
       // Show profile of editters.
       if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
 
@@ -172,12 +176,7 @@ public class Post {
         writer.key(DiscussionConstants.PROP_EDITEDBYPROFILES);
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
-          writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-          writer.valueMapInternals(profile);
-          PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
-          writer.endObject();
+          profiles.write(writer, edittedBy[i]);
         }
         writer.endArray();
       }
@@ -188,12 +187,7 @@ public class Post {
       String[] senders = StringUtils.split(fromVal, ',');
       writer.array();
       for (String sender : senders) {
-        writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        writer.valueMapInternals(profile);
-        PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
-        writer.endObject();
+        profiles.write(writer, sender);
       }
       writer.endArray();
       writer.endObject();
@@ -201,7 +195,7 @@ public class Post {
       // All the replies on this post.
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, profiles);
       writer.endArray();
 
       writer.endObject();
@@ -212,9 +206,15 @@ public class Post {
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    outputChildrenAsJSON(writer, new PostProfiles(session.getAuthorizableManager(),
+        basicUserInfoService, presenceService));
+  }
+
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer, PostProfiles profiles)
+      throws JSONException, StorageClientException, AccessDeniedException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, basicUserInfoService, session);
+      p.outputPostAsJSON(writer, profiles);
     }
   }
 
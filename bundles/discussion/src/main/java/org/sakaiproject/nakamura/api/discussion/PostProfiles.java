@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The profile and presence of the authors and editors of posts, looked up once per user
+ * however many posts they have in a response. Not thread safe, use one per response.
+ */
+public class PostProfiles {
+
+  private final AuthorizableManager authorizableManager;
+  private final BasicUserInfoService basicUserInfoService;
+  private final PresenceService presenceService;
+  private final Map<String, Profile> profiles = new HashMap<String, Profile>();
+
+  public PostProfiles(AuthorizableManager authorizableManager,
+      BasicUserInfoService basicUserInfoService, PresenceService presenceService) {
+    this.authorizableManager = authorizableManager;
+    this.basicUserInfoService = basicUserInfoService;
+    this.presenceService = presenceService;
+  }
+
+  /**
+   * Looks up the users that aren't known yet in one go, rather than as each is written.
+   */
+  public void load(Collection<String> userIds) throws StorageClientException,
+      AccessDeniedException {
+    List<Authorizable> authorizables = new ArrayList<Authorizable>();
+    for (String userId : userIds) {
+      if (!profiles.containsKey(userId)) {
+        Authorizable au = authorizableManager.findAuthorizable(userId);
+        // unknown users are left to write, which gives them the anonymous profile.
+        if (au != null) {
+          authorizables.add(au);
+        }
+      }
+    }
+    if (!authorizables.isEmpty()) {
+      for (Entry<String, Map<String, Object>> e : basicUserInfoService.getProperties(
+          authorizables).entrySet()) {
+        profiles.put(e.getKey(), newProfile(e.getKey(), e.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Writes the basic profile and presence of a user as an object.
+   */
+  public void write(ExtendedJSONWriter writer, String userId) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    Profile profile = profiles.get(userId);
+    if (profile == null) {
+      Authorizable au = authorizableManager.findAuthorizable(userId);
+      profile = newProfile(userId, basicUserInfoService.getProperties(au));
+      profiles.put(userId, profile);
+    }
+    writer.object();
+    writer.valueMapInternals(profile.properties);
+    // the same keys as PresenceUtils.makePresenceJSON
+    writer.key("user");
+    writer.value(userId);
+    writer.key(PresenceService.PRESENCE_STATUS_PROP);
+    writer.value(profile.status);
+    writer.key(PresenceService.PRESENCE_LOCATION_PROP);
+    writer.value(profile.location);
+    writer.endObject();
+  }
+
+  private Profile newProfile(String userId, Map<String, Object> properties) {
+    return new Profile(new ValueMapDecorator(properties), presenceService.getStatus(userId),
+        presenceService.getLocation(userId));
+  }
+
+  /**
+   * @return the number of distinct users looked up so far.
+   */
+  public int size() {
+    return profiles.size();
+  }
+
+  private static final class Profile {
+    private final ValueMap properties;
+    private final String status;
+    private final String location;
+
+    private Profile(ValueMap properties, String status, String location) {
+      this.properties = properties;
+      this.status = status;
+      this.location = location;
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_MARKER;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_REPLY_ON;
+import static org.sakaiproject.nakamura.api.discussion.DiscussionConstants.PROP_THREAD_ROOT;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The structure of the discussions in a message store, kept up to date as posts are
+ * delivered so that a threaded view doesn't have to load every post to work out which
+ * thread it is in.
+ * <p>
+ * Each conversation (marker) has an index node under
+ * <code>store/threadindex/hash(marker)</code> listing the ids of its top level posts in
+ * the order they were made. Each thread has a node below that listing its replies as
+ * <code>replyId:parentId</code>, also in order. Posts also get a
+ * {@link DiscussionConstants#PROP_THREAD_ROOT} property.
+ * <p>
+ * The lists are held in chunks of {@link #CHUNK_SIZE} below their node, named
+ * <code>_chunk0</code>, <code>_chunk1</code>..., and the node holds the number of
+ * chunks, so a post only rewrites the last chunk however long the conversation gets.
+ * <p>
+ * Only conversations that start after the index was introduced are indexed, a
+ * conversation without an index node is shown the old way.
+ */
+public class DiscussionThreadIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiscussionThreadIndex.class);
+
+  public static final String INDEX_FOLDER = "threadindex";
+
+  public static final String INDEX_RT = "sakai/discussion-threadindex";
+
+  public static final String THREAD_RT = "sakai/discussion-thread";
+
+  /**
+   * The ids of the top level posts, on the chunks of the index node.
+   */
+  public static final String PROP_THREADS = "sakai:threads";
+
+  /**
+   * The <code>replyId:parentId</code> pairs, on the chunks of a thread node.
+   */
+  public static final String PROP_REPLIES = "sakai:replies";
+
+  /**
+   * The number of chunks, on an index or thread node.
+   */
+  public static final String PROP_CHUNKS = "sakai:chunks";
+
+  public static final int CHUNK_SIZE = 100;
+
+  private static final String CHUNK_PREFIX = "_chunk";
+
+  /**
+   * How far up a chain of replies we go looking for the top level post.
+   */
+  private static final int MAX_DEPTH = 1000;
+
+  private DiscussionThreadIndex() {
+  }
+
+  /**
+   * @param storePath
+   *          the path of the message store, ending in a /
+   * @param marker
+   *          the marker of the conversation.
+   * @return the path of the index node for the conversation.
+   */
+  public static String getIndexPath(String storePath, String marker) {
+    return storePath + INDEX_FOLDER + "/" + StorageClientUtils.insecureHash(marker);
+  }
+
+  public static String getThreadPath(String indexPath, String rootId) {
+    return indexPath + "/" + rootId;
+  }
+
+  public static String getPostPath(String storePath, String postId) {
+    return storePath + MessageConstants.BOX_INBOX + "/" + postId;
+  }
+
+  private static String getChunkPath(String path, int chunk) {
+    return path + "/" + CHUNK_PREFIX + chunk;
+  }
+
+  /**
+   * Adds a post that is about to be stored in the message store to the index, and sets
+   * its {@link DiscussionConstants#PROP_THREAD_ROOT}. Callers should hold a lock on the
+   * index path, as the index nodes are read, changed and written back.
+   *
+   * @param contentManager
+   * @param storePath
+   *          the path of the message store, ending in a /
+   * @param post
+   *          the post, which is not changed in storage.
+   * @return true if the post was indexed, false if its conversation isn't indexed.
+   */
+  public static boolean addPost(ContentManager contentManager, String storePath,
+      Content post) throws StorageClientException, AccessDeniedException {
+    String marker = (String) post.getProperty(PROP_MARKER);
+    String postId = (String) post.getProperty(MessageConstants.PROP_SAKAI_ID);
+    if (marker == null || postId == null) {
+      return false;
+    }
+    // a post that is delivered again has been indexed already.
+    Content stored = contentManager.get(getPostPath(storePath, postId));
+    if (stored != null && stored.hasProperty(PROP_THREAD_ROOT)) {
+      post.setProperty(PROP_THREAD_ROOT, stored.getProperty(PROP_THREAD_ROOT));
+      return true;
+    }
+    String indexPath = getIndexPath(storePath, marker);
+    Content index = contentManager.get(indexPath);
+    String replyOn = (String) post.getProperty(PROP_REPLY_ON);
+
+    if (replyOn == null) {
+      if (index == null) {
+        if (hasPosts(contentManager, storePath, marker)) {
+          // a conversation from before the index, it stays unindexed.
+          return false;
+        }
+        index = new Content(indexPath, ImmutableMap.of(
+            "sling:resourceType", (Object) INDEX_RT, PROP_MARKER, marker));
+      }
+      append(contentManager, index, PROP_THREADS, postId);
+      String threadPath = getThreadPath(indexPath, postId);
+      if (!contentManager.exists(threadPath)) {
+        contentManager.update(new Content(threadPath, ImmutableMap.of(
+            "sling:resourceType", (Object) THREAD_RT)));
+      }
+      post.setProperty(PROP_THREAD_ROOT, postId);
+      return true;
+    }
+
+    if (index == null) {
+      return false;
+    }
+    String rootId = findRoot(contentManager, storePath, replyOn);
+    if (rootId == null) {
+      LOGGER.warn("Unable to find the thread of {}, not indexing reply {}", replyOn,
+          postId);
+      return false;
+    }
+    String threadPath = getThreadPath(indexPath, rootId);
+    Content thread = contentManager.get(threadPath);
+    if (thread == null) {
+      thread = new Content(threadPath, ImmutableMap.of("sling:resourceType",
+          (Object) THREAD_RT));
+    }
+    append(contentManager, thread, PROP_REPLIES, postId + ":" + replyOn);
+    post.setProperty(PROP_THREAD_ROOT, rootId);
+    return true;
+  }
+
+  /**
+   * @return the ids of the top level posts, oldest first.
+   */
+  public static List<String> getThreads(ContentManager contentManager, Content index)
+      throws StorageClientException, AccessDeniedException {
+    // a post that was indexed but not stored before a failure is indexed again when it
+    // is delivered again.
+    return Lists.newArrayList(Sets.newLinkedHashSet(read(contentManager, index,
+        PROP_THREADS)));
+  }
+
+  /**
+   * @return the parent of each reply in the thread, by reply id, oldest first.
+   */
+  public static Map<String, String> getReplies(ContentManager contentManager,
+      Content thread) throws StorageClientException, AccessDeniedException {
+    Map<String, String> replies = Maps.newLinkedHashMap();
+    if (thread != null) {
+      for (String reply : read(contentManager, thread, PROP_REPLIES)) {
+        int colon = reply.indexOf(':');
+        if (colon > 0 && !replies.containsKey(reply.substring(0, colon))) {
+          replies.put(reply.substring(0, colon), reply.substring(colon + 1));
+        }
+      }
+    }
+    return replies;
+  }
+
+  /**
+   * Appends a value to the list held in the chunks of a node, writing the node too if it
+   * gets a new chunk.
+   */
+  private static void append(ContentManager contentManager, Content node, String name,
+      String value) throws StorageClientException, AccessDeniedException {
+    int chunks = toInt(node.getProperty(PROP_CHUNKS));
+    Content chunk = chunks == 0 ? null : contentManager.get(getChunkPath(node.getPath(),
+        chunks - 1));
+    String[] values = chunk == null ? new String[0] : getStrings(chunk, name);
+    if (chunk == null || values.length >= CHUNK_SIZE) {
+      chunk = new Content(getChunkPath(node.getPath(), chunks), ImmutableMap.of(name,
+          (Object) new String[] { value }));
+      // write the chunk before the node that counts it.
+      contentManager.update(chunk);
+      node.setProperty(PROP_CHUNKS, chunks + 1);
+      contentManager.update(node);
+    } else {
+      chunk.setProperty(name, append(values, value));
+      contentManager.update(chunk);
+    }
+  }
+
+  private static List<String> read(ContentManager contentManager, Content node,
+      String name) throws StorageClientException, AccessDeniedException {
+    List<String> values = Lists.newArrayList();
+    int chunks = toInt(node.getProperty(PROP_CHUNKS));
+    for (int i = 0; i < chunks; i++) {
+      Content chunk = contentManager.get(getChunkPath(node.getPath(), i));
+      if (chunk != null) {
+        values.addAll(Arrays.asList(getStrings(chunk, name)));
+      }
+    }
+    return values;
+  }
+
+  private static String findRoot(ContentManager contentManager, String storePath,
+      String postId) throws StorageClientException, AccessDeniedException {
+    for (int i = 0; i < MAX_DEPTH && postId != null; i++) {
+      Content post = contentManager.get(getPostPath(storePath, postId));
+      if (post == null) {
+        return null;
+      }
+      if (post.hasProperty(PROP_THREAD_ROOT)) {
+        return (String) post.getProperty(PROP_THREAD_ROOT);
+      }
+      if (!post.hasProperty(PROP_REPLY_ON)) {
+        return postId;
+      }
+      postId = (String) post.getProperty(PROP_REPLY_ON);
+    }
+    return null;
+  }
+
+  private static boolean hasPosts(ContentManager contentManager, String storePath,
+      String marker) throws StorageClientException, AccessDeniedException {
+    Map<String, Object> props = Maps.newHashMap();
+    props.put("sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    props.put("sakai:type", DiscussionConstants.TYPE_DISCUSSION);
+    props.put(PROP_MARKER, marker);
+    try {
+      for (Content c : contentManager.find(props)) {
+        if (c.getPath().startsWith(storePath)) {
+          return true;
+        }
+      }
+    } catch (StorageClientException e) {
+      // can't tell, so leave the conversation unindexed rather than index half of it.
+      LOGGER.warn("Unable to look for posts with marker {} {}", marker, e.getMessage());
+      return true;
+    }
+    return false;
+  }
+
+  private static String[] getStrings(Content content, String name) {
+    Object value = content.getProperty(name);
+    if (value instanceof String[]) {
+      return (String[]) value;
+    } else if (value != null) {
+      return new String[] { String.valueOf(value) };
+    }
+    return new String[0];
+  }
+
+  private static int toInt(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    } else if (value != null) {
+      try {
+        return Integer.parseInt(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static String[] append(String[] values, String value) {
+    String[] appended = Arrays.copyOf(values, values.length + 1);
+    appended[values.length] = value;
+    return appended;
+  }
+}
@@ -147,6 +147,21 @@ public class LiteDiscussionMessageTransport implements LiteMessageTransport {
               StorageClientUtils.insecureHash(messageStorePath));
 
           Content newMessageNode = new Content(toPath, propertyBuilder);
+
+          // Keep the thread structure of the conversation up to date, this also sets the
+          // thread root on the post.
+          String marker = (String) newMessageNode
+              .getProperty(DiscussionConstants.PROP_MARKER);
+          if (marker != null) {
+            try {
+              lockManager.waitForLock(DiscussionThreadIndex.getIndexPath(
+                  messageStorePath, marker));
+            } catch (LockTimeoutException e) {
+              throw new MessagingException("Unable to lock discussion thread index");
+            }
+            DiscussionThreadIndex.addPost(session.getContentManager(), messageStorePath,
+                newMessageNode);
+          }
           
           if (!testing) {
             // This will probably be saved in a site store. Not all the users will have
@@ -17,6 +17,12 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
+
+import com.google.common.collect.Iterators;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -26,6 +32,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.discussion.PostProfiles;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -41,20 +48,33 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.discussion.DiscussionThreadIndex;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
 /**
  * Formats message node search results
+ * <p>
+ * Conversations with a {@link DiscussionThreadIndex} are paged by top level thread
+ * rather than by post, and only the posts of the threads on the page are loaded. Older
+ * conversations are still found with the search template and threaded here.
  */
 @Component(label = "%discussion.threadedSearchBatch.label", description = "%discussion.threadedSearchBatch.desc")
 @Service
@@ -90,6 +110,23 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
       ContentManager cm = session.getContentManager();
+      if (!iterator.hasNext()) {
+        return;
+      }
+      Result first = iterator.next();
+      if (first instanceof ThreadResult) {
+        // Authors are looked up once for the whole page.
+        PostProfiles profiles = new PostProfiles(session.getAuthorizableManager(),
+            basicUserInfoService, presenceService);
+        for (Iterator<Result> i = Iterators.concat(Iterators.singletonIterator(first),
+            iterator); i.hasNext();) {
+          writeThread((ThreadResult) i.next(), session, cm, (ExtendedJSONWriter) writer,
+              profiles);
+        }
+        return;
+      }
+      iterator = Iterators.concat(Iterators.singletonIterator(first), iterator);
+
       List<String> basePosts = new ArrayList<String>();
       Map<String,List<Post>> postChildren = new HashMap<String, List<Post>>();
       Map<String,Post> allPosts = new HashMap<String, Post>();
@@ -143,6 +180,62 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     }
   }
 
+  /**
+   * Loads the posts of one thread from the index and writes them out.
+   */
+  private void writeThread(ThreadResult thread, Session session, ContentManager cm,
+      ExtendedJSONWriter writer, PostProfiles profiles) throws StorageClientException,
+      AccessDeniedException, JSONException {
+    Content rootContent = cm.get(thread.getPath());
+    if (rootContent == null) {
+      return;
+    }
+    Map<String, String> replies = DiscussionThreadIndex.getReplies(cm, cm
+        .get(DiscussionThreadIndex.getThreadPath(thread.indexPath, thread.rootId)));
+
+    Map<String, Post> posts = new HashMap<String, Post>();
+    Post root = new Post(rootContent, session);
+    posts.put(thread.rootId, root);
+    for (String replyId : replies.keySet()) {
+      Content content = cm.get(DiscussionThreadIndex.getPostPath(thread.storePath,
+          replyId));
+      if (content != null) {
+        posts.put(replyId, new Post(content, session));
+      }
+    }
+
+    // The index has the replies oldest first, so parents come before their replies.
+    // Replies to posts that are gone are dropped, as they would be without the index.
+    for (Entry<String, String> reply : replies.entrySet()) {
+      Post post = posts.get(reply.getKey());
+      Post parent = posts.get(reply.getValue());
+      if (post != null && parent != null) {
+        parent.getChildren().add(post);
+      }
+    }
+    if (thread.descending) {
+      for (Post post : posts.values()) {
+        Collections.reverse(post.getChildren());
+      }
+    }
+
+    Set<String> userIds = new HashSet<String>();
+    for (Post post : posts.values()) {
+      addUserIds(post.getContent(), MessageConstants.PROP_SAKAI_FROM, userIds);
+      addUserIds(post.getContent(), DiscussionConstants.PROP_EDITEDBY, userIds);
+    }
+    profiles.load(userIds);
+
+    root.outputPostAsJSON(writer, profiles);
+  }
+
+  private void addUserIds(Content content, String property, Set<String> userIds) {
+    String value = (String) content.getProperty(property);
+    if (value != null) {
+      userIds.addAll(Arrays.asList(StringUtils.split(value, ',')));
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -151,7 +244,101 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SolrSearchException {
-      // Return the result set.
-      return searchServiceFactory.getSearchResultSet(request, query);
+    String path = request.getParameter("path");
+    String marker = request.getParameter("marker");
+    String sort = query.getOptions().get("sort");
+    // The index only knows the order the posts were made in.
+    if (path != null && marker != null
+        && (sort == null || sort.trim().startsWith(Content.CREATED_FIELD))) {
+      try {
+        Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+            .adaptTo(javax.jcr.Session.class));
+        // The same store path as DiscussionThreadedPropertyProvider.
+        String storePath = LitePersonalUtils.expandHomeDirectory(path) + "/";
+        String indexPath = DiscussionThreadIndex.getIndexPath(storePath, marker);
+        ContentManager cm = session.getContentManager();
+        Content index = cm.get(indexPath);
+        if (index != null) {
+          boolean descending = sort == null || !sort.trim().endsWith("asc");
+          return new ThreadResultSet(storePath, indexPath,
+              DiscussionThreadIndex.getThreads(cm, index), descending, query.getOptions());
+        }
+      } catch (StorageClientException e) {
+        LOG.warn("Unable to read the thread index of {} {}", path, e.getMessage());
+      } catch (AccessDeniedException e) {
+        LOG.debug("Unable to read the thread index of {} {}", path, e.getMessage());
+      }
+    }
+    // Return the result set.
+    return searchServiceFactory.getSearchResultSet(request, query);
+  }
+
+  /**
+   * One page of the top level threads of an indexed conversation, the size is the number
+   * of threads.
+   */
+  private static class ThreadResultSet implements SolrSearchResultSet {
+    private final List<Result> page = new ArrayList<Result>();
+    private final long size;
+
+    private ThreadResultSet(String storePath, String indexPath, List<String> threads,
+        boolean descending, Map<String, String> options) {
+      List<String> ordered = new ArrayList<String>(threads);
+      if (descending) {
+        Collections.reverse(ordered);
+      }
+      size = ordered.size();
+      long items = getLong(options, PARAMS_ITEMS_PER_PAGE, DEFAULT_PAGED_ITEMS);
+      long start = getLong(options, PARAMS_PAGE, 0) * items;
+      for (long i = start; i < start + items && i < size; i++) {
+        page.add(new ThreadResult(storePath, indexPath, ordered.get((int) i), descending));
+      }
+    }
+
+    private static long getLong(Map<String, String> options, String name, long def) {
+      try {
+        return Long.parseLong(options.get(name));
+      } catch (NumberFormatException e) {
+        return def;
+      }
+    }
+
+    public Iterator<Result> getResultSetIterator() {
+      return page.iterator();
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+
+  /**
+   * A top level thread, the path is that of the top level post.
+   */
+  private static class ThreadResult implements Result {
+    private final String storePath;
+    private final String indexPath;
+    private final String rootId;
+    private final boolean descending;
+
+    private ThreadResult(String storePath, String indexPath, String rootId,
+        boolean descending) {
+      this.storePath = storePath;
+      this.indexPath = indexPath;
+      this.rootId = rootId;
+      this.descending = descending;
+    }
+
+    public String getPath() {
+      return DiscussionThreadIndex.getPostPath(storePath, rootId);
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return Collections.emptyMap();
+    }
+
+    public Object getFirstValue(String name) {
+      return null;
+    }
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class DiscussionThreadIndexTest {
+
+  private static final String STORE = "/sites/physics/store/";
+  private static final String MARKER = "id1234";
+
+  private ContentManager cm;
+
+  @Before
+  public void setUp() throws Exception {
+    Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    cm = session.getContentManager();
+  }
+
+  private Content deliver(String id, String replyOn) throws Exception {
+    Content post = new Content(DiscussionThreadIndex.getPostPath(STORE, id), null);
+    post.setProperty("sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    post.setProperty("sakai:type", DiscussionConstants.TYPE_DISCUSSION);
+    post.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    post.setProperty(DiscussionConstants.PROP_MARKER, MARKER);
+    if (replyOn != null) {
+      post.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    DiscussionThreadIndex.addPost(cm, STORE, post);
+    cm.update(post);
+    return post;
+  }
+
+  @Test
+  public void testThreadsAndRepliesAreIndexedInOrder() throws Exception {
+    deliver("a", null);
+    deliver("b", "a");
+    deliver("e", null);
+    Content d = deliver("d", "b");
+    deliver("c", "a");
+
+    String indexPath = DiscussionThreadIndex.getIndexPath(STORE, MARKER);
+    Content index = cm.get(indexPath);
+    assertEquals(ImmutableList.of("a", "e"), DiscussionThreadIndex.getThreads(cm, index));
+
+    Map<String, String> replies = DiscussionThreadIndex.getReplies(cm, cm
+        .get(DiscussionThreadIndex.getThreadPath(indexPath, "a")));
+    assertEquals(ImmutableList.of("b", "d", "c"), ImmutableList.copyOf(replies.keySet()));
+    assertEquals("b", replies.get("d"));
+    assertEquals("a", replies.get("c"));
+    assertTrue(DiscussionThreadIndex.getReplies(cm,
+        cm.get(DiscussionThreadIndex.getThreadPath(indexPath, "e"))).isEmpty());
+
+    // the thread root is materialised on the posts.
+    assertEquals("a", d.getProperty(DiscussionConstants.PROP_THREAD_ROOT));
+    assertEquals("a", cm.get(DiscussionThreadIndex.getPostPath(STORE, "d")).getProperty(
+        DiscussionConstants.PROP_THREAD_ROOT));
+  }
+
+  @Test
+  public void testRedeliveryIsNotIndexedTwice() throws Exception {
+    deliver("a", null);
+    deliver("b", "a");
+    deliver("a", null);
+    deliver("b", "a");
+
+    String indexPath = DiscussionThreadIndex.getIndexPath(STORE, MARKER);
+    assertEquals(1, DiscussionThreadIndex.getThreads(cm, cm.get(indexPath)).size());
+    assertEquals(1, DiscussionThreadIndex.getReplies(cm,
+        cm.get(DiscussionThreadIndex.getThreadPath(indexPath, "a"))).size());
+  }
+
+  @Test
+  public void testLongThreadsAreChunked() throws Exception {
+    deliver("a", null);
+    int replies = DiscussionThreadIndex.CHUNK_SIZE * 2 + 50;
+    for (int i = 0; i < replies; i++) {
+      deliver("r" + i, i == 0 ? "a" : "r" + (i - 1));
+    }
+
+    String indexPath = DiscussionThreadIndex.getIndexPath(STORE, MARKER);
+    Content thread = cm.get(DiscussionThreadIndex.getThreadPath(indexPath, "a"));
+    assertEquals(3,
+        ((Number) thread.getProperty(DiscussionThreadIndex.PROP_CHUNKS)).intValue());
+    assertFalse(thread.hasProperty(DiscussionThreadIndex.PROP_REPLIES));
+    Map<String, String> indexed = DiscussionThreadIndex.getReplies(cm, thread);
+    assertEquals(replies, indexed.size());
+    int i = 0;
+    for (Map.Entry<String, String> reply : indexed.entrySet()) {
+      assertEquals("r" + i, reply.getKey());
+      assertEquals(i == 0 ? "a" : "r" + (i - 1), reply.getValue());
+      i++;
+    }
+  }
+
+  @Test
+  public void testRepliesInUnindexedConversationsAreLeftAlone() throws Exception {
+    Content post = new Content(DiscussionThreadIndex.getPostPath(STORE, "b"), null);
+    post.setProperty(MessageConstants.PROP_SAKAI_ID, "b");
+    post.setProperty(DiscussionConstants.PROP_MARKER, MARKER);
+    post.setProperty(DiscussionConstants.PROP_REPLY_ON, "a");
+
+    assertFalse(DiscussionThreadIndex.addPost(cm, STORE, post));
+    assertFalse(post.hasProperty(DiscussionConstants.PROP_THREAD_ROOT));
+    assertFalse(cm.exists(DiscussionThreadIndex.getIndexPath(STORE, MARKER)));
+  }
+}
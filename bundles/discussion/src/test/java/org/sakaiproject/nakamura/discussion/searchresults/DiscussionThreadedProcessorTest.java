@@ -18,16 +18,22 @@
 package org.sakaiproject.nakamura.discussion.searchresults;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -37,15 +43,20 @@ import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.discussion.DiscussionThreadIndex;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.user.BasicUserInfoServiceImpl;
 import org.sakaiproject.nakamura.user.counts.CountProvider;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -54,6 +65,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -61,6 +73,9 @@ import java.util.List;
 @RunWith(MockitoJUnitRunner.class)
 public class DiscussionThreadedProcessorTest {
 
+  private static final String STORE = "/sites/physics/store/";
+  private static final String MARKER = "id1234";
+
   private DiscussionThreadedSearchBatchResultProcessor processor;
   private PresenceService presenceService;
 
@@ -166,6 +181,173 @@ public class DiscussionThreadedProcessorTest {
         .get("sakai:id"));
   }
 
+  @Test
+  public void testIndexedConversationIsPagedByThread() throws Exception {
+    BasicUserInfoService basicUserInfoService = mock(BasicUserInfoService.class);
+    when(basicUserInfoService.getProperties(any(Authorizable.class))).thenReturn(
+        ImmutableMap.of("firstName", (Object) "First"));
+    processor.basicUserInfoService = basicUserInfoService;
+
+    Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    ContentManager cm = session.getContentManager();
+    // a
+    // - b
+    //   - d
+    // - c
+    // e
+    // - f
+    deliver(cm, "a", null, "admin");
+    deliver(cm, "b", "a", "alice");
+    deliver(cm, "e", null, "alice");
+    deliver(cm, "d", "b", "admin");
+    deliver(cm, "c", "a", "admin");
+    deliver(cm, "f", "e", "bob");
+
+    SlingHttpServletRequest request = mockRequest(session);
+    // newest thread first.
+    SolrSearchResultSet rs = processor.getSearchResultSet(request, threadedQuery(1, 0));
+    assertEquals(2, rs.getSize());
+    JSONArray page = writePage(request, rs);
+    assertEquals(1, page.length());
+    assertEquals("e", page.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+
+    rs = processor.getSearchResultSet(request, threadedQuery(1, 1));
+    page = writePage(request, rs);
+    assertEquals(1, page.length());
+    JSONObject a = page.getJSONObject(0);
+    assertEquals("a", a.getJSONObject("post").get("sakai:id"));
+    JSONArray replies = a.getJSONArray("replies");
+    assertEquals(2, replies.length());
+    // replies are newest first too, like the _created desc search.
+    assertEquals("c", replies.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+    assertEquals("b", replies.getJSONObject(1).getJSONObject("post").get("sakai:id"));
+    assertEquals("d", replies.getJSONObject(1).getJSONArray("replies").getJSONObject(0)
+        .getJSONObject("post").get("sakai:id"));
+    assertEquals("alice", replies.getJSONObject(1).getJSONObject("post")
+        .getJSONArray("profile").getJSONObject(0).get("user"));
+
+    // 3 authors on the first page, 2 on the second. Each once per response.
+    verify(basicUserInfoService, times(4)).getProperties(any(Authorizable.class));
+  }
+
+  /**
+   * Renders a discussion of 5,000 posts by 300 authors in 100 threads, the old way from
+   * a search over all the posts and from the thread index a page at a time. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkLargeDiscussion() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    final int[] lookups = new int[1];
+    processor.basicUserInfoService = new BasicUserInfoService() {
+      public Map<String, Object> getProperties(Authorizable au) {
+        lookups[0]++;
+        return ImmutableMap.of("firstName", (Object) "First");
+      }
+
+      public Map<String, Map<String, Object>> getProperties(
+          java.util.Collection<Authorizable> authorizables) {
+        Map<String, Map<String, Object>> properties = Maps.newLinkedHashMap();
+        for (Authorizable au : authorizables) {
+          properties.put(au.getId(), getProperties(au));
+        }
+        return properties;
+      }
+
+      public String[] getBasicProfileElements() {
+        return new String[] { "firstName" };
+      }
+    };
+    Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    ContentManager cm = session.getContentManager();
+    int threads = 100;
+    int posts = 5000;
+    int authors = 300;
+    List<Result> all = Lists.newArrayList();
+    for (int i = 0; i < posts; i++) {
+      String replyOn = null;
+      if (i >= threads) {
+        // replies go to a random earlier post of the same thread.
+        int parent = i % threads;
+        int depth = (i - parent) / threads;
+        replyOn = "p" + (parent + threads * (int) (Math.random() * depth));
+      }
+      all.add(mockResult(deliver(cm, "p" + i, replyOn, "user" + (i % authors))));
+    }
+    SlingHttpServletRequest request = mockRequest(session);
+
+    System.out.println("mode, ms, profile lookups");
+    for (int run = 0; run < 3; run++) {
+      lookups[0] = 0;
+      long time = System.nanoTime();
+      writePage(request, all.iterator());
+      time = System.nanoTime() - time;
+      System.out.println("all posts, " + (time / 1000000) + ", " + lookups[0]);
+
+      lookups[0] = 0;
+      time = System.nanoTime();
+      SolrSearchResultSet rs = processor.getSearchResultSet(request, threadedQuery(10, 0));
+      writePage(request, rs);
+      time = System.nanoTime() - time;
+      System.out.println("10 threads, " + (time / 1000000) + ", " + lookups[0]);
+    }
+  }
+
+  private Content deliver(ContentManager cm, String id, String replyOn, String from)
+      throws Exception {
+    Content post = new Content(DiscussionThreadIndex.getPostPath(STORE, id), null);
+    post.setProperty("sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    post.setProperty("sakai:type", DiscussionConstants.TYPE_DISCUSSION);
+    post.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    post.setProperty(MessageConstants.PROP_SAKAI_FROM, from);
+    post.setProperty(DiscussionConstants.PROP_MARKER, MARKER);
+    if (replyOn != null) {
+      post.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    DiscussionThreadIndex.addPost(cm, STORE, post);
+    cm.update(post);
+    return post;
+  }
+
+  private SlingHttpServletRequest mockRequest(Session session) {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getParameter("path")).thenReturn(STORE.substring(0, STORE.length() - 1));
+    when(request.getParameter("marker")).thenReturn(MARKER);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resolver);
+    Object hybridSession = mock(javax.jcr.Session.class,
+        withSettings().extraInterfaces(SessionAdaptable.class));
+    when(resolver.adaptTo(javax.jcr.Session.class)).thenReturn(
+        (javax.jcr.Session) hybridSession);
+    when(((SessionAdaptable) hybridSession).getSession()).thenReturn(session);
+    return request;
+  }
+
+  private Query threadedQuery(long items, long page) {
+    Map<String, String> options = new java.util.HashMap<String, String>();
+    options.put("sort", "_created desc");
+    options.put("items", Long.toString(items));
+    options.put("page", Long.toString(page));
+    return new Query("marker:" + MARKER, options);
+  }
+
+  private JSONArray writePage(SlingHttpServletRequest request, SolrSearchResultSet rs)
+      throws Exception {
+    return writePage(request, rs.getResultSetIterator());
+  }
+
+  private JSONArray writePage(SlingHttpServletRequest request,
+      java.util.Iterator<Result> results) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    writer.array();
+    processor.writeResults(request, writer, results);
+    writer.endArray();
+    w.flush();
+    return new JSONArray(baos.toString("UTF-8"));
+  }
+
   private Result mockResult(Content content) {
     Result r = mock(Result.class);
     when(r.getPath()).thenReturn(content.getPath());
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache on disk of what has been fetched from external repositories, kept
+ * with the validators it was served with so that it can be revalidated with a
+ * conditional request rather than fetched again.
+ * <p>
+ * Bodies are written to the cache as they are read by whoever fetched them, and only
+ * kept once read to the end. The least recently used are dropped to keep the cache
+ * within its size. The cache does not outlive the process: whatever is in its directory
+ * when it is created is deleted.
+ */
+public class DocumentCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DocumentCache.class);
+
+  private final File directory;
+  private final long maxSize;
+  private final AtomicLong sequence = new AtomicLong();
+  /**
+   * In order of use, least recent first. Guarded by this.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+  private long size;
+
+  /**
+   * A cached body and the headers it was served with.
+   */
+  public static class Entry {
+    private final File file;
+    private final long length;
+    private final String etag;
+    private final String lastModified;
+    private final String contentType;
+
+    Entry(File file, long length, String etag, String lastModified, String contentType) {
+      this.file = file;
+      this.length = length;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.contentType = contentType;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return the body, from the given position.
+     * @throws IOException
+     *           if the body is no longer on disk.
+     */
+    public InputStream open(long startingAt) throws IOException {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        skipFully(in, startingAt);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      return in;
+    }
+  }
+
+  /**
+   * @param directory
+   *          where to keep the cached bodies, which should not be used for anything else.
+   * @param maxSize
+   *          the most bytes to keep.
+   */
+  public DocumentCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOGGER.warn("Unable to create document cache directory {}", directory);
+    }
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null) {
+      for (File leftover : leftovers) {
+        delete(leftover);
+      }
+    }
+  }
+
+  /**
+   * @return what is cached for the key, or null.
+   */
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Drops what is cached for the key.
+   */
+  public synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      size -= entry.length;
+      delete(entry.file);
+    }
+  }
+
+  /**
+   * @return a stream that reads the body and writes it to the cache as it goes, to be
+   *         kept for the key once the body has been read to its end. A body larger than
+   *         the cache is passed on without being kept.
+   */
+  public InputStream fill(String key, InputStream body, String etag, String lastModified,
+      String contentType) {
+    File file = new File(directory, sequence.incrementAndGet() + ".doc");
+    try {
+      return new FillingInputStream(body, key, file, etag, lastModified, contentType);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to cache {}: {}", key, e.getMessage());
+      return body;
+    }
+  }
+
+  /**
+   * @return the number of bytes cached.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of bodies cached.
+   */
+  public synchronized int getCount() {
+    return entries.size();
+  }
+
+  /**
+   * Drops everything.
+   */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      delete(entry.file);
+    }
+    entries.clear();
+    size = 0;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry replaced = entries.get(key);
+    if (replaced != null && same(replaced.etag, entry.etag)
+        && same(replaced.lastModified, entry.lastModified)) {
+      // filled at the same time by another reader, keep the body that may be being read.
+      delete(entry.file);
+      return;
+    }
+    entries.put(key, entry);
+    if (replaced != null) {
+      size -= replaced.length;
+      delete(replaced.file);
+    }
+    size += entry.length;
+    for (Iterator<Entry> i = entries.values().iterator(); size > maxSize && i.hasNext();) {
+      Entry eldest = i.next();
+      i.remove();
+      size -= eldest.length;
+      delete(eldest.file);
+    }
+  }
+
+  private static boolean same(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Deletes a body that may still be being read. Where open files cannot be deleted it is
+   * left until the process exits.
+   */
+  private static void delete(File file) {
+    if (!file.delete() && file.exists()) {
+      file.deleteOnExit();
+    }
+  }
+
+  static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          return;
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private class FillingInputStream extends FilterInputStream {
+    private final String key;
+    private final File file;
+    private final String etag;
+    private final String lastModified;
+    private final String contentType;
+    private OutputStream out;
+    private long length;
+
+    FillingInputStream(InputStream in, String key, File file, String etag,
+        String lastModified, String contentType) throws IOException {
+      super(in);
+      this.key = key;
+      this.file = file;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.contentType = contentType;
+      this.out = new FileOutputStream(file);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        keep();
+      } else if (out != null) {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n == -1) {
+        keep();
+      } else if (out != null) {
+        write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // read what is skipped, so that it is cached.
+      byte[] skipped = new byte[(int) Math.min(n, 8192)];
+      int read = read(skipped, 0, skipped.length);
+      return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        abandon();
+      }
+    }
+
+    private void write(byte[] b, int off, int len) {
+      length += len;
+      if (length > maxSize) {
+        abandon();
+        return;
+      }
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        LOGGER.warn("Unable to cache {}: {}", key, e.getMessage());
+        abandon();
+      }
+    }
+
+    private void keep() {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+        out = null;
+        put(key, new Entry(file, length, etag, lastModified, contentType));
+      } catch (IOException e) {
+        LOGGER.warn("Unable to cache {}: {}", key, e.getMessage());
+        abandon();
+      }
+    }
+
+    private void abandon() {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      out = null;
+      delete(file);
+    }
+  }
+}
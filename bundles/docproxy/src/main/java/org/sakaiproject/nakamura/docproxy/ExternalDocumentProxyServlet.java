@@ -69,8 +69,10 @@ import javax.servlet.http.HttpServletResponse;
       description = "Gets a document from an external repository.",
       response = {
         @ServiceResponse(code = 200, description = "All processing finished successfully."),
+        @ServiceResponse(code = 206, description = "The single range of bytes asked for with a Range header."),
         @ServiceResponse(code = 400, description = "Unknown repository."),
         @ServiceResponse(code = 404, description = "Unable to find the requested resource."),
+        @ServiceResponse(code = 416, description = "None of the range asked for is in the document."),
         @ServiceResponse(code = 500, description = "Exception occurred during processing.")
       }
     )
@@ -125,19 +127,49 @@ public class ExternalDocumentProxyServlet extends SlingSafeMethodsServlet {
       }
 
       String path = url.substring(node.getPath().length());
+      InputStream in = null;
       try {
-        // Get actual content.
+        // Get actual content, from where a single range asks for it to start.
         ExternalDocumentResult result = processor.getDocument(node, path);
-        InputStream in = result.getDocumentInputStream(0, session.getUserID());
+        long length = result.getContentLength();
+        long[] range = getRange(request.getHeader("Range"), length);
+        if (range != null && range.length == 0) {
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+        in = result.getDocumentInputStream(range == null ? 0 : range[0], session
+            .getUserID());
+        if (in == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND,
+              "Requested resource does not exist here: " + url);
+          return;
+        }
+
+        if (result.getContentType() != null) {
+          response.setContentType(result.getContentType());
+        }
+        if (length > 0) {
+          response.setHeader("Accept-Ranges", "bytes");
+        }
 
-        // FIXME: what about content type and encoding ?
-        
         // Stream it to the user.
         OutputStream out = response.getOutputStream();
-        IOUtils.stream(in, out);
+        if (range == null) {
+          IOUtils.stream(in, out);
+        } else {
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/"
+              + length);
+          stream(in, out, range[1] - range[0] + 1);
+        }
       } catch (DocProxyException e) {
         response.sendError(e.getCode(), e.getMessage());
         return;
+      } finally {
+        if (in != null) {
+          in.close();
+        }
       }
 
     } catch (RepositoryException e) {
@@ -149,6 +181,73 @@ public class ExternalDocumentProxyServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * Parses a Range header asking for a single range of bytes. Anything else, including
+   * more than one range, is ignored and the whole document is sent.
+   *
+   * @param header
+   *          the Range header, or null.
+   * @param length
+   *          the length of the document, if known.
+   * @return the first and last byte asked for, an empty array if none of them are in the
+   *         document, or null to send the whole document.
+   */
+  static long[] getRange(String header, long length) {
+    if (header == null || length <= 0 || !header.startsWith("bytes=")
+        || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      long first;
+      long last;
+      if (dash == 0) {
+        // the last n bytes
+        long n = Long.parseLong(spec.substring(1));
+        if (n <= 0) {
+          return new long[0];
+        }
+        first = Math.max(0, length - n);
+        last = length - 1;
+      } else {
+        first = Long.parseLong(spec.substring(0, dash));
+        last = length - 1;
+        if (dash < spec.length() - 1) {
+          long asked = Long.parseLong(spec.substring(dash + 1));
+          if (asked < first) {
+            return null;
+          }
+          last = Math.min(last, asked);
+        }
+      }
+      if (first >= length) {
+        return new long[0];
+      }
+      return new long[] { first, last };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Streams at most count bytes.
+   */
+  private void stream(InputStream in, OutputStream out, long count) throws IOException {
+    byte[] buffer = new byte[4096];
+    while (count > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (n == -1) {
+        break;
+      }
+      out.write(buffer, 0, n);
+      count -= n;
+    }
+  }
+
   protected void activate(ComponentContext context) {
     BundleContext bundleContext = context.getBundleContext();
     tracker = new ExternalRepositoryProcessorTracker(bundleContext,
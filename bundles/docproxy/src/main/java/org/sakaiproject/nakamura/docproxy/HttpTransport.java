@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The HTTP client that processors reach external repositories with. Connections are
+ * pooled and shared between the threads serving requests, and bodies fetched with
+ * {@link #get(String, Header[], long)} are kept in a {@link DocumentCache}, if there is
+ * one.
+ * <p>
+ * A cached body is never served without asking the repository first: every fetch is sent
+ * with the headers the caller would have sent anyway, identifying the user, and made
+ * conditional on the validators the body was cached with. Only when the repository
+ * answers that the body has not been modified is it read from disk.
+ */
+public class HttpTransport {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HttpTransport.class);
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+
+  private final MultiThreadedHttpConnectionManager connectionManager;
+  private final HttpClient client;
+  private final DocumentCache cache;
+
+  /**
+   * A transport with the default pool and timeouts, and no cache.
+   */
+  public HttpTransport() {
+    this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST,
+        DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, null);
+  }
+
+  /**
+   * @param maxConnections
+   *          the most connections open at once.
+   * @param maxConnectionsPerHost
+   *          the most connections open at once to any one repository.
+   * @param connectTimeout
+   *          how long, in ms, to wait for a connection, whether a new one or one from the
+   *          pool.
+   * @param socketTimeout
+   *          how long, in ms, to wait for a repository to send anything.
+   * @param cache
+   *          where to cache what is fetched, or null not to.
+   */
+  public HttpTransport(int maxConnections, int maxConnectionsPerHost, int connectTimeout,
+      int socketTimeout, DocumentCache cache) {
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setMaxTotalConnections(maxConnections);
+    params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(socketTimeout);
+    client = new HttpClient(connectionManager);
+    client.getParams().setConnectionManagerTimeout(connectTimeout);
+    this.cache = cache;
+  }
+
+  /**
+   * Executes a method, which the caller must release once it has read the response.
+   *
+   * @return the status of the response.
+   * @throws DocProxyException
+   *           if the method could not be executed or did not succeed, in which case it
+   *           has been released.
+   */
+  public int execute(HttpMethod method) throws DocProxyException {
+    int status;
+    try {
+      status = client.executeMethod(method);
+    } catch (IOException e) {
+      method.releaseConnection();
+      throw new DocProxyException(500, e.getMessage());
+    }
+    if (status < 200 || status >= 300) {
+      method.releaseConnection();
+      throw new DocProxyException(status, "Error occurred while executing method ["
+          + method.getName() + ":" + status + "]");
+    }
+    return status;
+  }
+
+  /**
+   * Fetches a body. If only part of it is wanted the repository is asked for that part,
+   * and whatever it sends before it is skipped if it sends the whole body regardless.
+   *
+   * @param url
+   *          what to fetch, which is also what it is cached as.
+   * @param headers
+   *          to send with the request, such as those identifying the user.
+   * @param startingAt
+   *          the position in the body to read from.
+   * @return the body from that position, which must be closed to release the connection
+   *         it is read from.
+   * @throws DocProxyException
+   *           if the body could not be fetched.
+   */
+  public InputStream get(String url, Header[] headers, long startingAt)
+      throws DocProxyException {
+    DocumentCache.Entry cached = cache == null ? null : cache.get(url);
+    GetMethod method = new GetMethod(url);
+    if (headers != null) {
+      for (Header header : headers) {
+        method.addRequestHeader(header);
+      }
+    }
+    if (cached != null) {
+      if (cached.getEtag() != null) {
+        method.addRequestHeader("If-None-Match", cached.getEtag());
+      }
+      if (cached.getLastModified() != null) {
+        method.addRequestHeader("If-Modified-Since", cached.getLastModified());
+      }
+    }
+    if (startingAt > 0) {
+      method.addRequestHeader("Range", "bytes=" + startingAt + "-");
+    }
+
+    int status;
+    try {
+      status = client.executeMethod(method);
+    } catch (IOException e) {
+      method.releaseConnection();
+      throw new DocProxyException(500, e.getMessage());
+    }
+
+    if (status == 304 && cached != null) {
+      method.releaseConnection();
+      try {
+        return cached.open(startingAt);
+      } catch (IOException e) {
+        // dropped from the cache since it was revalidated, fetch it again.
+        LOGGER.debug("Cached {} is gone, fetching it again", url);
+        cache.remove(url);
+        return get(url, headers, startingAt);
+      }
+    }
+    if (status < 200 || status >= 300) {
+      method.releaseConnection();
+      throw new DocProxyException(status, "Error occurred while executing method ["
+          + method.getName() + ":" + status + "]");
+    }
+
+    InputStream body = new ReleasingInputStream(method);
+    if (status == 206) {
+      // only the part asked for, which is not cached.
+      return body;
+    }
+    if (cache != null) {
+      if (isCacheable(method)) {
+        body = cache.fill(url, body, getHeader(method, "ETag"), getHeader(method,
+            "Last-Modified"), getHeader(method, "Content-Type"));
+      } else if (cached != null) {
+        cache.remove(url);
+      }
+    }
+    try {
+      DocumentCache.skipFully(body, startingAt);
+    } catch (IOException e) {
+      close(body);
+      throw new DocProxyException(500, e.getMessage());
+    }
+    return body;
+  }
+
+  /**
+   * @return the cache this transport keeps bodies in, or null.
+   */
+  public DocumentCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Closes all the connections, and empties the cache.
+   */
+  public void close() {
+    connectionManager.shutdown();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return true if the response can be revalidated, and may be stored.
+   */
+  private boolean isCacheable(HttpMethod method) {
+    if (method.getStatusCode() != 200) {
+      return false;
+    }
+    String cacheControl = getHeader(method, "Cache-Control");
+    if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+      return false;
+    }
+    return getHeader(method, "ETag") != null || getHeader(method, "Last-Modified") != null;
+  }
+
+  private String getHeader(HttpMethod method, String name) {
+    Header header = method.getResponseHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  private void close(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The body of a response, which releases the connection when closed. A body closed
+   * before its end aborts the connection, rather than reading the rest of it so that the
+   * connection can be used again.
+   */
+  private static class ReleasingInputStream extends FilterInputStream {
+    private final HttpMethod method;
+    private boolean eof;
+
+    ReleasingInputStream(HttpMethod method) throws DocProxyException {
+      super(getBody(method));
+      this.method = method;
+    }
+
+    private static InputStream getBody(HttpMethod method) throws DocProxyException {
+      try {
+        InputStream body = method.getResponseBodyAsStream();
+        return body == null ? new ByteArrayInputStream(new byte[0]) : body;
+      } catch (IOException e) {
+        method.releaseConnection();
+        throw new DocProxyException(500, e.getMessage());
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      eof = b == -1;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      eof = n == -1;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (eof) {
+          super.close();
+        } else {
+          method.abort();
+        }
+      } finally {
+        method.releaseConnection();
+      }
+    }
+  }
+}
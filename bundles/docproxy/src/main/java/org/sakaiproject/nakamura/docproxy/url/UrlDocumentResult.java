@@ -38,6 +38,10 @@ public class UrlDocumentResult implements ExternalDocumentResult {
   private String contentType;
   private long contentLength;
   private Map<String, Object> properties = new HashMap<String, Object>();
+  /**
+   * The processor the document was found through, which fetches its body.
+   */
+  private UrlRepositoryProcessor processor;
 
   public UrlDocumentResult() {
   }
@@ -140,6 +144,10 @@ public class UrlDocumentResult implements ExternalDocumentResult {
     this.properties = properties;
   }
 
+  public void setProcessor(UrlRepositoryProcessor processor) {
+    this.processor = processor;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -180,9 +188,20 @@ public class UrlDocumentResult implements ExternalDocumentResult {
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * The body is fetched through the processor the document was found through, as the
+   * user, or straight from its uri if it was not found through one.
+   * 
+   * @see org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult#getDocumentInputStream(long,
+   *      java.lang.String)
+   */
   public InputStream getDocumentInputStream(long startingAt, String userId)
       throws DocProxyException {
-    // TODO Auto-generated method stub
-    return null;
+    if (processor == null) {
+      return getDocumentInputStream(startingAt);
+    }
+    return processor.getContent(uri, startingAt, userId);
   }
 }
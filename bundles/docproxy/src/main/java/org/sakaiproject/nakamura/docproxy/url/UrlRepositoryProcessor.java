@@ -16,6 +16,7 @@ package org.sakaiproject.nakamura.docproxy.url;
 
 import com.ctc.wstx.stax.WstxInputFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SignatureException;
@@ -37,22 +38,25 @@ import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
-import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.DeleteMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResultMetadata;
 import org.sakaiproject.nakamura.api.docproxy.ExternalRepositoryProcessor;
 import org.sakaiproject.nakamura.api.docproxy.ExternalSearchResultSet;
+import org.sakaiproject.nakamura.docproxy.DocumentCache;
 import org.sakaiproject.nakamura.docproxy.ExternalSearchResultSetImpl;
+import org.sakaiproject.nakamura.docproxy.HttpTransport;
 import org.sakaiproject.nakamura.util.Signature;
 
 /**
@@ -96,15 +100,34 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   protected static final String REMOVE_URL = "remove.url";
   private String removeUrl;
 
+  @Property(intValue = HttpTransport.DEFAULT_MAX_CONNECTIONS)
+  static final String MAX_CONNECTIONS = "http.max.connections";
+
+  @Property(intValue = HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST)
+  static final String MAX_CONNECTIONS_PER_HOST = "http.max.connections.per.host";
+
+  @Property(intValue = HttpTransport.DEFAULT_CONNECT_TIMEOUT)
+  static final String CONNECT_TIMEOUT = "http.connect.timeout";
+
+  @Property(intValue = HttpTransport.DEFAULT_SOCKET_TIMEOUT)
+  static final String SOCKET_TIMEOUT = "http.socket.timeout";
+
+  public static final long DEFAULT_CACHE_SIZE = 100;
+  @Property(longValue = DEFAULT_CACHE_SIZE)
+  static final String CACHE_SIZE = "cache.size";
+
+  @Property
+  static final String CACHE_DIR = "cache.dir";
+
   private XMLInputFactory xmlInputFactory;
 
-  private HttpClient client;
+  private HttpTransport transport;
 
   /**
    * Default constructor. Used by OSGi.
    */
   public UrlRepositoryProcessor() {
-    client = new HttpClient();
+    transport = new HttpTransport();
   }
 
   @Activate
@@ -126,6 +149,36 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
 
     hmacHeader = OsgiUtil.toString(props.get(HMAC_HEADER), DEFAULT_HMAC_HEADER);
     sharedKey = OsgiUtil.toString(props.get(SHARED_KEY), null);
+
+    // documents and metadata are cached on disk, up to cache.size MB.
+    DocumentCache cache = null;
+    long cacheSize = OsgiUtil.toLong(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE);
+    String cacheDir = OsgiUtil.toString(props.get(CACHE_DIR), null);
+    File cacheDirectory = null;
+    if (cacheDir != null) {
+      cacheDirectory = new File(cacheDir);
+    } else {
+      BundleContext bundleContext = context.getBundleContext();
+      if (bundleContext != null) {
+        cacheDirectory = bundleContext.getDataFile("docproxy-url-cache");
+      }
+    }
+    if (cacheSize > 0 && cacheDirectory != null) {
+      cache = new DocumentCache(cacheDirectory, cacheSize * 1024L * 1024L);
+    }
+
+    transport.close();
+    transport = new HttpTransport(OsgiUtil.toInteger(props.get(MAX_CONNECTIONS),
+        HttpTransport.DEFAULT_MAX_CONNECTIONS), OsgiUtil.toInteger(props
+        .get(MAX_CONNECTIONS_PER_HOST), HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST),
+        OsgiUtil.toInteger(props.get(CONNECT_TIMEOUT),
+            HttpTransport.DEFAULT_CONNECT_TIMEOUT), OsgiUtil.toInteger(props
+            .get(SOCKET_TIMEOUT), HttpTransport.DEFAULT_SOCKET_TIMEOUT), cache);
+  }
+
+  @Deactivate
+  protected void deactivate(ComponentContext context) {
+    transport.close();
   }
 
   /*
@@ -153,6 +206,7 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
     }
     method.setRequestEntity(new InputStreamRequestEntity(documentStream));
     executeMethod(method, node);
+    method.releaseConnection();
     return null;
   }
 
@@ -165,15 +219,14 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalDocumentResult getDocument(Node node, String path)
       throws DocProxyException {
+    InputStream body = get(documentUrl + path, node);
     try {
-      GetMethod method = new GetMethod(documentUrl + path);
-      executeMethod(method, node);
-      ExternalDocumentResult result = parseDocument(method.getResponseBodyAsStream());
+      ExternalDocumentResult result = parseDocument(body);
       return result;
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
-    } catch (IOException e) {
-      throw new DocProxyException(500, e.getMessage());
+    } finally {
+      close(body);
     }
   }
 
@@ -186,16 +239,14 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalDocumentResultMetadata getDocumentMetadata(Node node, String path)
       throws DocProxyException {
+    InputStream body = get(metadataUrl + path, node);
     try {
-      GetMethod method = new GetMethod(metadataUrl + path);
-      executeMethod(method, node);
-      ExternalDocumentResultMetadata result = parseDocument(method
-          .getResponseBodyAsStream());
+      ExternalDocumentResultMetadata result = parseDocument(body);
       return result;
-    } catch (IOException e) {
-      throw new DocProxyException(500, e.getMessage());
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      close(body);
     }
   }
 
@@ -208,8 +259,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalSearchResultSet search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException {
+    PostMethod method = new PostMethod(searchUrl);
     try {
-      PostMethod method = new PostMethod(searchUrl);
       for (Entry<String, Object> entry : searchProperties.entrySet()) {
         method.addParameter(entry.getKey(), entry.getValue().toString());
       }
@@ -221,6 +272,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       throw new DocProxyException(500, e.getMessage());
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
     }
   }
 
@@ -234,27 +287,62 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   public void removeDocument(Node node, String path) throws DocProxyException {
     DeleteMethod method = new DeleteMethod(removeUrl + path);
     executeMethod(method, node);
+    method.releaseConnection();
+  }
+
+  /**
+   * Gets the body of a document, through the cache.
+   *
+   * @param uri
+   *          the uri of the document.
+   * @param startingAt
+   *          the position in the body to read from.
+   * @param userId
+   *          the user to get the document as, or null to get it anonymously.
+   * @return the body, which must be closed.
+   * @throws DocProxyException
+   */
+  public InputStream getContent(String uri, long startingAt, String userId)
+      throws DocProxyException {
+    try {
+      Header[] headers = userId == null ? null : new Header[] { getHmac(userId) };
+      return transport.get(uri, headers, startingAt);
+    } catch (SignatureException e) {
+      throw new DocProxyException(500, e.getMessage());
+    }
   }
 
   /**
-   * Execute an http method and return the status code.
+   * Gets a descriptor, through the cache, as the user of the node's session.
+   */
+  private InputStream get(String url, Node node) throws DocProxyException {
+    try {
+      return getContent(url, 0, node.getSession().getUserID());
+    } catch (RepositoryException e) {
+      throw new DocProxyException(500, e.getMessage());
+    }
+  }
+
+  private void close(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // nothing more can be done with it.
+    }
+  }
+
+  /**
+   * Execute an http method and return the status code. The method must be released once
+   * its response has been read.
    * 
    * @param method
    * @return
-   * @throws IOException
    * @throws DocProxyException
    */
   private int executeMethod(HttpMethod method, Node node) throws DocProxyException {
     try {
       addHmac(method, node);
-      int returnCode = client.executeMethod(method);
-      if (returnCode < 200 || returnCode >= 300) {
-        throw new DocProxyException(returnCode, "Error occurred while executing method ["
-            + method.getName() + ":" + returnCode + "]");
-      }
-      return returnCode;
-    } catch (IOException e) {
-      throw new DocProxyException(500, e.getMessage());
+      return transport.execute(method);
     } catch (RepositoryException e) {
       throw new DocProxyException(500, e.getMessage());
     } catch (SignatureException e) {
@@ -331,6 +419,7 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   protected ExternalDocumentResult parseDocument(InputStream body)
       throws XMLStreamException {
     UrlDocumentResult doc = new UrlDocumentResult();
+    doc.setProcessor(this);
     XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(body);
     while (eventReader.hasNext()) {
       XMLEvent event = eventReader.nextEvent();
@@ -376,6 +465,7 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       _doc = doc;
     } else {
       _doc = new UrlDocumentResult();
+      _doc.setProcessor(this);
     }
 
     @SuppressWarnings("unchecked")
@@ -452,9 +542,11 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   private void addHmac(HttpMethod method, Node node) throws RepositoryException,
       SignatureException {
-    String currentUserId = node.getSession().getUserID();
-    String hmac = Signature.calculateRFC2104HMAC(currentUserId, sharedKey);
-    String hmacHeaderValue = hmac + ";" + currentUserId;
-    method.addRequestHeader(hmacHeader, hmacHeaderValue);
+    method.addRequestHeader(getHmac(node.getSession().getUserID()));
+  }
+
+  private Header getHmac(String userId) throws SignatureException {
+    String hmac = Signature.calculateRFC2104HMAC(userId, sharedKey);
+    return new Header(hmacHeader, hmac + ";" + userId);
   }
 }
@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.docproxy;
 
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.sakaiproject.nakamura.api.docproxy.DocProxyConstants.REPOSITORY_LOCATION;
 import static org.sakaiproject.nakamura.api.docproxy.DocProxyConstants.REPOSITORY_PROCESSOR;
 import static org.sakaiproject.nakamura.api.docproxy.DocProxyConstants.RT_EXTERNAL_REPOSITORY;
@@ -86,6 +88,7 @@ public class DocumentProxyServletTest extends AbstractDocProxyServlet {
     // Request
     expect(request.getRequestURI()).andReturn("/docproxy/disk/README");
     expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getHeader("Range")).andReturn(null);
 
     final ByteArrayOutputStream baos = new ByteArrayOutputStream();
     ServletOutputStream stream = new ServletOutputStream() {
@@ -95,6 +98,8 @@ public class DocumentProxyServletTest extends AbstractDocProxyServlet {
         baos.write(b);
       }
     };
+    response.setContentType("application/octet-stream");
+    response.setHeader("Accept-Ranges", "bytes");
     expect(response.getOutputStream()).andReturn(stream);
     replay();
 
@@ -135,6 +140,7 @@ public class DocumentProxyServletTest extends AbstractDocProxyServlet {
     // Request
     expect(request.getRequestURI()).andReturn("/docproxy/disk/README");
     expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getHeader("Range")).andReturn(null);
 
     final ByteArrayOutputStream baos = new ByteArrayOutputStream();
     ServletOutputStream stream = new ServletOutputStream() {
@@ -144,6 +150,8 @@ public class DocumentProxyServletTest extends AbstractDocProxyServlet {
         baos.write(b);
       }
     };
+    response.setContentType("application/octet-stream");
+    response.setHeader("Accept-Ranges", "bytes");
     expect(response.getOutputStream()).andReturn(stream);
     replay();
 
@@ -181,4 +189,90 @@ public class DocumentProxyServletTest extends AbstractDocProxyServlet {
     servlet.doGet(request, response);
   }
 
+  @Test
+  public void testRangeGet() throws ServletException, IOException,
+      PathNotFoundException, RepositoryException {
+    Session session = createMock(Session.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+
+    // Session
+    expect(session.getItem("/docproxy/disk/README"))
+        .andThrow(new PathNotFoundException());
+    expect(session.getItem("/docproxy/disk")).andReturn(proxyNode);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    expect(session.getUserID()).andReturn("zach");
+
+    // Request
+    expect(request.getRequestURI()).andReturn("/docproxy/disk/README");
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getHeader("Range")).andReturn("bytes=3-13");
+
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream stream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    response.setContentType("application/octet-stream");
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader("Content-Range", "bytes 3-13/25");
+    expect(response.getOutputStream()).andReturn(stream);
+    replay();
+
+    servlet.doGet(request, response);
+
+    String result = baos.toString("UTF-8");
+    assertEquals("docProxy te", result);
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws ServletException, IOException,
+      PathNotFoundException, RepositoryException {
+    Session session = createMock(Session.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+
+    // Session
+    expect(session.getItem("/docproxy/disk/README"))
+        .andThrow(new PathNotFoundException());
+    expect(session.getItem("/docproxy/disk")).andReturn(proxyNode);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+
+    // Request
+    expect(request.getRequestURI()).andReturn("/docproxy/disk/README");
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getHeader("Range")).andReturn("bytes=25-");
+
+    response.setHeader("Content-Range", "bytes */25");
+    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    replay();
+
+    servlet.doGet(request, response);
+  }
+
+  @Test
+  public void testGetRange() {
+    assertArrayEquals(new long[] { 0, 9 }, ExternalDocumentProxyServlet.getRange(
+        "bytes=0-9", 25));
+    assertArrayEquals(new long[] { 5, 24 }, ExternalDocumentProxyServlet.getRange(
+        "bytes=5-", 25));
+    assertArrayEquals(new long[] { 15, 24 }, ExternalDocumentProxyServlet.getRange(
+        "bytes=-10", 25));
+    assertArrayEquals(new long[] { 20, 24 }, ExternalDocumentProxyServlet.getRange(
+        "bytes=20-100", 25));
+    assertArrayEquals(new long[0], ExternalDocumentProxyServlet.getRange("bytes=30-",
+        25));
+    assertNull(ExternalDocumentProxyServlet.getRange(null, 25));
+    assertNull(ExternalDocumentProxyServlet.getRange("bytes=0-9", 0));
+    assertNull(ExternalDocumentProxyServlet.getRange("bytes=0-1,5-9", 25));
+    assertNull(ExternalDocumentProxyServlet.getRange("bytes=9-0", 25));
+    assertNull(ExternalDocumentProxyServlet.getRange("bytes=a-", 25));
+  }
+
 }
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.http.localserver.LocalTestServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
+import org.sakaiproject.nakamura.docproxy.url.requestHandlers.ContentRequestHandler;
+import org.sakaiproject.nakamura.util.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fetches documents from a local server through a transport with a small pool, so that
+ * any connection not released shows as a timeout.
+ */
+public class HttpTransportTest {
+
+  private static final int SIZE = 64 * 1024;
+
+  private LocalTestServer server;
+  private ContentRequestHandler handler;
+  private byte[] content;
+  private File cacheDir;
+  private HttpTransport transport;
+  private String url;
+
+  @Before
+  public void setUp() throws Exception {
+    content = new byte[SIZE];
+    new Random(42).nextBytes(content);
+    handler = new ContentRequestHandler(content);
+
+    server = new LocalTestServer(null, null);
+    server.register("/content", handler);
+    server.start();
+    url = "http://" + server.getServiceHostName() + ":" + server.getServicePort()
+        + "/content";
+
+    cacheDir = File.createTempFile("docproxy", "cache");
+    cacheDir.delete();
+    transport = new HttpTransport(4, 4, 5000, 5000, new DocumentCache(cacheDir,
+        4 * SIZE));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    transport.close();
+    server.stop();
+    cacheDir.delete();
+  }
+
+  @Test
+  public void testConcurrentDownloads() throws Exception {
+    final List<Throwable> failures = Collections
+        .synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 16; i++) {
+      final int offset = i % 2 == 0 ? 0 : i * 100;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 10; j++) {
+              byte[] body = read(transport.get(url, null, offset));
+              assertArrayEquals(tail(content, offset), body);
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(failures.toString(), 0, failures.size());
+    assertEquals(160, handler.getRequests());
+    // once cached, the body is revalidated rather than sent again.
+    assertTrue(handler.getNotModified() > 0);
+    assertTrue(handler.getFull() < 80);
+    assertEquals(1, transport.getCache().getCount());
+  }
+
+  @Test
+  public void testRevalidatedFromCache() throws Exception {
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+    assertEquals(1, transport.getCache().getCount());
+    assertEquals(SIZE, transport.getCache().getSize());
+
+    Header[] hmac = new Header[] { new Header("X-HMAC", "hmac;ch1411") };
+    assertArrayEquals(content, read(transport.get(url, hmac, 0)));
+    assertEquals(2, handler.getRequests());
+    assertEquals(1, handler.getNotModified());
+    // the repository is still asked, as the user.
+    assertEquals("hmac;ch1411", handler.getHmac());
+  }
+
+  @Test
+  public void testChangedContent() throws Exception {
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+    byte[] changed = "changed".getBytes("UTF-8");
+    handler.setContent(changed);
+    assertArrayEquals(changed, read(transport.get(url, null, 0)));
+    assertArrayEquals(changed, read(transport.get(url, null, 0)));
+    assertEquals(2, handler.getFull());
+    assertEquals(1, handler.getNotModified());
+    assertEquals(changed.length, transport.getCache().getSize());
+  }
+
+  @Test
+  public void testRangePassedThrough() throws Exception {
+    assertArrayEquals(tail(content, 1000), read(transport.get(url, null, 1000)));
+    assertEquals(1, handler.getPartial());
+    assertEquals(0, transport.getCache().getCount());
+  }
+
+  @Test
+  public void testRangeFromCache() throws Exception {
+    read(transport.get(url, null, 0));
+    assertArrayEquals(tail(content, 1000), read(transport.get(url, null, 1000)));
+    assertEquals(0, handler.getPartial());
+    assertEquals(1, handler.getNotModified());
+  }
+
+  @Test
+  public void testNoValidatorsNotCached() throws Exception {
+    handler.setValidators(false);
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+    assertEquals(2, handler.getFull());
+    assertEquals(0, transport.getCache().getCount());
+  }
+
+  @Test
+  public void testAbandonedNotCached() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      InputStream in = transport.get(url, null, 0);
+      in.read(new byte[100]);
+      in.close();
+    }
+    assertEquals(0, transport.getCache().getCount());
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+    assertEquals(1, transport.getCache().getCount());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    for (int i = 0; i < 6; i++) {
+      read(transport.get(url + "?p=" + i, null, 0));
+    }
+    assertEquals(4, transport.getCache().getCount());
+    assertEquals(4 * SIZE, transport.getCache().getSize());
+    // the first have been evicted, and are sent again.
+    read(transport.get(url + "?p=0", null, 0));
+    read(transport.get(url + "?p=5", null, 0));
+    assertEquals(7, handler.getFull());
+    assertEquals(1, handler.getNotModified());
+  }
+
+  @Test
+  public void testErrorsReleaseConnections() throws Exception {
+    String missing = "http://" + server.getServiceHostName() + ":"
+        + server.getServicePort() + "/missing";
+    for (int i = 0; i < 10; i++) {
+      try {
+        transport.get(missing, null, 0);
+        fail("Missing documents should not be found");
+      } catch (DocProxyException e) {
+        assertEquals(501, e.getCode());
+      }
+    }
+    assertArrayEquals(content, read(transport.get(url, null, 0)));
+  }
+
+  private byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      IOUtils.stream(in, out);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private byte[] tail(byte[] bytes, int from) {
+    byte[] tail = new byte[bytes.length - from];
+    System.arraycopy(bytes, from, tail, 0, tail.length);
+    return tail;
+  }
+}
@@ -15,10 +15,12 @@
 package org.sakaiproject.nakamura.docproxy.url;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Properties;
 
@@ -35,11 +37,13 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResultMetadata;
+import org.sakaiproject.nakamura.docproxy.url.requestHandlers.ContentRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.DocumentRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.MetadataRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.RemoveRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.SearchRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.UpdateRequestHandler;
+import org.sakaiproject.nakamura.util.IOUtils;
 
 @RunWith(MockitoJUnitRunner.class)
 public class UrlRepositoryProcessorTest {
@@ -48,6 +52,8 @@ public class UrlRepositoryProcessorTest {
   private Node node;
 
   private LocalTestServer server;
+  private String serverUrl;
+  private File cacheDir;
 
   private UrlRepositoryProcessor processor;
 
@@ -98,7 +104,7 @@ public class UrlRepositoryProcessorTest {
     server.start();
 
     // setup & activate the url doc processor
-    String serverUrl = "http://" + server.getServiceHostName() + ":"
+    serverUrl = "http://" + server.getServiceHostName() + ":"
         + server.getServicePort();
 
     Properties props = new Properties();
@@ -109,6 +115,9 @@ public class UrlRepositoryProcessorTest {
     props.put(UrlRepositoryProcessor.UPDATE_URL, serverUrl + "/update?p=");
     props.put(UrlRepositoryProcessor.HMAC_HEADER, "X-HMAC");
     props.put(UrlRepositoryProcessor.SHARED_KEY, "superSecretSharedKey");
+    cacheDir = File.createTempFile("docproxy", "cache");
+    cacheDir.delete();
+    props.put(UrlRepositoryProcessor.CACHE_DIR, cacheDir.getPath());
 
     ComponentContext context = mock(ComponentContext.class);
     when(context.getProperties()).thenReturn(props);
@@ -119,7 +128,9 @@ public class UrlRepositoryProcessorTest {
 
   @After
   public void tearDown() throws Exception {
+    processor.deactivate(null);
     server.stop();
+    cacheDir.delete();
   }
 
   @Test
@@ -161,4 +172,23 @@ public class UrlRepositoryProcessorTest {
     long streamLength = output.length();
     processor.updateDocument(node, docPath1, props, bais, streamLength);
   }
+
+  @Test
+  public void testGetDocumentContent() throws Exception {
+    ContentRequestHandler contentHandler = new ContentRequestHandler("Data for document"
+        .getBytes("UTF-8"));
+    server.register("/content", contentHandler);
+    docResult1.setUri(serverUrl + "/content");
+
+    ExternalDocumentResult doc = processor.getDocument(node, docPath1);
+    assertEquals("Data for document", IOUtils.readFully(doc.getDocumentInputStream(0,
+        "ch1411"), "UTF-8"));
+    assertTrue(contentHandler.getHmac().endsWith(";ch1411"));
+
+    // revalidated, and read from the cache.
+    assertEquals("document", IOUtils.readFully(doc.getDocumentInputStream(9, "ch1411"),
+        "UTF-8"));
+    assertEquals(1, contentHandler.getNotModified());
+    assertEquals(0, contentHandler.getPartial());
+  }
 }
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.url.requestHandlers;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the body of a document with an ETag, answering conditional requests with 304
+ * and requests for a range of bytes from a position with 206.
+ */
+public class ContentRequestHandler implements HttpRequestHandler {
+
+  private volatile byte[] content;
+  private volatile String etag;
+  private volatile boolean validators = true;
+  private volatile String hmac;
+  private final AtomicInteger version = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger notModified = new AtomicInteger();
+  private final AtomicInteger partial = new AtomicInteger();
+
+  public ContentRequestHandler(byte[] content) {
+    setContent(content);
+  }
+
+  public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+      throws HttpException, IOException {
+    requests.incrementAndGet();
+    Header hmacHeader = request.getFirstHeader("X-HMAC");
+    hmac = hmacHeader == null ? null : hmacHeader.getValue();
+    byte[] body = content;
+    String currentEtag = etag;
+
+    Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+    if (validators && ifNoneMatch != null && ifNoneMatch.getValue().equals(currentEtag)) {
+      notModified.incrementAndGet();
+      response.setStatusCode(304);
+      response.setHeader("ETag", currentEtag);
+      return;
+    }
+
+    if (validators) {
+      response.setHeader("ETag", currentEtag);
+    }
+    response.setHeader("Content-Type", "application/octet-stream");
+    Header range = request.getFirstHeader("Range");
+    if (range != null && range.getValue().startsWith("bytes=")
+        && range.getValue().endsWith("-")) {
+      int from = Integer.parseInt(range.getValue().substring(6,
+          range.getValue().length() - 1));
+      byte[] part = new byte[body.length - from];
+      System.arraycopy(body, from, part, 0, part.length);
+      partial.incrementAndGet();
+      response.setStatusCode(206);
+      response.setHeader("Content-Range", "bytes " + from + "-" + (body.length - 1) + "/"
+          + body.length);
+      response.setEntity(new ByteArrayEntity(part));
+      return;
+    }
+    response.setStatusCode(200);
+    response.setEntity(new ByteArrayEntity(body));
+  }
+
+  /**
+   * Changes the body, and its ETag.
+   */
+  public void setContent(byte[] content) {
+    this.content = content;
+    this.etag = "\"v" + version.incrementAndGet() + "\"";
+  }
+
+  /**
+   * @param validators
+   *          false to serve the body without an ETag, so that it cannot be revalidated.
+   */
+  public void setValidators(boolean validators) {
+    this.validators = validators;
+  }
+
+  public String getHmac() {
+    return hmac;
+  }
+
+  public int getRequests() {
+    return requests.get();
+  }
+
+  public int getNotModified() {
+    return notModified.get();
+  }
+
+  public int getPartial() {
+    return partial.get();
+  }
+
+  /**
+   * @return the number of bodies sent whole.
+   */
+  public int getFull() {
+    return requests.get() - notModified.get() - partial.get();
+  }
+}
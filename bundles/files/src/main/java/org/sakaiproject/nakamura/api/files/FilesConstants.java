@@ -22,6 +22,7 @@ import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_
 import com.google.common.collect.ImmutableSet;
 
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 
 import java.util.Set;
 
@@ -170,6 +171,6 @@ public interface FilesConstants {
   public static final Set<String> RESERVED_POOL_KEYS = ImmutableSet.of(
       SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_CREATED_FOR,
       POOLED_CONTENT_USER_MANAGER, POOLED_NEEDS_PROCESSING,
-      Content.MIMETYPE_FIELD);
+      Content.MIMETYPE_FIELD, SharedBodyUtils.SHARED_BODY_PROPERTY);
 
 }
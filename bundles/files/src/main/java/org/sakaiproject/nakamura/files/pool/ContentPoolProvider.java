@@ -21,12 +21,14 @@ package org.sakaiproject.nakamura.files.pool;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -52,6 +54,13 @@ public class ContentPoolProvider implements ResourceProvider {
   public static final String CONTENT_RESOURCE_PROVIDER = ContentPoolProvider.class
       .getName();
 
+  /**
+   * Reads shared bodies, which only the administrator can read, for those who can read
+   * the pool item.
+   */
+  @Reference
+  protected Repository repository;
+
   // this 36*36 = 1296, so /a/aa/aa/aa will have 36 at the first level, then 46656 at the
   // second and then 60M, then 7e10 items at the last level.
 
@@ -117,7 +126,7 @@ public class ContentPoolProvider implements ResourceProvider {
       Content content = contentManager.get(poolId);
       if ( content != null ) {
         SparseContentResource cpr = new SparseContentResource(content, session,
-            resourceResolver, path);
+            resourceResolver, path, repository);
         cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
         LOGGER.debug("Resolved {} as {} ",path,cpr);
         return cpr;
@@ -138,20 +147,20 @@ public class ContentPoolProvider implements ResourceProvider {
           String[] possibleStructure = StringUtils.split(resourceId, "/", 2);
           if ( resourceId.equals(content.getProperty(FilesConstants.POOLED_CONTENT_FILENAME))) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, repository);
             cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
             LOGGER.debug("Resolved {} as {} ",path,cpr);
             return cpr;
           } else if ( possibleStructure != null && possibleStructure.length > 0 && content.hasProperty(FilesConstants.STRUCTURE_FIELD_STEM+possibleStructure[0]) ) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, repository);
             cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
             LOGGER.debug("Resolved {} as {} ",path,cpr);
             return cpr;
           }
         } else {
           SparseContentResource cpr = new SparseContentResource(content, session,
-              resourceResolver, path);
+              resourceResolver, path, repository);
           cpr.getResourceMetadata().put(CONTENT_RESOURCE_PROVIDER, this);
           LOGGER.debug("Resolved {} as {} ",path,cpr);
           return cpr;
@@ -67,6 +67,7 @@ import org.sakaiproject.nakamura.api.lite.jackrabbit.JackrabbitSparseUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ActivityUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -298,36 +299,24 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     ContentManager contentManager = session.getContentManager();
     AccessControlManager accessControlManager = session.getAccessControlManager();
     if ( create ) {
-      // Create a proper nt:file node in jcr with some properties on it to make it possible
-      // to locate this pool file without having to use the path.
-      Map<String, Object> contentProperties = new HashMap<String, Object>();
-      contentProperties.put(POOLED_CONTENT_FILENAME, value.getFileName());
-      contentProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
-      contentProperties.put(POOLED_CONTENT_CREATED_FOR, au.getId());
-      contentProperties.put(POOLED_NEEDS_PROCESSING, "true");
-      contentProperties.put(Content.MIMETYPE_FIELD, contentType);
-      contentProperties.put(POOLED_CONTENT_USER_MANAGER, new String[]{au.getId()});
-      
-      Content content = new Content(poolId,contentProperties);
+      Content content = new Content(poolId, getFileProperties(value.getFileName(),
+          contentType, au.getId()));
       
       contentManager.update(content);
       
       contentManager.writeBody(poolId, value.getInputStream());
       
-      
-      // deny anon everyting
-      // deny everyone everything
-      // grant the user everything.
-      List<AclModification> modifications = new ArrayList<AclModification>();
-      AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
-      AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
-      AclModification.addAcl(true, Permissions.CAN_MANAGE, au.getId(), modifications);
-      accessControlManager.setAcl(Security.ZONE_CONTENT, poolId, modifications.toArray(new AclModification[modifications.size()]));
+      setFileAcl(accessControlManager, poolId, au.getId());
 
       ActivityUtils.postActivity(eventAdmin, au.getId(), poolId, "Content", "default", "pooled content", "CREATED_FILE", null);
     } else {
       Content content = contentManager.get(poolId);
       content.setProperty(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream), contentType);
+      if (alternativeStream == null) {
+        // the file has a body of its own again.
+        content.removeProperty(SharedBodyUtils.SHARED_BODY_PROPERTY);
+        content.removeProperty(SharedBodyUtils.BODY_LAST_MODIFIED_FIELD);
+      }
       contentManager.update(content);
       contentManager.writeBody(poolId, value.getInputStream(),alternativeStream);
       ActivityUtils.postActivity(eventAdmin, au.getId(), poolId, "Content", "default", "pooled content", "UPDATED_FILE", null);
@@ -335,6 +324,39 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     return contentManager.get(poolId);
   }
 
+  /**
+   * Create a proper nt:file node in jcr with some properties on it to make it possible to
+   * locate this pool file without having to use the path.
+   *
+   * @return the properties of a new file in the pool.
+   */
+  static Map<String, Object> getFileProperties(String fileName, String contentType,
+      String userId) {
+    Map<String, Object> contentProperties = new HashMap<String, Object>();
+    contentProperties.put(POOLED_CONTENT_FILENAME, fileName);
+    contentProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
+    contentProperties.put(POOLED_CONTENT_CREATED_FOR, userId);
+    contentProperties.put(POOLED_NEEDS_PROCESSING, "true");
+    contentProperties.put(Content.MIMETYPE_FIELD, contentType);
+    contentProperties.put(POOLED_CONTENT_USER_MANAGER, new String[]{userId});
+    return contentProperties;
+  }
+
+  /**
+   * Makes a new file in the pool private to the user that created it.
+   */
+  static void setFileAcl(AccessControlManager accessControlManager, String poolId,
+      String userId) throws StorageClientException, AccessDeniedException {
+    // deny anon everyting
+    // deny everyone everything
+    // grant the user everything.
+    List<AclModification> modifications = new ArrayList<AclModification>();
+    AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+    AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+    AclModification.addAcl(true, Permissions.CAN_MANAGE, userId, modifications);
+    accessControlManager.setAcl(Security.ZONE_CONTENT, poolId, modifications.toArray(new AclModification[modifications.size()]));
+  }
+
   /**
    * Get the content type of a file that's in a {@link RequestParameter}.
    *
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bodies of files in the pool, stored once for however many files have the same
+ * body.
+ * <p>
+ * Each body is held by content of its own, under a random name, which only the
+ * administrator can read. Those who can read a file that shares the body read it through
+ * {@link SharedBodyUtils} as the administrator. Bodies are found by their SHA-256 through
+ * an index only the administrator can read, which is only ever given hashes computed
+ * here from the body itself, never ones that a client claims.
+ * <p>
+ * Bodies are kept once no file shares them, as Sparse keeps the bodies of deleted
+ * content.
+ */
+public class SharedBodyStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedBodyStore.class);
+
+  /**
+   * Where the bodies are held.
+   */
+  static final String BODIES = SharedBodyUtils.SHARED_BODIES_PATH;
+  /**
+   * Where the bodies are indexed, by SHA-256.
+   */
+  static final String HASHES = "var/pool/bodyhashes";
+  /**
+   * The SHA-256 of a body, on the content that holds it.
+   */
+  static final String SHA256_PROPERTY = "sakai:sha256";
+
+  private final SecureRandom random = new SecureRandom();
+  /**
+   * So that uploads of the same body on this server at the same time only store it once.
+   */
+  private final Object[] locks = new Object[64];
+  private volatile boolean initialised;
+
+  public SharedBodyStore() {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @param adminSession
+   * @param sha256
+   *          the SHA-256 of the body, as computed from the body itself.
+   * @param body
+   *          the body.
+   * @return the path of the content holding the body, stored if no body with the same
+   *         hash was.
+   */
+  public String share(Session adminSession, String sha256, File body)
+      throws StorageClientException, AccessDeniedException, IOException {
+    ContentManager contentManager = adminSession.getContentManager();
+    init(adminSession);
+    String hashPath = StorageClientUtils.newPath(HASHES, sha256);
+    synchronized (locks[(sha256.hashCode() & 0x7fffffff) % locks.length]) {
+      Content hash = contentManager.get(hashPath);
+      if (hash != null) {
+        String bodyPath = (String) hash.getProperty(SharedBodyUtils.SHARED_BODY_PROPERTY);
+        if (bodyPath != null && contentManager.hasBody(bodyPath, null)) {
+          LOGGER.debug("Sharing body {} ", bodyPath);
+          return bodyPath;
+        }
+      }
+
+      String bodyPath = StorageClientUtils.newPath(BODIES, newName());
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put(SHA256_PROPERTY, sha256);
+      contentManager.update(new Content(bodyPath, properties));
+      InputStream in = new FileInputStream(body);
+      try {
+        contentManager.writeBody(bodyPath, in);
+      } finally {
+        in.close();
+      }
+      List<AclModification> modifications = new ArrayList<AclModification>();
+      AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+      AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+      adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, bodyPath,
+          modifications.toArray(new AclModification[modifications.size()]));
+
+      properties = new HashMap<String, Object>();
+      properties.put(SharedBodyUtils.SHARED_BODY_PROPERTY, bodyPath);
+      contentManager.update(new Content(hashPath, properties));
+      LOGGER.debug("Stored body {} ", bodyPath);
+      return bodyPath;
+    }
+  }
+
+  /**
+   * Makes sure that only the administrator can list the bodies or read the index.
+   */
+  private void init(Session adminSession) throws StorageClientException,
+      AccessDeniedException {
+    if (initialised) {
+      return;
+    }
+    ContentManager contentManager = adminSession.getContentManager();
+    for (String path : new String[] { BODIES, HASHES }) {
+      if (!contentManager.exists(path)) {
+        contentManager.update(new Content(path, new HashMap<String, Object>()));
+        List<AclModification> modifications = new ArrayList<AclModification>();
+        AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+        AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+        adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, path,
+            modifications.toArray(new AclModification[modifications.size()]));
+      }
+    }
+    initialised = true;
+  }
+
+  private String newName() throws IOException {
+    byte[] b = new byte[16];
+    random.nextBytes(b);
+    return StringUtils.byteToHex(b);
+  }
+}
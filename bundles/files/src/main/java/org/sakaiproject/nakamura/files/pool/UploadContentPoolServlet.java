@@ -0,0 +1,507 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceExtension;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.jackrabbit.JackrabbitSparseUtils;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.files.pool.UploadStore.Upload;
+import org.sakaiproject.nakamura.util.ActivityUtils;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+@SlingServlet(methods = { "GET", "POST", "PUT", "DELETE" }, paths = "/system/pool/upload")
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Allows for uploading files to the pool in chunks.") })
+@ServiceDocumentation(name="Upload Content Pool Servlet",
+    description="Uploads files to the pool in chunks that can be resent, for large files and unreliable connections. " +
+        "Files whose body is the same as that of a file uploaded before share its body.",
+    shortDescription="Uploads files to the pool in chunks",
+    bindings=@ServiceBinding(type=BindingType.PATH,bindings={"/system/pool/upload"},
+    extensions=@ServiceExtension(name="*", description="The id of the upload, except when starting one.")),
+    methods={
+      @ServiceMethod(name="POST",
+        description={"Without an upload id, starts an upload and responds with its id. With one, stores the file once all of it has been received.",
+            "Example<br>" +
+            "<pre>curl -d filename=lecture.mp4 -d length=1073741824 http://localhost:8080/system/pool/upload</pre>" +
+            "<pre>{ \"uploadId\" : \"1f0e...\", \"offset\" : 0, \"length\" : 1073741824 }</pre>",
+            "Example<br>" +
+            "<pre>curl -d sha256=9f86... http://localhost:8080/system/pool/upload.1f0e...</pre>",
+            "Once stored the response is of the same form as that of /system/pool/createfile"
+        },
+        parameters={
+          @ServiceParameter(name="filename", description="When starting, the name of the file."),
+          @ServiceParameter(name="length", description="When starting, the length of the file in bytes."),
+          @ServiceParameter(name="contentType", description="When starting, the type of the file, optional."),
+          @ServiceParameter(name="poolId", description="When starting, the file to replace the body of, optional."),
+          @ServiceParameter(name="sha256", description="When storing, the SHA-256 of the file in hex, optional. The upload is dropped if the file received does not match.")
+        },
+        response={
+          @ServiceResponse(code=201,description="Where an upload is started, or a file is created"),
+          @ServiceResponse(code=200,description="Where a file is updated"),
+          @ServiceResponse(code=400,description="Where the request is invalid, or the file received does not match its SHA-256"),
+          @ServiceResponse(code=403,description="Where the file to replace the body of cannot be updated by the user, or the user has as many uploads open as they may"),
+          @ServiceResponse(code=404,description="Where there is no such upload"),
+          @ServiceResponse(code=409,description="Where not all of the file has been received, or it is being stored. The response has the offset to resume from.")
+        }),
+      @ServiceMethod(name="PUT",
+        description={"Sends a chunk of the file, which may start anywhere up to the end of what has been received. " +
+            "What had already been received is skipped. Responds with how much of the file has been received.",
+            "Example<br>" +
+            "<pre>curl -T chunk -H 'Content-Range: bytes 0-1048575/1073741824' http://localhost:8080/system/pool/upload.1f0e...</pre>" +
+            "<pre>{ \"uploadId\" : \"1f0e...\", \"offset\" : 1048576, \"length\" : 1073741824 }</pre>"
+        },
+        response={
+          @ServiceResponse(code=200,description="Where the chunk was received"),
+          @ServiceResponse(code=400,description="Where there is no Content-Range, or the chunk runs past the end of the file"),
+          @ServiceResponse(code=404,description="Where there is no such upload"),
+          @ServiceResponse(code=409,description="Where the chunk starts after the end of what has been received, another chunk is being received, or the upload is being stored. The response has the offset to resume from.")
+        }),
+      @ServiceMethod(name="GET",
+        description={"Responds with how much of the file has been received, and what it was stored as once it has been."},
+        response={
+          @ServiceResponse(code=200,description="The state of the upload"),
+          @ServiceResponse(code=404,description="Where there is no such upload")
+        }),
+      @ServiceMethod(name="DELETE",
+        description={"Drops an upload."},
+        response={
+          @ServiceResponse(code=204,description="Where the upload was dropped"),
+          @ServiceResponse(code=404,description="Where there is no such upload")
+        })
+    })
+public class UploadContentPoolServlet extends SlingAllMethodsServlet {
+
+  private static final long serialVersionUID = 3796474358302375284L;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(UploadContentPoolServlet.class);
+
+  private static final Pattern CONTENT_RANGE = Pattern
+      .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+  public static final long DEFAULT_MAX_LENGTH = 2048;
+  @Property(longValue = DEFAULT_MAX_LENGTH)
+  static final String MAX_LENGTH = "upload.max.length";
+
+  public static final long DEFAULT_MAX_AGE = 24;
+  @Property(longValue = DEFAULT_MAX_AGE)
+  static final String MAX_AGE = "upload.max.age";
+
+  public static final int DEFAULT_MAX_OPEN = 5;
+  @Property(intValue = DEFAULT_MAX_OPEN)
+  static final String MAX_OPEN = "upload.max.open";
+
+  @Property
+  static final String UPLOAD_DIR = "upload.dir";
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private UploadStore uploadStore;
+  private SharedBodyStore sharedBodyStore = new SharedBodyStore();
+  private long maxLength;
+  private long maxAge;
+  private long lastExpired;
+
+  @Activate
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> props = context.getProperties();
+    maxLength = OsgiUtil.toLong(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH) * 1024L * 1024L;
+    maxAge = OsgiUtil.toLong(props.get(MAX_AGE), DEFAULT_MAX_AGE) * 3600000L;
+    String uploadDir = OsgiUtil.toString(props.get(UPLOAD_DIR), null);
+    File directory;
+    if (uploadDir != null) {
+      directory = new File(uploadDir);
+    } else {
+      BundleContext bundleContext = context.getBundleContext();
+      directory = bundleContext.getDataFile("pool-uploads");
+    }
+    uploadStore = new UploadStore(directory, maxAge, OsgiUtil.toInteger(
+        props.get(MAX_OPEN), DEFAULT_MAX_OPEN));
+  }
+
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (UserConstants.ANON_USERID.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Anonymous users cannot upload files to the pool.");
+      return;
+    }
+    String uploadId = request.getRequestPathInfo().getExtension();
+    try {
+      if (uploadId == null) {
+        start(request, response);
+      } else {
+        Upload upload = getUpload(request, response);
+        if (upload != null) {
+          store(upload, request, response);
+        }
+      }
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+    } catch (JSONException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void doPut(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    Upload upload = getUpload(request, response);
+    if (upload == null) {
+      return;
+    }
+    String contentRange = request.getHeader("Content-Range");
+    Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.trim());
+    if (m == null || !m.matches()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "Chunks must have a Content-Range");
+      return;
+    }
+    try {
+      long start = Long.parseLong(m.group(1));
+      if (!"*".equals(m.group(3)) && Long.parseLong(m.group(3)) != upload.getLength()) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Upload is of "
+            + upload.getLength() + " bytes");
+        return;
+      }
+      uploadStore.write(upload, start, request.getInputStream());
+      writeStatus(upload, HttpServletResponse.SC_OK, response);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Content-Range");
+    } catch (UploadException e) {
+      writeError(upload, e, response);
+    } catch (JSONException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    Upload upload = getUpload(request, response);
+    if (upload != null) {
+      try {
+        writeStatus(upload, HttpServletResponse.SC_OK, response);
+      } catch (JSONException e) {
+        LOGGER.warn(e.getMessage(), e);
+        throw new ServletException(e.getMessage(), e);
+      }
+    }
+  }
+
+  @Override
+  protected void doDelete(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException {
+    Upload upload = getUpload(request, response);
+    if (upload != null) {
+      uploadStore.remove(upload);
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+  }
+
+  /**
+   * Starts an upload, checking that the user can update the file first if it replaces
+   * the body of one.
+   */
+  private void start(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException, StorageClientException,
+      AccessDeniedException, JSONException {
+    expire();
+    String fileName = request.getParameter("filename");
+    String length = request.getParameter("length");
+    String poolId = request.getParameter("poolId");
+    long l;
+    try {
+      l = length == null ? -1 : Long.parseLong(length);
+    } catch (NumberFormatException e) {
+      l = -1;
+    }
+    if (fileName == null || fileName.length() == 0 || l < 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "An upload needs a filename and a length");
+      return;
+    }
+    if (l > maxLength) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "Files can be no more than " + maxLength + " bytes");
+      return;
+    }
+    if (poolId != null) {
+      Session session = getSession(request);
+      if (session.getContentManager().get(poolId) == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      session.getAccessControlManager().check(Security.ZONE_CONTENT, poolId,
+          Permissions.CAN_WRITE);
+    }
+    Upload upload;
+    try {
+      upload = uploadStore.start(request.getRemoteUser(), fileName, getContentType(
+          request.getParameter("contentType"), fileName), l, poolId);
+    } catch (UploadException e) {
+      response.sendError(e.getCode(), e.getMessage());
+      return;
+    }
+    writeStatus(upload, HttpServletResponse.SC_CREATED, response);
+  }
+
+  /**
+   * Stores an upload once all of it has been received. The body is stored before the
+   * file is created or updated to share it, so that the file only ever has all of one
+   * body or another. Storing an upload again responds with what it was stored as. The
+   * upload is claimed rather than locked while it is hashed and stored, so that its state
+   * can be asked for meanwhile.
+   */
+  private void store(Upload upload, SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException,
+      ClientPoolException, StorageClientException, AccessDeniedException, JSONException {
+    Session session = getSession(request);
+    try {
+      uploadStore.startStoring(upload);
+    } catch (UploadException e) {
+      String poolId = upload.getResult();
+      if (poolId != null) {
+        writeResult(upload, poolId, session.getContentManager().get(poolId),
+            HttpServletResponse.SC_OK, response);
+      } else {
+        writeError(upload, e, response);
+      }
+      return;
+    }
+    try {
+      String sha256 = uploadStore.digest(upload);
+      String expected = request.getParameter("sha256");
+      if (expected != null && !expected.equalsIgnoreCase(sha256)) {
+        uploadStore.remove(upload);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "The file received does not match its SHA-256, upload it again");
+        return;
+      }
+
+      String userId = request.getRemoteUser();
+      String poolId;
+      Session adminSession = null;
+      try {
+        adminSession = sparseRepository.loginAdministrative();
+        String bodyPath = sharedBodyStore.share(adminSession, sha256, upload.getData());
+        Content body = adminSession.getContentManager().get(bodyPath);
+        int statusCode;
+        Content content;
+        if (upload.getPoolId() == null) {
+          poolId = clusterTrackingService.getClusterUniqueId();
+          content = new Content(poolId, CreateContentPoolServlet.getFileProperties(
+              upload.getFileName(), upload.getContentType(), userId));
+          SharedBodyUtils.setSharedBody(content, body);
+          ContentManager contentManager = adminSession.getContentManager();
+          contentManager.update(content);
+          CreateContentPoolServlet.setFileAcl(adminSession.getAccessControlManager(),
+              poolId, userId);
+          ActivityUtils.postActivity(eventAdmin, userId, poolId, "Content", "default",
+              "pooled content", "CREATED_FILE", null);
+          content = contentManager.get(poolId);
+          statusCode = HttpServletResponse.SC_CREATED;
+        } else {
+          poolId = upload.getPoolId();
+          ContentManager contentManager = session.getContentManager();
+          content = contentManager.get(poolId);
+          if (content == null) {
+            uploadStore.remove(upload);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+          }
+          content.setProperty(Content.MIMETYPE_FIELD, upload.getContentType());
+          SharedBodyUtils.setSharedBody(content, body);
+          contentManager.update(content);
+          ActivityUtils.postActivity(eventAdmin, userId, poolId, "Content", "default",
+              "pooled content", "UPDATED_FILE", null);
+          content = contentManager.get(poolId);
+          statusCode = HttpServletResponse.SC_OK;
+        }
+        uploadStore.complete(upload, poolId);
+        writeResult(upload, poolId, content, statusCode, response);
+      } finally {
+        if (adminSession != null) {
+          try {
+            adminSession.logout();
+          } catch (ClientPoolException e) {
+            LOGGER.warn(e.getMessage(), e);
+          }
+        }
+      }
+    } finally {
+      uploadStore.endStoring(upload);
+    }
+  }
+
+  /**
+   * @return the upload the request is for, or null if there is none the user can see, in
+   *         which case the response has been sent.
+   */
+  private Upload getUpload(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws IOException {
+    String uploadId = request.getRequestPathInfo().getExtension();
+    Upload upload = uploadId == null ? null : uploadStore.get(uploadId);
+    if (upload == null || !upload.getUserId().equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+    return upload;
+  }
+
+  private Session getSession(SlingHttpServletRequest request) throws ServletException {
+    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
+        javax.jcr.Session.class);
+    try {
+      return JackrabbitSparseUtils.getSparseSession(jcrSession);
+    } catch (RepositoryException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  private String getContentType(String contentType, String fileName) {
+    if (contentType != null) {
+      int idx = contentType.indexOf(';');
+      if (idx > 0) {
+        contentType = contentType.substring(0, idx);
+      }
+    }
+    if (contentType == null || contentType.equals("application/octet-stream")) {
+      // try to find a better content type
+      contentType = getServletContext().getMimeType(fileName);
+      if (contentType == null) {
+        contentType = "application/octet-stream";
+      }
+    }
+    return contentType;
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    if (now - lastExpired > maxAge / 4) {
+      lastExpired = now;
+      int expired = uploadStore.expire();
+      if (expired > 0) {
+        LOGGER.info("Dropped {} uploads that were not completed", expired);
+      }
+    }
+  }
+
+  private void writeStatus(Upload upload, int statusCode,
+      SlingHttpServletResponse response) throws IOException, JSONException {
+    response.setStatus(statusCode);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter writer = new JSONWriter(response.getWriter());
+    writer.object();
+    writer.key("uploadId").value(upload.getId());
+    writer.key("offset").value(upload.getOffset());
+    writer.key("length").value(upload.getLength());
+    String poolId = upload.getResult();
+    if (poolId != null) {
+      writer.key("poolId").value(poolId);
+    }
+    writer.endObject();
+  }
+
+  private void writeError(Upload upload, UploadException e,
+      SlingHttpServletResponse response) throws IOException {
+    if (e.getOffset() < 0) {
+      response.sendError(e.getCode(), e.getMessage());
+      return;
+    }
+    try {
+      writeStatus(upload, e.getCode(), response);
+    } catch (JSONException ex) {
+      response.sendError(e.getCode(), e.getMessage());
+    }
+  }
+
+  private void writeResult(Upload upload, String poolId, Content content, int statusCode,
+      SlingHttpServletResponse response) throws IOException, JSONException {
+    response.setStatus(statusCode);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+    ExtendedJSONWriter.writeValueMap(jsonWriter, ImmutableMap.of(upload.getFileName(),
+        (Object) ImmutableMap.of("poolId", (Object) poolId, "item",
+            content == null ? ImmutableMap.of() : content.getProperties())));
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+/**
+ * A chunk of an upload that could not be accepted.
+ */
+public class UploadException extends Exception {
+
+  private static final long serialVersionUID = 4181254727245389211L;
+
+  private final int code;
+  private final long offset;
+
+  /**
+   * @param code
+   *          the HTTP status to answer with.
+   * @param message
+   * @param offset
+   *          how much of the file has been received, for the client to resume from, or -1.
+   */
+  public UploadException(int code, String message, long offset) {
+    super(message);
+    this.code = code;
+    this.offset = offset;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+}
@@ -0,0 +1,469 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files being uploaded to the pool in chunks, staged on disk until they are complete.
+ * <p>
+ * A chunk is appended to what has been received of an upload so far. A chunk that starts
+ * before the end of what has been received, as when a client sends a chunk again not
+ * knowing that it arrived, has what was already received skipped, so that a retry never
+ * changes what was received. Whatever part of a chunk arrives is kept, so a client that
+ * loses its connection only has to send again what did not arrive. How much has been
+ * received is the length of the staged file, so uploads survive a restart of the server.
+ * <p>
+ * One chunk of an upload is received at a time. A chunk sent while another is still
+ * arriving, or while the upload is being stored, is refused with how much has been
+ * received, without waiting on the network or the store for the other to end. Each user
+ * can only have so many uploads open at a time, as they are staged on local disk.
+ */
+public class UploadStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UploadStore.class);
+
+  private static final String DATA = ".data";
+  private static final String META = ".properties";
+
+  /**
+   * A file being uploaded.
+   */
+  public static class Upload {
+    private final String id;
+    private final File data;
+    private final File meta;
+    private final Properties properties;
+    /**
+     * True while a chunk is being received, guarded by the upload.
+     */
+    private boolean receiving;
+    /**
+     * True while the upload is being stored, guarded by the upload.
+     */
+    private boolean storing;
+
+    private Upload(String id, File directory, Properties properties) {
+      this.id = id;
+      this.data = new File(directory, id + DATA);
+      this.meta = new File(directory, id + META);
+      this.properties = properties;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getUserId() {
+      return properties.getProperty("userId");
+    }
+
+    public String getFileName() {
+      return properties.getProperty("fileName");
+    }
+
+    public String getContentType() {
+      return properties.getProperty("contentType");
+    }
+
+    public long getLength() {
+      return Long.parseLong(properties.getProperty("length"));
+    }
+
+    /**
+     * @return the file the upload replaces the body of, or null if it is a new file.
+     */
+    public String getPoolId() {
+      return properties.getProperty("poolId");
+    }
+
+    /**
+     * @return the file the upload was stored as, or null if it is not complete.
+     */
+    public synchronized String getResult() {
+      return properties.getProperty("result");
+    }
+
+    /**
+     * @return how much of the file has been received.
+     */
+    public synchronized long getOffset() {
+      if (getResult() != null) {
+        return getLength();
+      }
+      return data.length();
+    }
+
+    /**
+     * @return what has been received of the file.
+     */
+    public File getData() {
+      return data;
+    }
+
+    private long getLastWritten() {
+      return Math.max(data.lastModified(), meta.lastModified());
+    }
+  }
+
+  private final File directory;
+  private final long maxAge;
+  private final int maxOpen;
+  private final SecureRandom random = new SecureRandom();
+  private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+  /**
+   * @param directory
+   *          where to stage uploads, which should not be used for anything else.
+   * @param maxAge
+   *          how long, in ms, an upload that nothing is sent to is kept.
+   * @param maxOpen
+   *          how many uploads that are not complete each user can have.
+   */
+  public UploadStore(File directory, long maxAge, int maxOpen) {
+    this.directory = directory;
+    this.maxAge = maxAge;
+    this.maxOpen = maxOpen;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOGGER.warn("Unable to create upload directory {}", directory);
+    }
+  }
+
+  /**
+   * Starts an upload.
+   *
+   * @param poolId
+   *          the file to replace the body of, or null to create a file.
+   * @throws UploadException
+   *           if the user has as many uploads open as they may.
+   */
+  public Upload start(String userId, String fileName, String contentType, long length,
+      String poolId) throws IOException, UploadException {
+    Properties properties = new Properties();
+    properties.setProperty("userId", userId);
+    properties.setProperty("fileName", fileName);
+    properties.setProperty("contentType", contentType);
+    properties.setProperty("length", String.valueOf(length));
+    if (poolId != null) {
+      properties.setProperty("poolId", poolId);
+    }
+    byte[] b = new byte[16];
+    random.nextBytes(b);
+    Upload upload = new Upload(StringUtils.byteToHex(b), directory, properties);
+    synchronized (uploads) {
+      if (countOpen(userId) >= maxOpen) {
+        throw new UploadException(403, "No more than " + maxOpen
+            + " uploads can be open at a time", -1);
+      }
+      if (!upload.data.createNewFile()) {
+        throw new IOException("Unable to create " + upload.data);
+      }
+      save(upload);
+      uploads.put(upload.id, upload);
+    }
+    return upload;
+  }
+
+  /**
+   * @return how many uploads the user has that are not complete.
+   */
+  private int countOpen(String userId) {
+    int open = 0;
+    for (Upload upload : uploads.values()) {
+      if (userId.equals(upload.getUserId()) && upload.getResult() == null) {
+        open++;
+      }
+    }
+    return open;
+  }
+
+  /**
+   * @return the upload, or null if there is no such upload.
+   */
+  public Upload get(String id) {
+    Upload upload = uploads.get(id);
+    if (upload == null && isId(id)) {
+      // staged before a restart.
+      Properties properties = new Properties();
+      Upload loaded = new Upload(id, directory, properties);
+      if (loaded.meta.isFile()) {
+        try {
+          InputStream in = new FileInputStream(loaded.meta);
+          try {
+            properties.load(in);
+          } finally {
+            in.close();
+          }
+          upload = uploads.putIfAbsent(id, loaded);
+          if (upload == null) {
+            upload = loaded;
+          }
+        } catch (IOException e) {
+          LOGGER.warn("Unable to read upload {}: {}", id, e.getMessage());
+        }
+      }
+    }
+    return upload;
+  }
+
+  /**
+   * Appends a chunk to an upload.
+   *
+   * @param start
+   *          where the chunk starts in the file.
+   * @param in
+   *          the chunk, read to its end.
+   * @return how much of the file has been received.
+   * @throws UploadException
+   *           if the chunk starts after the end of what has been received, runs past the
+   *           end of the file, another chunk is being received, or the upload is
+   *           complete.
+   */
+  public long write(Upload upload, long start, InputStream in) throws IOException,
+      UploadException {
+    long offset;
+    synchronized (upload) {
+      if (!upload.meta.exists()) {
+        throw new UploadException(404, "No such upload", -1);
+      }
+      if (upload.getResult() != null) {
+        throw new UploadException(409, "Upload is complete", upload.getOffset());
+      }
+      offset = upload.getOffset();
+      if (upload.receiving) {
+        throw new UploadException(409, "Another chunk is being received", offset);
+      }
+      if (upload.storing) {
+        throw new UploadException(409, "Upload is being stored", offset);
+      }
+      if (start > offset) {
+        throw new UploadException(409, "Chunk starts at " + start + " but only " + offset
+            + " bytes have been received", offset);
+      }
+      upload.receiving = true;
+    }
+    try {
+      if (start < offset && !skipFully(in, offset - start)) {
+        // all of it had been received.
+        return offset;
+      }
+      long length = upload.getLength();
+      OutputStream out = new FileOutputStream(upload.data, true);
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          if (offset + n > length) {
+            out.write(buffer, 0, (int) (length - offset));
+            throw new UploadException(400, "Chunk runs past the end of the file", length);
+          }
+          out.write(buffer, 0, n);
+          offset += n;
+        }
+      } finally {
+        out.close();
+      }
+      return offset;
+    } finally {
+      synchronized (upload) {
+        upload.receiving = false;
+      }
+    }
+  }
+
+  /**
+   * Claims an upload all of which has been received for storing, so that nothing more is
+   * received and nothing else stores it until {@link #endStoring(Upload)}. The upload is
+   * not locked meanwhile, so that its state can be asked for.
+   *
+   * @throws UploadException
+   *           if the upload is complete, not all of it has been received, a chunk is
+   *           being received or it is being stored.
+   */
+  public void startStoring(Upload upload) throws UploadException {
+    synchronized (upload) {
+      if (upload.getResult() != null) {
+        throw new UploadException(409, "Upload is complete", upload.getOffset());
+      }
+      long offset = upload.getOffset();
+      if (offset != upload.getLength()) {
+        throw new UploadException(409, "Not all of the file has been received", offset);
+      }
+      if (upload.receiving) {
+        throw new UploadException(409, "A chunk is being received", offset);
+      }
+      if (upload.storing) {
+        throw new UploadException(409, "Upload is being stored", offset);
+      }
+      upload.storing = true;
+    }
+  }
+
+  /**
+   * Releases an upload claimed by {@link #startStoring(Upload)}, whether or not it was
+   * stored.
+   */
+  public void endStoring(Upload upload) {
+    synchronized (upload) {
+      upload.storing = false;
+    }
+  }
+
+  /**
+   * @return the SHA-256 of what has been received of the upload, in hex.
+   */
+  public String digest(Upload upload) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    InputStream in = new FileInputStream(upload.data);
+    try {
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return StringUtils.byteToHex(digest.digest());
+  }
+
+  /**
+   * Records what the upload was stored as, and drops what was staged. The upload is kept
+   * until it expires, so that a client that did not hear the upload complete can ask
+   * what it was stored as.
+   */
+  public void complete(Upload upload, String poolId) throws IOException {
+    synchronized (upload) {
+      upload.properties.setProperty("result", poolId);
+      save(upload);
+      new FileOutputStream(upload.data).close();
+    }
+  }
+
+  /**
+   * Drops an upload.
+   */
+  public void remove(Upload upload) {
+    uploads.remove(upload.id);
+    synchronized (upload) {
+      delete(upload.data);
+      delete(upload.meta);
+    }
+  }
+
+  /**
+   * Drops the uploads that nothing has been sent to for the max age, including those
+   * staged before a restart.
+   *
+   * @return how many were dropped.
+   */
+  public int expire() {
+    long before = System.currentTimeMillis() - maxAge;
+    int expired = 0;
+    for (Iterator<Upload> i = uploads.values().iterator(); i.hasNext();) {
+      Upload upload = i.next();
+      if (upload.getLastWritten() < before) {
+        remove(upload);
+        expired++;
+      }
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        if (dot > 0 && !uploads.containsKey(name.substring(0, dot))
+            && file.lastModified() < before) {
+          delete(file);
+        }
+      }
+    }
+    return expired;
+  }
+
+  private void save(Upload upload) throws IOException {
+    File tmp = new File(directory, upload.id + META + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      upload.properties.store(out, null);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(upload.meta)) {
+      delete(upload.meta);
+      if (!tmp.renameTo(upload.meta)) {
+        throw new IOException("Unable to save " + upload.meta);
+      }
+    }
+  }
+
+  private boolean isId(String id) {
+    if (id == null || id.length() != 32) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      if (Character.digit(id.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return false if the stream ended first.
+   */
+  private static boolean skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          return false;
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+    return true;
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      LOGGER.warn("Unable to delete {}", file);
+    }
+  }
+}
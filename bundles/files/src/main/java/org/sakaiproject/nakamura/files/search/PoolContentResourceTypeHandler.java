@@ -35,6 +35,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -48,6 +49,7 @@ import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -82,6 +84,9 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   @Reference
   private TikaService tika;
 
+  @Reference
+  private Repository repository;
+
   private static Map<String, String> getFieldMap() {
     Builder<String, String> builder = ImmutableMap.builder();
     builder.put(FilesConstants.POOLED_CONTENT_USER_MANAGER, "manager");
@@ -151,7 +156,8 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
             }
           }
 
-          InputStream contentStream = contentManager.getInputStream(path);
+          InputStream contentStream = SharedBodyUtils.getInputStream(session, repository,
+              content);
           if (contentStream != null) {
             try {
               String extracted = tika.parseToString(contentStream);
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.IOUtils;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SharedBodyStoreTest {
+
+  private Map<String, Content> content;
+  private Map<String, byte[]> bodies;
+  private Session session;
+  private SharedBodyStore store;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    content = new ConcurrentHashMap<String, Content>();
+    bodies = new ConcurrentHashMap<String, byte[]>();
+    session = session(content, bodies);
+    store = new SharedBodyStore();
+    file = File.createTempFile("body", ".data");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testSameBodyIsStoredOnce() throws Exception {
+    byte[] body = write(1000, 1);
+    String first = store.share(session, "aaaa", file);
+    String second = store.share(session, "aaaa", file);
+    assertEquals(first, second);
+    assertTrue(first.startsWith(SharedBodyStore.BODIES + "/"));
+    assertArrayEquals(body, bodies.get(first));
+    assertEquals(1, count(SharedBodyStore.BODIES + "/"));
+
+    write(1000, 2);
+    String other = store.share(session, "bbbb", file);
+    assertFalse(first.equals(other));
+    assertEquals(2, count(SharedBodyStore.BODIES + "/"));
+  }
+
+  @Test
+  public void testBodiesHaveNamesThatCannotBeGuessed() throws Exception {
+    write(10, 1);
+    String path = store.share(session, "aaaa", file);
+    String name = path.substring(SharedBodyStore.BODIES.length() + 1);
+    assertEquals(32, name.length());
+    assertFalse(path.contains("aaaa"));
+    assertEquals("aaaa", content.get(path).getProperty(SharedBodyStore.SHA256_PROPERTY));
+  }
+
+  @Test
+  public void testBodyThatIsMissingIsStoredAgain() throws Exception {
+    write(10, 1);
+    String first = store.share(session, "aaaa", file);
+    bodies.remove(first);
+    String second = store.share(session, "aaaa", file);
+    assertFalse(first.equals(second));
+    assertEquals(second, content.get(SharedBodyStore.HASHES + "/aaaa").getProperty(
+        SharedBodyUtils.SHARED_BODY_PROPERTY));
+  }
+
+  @Test
+  public void testSharedBodyIsReadAsTheAdministrator() throws Exception {
+    byte[] body = write(100, 1);
+    Content item = item(store.share(session, "aaaa", file));
+    Session caller = mock(Session.class);
+    AccessControlManager accessControlManager = mock(AccessControlManager.class);
+    when(caller.getAccessControlManager()).thenReturn(accessControlManager);
+    ContentManager contentManager = mock(ContentManager.class);
+    when(caller.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+
+    assertTrue(SharedBodyUtils.isShared(item));
+    assertTrue(SharedBodyUtils.hasBody(caller, repository, item));
+    InputStream in = SharedBodyUtils.getInputStream(caller, repository, item);
+    assertArrayEquals(body, IOUtils.readFully(in, "ISO-8859-1").getBytes("ISO-8859-1"));
+    in.close();
+    in.close();
+    verify(accessControlManager, times(2)).check(Security.ZONE_CONTENT, "poolId",
+        Permissions.CAN_READ);
+    verify(session, times(2)).logout();
+  }
+
+  @Test
+  public void testSharedBodyIsNotReadForThoseWhoCannotReadTheItem() throws Exception {
+    write(100, 1);
+    Content item = item(store.share(session, "aaaa", file));
+    Session caller = mock(Session.class);
+    AccessControlManager accessControlManager = mock(AccessControlManager.class);
+    doThrow(new AccessDeniedException(Security.ZONE_CONTENT, "poolId", "", "")).when(
+        accessControlManager).check(Security.ZONE_CONTENT, "poolId", Permissions.CAN_READ);
+    when(caller.getAccessControlManager()).thenReturn(accessControlManager);
+    Repository repository = mock(Repository.class);
+    try {
+      SharedBodyUtils.getInputStream(caller, repository, item);
+      fail();
+    } catch (AccessDeniedException e) {
+      // the item is not readable, so neither is its body.
+    }
+    verify(repository, never()).loginAdministrative();
+  }
+
+  @Test
+  public void testSharedBodyIsNotReadWithoutARepository() throws Exception {
+    write(100, 1);
+    Content item = item(store.share(session, "aaaa", file));
+    try {
+      SharedBodyUtils.getInputStream(session, null, item);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // the caller's session cannot read the body.
+    }
+    try {
+      SharedBodyUtils.hasBody(session, null, item);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // nor can it say whether there is one.
+    }
+  }
+
+  @Test
+  public void testPointerKeepsTheLengthOfTheBody() throws Exception {
+    write(100, 1);
+    String bodyPath = store.share(session, "aaaa", file);
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Content.LENGTH_FIELD, 100L);
+    properties.put(Content.LASTMODIFIED_FIELD, 1234L);
+    Content item = new Content("poolId", new HashMap<String, Object>());
+    SharedBodyUtils.setSharedBody(item, new Content(bodyPath, properties));
+    assertTrue(SharedBodyUtils.isShared(item));
+    assertEquals(bodyPath, SharedBodyUtils.getBodyPath(item));
+    assertEquals(100L, item.getProperty(Content.LENGTH_FIELD));
+    assertEquals(1234L, item.getProperty(SharedBodyUtils.BODY_LAST_MODIFIED_FIELD));
+  }
+
+  @Test
+  public void testPointersOutsideTheBodiesAreIgnored() throws Exception {
+    for (String path : new String[] { "a:bob/private", SharedBodyStore.HASHES + "/aaaa",
+        SharedBodyStore.BODIES, SharedBodyStore.BODIES + "/..",
+        SharedBodyStore.BODIES + "/../bodyhashes", SharedBodyStore.BODIES + "x/aaaa" }) {
+      Content item = item(path);
+      assertFalse(path, SharedBodyUtils.isShared(item));
+      assertEquals("poolId", SharedBodyUtils.getBodyPath(item));
+    }
+  }
+
+  private Content item(String bodyPath) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(SharedBodyUtils.SHARED_BODY_PROPERTY, bodyPath);
+    return new Content("poolId", properties);
+  }
+
+  private byte[] write(int length, long seed) throws Exception {
+    byte[] body = new byte[length];
+    new Random(seed).nextBytes(body);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(body);
+    out.close();
+    return body;
+  }
+
+  private int count(String prefix) {
+    int count = 0;
+    for (String path : bodies.keySet()) {
+      if (path.startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return a session whose content and bodies are kept in the maps.
+   */
+  static Session session(final Map<String, Content> content,
+      final Map<String, byte[]> bodies) throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return content.get(invocation.getArguments()[0]);
+      }
+    });
+    when(contentManager.exists(anyString())).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return content.containsKey(invocation.getArguments()[0]);
+      }
+    });
+    when(contentManager.hasBody(anyString(), anyString())).thenAnswer(
+        new Answer<Boolean>() {
+          public Boolean answer(InvocationOnMock invocation) throws Throwable {
+            return bodies.containsKey(invocation.getArguments()[0]);
+          }
+        });
+    when(contentManager.getInputStream(anyString())).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        byte[] body = bodies.get(invocation.getArguments()[0]);
+        return body == null ? null : new ByteArrayInputStream(body);
+      }
+    });
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        Content c = (Content) invocation.getArguments()[0];
+        content.put(c.getPath(), c);
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        InputStream in = (InputStream) invocation.getArguments()[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+        bodies.put((String) invocation.getArguments()[0], out.toByteArray());
+        return (long) out.size();
+      }
+    }).when(contentManager).writeBody(anyString(), any(InputStream.class));
+
+    AccessControlManager accessControlManager = mock(AccessControlManager.class);
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAccessControlManager()).thenReturn(accessControlManager);
+    return session;
+  }
+}
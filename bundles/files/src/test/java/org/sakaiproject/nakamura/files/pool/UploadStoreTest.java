@@ -0,0 +1,471 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.files.pool.UploadStore.Upload;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class UploadStoreTest {
+
+  private File directory;
+  private UploadStore store;
+  private byte[] file;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("pool", "uploads");
+    directory.delete();
+    store = new UploadStore(directory, 3600000L, 100);
+    file = new byte[10000];
+    new Random(42).nextBytes(file);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    Upload upload = start();
+    assertEquals(0, upload.getOffset());
+    assertEquals(4000, store.write(upload, 0, chunk(0, 4000)));
+    assertEquals(10000, store.write(upload, 4000, chunk(4000, 6000)));
+    assertArrayEquals(file, read(upload));
+    assertEquals(sha256(file), store.digest(upload));
+  }
+
+  @Test
+  public void testChunkAfterWhatWasReceived() throws Exception {
+    Upload upload = start();
+    store.write(upload, 0, chunk(0, 4000));
+    try {
+      store.write(upload, 5000, chunk(5000, 1000));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+      assertEquals(4000, e.getOffset());
+    }
+    assertEquals(4000, upload.getOffset());
+  }
+
+  @Test
+  public void testChunkSentAgain() throws Exception {
+    Upload upload = start();
+    store.write(upload, 0, chunk(0, 4000));
+    // the response was lost, and the chunk is sent again with the next.
+    assertEquals(8000, store.write(upload, 0, chunk(0, 8000)));
+    // all of it had been received.
+    assertEquals(8000, store.write(upload, 2000, chunk(2000, 2000)));
+    store.write(upload, 8000, chunk(8000, 2000));
+    assertArrayEquals(file, read(upload));
+  }
+
+  @Test
+  public void testChunkSentAgainIsNotChanged() throws Exception {
+    Upload upload = start();
+    store.write(upload, 0, chunk(0, 4000));
+    byte[] other = new byte[6000];
+    System.arraycopy(file, 0, other, 0, 6000);
+    other[100] = (byte) (other[100] + 1);
+    store.write(upload, 0, new ByteArrayInputStream(other));
+    store.write(upload, 6000, chunk(6000, 4000));
+    assertArrayEquals(file, read(upload));
+  }
+
+  @Test
+  public void testPartOfAChunkIsKept() throws Exception {
+    Upload upload = start();
+    try {
+      store.write(upload, 0, new FlakyInputStream(chunk(0, 4000), 2500));
+      fail();
+    } catch (IOException e) {
+      // the connection was lost.
+    }
+    assertEquals(2500, upload.getOffset());
+    store.write(upload, 2500, chunk(2500, 7500));
+    assertArrayEquals(file, read(upload));
+  }
+
+  @Test
+  public void testChunkPastTheEnd() throws Exception {
+    Upload upload = start();
+    store.write(upload, 0, chunk(0, 9000));
+    try {
+      store.write(upload, 9000, new ByteArrayInputStream(new byte[2000]));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(400, e.getCode());
+    }
+    assertEquals(10000, upload.getOffset());
+  }
+
+  @Test
+  public void testChunkWhileAnotherIsBeingReceived() throws Exception {
+    final Upload upload = start();
+    final CountDownLatch receiving = new CountDownLatch(1);
+    final CountDownLatch arrived = new CountDownLatch(1);
+    final InputStream slow = new FilterInputStream(chunk(0, 4000)) {
+      private boolean waited;
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (!waited && in.available() < 4000) {
+          waited = true;
+          receiving.countDown();
+          try {
+            arrived.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+          }
+        }
+        return super.read(b, off, Math.min(len, 1000));
+      }
+    };
+    final long[] received = new long[1];
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          received[0] = store.write(upload, 0, slow);
+        } catch (Exception e) {
+          received[0] = -1;
+        }
+      }
+    };
+    first.start();
+    assertTrue(receiving.await(10, TimeUnit.SECONDS));
+
+    // refused at once, with what has arrived so far, while the first is still arriving.
+    try {
+      store.write(upload, 1000, chunk(1000, 3000));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+      assertEquals(1000, e.getOffset());
+    }
+    assertEquals(1000, upload.getOffset());
+
+    arrived.countDown();
+    first.join(10000);
+    assertEquals(4000, received[0]);
+    assertEquals(10000, store.write(upload, 4000, chunk(4000, 6000)));
+    assertArrayEquals(file, read(upload));
+  }
+
+  @Test
+  public void testUploadSurvivesRestart() throws Exception {
+    Upload upload = start();
+    store.write(upload, 0, chunk(0, 4000));
+
+    UploadStore restarted = new UploadStore(directory, 3600000L, 100);
+    Upload reloaded = restarted.get(upload.getId());
+    assertNotNull(reloaded);
+    assertSame(reloaded, restarted.get(upload.getId()));
+    assertEquals("alice", reloaded.getUserId());
+    assertEquals("file.bin", reloaded.getFileName());
+    assertEquals("application/octet-stream", reloaded.getContentType());
+    assertEquals(10000, reloaded.getLength());
+    assertNull(reloaded.getPoolId());
+    assertEquals(4000, reloaded.getOffset());
+    restarted.write(reloaded, 4000, chunk(4000, 6000));
+    assertArrayEquals(file, read(reloaded));
+
+    assertNull(restarted.get("../" + upload.getId()));
+    assertNull(restarted.get("0123456789abcdef0123456789abcdef"));
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    Upload upload = store.start("alice", "file.bin", "application/octet-stream", 10000,
+        "poolId");
+    assertEquals("poolId", upload.getPoolId());
+    store.write(upload, 0, chunk(0, 10000));
+    store.complete(upload, "poolId");
+    assertEquals("poolId", upload.getResult());
+    assertEquals(10000, upload.getOffset());
+    assertEquals(0, upload.getData().length());
+    try {
+      store.write(upload, 0, chunk(0, 10000));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+    }
+    assertEquals("poolId", new UploadStore(directory, 3600000L, 100).get(upload.getId())
+        .getResult());
+  }
+
+  @Test
+  public void testRemoveAndExpire() throws Exception {
+    Upload upload = start();
+    store.remove(upload);
+    assertNull(store.get(upload.getId()));
+    try {
+      store.write(upload, 0, chunk(0, 10));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(404, e.getCode());
+    }
+
+    upload = start();
+    assertEquals(0, store.expire());
+    UploadStore expiring = new UploadStore(directory, -1, 100);
+    assertNotNull(expiring.get(upload.getId()));
+    assertEquals(1, expiring.expire());
+    assertNull(expiring.get(upload.getId()));
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  @Test
+  public void testStoring() throws Exception {
+    Upload upload = start();
+    try {
+      store.startStoring(upload);
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+    }
+    store.write(upload, 0, chunk(0, file.length));
+    store.startStoring(upload);
+    try {
+      store.write(upload, 0, chunk(0, file.length));
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+    }
+    try {
+      store.startStoring(upload);
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+    }
+    store.endStoring(upload);
+    store.startStoring(upload);
+    store.complete(upload, "poolId");
+    store.endStoring(upload);
+    try {
+      store.startStoring(upload);
+      fail();
+    } catch (UploadException e) {
+      assertEquals(409, e.getCode());
+    }
+  }
+
+  @Test
+  public void testOpenUploadsPerUser() throws Exception {
+    UploadStore capped = new UploadStore(directory, 3600000L, 2);
+    Upload first = capped.start("alice", "a", "text/plain", 10, null);
+    capped.start("alice", "b", "text/plain", 10, null);
+    try {
+      capped.start("alice", "c", "text/plain", 10, null);
+      fail();
+    } catch (UploadException e) {
+      assertEquals(403, e.getCode());
+    }
+    capped.start("bob", "c", "text/plain", 10, null);
+    capped.write(first, 0, new ByteArrayInputStream(new byte[10]));
+    capped.complete(first, "poolId");
+    capped.start("alice", "c", "text/plain", 10, null);
+  }
+
+  /**
+   * Uploads 32 files of 8MB, 4 copies of each of 8 bodies, in 1MB chunks over
+   * connections that are lost at the given rate per MB sent, and that lose the response
+   * to a chunk at half that rate. Reports the throughput of the store, how much was sent
+   * in all for each byte of the files, how much each retry sent again, and how much was
+   * stored with and without the bodies being shared. Those are compared to what a client
+   * would send to upload each file in one request, starting again whenever it fails. Run
+   * with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkFlakyUploads() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int mb = 1024 * 1024;
+    int length = 8 * mb;
+    byte[][] originals = new byte[8][length];
+    for (int i = 0; i < originals.length; i++) {
+      new Random(i).nextBytes(originals[i]);
+    }
+    System.out.println("loss per MB, MB/s, sent per byte, retries, "
+        + "bytes sent again per retry, stored MB shared, stored MB not shared, "
+        + "sent per byte in one request");
+    for (int round = 0; round < 3; round++) {
+      for (double loss : new double[] { 0, 0.05, 0.2 }) {
+        Random random = new Random(round);
+        Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+        Session session = SharedBodyStoreTest.session(new HashMap<String, Content>(),
+            bodies);
+        SharedBodyStore shared = new SharedBodyStore();
+        long sent = 0;
+        long retries = 0;
+        long resent = 0;
+        long stored = 0;
+        long whole = 0;
+        long start = System.nanoTime();
+        for (int f = 0; f < 32; f++) {
+          byte[] data = originals[f % originals.length];
+          Upload upload = store.start("alice", "file" + f, "application/octet-stream",
+              length, null);
+          long offset = 0;
+          while (offset < length) {
+            int n = (int) Math.min(mb, length - offset);
+            long failAt = random.nextDouble() < loss ? random.nextInt(n) : -1;
+            try {
+              InputStream in = new ByteArrayInputStream(data, (int) offset, n);
+              store.write(upload, offset, failAt < 0 ? in : new FlakyInputStream(in,
+                  failAt));
+              sent += n;
+              if (random.nextDouble() < loss / 2) {
+                // the response was lost, so the chunk is sent again.
+                store.write(upload, offset, new ByteArrayInputStream(data, (int) offset, n));
+                sent += n;
+                retries++;
+                resent += n;
+              }
+            } catch (IOException e) {
+              sent += failAt;
+              retries++;
+              resent += failAt;
+            }
+            // asks how much was received, as a client that lost its connection does.
+            offset = upload.getOffset();
+          }
+          String sha256 = store.digest(upload);
+          shared.share(session, sha256, upload.getData());
+          store.complete(upload, "file" + f);
+          store.remove(upload);
+          stored += length;
+
+          // one request, sent again from the start whenever the connection is lost.
+          for (boolean done = false; !done;) {
+            done = true;
+            for (int m = 0; m < length / mb; m++) {
+              if (random.nextDouble() < loss) {
+                whole += (long) m * mb + random.nextInt(mb);
+                done = false;
+                break;
+              }
+            }
+          }
+          whole += length;
+        }
+        long time = System.nanoTime() - start;
+        long sharedBytes = 0;
+        for (byte[] body : bodies.values()) {
+          sharedBytes += body.length;
+        }
+        long total = 32L * length;
+        System.out.println(loss + ", " + (total / (double) mb) / (time / 1e9) + ", "
+            + (sent / (double) total) + ", " + retries + ", "
+            + (retries == 0 ? 0 : resent / retries) + ", " + sharedBytes / mb + ", "
+            + stored / mb + ", " + (whole / (double) total));
+      }
+    }
+  }
+
+  private Upload start() throws IOException, UploadException {
+    return store.start("alice", "file.bin", "application/octet-stream", file.length, null);
+  }
+
+  private InputStream chunk(int offset, int length) {
+    return new ByteArrayInputStream(file, offset, length);
+  }
+
+  private byte[] read(Upload upload) throws IOException {
+    byte[] b = new byte[(int) upload.getData().length()];
+    FileInputStream in = new FileInputStream(upload.getData());
+    try {
+      int read = 0;
+      while (read < b.length) {
+        read += in.read(b, read, b.length - read);
+      }
+    } finally {
+      in.close();
+    }
+    return b;
+  }
+
+  private String sha256(byte[] b) throws Exception {
+    return StringUtils.byteToHex(MessageDigest.getInstance("SHA-256").digest(b));
+  }
+
+  /**
+   * A stream whose connection is lost after some bytes.
+   */
+  private static class FlakyInputStream extends FilterInputStream {
+    private long remaining;
+
+    FlakyInputStream(InputStream in, long failAt) {
+      super(in);
+      this.remaining = failAt;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("Connection reset");
+      }
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        throw new IOException("Connection reset");
+      }
+      int n = super.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+  }
+}
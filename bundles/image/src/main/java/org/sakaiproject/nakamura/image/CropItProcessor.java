@@ -25,10 +25,10 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,10 +61,20 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The largest image that will be cropped.
+   */
+  private static final long MAX_IMAGE_SIZE = 100L * 1024L * 1024L;
+
   /**
    *
    * @param session
    *          The JCR session
+   * @param repository
+   *          The repository to read a shared image body from as the administrator, once
+   *          the session has been found to be able to read the image.
+   * @param pipeline
+   *          Decodes and scales the image, if the derivatives have not been made already.
    * @param x
    *          Where to start cutting on the x-axis.
    * @param y
@@ -86,13 +97,11 @@ public class CropItProcessor {
    * @throws AccessDeniedException
    * @throws StorageClientException
    */
-  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
+  public static String[] crop(ResourceResolver resourceResolver, final Repository repository,
+      DerivativePipeline pipeline, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
 
-    Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
-    ContentManager contentManager = session.getContentManager();
-
-    InputStream in = null;
+    final Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -100,6 +109,11 @@ public class CropItProcessor {
     try {
       String mimeType = "unknown";
       String imgName = "";
+      // the body is only read if the derivatives are not cached, and then only once, off
+      // the request thread, so the cache is keyed by what changes when the body does.
+      String version;
+      long size;
+      DerivativePipeline.Source source;
       Resource imgResource = resourceResolver.getResource(img);
       if (imgResource instanceof SparseContentResource) {
       Content imgContent = imgResource.adaptTo(Content.class);
@@ -107,13 +121,29 @@ public class CropItProcessor {
         if (imgContent.hasProperty("mimeType") ) {
           mimeType = (String) imgContent.getProperty("mimeType");
         }
-        String imgPath = imgContent.getPath();
+        final String imgPath = imgContent.getPath();
         imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
         // nt:file
-        if (!imgContent.hasProperty("_bodyLocation")) {
+        if (!imgContent.hasProperty("_bodyLocation") && !SharedBodyUtils.isShared(imgContent)) {
           throw new ImageException(500, "Invalid image");
         }
-        in = contentManager.getInputStream(imgPath);
+        final Content imageContent = imgContent;
+        version = SharedBodyUtils.getBodyPath(imgContent) + "@"
+            + imgContent.getProperty("_bodyLocation") + "@"
+            + imgContent.getProperty(SharedBodyUtils.BODY_LAST_MODIFIED_FIELD);
+        Object length = imgContent.getProperty(Content.LENGTH_FIELD);
+        size = length instanceof Number ? ((Number) length).longValue() : 0L;
+        source = new DerivativePipeline.Source() {
+          public InputStream open() throws IOException {
+            try {
+              return SharedBodyUtils.getInputStream(session, repository, imageContent);
+            } catch (StorageClientException e) {
+              throw new IOException(e.getMessage(), e);
+            } catch (AccessDeniedException e) {
+              throw new IOException(e.getMessage(), e);
+            }
+          }
+        };
       } else {
         Node imgNode = imgResource.adaptTo(Node.class);
         if (imgNode.hasProperty("jcr:mimeType")) {
@@ -121,59 +151,46 @@ public class CropItProcessor {
         }
         imgName = imgNode.getName();
         Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
-        Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
-        in = content.getStream();
-
+        final Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
+        version = imgNode.getPath();
+        if (imgDataNode.hasProperty(JCRConstants.JCR_LASTMODIFIED)) {
+          version += "@"
+              + imgDataNode.getProperty(JCRConstants.JCR_LASTMODIFIED).getDate()
+                  .getTimeInMillis();
+        }
+        size = content.getSize();
+        source = new DerivativePipeline.Source() {
+          public InputStream open() throws IOException {
+            try {
+              return content.getStream();
+            } catch (RepositoryException e) {
+              throw new IOException(e.getMessage(), e);
+            }
+          }
+        };
       }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
+        if ( size > MAX_IMAGE_SIZE ) {
+          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+size);
         }
         try {
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
+          // The image is decoded and scaled off the request thread, and only as much of
+          // it as the crop and the largest dimension need.
+          DerivativePipeline.Derivative[] derivatives = pipeline.derive(version, source, x,
+              y, width, height, dimensions);
 
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+          for (int i = 0; i < derivatives.length; i++) {
+            DerivativePipeline.Derivative derivative = derivatives[i];
+            int iWidth = derivative.getWidth();
+            int iHeight = derivative.getHeight();
+            byte[] image = derivative.getBytes();
 
             if ( image != null ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, derivative.getMimeType(), image, session);
 
               arrFiles[i] = sPath;
             } else {
@@ -204,15 +221,6 @@ public class CropItProcessor {
     } catch (RepositoryException e) {
       LOGGER.error("Unable to read image in order to crop it.", e);
       throw new ImageException(500, "Unable to read image in order to crop it.");
-    } finally {
-      // close the streams
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException e) {
-          LOGGER.debug("Exception closing inputstream.");
-        }
-      }
     }
     return arrFiles;
   }
@@ -359,6 +367,15 @@ public class CropItProcessor {
     int w = img.getWidth();
     int h = img.getHeight();
 
+    // ImageIO reads some PNG's as custom or palette images, which can't be drawn into
+    // a new image of the same type.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
       w >>= 1;
@@ -372,7 +389,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
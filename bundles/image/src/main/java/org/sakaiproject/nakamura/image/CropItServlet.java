@@ -17,8 +17,11 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -33,6 +36,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -76,6 +80,29 @@ public class CropItServlet extends SlingAllMethodsServlet {
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Reference
+  private transient Repository repository;
+
+  /**
+   * Decodes at most one image per processor at a time, and keeps up to 32MB of
+   * derivatives.
+   */
+  private transient DerivativePipeline pipeline;
+
+  @Activate
+  protected void activate() {
+    pipeline = new DerivativePipeline(Runtime.getRuntime().availableProcessors(), 100,
+        60000L, 32L * 1024L * 1024L);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (pipeline != null) {
+      pipeline.shutdown();
+      pipeline = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -147,8 +174,8 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
-      String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+      String[] crop = CropItProcessor.crop(resourceResolver, repository, pipeline, x, y,
+          width, height, dimensions, requestImg, save);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -0,0 +1,478 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.apache.sanselan.ImageInfo;
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Makes the scaled derivatives of a cropped image.
+ * <p>
+ * Images are decoded on a small pool of worker threads, so only that many images are
+ * ever decoded at once however many crop requests come in. JPEG and PNG images are
+ * streamed through an {@link ImageReader} which only decodes the region being cropped,
+ * subsampled down to what the largest derivative needs, rather than the whole image at
+ * full size. All the derivatives are scaled from that one decode, each from the smallest
+ * image already made that is still big enough. Other formats are read by Sanselan as
+ * before.
+ * <p>
+ * Derivatives are cached by the version of the image and the crop, so cropping the same
+ * image the same way again doesn't read it at all.
+ */
+class DerivativePipeline {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DerivativePipeline.class);
+
+  /**
+   * The region is decoded at no less than this many times the size of the largest
+   * derivative, so there is something left for the scaling to smooth.
+   */
+  private static final int SUBSAMPLING_HEADROOM = 2;
+
+  /**
+   * Opens the image for reading. Only called when some of the derivatives aren't cached.
+   */
+  interface Source {
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * A scaled image, and the size it was asked for with any zero sizes replaced by the
+   * size of the image.
+   */
+  static class Derivative {
+    private final int width;
+    private final int height;
+    private final String mimeType;
+    private final byte[] bytes;
+
+    Derivative(int width, int height, String mimeType, byte[] bytes) {
+      this.width = width;
+      this.height = height;
+      this.mimeType = mimeType;
+      this.bytes = bytes;
+    }
+
+    int getWidth() {
+      return width;
+    }
+
+    int getHeight() {
+      return height;
+    }
+
+    String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * @return the encoded image, or null if it couldn't be scaled.
+     */
+    byte[] getBytes() {
+      return bytes;
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final long timeout;
+  private final long maxCacheBytes;
+  private final LinkedHashMap<String, Derivative> cache = new LinkedHashMap<String, Derivative>(
+      16, 0.75f, true);
+  private long cacheBytes;
+
+  /**
+   * @param threads
+   *          the number of images that may be decoded at once.
+   * @param queue
+   *          the number of images that may wait for a thread before requests are turned
+   *          away.
+   * @param timeout
+   *          how long, in ms, a request waits for its derivatives.
+   * @param maxCacheBytes
+   *          the total size of the derivatives to keep.
+   */
+  DerivativePipeline(int threads, int queue, long timeout, long maxCacheBytes) {
+    this.timeout = timeout;
+    this.maxCacheBytes = maxCacheBytes;
+    final AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CropIt-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stops the worker threads. Requests waiting for their derivatives fail.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @param version
+   *          identifies the image and what is in it, and changes whenever it does.
+   * @param source
+   *          opens the image to decode it, if any derivatives are not cached.
+   * @param x
+   *          where to start cutting on the x-axis.
+   * @param y
+   *          where to start cutting on the y-axis.
+   * @param width
+   *          the width to cut out, the whole image if <=0.
+   * @param height
+   *          the height to cut out, the whole image if <=0.
+   * @param dimensions
+   *          the sizes to scale the cut out piece to, the size of the whole image where
+   *          they are <=0.
+   * @return a derivative for each dimension, in the same order.
+   */
+  Derivative[] derive(String version, Source source, int x, int y, int width,
+      int height, List<Dimension> dimensions) throws IOException, ImageException,
+      ImageReadException, ImageWriteException {
+    String prefix = version + "/" + x + "," + y + "," + width + "," + height + "/";
+    Derivative[] derivatives = new Derivative[dimensions.size()];
+    String[] keys = new String[dimensions.size()];
+    boolean missing = false;
+    for (int i = 0; i < keys.length; i++) {
+      Dimension d = dimensions.get(i);
+      keys[i] = prefix + d.width + "x" + d.height;
+      derivatives[i] = getCached(keys[i]);
+      missing = missing || derivatives[i] == null;
+    }
+    if (!missing) {
+      return derivatives;
+    }
+
+    final InputStream data = source.open();
+    try {
+      final Rectangle crop = new Rectangle(x, y, width, height);
+      final List<Dimension> wanted = new ArrayList<Dimension>();
+      for (int i = 0; i < keys.length; i++) {
+        wanted.add(derivatives[i] == null ? dimensions.get(i) : null);
+      }
+      Future<Derivative[]> future;
+      try {
+        future = executor.submit(new Callable<Derivative[]>() {
+          public Derivative[] call() throws Exception {
+            return decodeAndScale(data, crop, wanted);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        throw new ImageException(503, "Too many images are being cropped, try again later.");
+      }
+      Derivative[] made = await(future);
+      for (int i = 0; i < keys.length; i++) {
+        if (made[i] != null) {
+          derivatives[i] = made[i];
+          if (made[i].getBytes() != null) {
+            putCached(keys[i], made[i]);
+          }
+        }
+      }
+    } finally {
+      try {
+        data.close();
+      } catch (IOException e) {
+        LOGGER.debug("Exception closing inputstream.");
+      }
+    }
+    return derivatives;
+  }
+
+  private Derivative[] await(Future<Derivative[]> future) throws IOException,
+      ImageException, ImageReadException, ImageWriteException {
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new ImageException(503, "Timed out cropping image.");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted cropping image.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof ImageReadException) {
+        throw (ImageReadException) cause;
+      } else if (cause instanceof ImageWriteException) {
+        throw (ImageWriteException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new ImageException(500, "Failed to crop image: " + cause.getMessage());
+    }
+  }
+
+  /**
+   * Decodes the cropped region once and scales it to each of the wanted dimensions.
+   * Entries that are null in <code>wanted</code> are null in the result.
+   */
+  static Derivative[] decodeAndScale(InputStream in, Rectangle crop,
+      List<Dimension> wanted) throws IOException, ImageException, ImageReadException,
+      ImageWriteException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis == null) {
+      return decodeAndScaleWithSanselan(in, crop, wanted);
+    }
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      ImageReader reader = readers.hasNext() ? readers.next() : null;
+      String format = reader == null ? null : reader.getFormatName().toLowerCase();
+      if (!"jpeg".equals(format) && !"png".equals(format)) {
+        // the readers only look at the header, so the stream is still at the start.
+        return decodeAndScaleWithSanselan(new ImageInputStreamAdapter(iis), crop, wanted);
+      }
+      try {
+        reader.setInput(iis, true, true);
+        int imageWidth = reader.getWidth(0);
+        int imageHeight = reader.getHeight(0);
+        Rectangle region = clip(crop, imageWidth, imageHeight);
+        Dimension[] sizes = resolve(wanted, imageWidth, imageHeight);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        int subsampling = subsampling(region, sizes);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage decoded = reader.read(0, param);
+
+        String mimeType = "jpeg".equals(format) ? "image/jpeg" : "image/png";
+        String writeFormat = "jpeg".equals(format) ? "jpg" : "png";
+        Derivative[] derivatives = new Derivative[sizes.length];
+        for (Scaled scaled : scale(decoded, sizes)) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          byte[] bytes = null;
+          try {
+            ImageIO.write(scaled.image, writeFormat, out);
+            bytes = out.toByteArray();
+          } catch (Exception e) {
+            LOGGER.error("Failed to process image " + e.getMessage(), e);
+          }
+          derivatives[scaled.index] = new Derivative(sizes[scaled.index].width,
+              sizes[scaled.index].height, mimeType, bytes);
+        }
+        return derivatives;
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      iis.close();
+    }
+  }
+
+  /**
+   * The formats ImageIO doesn't stream are read whole, as they always were.
+   */
+  private static Derivative[] decodeAndScaleWithSanselan(InputStream in, Rectangle crop,
+      List<Dimension> wanted) throws IOException, ImageException, ImageReadException,
+      ImageWriteException {
+    byte[] bytes = IOUtils.getInputStreamBytes(in);
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    BufferedImage imgBuf = CropItProcessor.getBufferedImage(bytes, info);
+    Rectangle region = clip(crop, info.getWidth(), info.getHeight());
+    BufferedImage subImage = imgBuf.getSubimage(region.x, region.y, region.width,
+        region.height);
+    Dimension[] sizes = resolve(wanted, info.getWidth(), info.getHeight());
+    Derivative[] derivatives = new Derivative[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i] != null) {
+        byte[] image = CropItProcessor.scaleAndWriteToByteArray(sizes[i].width,
+            sizes[i].height, subImage, null, info);
+        derivatives[i] = new Derivative(sizes[i].width, sizes[i].height, info
+            .getMimeType(), image);
+      }
+    }
+    return derivatives;
+  }
+
+  private static class Scaled {
+    private final int index;
+    private final BufferedImage image;
+
+    private Scaled(int index, BufferedImage image) {
+      this.index = index;
+      this.image = image;
+    }
+  }
+
+  /**
+   * Scales the decoded region to each size, largest first, starting each from the
+   * smallest image made so far that is at least as big in both directions.
+   */
+  private static List<Scaled> scale(BufferedImage decoded, final Dimension[] sizes) {
+    List<Integer> order = new ArrayList<Integer>();
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i] != null) {
+        order.add(i);
+      }
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long areaA = (long) sizes[a].width * sizes[a].height;
+        long areaB = (long) sizes[b].width * sizes[b].height;
+        return areaA < areaB ? 1 : (areaA == areaB ? 0 : -1);
+      }
+    });
+    List<Scaled> scaled = new ArrayList<Scaled>();
+    for (int i : order) {
+      BufferedImage from = decoded;
+      for (Scaled s : scaled) {
+        if (s.image.getWidth() >= sizes[i].width && s.image.getHeight() >= sizes[i].height
+            && s.image.getWidth() * s.image.getHeight() < from.getWidth()
+                * from.getHeight()) {
+          from = s.image;
+        }
+      }
+      scaled.add(new Scaled(i, CropItProcessor.getScaledInstance(from, sizes[i].width,
+          sizes[i].height)));
+    }
+    return scaled;
+  }
+
+  /**
+   * The crop as the old processor treated it: a width or height of zero or less means the
+   * whole image, and the crop stops at the edge of the image.
+   */
+  static Rectangle clip(Rectangle crop, int imageWidth, int imageHeight)
+      throws ImageException {
+    int width = (crop.width <= 0) ? imageWidth : crop.width;
+    int height = (crop.height <= 0) ? imageHeight : crop.height;
+    Rectangle region = new Rectangle(crop.x, crop.y, width, height)
+        .intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+    if (region.isEmpty()) {
+      throw new ImageException(406, "The area to crop is outside the image.");
+    }
+    return region;
+  }
+
+  private static Dimension[] resolve(List<Dimension> wanted, int imageWidth,
+      int imageHeight) {
+    Dimension[] sizes = new Dimension[wanted.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      Dimension d = wanted.get(i);
+      if (d != null) {
+        sizes[i] = new Dimension((d.width <= 0) ? imageWidth : d.width,
+            (d.height <= 0) ? imageHeight : d.height);
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * @return the largest subsampling that still leaves the region
+   *         {@link #SUBSAMPLING_HEADROOM} times the size of the largest derivative.
+   */
+  static int subsampling(Rectangle region, Dimension[] sizes) {
+    int width = 1;
+    int height = 1;
+    for (Dimension d : sizes) {
+      if (d != null) {
+        width = Math.max(width, d.width);
+        height = Math.max(height, d.height);
+      }
+    }
+    return Math.max(1, Math.min(region.width / (SUBSAMPLING_HEADROOM * width),
+        region.height / (SUBSAMPLING_HEADROOM * height)));
+  }
+
+  private synchronized Derivative getCached(String key) {
+    return cache.get(key);
+  }
+
+  private synchronized void putCached(String key, Derivative derivative) {
+    long size = derivative.getBytes().length;
+    if (size > maxCacheBytes) {
+      return;
+    }
+    Derivative old = cache.put(key, derivative);
+    if (old != null) {
+      cacheBytes -= old.getBytes().length;
+    }
+    cacheBytes += size;
+    Iterator<Map.Entry<String, Derivative>> eldest = cache.entrySet().iterator();
+    while (cacheBytes > maxCacheBytes) {
+      cacheBytes -= eldest.next().getValue().getBytes().length;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Reads an ImageInputStream as an InputStream, for Sanselan.
+   */
+  private static class ImageInputStreamAdapter extends InputStream {
+    private final ImageInputStream iis;
+
+    private ImageInputStreamAdapter(ImageInputStream iis) {
+      this.iis = iis;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return iis.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return iis.read(b, off, len);
+    }
+  }
+}
@@ -30,6 +30,7 @@ import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -66,6 +67,7 @@ public class CropItProcessorTest {
   private List<Dimension> dimensions;
   private String save = "/save/in/here/";
   private Content node;
+  private DerivativePipeline pipeline = new DerivativePipeline(1, 10, 60000L, 0);
 
   @Before
   public void setUp() throws Exception {
@@ -80,6 +82,11 @@ public class CropItProcessorTest {
     dimensions.add(d);
   }
 
+  @After
+  public void tearDown() {
+    pipeline.shutdown();
+  }
+
   @Test
   public void testGetScaledInstance() throws IOException, ImageReadException {
     InputStream is = getClass().getResourceAsStream("people.png");
@@ -103,7 +110,7 @@ public class CropItProcessorTest {
     when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
     when(resourceResolver.getResource(anyString())).thenReturn(someResource);
     try {
-      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save);
+      CropItProcessor.crop(resourceResolver, null, pipeline, x, y, width, height, dimensions, img, save);
       fail("The processor should not handle non-images.");
     } catch (ImageException e) {
       assertEquals(500, e.getCode());
@@ -126,7 +133,7 @@ public class CropItProcessorTest {
     when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
     when(resourceResolver.getResource(anyString())).thenReturn(someResource);
     try {
-      CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, img, save);
+      CropItProcessor.crop(resourceResolver, null, pipeline, x, y, width, height, dimensions, img, save);
       fail("The processor should not handle non-images.");
     } catch (ImageException e) {
       assertEquals(406, e.getCode());
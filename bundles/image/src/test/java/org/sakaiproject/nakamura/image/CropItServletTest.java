@@ -70,6 +70,7 @@ public class CropItServletTest extends AbstractEasyMockTest {
     super.setUp();
 
     servlet = new CropItServlet();
+    servlet.activate();
   }
 
   @Test
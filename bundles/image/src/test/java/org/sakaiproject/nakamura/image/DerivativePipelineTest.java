@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.sanselan.ImageInfo;
+import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.util.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import org.sakaiproject.nakamura.image.DerivativePipeline.Derivative;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ *
+ */
+public class DerivativePipelineTest {
+
+  private DerivativePipeline pipeline = new DerivativePipeline(2, 10, 60000L,
+      1024L * 1024L);
+
+  private static BufferedImage paint(int width, int height, int type) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Graphics2D g = image.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, Color.BLUE, width, height, new Color(255, 128, 0,
+        type == BufferedImage.TYPE_INT_ARGB ? 128 : 255)));
+    g.fillRect(0, 0, width, height);
+    g.setColor(Color.WHITE);
+    for (int i = 0; i < width; i += 97) {
+      g.drawLine(i, 0, width - i, height);
+    }
+    g.dispose();
+    return image;
+  }
+
+  private static byte[] encode(BufferedImage image, String format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, format, out);
+    return out.toByteArray();
+  }
+
+  private static class CountingSource implements DerivativePipeline.Source {
+    private final byte[] bytes;
+    private final String version;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private CountingSource(byte[] bytes) {
+      this.bytes = bytes;
+      this.version = bytes.length + "@" + Arrays.hashCode(bytes);
+    }
+
+    public InputStream open() {
+      opened.incrementAndGet();
+      return new ByteArrayInputStream(bytes);
+    }
+  }
+
+  private Derivative[] derive(CountingSource source, int x, int y, int width,
+      int height, List<Dimension> dimensions) throws Exception {
+    return pipeline.derive(source.version, source, x, y, width, height, dimensions);
+  }
+
+  private static List<Dimension> dimensions(int... sizes) {
+    List<Dimension> dimensions = new ArrayList<Dimension>();
+    for (int i = 0; i < sizes.length; i += 2) {
+      dimensions.add(new Dimension(sizes[i], sizes[i + 1]));
+    }
+    return dimensions;
+  }
+
+  private static BufferedImage read(Derivative derivative) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(derivative.getBytes()));
+  }
+
+  @Test
+  public void testAllSizesFromOneDecode() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(1600, 1200,
+        BufferedImage.TYPE_INT_RGB), "jpg"));
+
+    Derivative[] derivatives = derive(source, 100, 100, 1200, 900, dimensions(300, 200,
+        64, 64, 0, 0));
+
+    assertEquals(1, source.opened.get());
+    assertEquals(3, derivatives.length);
+    assertEquals("image/jpeg", derivatives[0].getMimeType());
+    BufferedImage image = read(derivatives[0]);
+    assertEquals(300, image.getWidth());
+    assertEquals(200, image.getHeight());
+    image = read(derivatives[1]);
+    assertEquals(64, image.getWidth());
+    assertEquals(64, image.getHeight());
+    // a dimension of 0 is the size of the whole image, but the crop is never scaled up.
+    assertEquals(1600, derivatives[2].getWidth());
+    assertEquals(1200, derivatives[2].getHeight());
+    image = read(derivatives[2]);
+    assertEquals(1200, image.getWidth());
+    assertEquals(900, image.getHeight());
+  }
+
+  @Test
+  public void testPngKeepsAlpha() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(800, 600,
+        BufferedImage.TYPE_INT_ARGB), "png"));
+
+    Derivative[] derivatives = derive(source, 0, 0, 0, 0, dimensions(100, 75));
+
+    assertEquals("image/png", derivatives[0].getMimeType());
+    BufferedImage image = read(derivatives[0]);
+    assertEquals(100, image.getWidth());
+    assertEquals(75, image.getHeight());
+    assertTrue(image.getColorModel().hasAlpha());
+  }
+
+  @Test
+  public void testOtherFormatsAreReadBySanselan() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(400, 300,
+        BufferedImage.TYPE_INT_RGB), "bmp"));
+
+    Derivative[] derivatives = derive(source, 0, 0, 200, 200, dimensions(50, 50));
+
+    ImageInfo info = Sanselan.getImageInfo(derivatives[0].getBytes());
+    assertEquals(50, info.getWidth());
+    assertEquals(50, info.getHeight());
+  }
+
+  @Test
+  public void testCachedByVersionAndCrop() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(400, 300,
+        BufferedImage.TYPE_INT_RGB), "png"));
+
+    Derivative[] first = derive(source, 0, 0, 200, 200, dimensions(50, 50));
+    Derivative[] second = derive(source, 0, 0, 200, 200, dimensions(50, 50));
+    assertEquals(1, source.opened.get());
+    assertTrue(first[0] == second[0]);
+
+    // only the missing size is made.
+    Derivative[] more = derive(source, 0, 0, 200, 200, dimensions(50, 50, 20, 20));
+    assertEquals(2, source.opened.get());
+    assertTrue(first[0] == more[0]);
+    assertEquals(20, read(more[1]).getWidth());
+
+    derive(source, 10, 0, 200, 200, dimensions(50, 50));
+    assertEquals(3, source.opened.get());
+
+    CountingSource other = new CountingSource(encode(paint(401, 300,
+        BufferedImage.TYPE_INT_RGB), "png"));
+    derive(other, 0, 0, 200, 200, dimensions(50, 50));
+    assertEquals(1, other.opened.get());
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(400, 300,
+        BufferedImage.TYPE_INT_RGB), "png"));
+    pipeline.shutdown();
+    try {
+      derive(source, 0, 0, 200, 200, dimensions(50, 50));
+      fail("Should have thrown an ImageException.");
+    } catch (ImageException e) {
+      assertEquals(503, e.getCode());
+    }
+  }
+
+  @Test
+  public void testCropOutsideImage() throws Exception {
+    CountingSource source = new CountingSource(encode(paint(400, 300,
+        BufferedImage.TYPE_INT_RGB), "png"));
+    try {
+      derive(source, 500, 0, 100, 100, dimensions(50, 50));
+      fail("Should have thrown an ImageException.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  @Test
+  public void testSubsampling() {
+    Rectangle region = new Rectangle(0, 0, 4000, 3000);
+    assertEquals(5, DerivativePipeline.subsampling(region, new Dimension[] {
+        new Dimension(256, 256), new Dimension(32, 32) }));
+    assertEquals(1, DerivativePipeline.subsampling(region,
+        new Dimension[] { new Dimension(4000, 3000) }));
+    assertEquals(1, DerivativePipeline.subsampling(new Rectangle(0, 0, 100, 100),
+        new Dimension[] { new Dimension(200, 200) }));
+  }
+
+  private static long resetPeakHeap() {
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * The way crop worked before: read the whole image, decode it at full size and scale
+   * each dimension from the cropped piece.
+   */
+  private static void cropWhole(byte[] bytes, List<Dimension> dimensions)
+      throws Exception {
+    byte[] read = IOUtils.getInputStreamBytes(new ByteArrayInputStream(bytes));
+    ImageInfo info = Sanselan.getImageInfo(read);
+    BufferedImage image = CropItProcessor.getBufferedImage(read, info);
+    BufferedImage subImage = image.getSubimage(0, 0, info.getWidth(), info.getHeight());
+    for (Dimension d : dimensions) {
+      CropItProcessor.scaleAndWriteToByteArray(d.width, d.height, subImage, null, info);
+    }
+  }
+
+  private static void benchmark(String name, final byte[] bytes) throws Exception {
+    final List<Dimension> dimensions = dimensions(256, 256, 128, 128, 64, 64, 32, 32);
+    int threads = 4;
+    final int perThread = 3;
+    for (int round = 0; round < 2; round++) {
+      long base = resetPeakHeap();
+      long start = System.nanoTime();
+      cropWhole(bytes, dimensions);
+      long single = System.nanoTime() - start;
+      long peak = peakHeap() - base;
+
+      // nothing is cached, every crop decodes.
+      final DerivativePipeline uncached = new DerivativePipeline(threads, 100, 600000L, 0);
+      base = resetPeakHeap();
+      start = System.nanoTime();
+      uncached.derive("image", new CountingSource(bytes), 0, 0, 0, 0, dimensions);
+      long pipelineSingle = System.nanoTime() - start;
+      long pipelinePeak = peakHeap() - base;
+
+      long wholeThroughput = run(threads, perThread, new Task() {
+        public void run() throws Exception {
+          cropWhole(bytes, dimensions);
+        }
+      });
+      long pipelineThroughput = run(threads, perThread, new Task() {
+        public void run() throws Exception {
+          uncached.derive("image", new CountingSource(bytes), 0, 0, 0, 0, dimensions);
+        }
+      });
+      int crops = threads * perThread;
+      System.out.println(name + ": whole decode " + (single / 1000000) + " ms, peak heap "
+          + (peak >> 20) + " MB, " + crops + " crops on " + threads + " threads in "
+          + (wholeThroughput / 1000000) + " ms. Pipeline " + (pipelineSingle / 1000000)
+          + " ms, peak heap " + (pipelinePeak >> 20) + " MB, " + crops + " crops in "
+          + (pipelineThroughput / 1000000) + " ms");
+    }
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static long run(int threads, final int perThread, final Task task)
+      throws Exception {
+    final List<Exception> errors = new ArrayList<Exception>();
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < perThread; j++) {
+              task.run();
+            }
+          } catch (Exception e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long time = System.nanoTime() - start;
+    if (!errors.isEmpty()) {
+      throw errors.get(0);
+    }
+    return time;
+  }
+
+  /**
+   * Peak heap for one crop of a 24 megapixel JPEG and PNG into four thumbnails, decoded
+   * whole as crop used to and through the pipeline, and the time for twelve crops on four
+   * request threads. Run with -Dsakai.benchmark=true and a heap of 1GB or so.
+   */
+  @Test
+  public void benchmarkLargeImages() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    BufferedImage image = paint(6000, 4000, BufferedImage.TYPE_INT_RGB);
+    byte[] jpeg = encode(image, "jpg");
+    byte[] png = encode(image, "png");
+    image = null;
+    benchmark("JPEG " + (jpeg.length >> 10) + " KB", jpeg);
+    benchmark("PNG " + (png.length >> 10) + " KB", png);
+  }
+}
@@ -13,7 +13,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -128,7 +128,7 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
       List<String> selectors = Arrays.asList(request.getRequestPathInfo().getSelectors());
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+      StreamingJSONWriter writer = new StreamingJSONWriter(response.getOutputStream());
       writer.setTidy(selectors.contains("tidy"));
 
       writer.object();
@@ -152,6 +152,7 @@ public abstract class LiteAbstractMyGroupsServlet extends SlingSafeMethodsServle
       writer.value(filteredProfiles.size());
 
       writer.endObject();
+      writer.flush();
 
 
     } catch (JSONException e) {
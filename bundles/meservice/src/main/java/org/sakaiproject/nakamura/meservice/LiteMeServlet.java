@@ -20,6 +20,11 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.util.ISO9075;
@@ -29,6 +34,7 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -45,33 +51,46 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchCountService;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -99,13 +118,46 @@ import javax.servlet.http.HttpServletResponse;
         + "\"jcr:primaryType\":\"nt:unstructured\"}\n" + "}<pre>"),
     @ServiceResponse(code = 401, description = "Unauthorized: credentials provided were not acceptable to return information for."),
     @ServiceResponse(code = 500, description = "Unable to return information about current user.") }))
-@SlingServlet(paths = { "/system/me" }, generateComponent = true, generateService = true, methods = { "GET" })
+@Component(immediate = true, metatype = true)
+@SlingServlet(paths = { "/system/me" }, generateComponent = false, generateService = true, methods = { "GET" })
 public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3786472219389695181L;
   private static final Logger LOG = LoggerFactory.getLogger(LiteMeServlet.class);
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
+  private static final String NO_MESSAGES = "{\"unread\":0}";
+  private static final String NO_CONTACTS = "{\"accepted\":0,\"invited\":0,\"pending\":0}";
+
+  @Property(label = "Section time budget (ms)",
+      description = "How long to wait for the message and contact counts before answering without them.",
+      longValue = LiteMeServlet.SECTION_TIMEOUT_DEFAULT)
+  static final String SECTION_TIMEOUT_PROPERTY = "sakai.me.section.timeout";
+  static final long SECTION_TIMEOUT_DEFAULT = 2000;
+
+  @Property(label = "Section threads",
+      description = "Number of threads building sections of the feed in parallel.",
+      intValue = LiteMeServlet.SECTION_THREADS_DEFAULT)
+  static final String SECTION_THREADS_PROPERTY = "sakai.me.section.threads";
+  static final int SECTION_THREADS_DEFAULT = 20;
+
+  @Property(label = "Cache TTL (ms)",
+      description = "How long a user's profile and groups are cached for; 0 to disable. Changes to them invalidate the cache sooner.",
+      longValue = LiteMeServlet.CACHE_TTL_DEFAULT)
+  static final String CACHE_TTL_PROPERTY = "sakai.me.cache.ttl";
+  static final long CACHE_TTL_DEFAULT = 60000;
+
+  @Property(label = "Count cache TTL (ms)",
+      description = "How long message and contact counts are cached for; 0 to disable. Kept short because the search index lags the change that invalidates them.",
+      longValue = LiteMeServlet.COUNT_CACHE_TTL_DEFAULT)
+  static final String COUNT_CACHE_TTL_PROPERTY = "sakai.me.cache.counts.ttl";
+  static final long COUNT_CACHE_TTL_DEFAULT = 10000;
+
+  private long sectionTimeout;
+  private int sectionThreads;
+  private long cacheTtl;
+  private long countCacheTtl;
+  private transient ThreadPoolExecutor executor;
 
   @Reference
   protected transient LiteMessagingService messagingService;
@@ -120,7 +172,10 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   private MessageBucketService messageBucketService;
 
   @Reference
-  SolrSearchServiceFactory searchServiceFactory;
+  protected transient CacheManagerService cacheManagerService;
+
+  @Reference
+  SolrSearchCountService countService;
   @Reference
   BasicUserInfoService basicUserInfoService;
 
@@ -156,8 +211,50 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
         return;
       }
-      PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+      String subjectId = au.getId();
+      boolean anonymous = UserConstants.ANON_USERID.equals(subjectId);
+      // What someone else sees of a feed depends on their own access, so only cache a
+      // user's view of their own feed.
+      Cache<MeSection> cache = null;
+      if (!anonymous && subjectId.equals(session.getUserId())) {
+        cache = MeSectionCacheInvalidator.getCache(cacheManagerService);
+      }
+
+      // The counts are Solr queries, so they run alongside the rest of the feed, which is
+      // built on this thread. The session and the request are not thread safe, so the
+      // queries are worked out and restricted to what the user can read here, and only
+      // the finished queries go to the section threads.
+      long deadline = System.currentTimeMillis() + sectionTimeout;
+      MeSection messages = getCachedSection(cache, MeSectionCacheInvalidator.MESSAGES,
+          subjectId);
+      Future<String> messagesFuture = null;
+      if (messages == null) {
+        try {
+          messagesFuture = submitMessageCounts(request, session, subjectId, anonymous);
+        } catch (SolrSearchException e) {
+          LOG.error("Failed to build the messages section of /system/me for " + subjectId,
+              e);
+          messages = new MeSection(NO_MESSAGES, 0);
+        } catch (MessagingException e) {
+          LOG.error("Failed to build the messages section of /system/me for " + subjectId,
+              e);
+          messages = new MeSection(NO_MESSAGES, 0);
+        }
+      }
+      MeSection contacts = getCachedSection(cache, MeSectionCacheInvalidator.CONTACTS,
+          subjectId);
+      Future<String> contactsFuture = null;
+      if (contacts == null) {
+        try {
+          contactsFuture = submitContactCounts(request, subjectId, anonymous);
+        } catch (SolrSearchException e) {
+          LOG.error("Failed to build the contacts section of /system/me for " + subjectId,
+              e);
+          contacts = new MeSection(NO_CONTACTS, 0);
+        }
+      }
+
+      StreamingJSONWriter writer = new StreamingJSONWriter(response.getOutputStream());
       writer.object();
       // User info
       writer.key("user");
@@ -177,22 +274,47 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       // Dump this user his info
       writer.key("profile");
-      ValueMap profile = profileService.getProfileMap(au,jcrSession);
-      writer.valueMap(profile);
+      MeSection profile = getCachedSection(cache, MeSectionCacheInvalidator.PROFILE,
+          subjectId);
+      if (profile == null) {
+        StringWriter out = new StringWriter();
+        new ExtendedJSONWriter(out).valueMap(profileService.getProfileMap(au, jcrSession));
+        profile = cacheSection(cache, MeSectionCacheInvalidator.PROFILE, subjectId,
+            out.toString(), cacheTtl);
+      }
+      writer.value(profile);
+
+      // Dump the groups for this user.
+      MeSection groups = getCachedSection(cache, MeSectionCacheInvalidator.GROUPS,
+          subjectId);
+      if (groups == null) {
+        StringWriter out = new StringWriter();
+        writeGroups(new ExtendedJSONWriter(out), session, au, jcrSession);
+        groups = cacheSection(cache, MeSectionCacheInvalidator.GROUPS, subjectId,
+            out.toString(), cacheTtl);
+      }
 
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
+      if (messages == null) {
+        messages = awaitSection(cache, MeSectionCacheInvalidator.MESSAGES, subjectId,
+            messagesFuture, deadline, NO_MESSAGES);
+      }
+      writer.value(messages);
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, session, au, request);
+      if (contacts == null) {
+        contacts = awaitSection(cache, MeSectionCacheInvalidator.CONTACTS, subjectId,
+            contactsFuture, deadline, NO_CONTACTS);
+      }
+      writer.value(contacts);
 
-      // Dump the groups for this user.
       writer.key("groups");
-      writeGroups(writer, session, au, jcrSession);
+      writer.value(groups);
 
       writer.endObject();
+      writer.flush();
     } catch (JSONException e) {
       LOG.error("Failed to create proper JSON response in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -209,18 +331,163 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       LOG.error("Failed to get a user his profile node in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "Sparse storage client error.");
-    } catch (MessagingException e) {
-      LOG.error("Failed to get a user his message counts in /system/me", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Messaging error.");
-    } catch (SolrSearchException e) {
-      LOG.error("Failed to execute a Solr search in /system/me", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Solr search error.");
     }
 
   }
 
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    modified(props);
+    // callers run the section themselves once the pool and its queue are full, so a
+    // burst of requests degrades to the serial behaviour rather than failing.
+    executor = new ThreadPoolExecutor(sectionThreads, sectionThreads, 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(sectionThreads * 4),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "system-me-section-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    sectionTimeout = OsgiUtil.toLong(props.get(SECTION_TIMEOUT_PROPERTY),
+        SECTION_TIMEOUT_DEFAULT);
+    sectionThreads = OsgiUtil.toInteger(props.get(SECTION_THREADS_PROPERTY),
+        SECTION_THREADS_DEFAULT);
+    cacheTtl = OsgiUtil.toLong(props.get(CACHE_TTL_PROPERTY), CACHE_TTL_DEFAULT);
+    countCacheTtl = OsgiUtil.toLong(props.get(COUNT_CACHE_TTL_PROPERTY),
+        COUNT_CACHE_TTL_DEFAULT);
+    if (executor != null) {
+      if (sectionThreads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(sectionThreads);
+        executor.setCorePoolSize(sectionThreads);
+      } else {
+        executor.setCorePoolSize(sectionThreads);
+        executor.setMaximumPoolSize(sectionThreads);
+      }
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the cached section, or null if it is not cached or has expired.
+   */
+  private MeSection getCachedSection(Cache<MeSection> cache, String section, String userId) {
+    if (cache == null) {
+      return null;
+    }
+    String key = MeSectionCacheInvalidator.key(section, userId);
+    MeSection cached = cache.get(key);
+    if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+      cache.remove(key);
+      return null;
+    }
+    return cached;
+  }
+
+  private MeSection cacheSection(Cache<MeSection> cache, String section, String userId,
+      String json, long ttl) {
+    MeSection rendered = new MeSection(json, System.currentTimeMillis() + ttl);
+    if (cache != null && ttl > 0) {
+      cache.put(MeSectionCacheInvalidator.key(section, userId), rendered);
+    }
+    return rendered;
+  }
+
+  /**
+   * Restricts the unread message query on the calling thread, and counts it on a section
+   * thread.
+   */
+  Future<String> submitMessageCounts(SlingHttpServletRequest request, Session session,
+      String userId, boolean anonymous) throws SolrSearchException {
+    // We don't do queries for anonymous users. (Possible ddos hole).
+    final Query query = anonymous ? null : countService.restrict(request,
+        getMessageCountQuery(session, userId), false);
+    return submitSection(anonymous, new SectionWriter() {
+      @Override
+      protected void write(ExtendedJSONWriter writer) throws Exception {
+        writeMessageCounts(writer, query);
+      }
+    });
+  }
+
+  /**
+   * Restricts the contact query on the calling thread, and counts it on a section
+   * thread.
+   */
+  Future<String> submitContactCounts(SlingHttpServletRequest request, String userId,
+      boolean anonymous) throws SolrSearchException {
+    // We don't do queries for anonymous users. (Possible ddos hole).
+    final Query query = anonymous ? null : countService.restrict(request,
+        getContactCountQuery(userId), false);
+    return submitSection(anonymous, new SectionWriter() {
+      @Override
+      protected void write(ExtendedJSONWriter writer) throws Exception {
+        writeContactCounts(writer, query);
+      }
+    });
+  }
+
+  private Future<String> submitSection(boolean inline, SectionWriter sectionWriter) {
+    if (inline) {
+      // nothing is queried for anonymous, so there is nothing to gain from a thread.
+      FutureTask<String> task = new FutureTask<String>(sectionWriter);
+      task.run();
+      return task;
+    }
+    return executor.submit(sectionWriter);
+  }
+
+  /**
+   * Wait for a section until the deadline. A section that fails or does not finish in
+   * time is replaced by the fallback, and is not cached.
+   */
+  private MeSection awaitSection(Cache<MeSection> cache, String section, String userId,
+      Future<String> future, long deadline, String fallback) {
+    try {
+      long wait = Math.max(0, deadline - System.currentTimeMillis());
+      return cacheSection(cache, section, userId, future.get(wait, TimeUnit.MILLISECONDS),
+          countCacheTtl);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      LOG.warn("Timed out after {} ms building the {} section of /system/me for {}",
+          new Object[] { sectionTimeout, section, userId });
+    } catch (ExecutionException e) {
+      LOG.error("Failed to build the " + section + " section of /system/me for " + userId,
+          e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+    }
+    return new MeSection(fallback, 0);
+  }
+
+  /**
+   * Renders a section of the feed to a string so it can be built off the request thread
+   * and cached.
+   */
+  private abstract static class SectionWriter implements Callable<String> {
+    public String call() throws Exception {
+      StringWriter out = new StringWriter();
+      write(new ExtendedJSONWriter(out));
+      return out.toString();
+    }
+
+    protected abstract void write(ExtendedJSONWriter writer) throws Exception;
+  }
+
   /**
    * @param writer
    * @param session
@@ -236,6 +503,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
     writer.array();
     if (!UserConstants.ANON_USERID.equals(au.getId())) {
+      List<Authorizable> groups = new ArrayList<Authorizable>();
       // KERN-1831 changed from getPrincipals to memberOf to drill down list
       for (Iterator<Group> memberOf = au.memberOf(authorizableManager); memberOf.hasNext(); ) {
 //      this is the old code for outputting only direct memberships. might be needed later if such a flag is added.
@@ -256,64 +524,60 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
             continue;
           }
         }
-        ValueMap groupProfile = new ValueMapDecorator(basicUserInfoService.getProperties(group));
-        if (groupProfile != null) {
-          writer.valueMap(groupProfile);
-        }
+        groups.add(group);
+      }
+      for (Map<String, Object> groupProfile : basicUserInfoService.getProperties(groups)
+          .values()) {
+        writer.valueMap(new ValueMapDecorator(groupProfile));
       }
     }
     writer.endArray();
   }
 
+  /**
+   * @return the query for the contacts of a user in any state.
+   */
+  protected Query getContactCountQuery(String userID) {
+    // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
+    // in the private package unfortunately.
+    String store = LitePersonalUtils.getHomePath(userID) + "/"
+        + ConnectionConstants.CONTACT_STORE_NAME;
+    store = ISO9075.encodePath(store);
+    String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
+    return new Query(queryString);
+  }
+
   /**
    * Writes a JSON Object that contains the number of contacts for a user split up in
    * PENDING, ACCEPTED.
    *
    * @param writer
-   * @param session
-   * @param au
+   * @param query
+   *          the contact query, restricted to what the user can read, or null to write
+   *          no contacts.
    * @throws JSONException
    * @throws SolrSearchException
-   * @throws RepositoryException
    */
-  protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, SolrSearchException {
+  protected void writeContactCounts(ExtendedJSONWriter writer, Query query)
+      throws JSONException, SolrSearchException {
     writer.object();
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
+    if (query == null) {
       writer.endObject();
       return;
     }
 
-    // Get the path to the store for this user.
     Map<String, Integer> contacts = new HashMap<String, Integer>();
     contacts.put(ACCEPTED.toString().toLowerCase(), 0);
     contacts.put(INVITED.toString().toLowerCase(), 0);
     contacts.put(PENDING.toString().toLowerCase(), 0);
     try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = LitePersonalUtils.getHomePath(userID) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
-      Query query = new Query(queryString);
       LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = (String) contact.getProperties().get("state").iterator().next();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
+      Map<String, Long> counts = countService.getCounts(query, "state");
+      for (Entry<String, Long> count : counts.entrySet()) {
+        String state = count.getKey().toLowerCase();
+        Integer previous = contacts.get(state);
+        contacts.put(state, (previous == null ? 0 : previous) + count.getValue().intValue());
       }
     } finally {
       for (Entry<String, Integer> entry : contacts.entrySet()) {
@@ -324,48 +588,43 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     writer.endObject();
   }
 
+  /**
+   * @param session
+   *          A session to find the message store with. This session needs read access on
+   *          the authorizable's message box.
+   * @return the query for the unread messages of a user.
+   * @throws MessagingException
+   */
+  protected Query getMessageCountQuery(Session session, String userID)
+      throws MessagingException {
+    String store = messagingService.getFullPathToStore(userID, session);
+    store = ISO9075.encodePath(store);
+    store = store.substring(0, store.length() - 1);
+    String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
+    return new Query(queryString);
+  }
+
   /**
    * Writes a JSON Object that contains the unread messages for a user.
    *
    * @param writer
    *          The writer
-   * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
-   *          authorizable's message box.
-   * @param au
-   *          An authorizable to look up the messages for.
+   * @param query
+   *          the unread message query, restricted to what the user can read, or null to
+   *          write no messages.
    * @throws JSONException
-   * @throws RepositoryException
-   * @throws MessagingException
    * @throws SolrSearchException
    */
-  protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, MessagingException, SolrSearchException {
+  protected void writeMessageCounts(ExtendedJSONWriter writer, Query query)
+      throws JSONException, SolrSearchException {
     writer.object();
     writer.key("unread");
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.value(0);
-      writer.endObject();
-      return;
-    }
-
     long count = 0;
     try {
-      String store = messagingService.getFullPathToStore(au.getId(), session);
-      store = ISO9075.encodePath(store);
-      store = store.substring(0, store.length() - 1);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        count++;
-        resultIterator.next();
+      if (query != null) {
+        LOG.debug("Submitting Query {} ", query);
+        count = countService.getCount(query);
       }
     } finally {
       writer.value(count);
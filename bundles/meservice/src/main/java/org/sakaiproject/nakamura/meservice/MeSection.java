@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.sling.commons.json.JSONString;
+
+import java.io.Serializable;
+
+/**
+ * A rendered section of the /system/me feed. It is written back into the feed verbatim,
+ * so a cached section costs no more than copying a string.
+ */
+public class MeSection implements JSONString, Serializable {
+
+  private static final long serialVersionUID = -2296354187010957651L;
+
+  private final String json;
+  private final long expires;
+
+  public MeSection(String json, long expires) {
+    this.json = json;
+    this.expires = expires;
+  }
+
+  public boolean isExpired(long now) {
+    return expires <= now;
+  }
+
+  public String toJSONString() {
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    return json;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Drops the cached sections of the /system/me feed when the content or authorizables
+ * they were built from change.
+ * <p>
+ * Sections are cached under <code>section/userId</code> so that all the cached copies
+ * of one section can be dropped together, which is needed when a group changes and we
+ * can't tell cheaply which of its members have it in their feed.
+ */
+@Component(immediate = true)
+@Service(value = EventHandler.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Invalidates the cached sections of the /system/me feed."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class MeSectionCacheInvalidator implements EventHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MeSectionCacheInvalidator.class);
+
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.meservice.sections";
+
+  static final String PROFILE = "profile";
+  static final String MESSAGES = "messages";
+  static final String CONTACTS = "contacts";
+  static final String GROUPS = "groups";
+
+  private static final String AUTHORIZABLES_TOPIC = StoreListener.TOPIC_BASE
+      + "authorizables/";
+  private static final String HOME_PREFIX = LitePersonalUtils.getHomePath("");
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  static String key(String section, String userId) {
+    return section + "/" + userId;
+  }
+
+  static Cache<MeSection> getCache(CacheManagerService cacheManagerService) {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  @SuppressWarnings("unchecked")
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (path == null) {
+      return;
+    }
+    Cache<MeSection> cache = getCache(cacheManagerService);
+    if (event.getTopic().startsWith(AUTHORIZABLES_TOPIC)) {
+      cache.remove(key(PROFILE, path));
+      cache.remove(key(GROUPS, path));
+      Map<String, Object> before = (Map<String, Object>) event
+          .getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+      if (before != null && before.containsKey("members")) {
+        // a group changed, its title or membership may be in anyone's groups section.
+        LOG.debug("Group {} changed, dropping all cached group sections", path);
+        cache.removeChildren(GROUPS);
+      }
+      return;
+    }
+
+    // content lives under a:userId/..., anything else does not feed into /system/me.
+    if (!path.startsWith(HOME_PREFIX)) {
+      return;
+    }
+    int slash = path.indexOf('/', HOME_PREFIX.length());
+    if (slash < 0) {
+      return;
+    }
+    String userId = path.substring(HOME_PREFIX.length(), slash);
+    String subPath = path.substring(slash + 1);
+    if (subPath.startsWith(MessageConstants.FOLDER_MESSAGES)) {
+      cache.remove(key(MESSAGES, userId));
+    } else if (subPath.startsWith(ConnectionConstants.CONTACT_STORE_NAME)) {
+      cache.remove(key(CONTACTS, userId));
+    } else if (path.startsWith(LitePersonalUtils.getProfilePath(userId))) {
+      cache.remove(key(PROFILE, userId));
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.makeThreadSafe;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.same;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.JSONObject;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchCountService;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The message and contact counts are built on section threads, which must not use the
+ * request or its session.
+ */
+public class LiteMeServletTest {
+
+  private LiteMeServlet servlet;
+  private SlingHttpServletRequest request;
+  private Session session;
+  private SolrSearchCountService countService;
+  private LiteMessagingService messagingService;
+  private Query restricted;
+  private CountDownLatch requestDone;
+  private volatile Thread restrictedOn;
+  private volatile Thread countedOn;
+
+  @Before
+  public void setUp() throws Exception {
+    // no calls are expected on the request or the session themselves, so any use of
+    // them fails the section.
+    request = createMock(SlingHttpServletRequest.class);
+    session = createMock(Session.class);
+    replay(request, session);
+
+    // the count service is the only thing that should be used from a section thread.
+    countService = createMock(SolrSearchCountService.class);
+    makeThreadSafe(countService, true);
+    messagingService = createMock(LiteMessagingService.class);
+    restricted = new Query("restricted");
+    requestDone = new CountDownLatch(1);
+
+    servlet = new LiteMeServlet();
+    servlet.countService = countService;
+    servlet.messagingService = messagingService;
+    servlet.activate(new HashMap<String, Object>());
+  }
+
+  @After
+  public void tearDown() {
+    servlet.deactivate();
+  }
+
+  @Test
+  public void testMessagesAreCountedWithoutTheRequest() throws Exception {
+    expect(messagingService.getFullPathToStore("alice", session)).andReturn(
+        "a:alice/message/");
+    expectRestrict();
+    expect(countService.getCount(same(restricted))).andAnswer(new IAnswer<Long>() {
+      public Long answer() throws Throwable {
+        countedOn = Thread.currentThread();
+        // the request thread has moved on by the time the count runs.
+        requestDone.await(10, TimeUnit.SECONDS);
+        return 3L;
+      }
+    });
+    replay(countService, messagingService);
+
+    String json = awaitSection(servlet.submitMessageCounts(request, session, "alice",
+        false));
+
+    assertEquals(3, new JSONObject(json).getInt("unread"));
+    assertSame(Thread.currentThread(), restrictedOn);
+    assertNotNull(countedOn);
+    assertFalse(Thread.currentThread().equals(countedOn));
+    verify(countService, messagingService, request, session);
+  }
+
+  @Test
+  public void testContactsAreCountedWithoutTheRequest() throws Exception {
+    expectRestrict();
+    final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    counts.put("ACCEPTED", 2L);
+    counts.put("PENDING", 1L);
+    expect(countService.getCounts(same(restricted), eq("state"))).andAnswer(
+        new IAnswer<Map<String, Long>>() {
+          public Map<String, Long> answer() throws Throwable {
+            countedOn = Thread.currentThread();
+            requestDone.await(10, TimeUnit.SECONDS);
+            return counts;
+          }
+        });
+    replay(countService, messagingService);
+
+    JSONObject contacts = new JSONObject(awaitSection(servlet.submitContactCounts(
+        request, "alice", false)));
+
+    assertEquals(2, contacts.getInt("accepted"));
+    assertEquals(0, contacts.getInt("invited"));
+    assertEquals(1, contacts.getInt("pending"));
+    assertSame(Thread.currentThread(), restrictedOn);
+    assertFalse(Thread.currentThread().equals(countedOn));
+    verify(countService, messagingService, request, session);
+  }
+
+  @Test
+  public void testAnonymousIsNotQueried() throws Exception {
+    replay(countService, messagingService);
+
+    assertEquals(0, new JSONObject(servlet.submitMessageCounts(request, session,
+        "anonymous", true).get()).getInt("unread"));
+    assertEquals(0, new JSONObject(servlet.submitContactCounts(request, "anonymous", true)
+        .get()).length());
+    verify(countService, messagingService, request, session);
+  }
+
+  private void expectRestrict() throws Exception {
+    expect(countService.restrict(same(request), isA(Query.class), eq(false))).andAnswer(
+        new IAnswer<Query>() {
+          public Query answer() throws Throwable {
+            restrictedOn = Thread.currentThread();
+            return restricted;
+          }
+        });
+  }
+
+  private String awaitSection(Future<String> section) throws Exception {
+    requestDone.countDown();
+    return section.get(10, TimeUnit.SECONDS);
+  }
+}
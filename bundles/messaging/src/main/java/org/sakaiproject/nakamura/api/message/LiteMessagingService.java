@@ -122,5 +122,19 @@ public interface LiteMessagingService {
    */
   public boolean checkDeliveryAccessOk(String recipient, Content originalMessage, Session session);
 
+  /**
+   * Fills in the parts of a message that were delivered by reference to a shared body,
+   * see {@link MessageConstants#PROP_SAKAI_SHARED_BODY}. The body is read with the
+   * session, so it is only filled in for recipients of the message.
+   *
+   * @param session the session the message was read with.
+   * @param message the message as it was read from the store.
+   * @return the message with the properties of its body, or the message itself if it has
+   *         no shared body or the body can't be read.
+   * @throws StorageClientException
+   */
+  public Content resolveSharedBody(Session session, Content message)
+      throws StorageClientException;
+
 
 }
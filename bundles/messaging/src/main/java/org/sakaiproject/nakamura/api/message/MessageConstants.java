@@ -87,6 +87,17 @@ public interface MessageConstants {
    * Property of the message store container for a message. Used primarily in discussions.
    */
   public static final String PROP_SAKAI_MESSAGE_STORE = "sakai:messagestore";
+  /**
+   * This property will hold the path to the body of a message that was delivered to a
+   * large number of recipients. The body is stored once, and each recipient's inbox only
+   * holds an entry that points to it.
+   */
+  public static final String PROP_SAKAI_SHARED_BODY = "sakai:sharedbody";
+  /**
+   * The resource type of a shared message body, so that it is not listed or indexed as a
+   * message of its own.
+   */
+  public static final String SAKAI_MESSAGE_BODY_RT = "sakai/messagebody";
 
   /**
    * Value for a date.
@@ -141,6 +152,11 @@ public interface MessageConstants {
    */
   public static final String FOLDER_CHATS = "chatlogs";
 
+  /**
+   * Folder in the sender's message store that holds the shared bodies of their messages.
+   */
+  public static final String FOLDER_SHARED_BODIES = "shared";
+
   /**
    * Identifier for an internal message.
    */
@@ -38,15 +38,11 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchCountService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -103,13 +99,11 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   protected transient LiteMessagingService messagingService;
   
   @Reference
-  SolrSearchServiceFactory searchServiceFactory;
+  SolrSearchCountService countService;
 
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
-    LOGGER.info("In count servlet" );
-
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
 
     try {
@@ -132,6 +126,7 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
         if (filters.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
         for (int i = 0; i < filters.length; i++) {
@@ -140,13 +135,10 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
         }
       }
 
-      queryString.append(")&start=0&sort=_created desc");
+      queryString.append(")");
 
       Query query = new Query(queryString.toString());
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
+      LOGGER.debug("Submitting Query {} ", query);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -156,36 +148,22 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
       if (request.getRequestParameter("groupedby") == null) {
         write.object();
         write.key("count");
-        // TODO: getSize iterates over all the nodes, add a JackRabbit service
-        // to fetch this number.
-        write.value(resultSet.getSize());
+        write.value(countService.getCount(request, query, false));
         write.endObject();
       } else {
-        // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
+        // The user want to group the count by a specified set, which Solr does for us
+        // with a facet on that field.
         String groupedby = request.getRequestParameter("groupedby").getString();
         if (groupedby.startsWith("sakai:")) {
           groupedby = groupedby.substring(6);
         }
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
-            }
-            mapCount.put(key, val);
-          }
-        }
+        Map<String, Long> mapCount = countService.getCounts(request, query, groupedby,
+            false);
 
         write.object();
         write.key("count");
         write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
+        for (Entry<String, Long> e : mapCount.entrySet()) {
           write.object();
 
           write.key("group");
@@ -47,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -246,4 +247,36 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
     return false;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.message.LiteMessagingService#resolveSharedBody(org.sakaiproject.nakamura.api.lite.Session, org.sakaiproject.nakamura.api.lite.content.Content)
+   */
+  public Content resolveSharedBody(Session session, Content message)
+      throws StorageClientException {
+    if (message == null || !message.hasProperty(MessageConstants.PROP_SAKAI_SHARED_BODY)) {
+      return message;
+    }
+    String bodyPath = (String) message.getProperty(MessageConstants.PROP_SAKAI_SHARED_BODY);
+    Content body;
+    try {
+      body = session.getContentManager().get(bodyPath);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to read the shared body {} of {} ", bodyPath, message.getPath());
+      return message;
+    }
+    if (body == null) {
+      LOGGER.warn("The shared body {} of {} is missing ", bodyPath, message.getPath());
+      return message;
+    }
+    // the entry's own properties, such as its box and read state, win over the body's.
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Entry<String, Object> e : body.getProperties().entrySet()) {
+      if (!e.getKey().startsWith("_")) {
+        properties.put(e.getKey(), e.getValue());
+      }
+    }
+    properties.putAll(message.getProperties());
+    return new Content(message.getPath(), properties);
+  }
+
 }
\ No newline at end of file
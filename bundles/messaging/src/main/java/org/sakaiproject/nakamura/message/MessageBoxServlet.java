@@ -102,6 +102,9 @@ public class MessageBoxServlet extends SlingSafeMethodsServlet {
       
       for(Iterable<Content> messages : boxes) {
         for (Content message : messages) {
+          if (message.hasProperty(MessageConstants.PROP_SAKAI_SHARED_BODY)) {
+            message = messagingService.resolveSharedBody(session, message);
+          }
           writer.object();
           for (String messagePropKey : message.getProperties().keySet()) {
             writer.key(messagePropKey);
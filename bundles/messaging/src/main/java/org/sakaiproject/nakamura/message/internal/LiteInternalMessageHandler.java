@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -30,12 +31,18 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
@@ -56,18 +63,27 @@ import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
  * started immediately to make sure it registers with JCR as soon as possible.
  */
-@Component(immediate = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
+@Component(immediate = true, metatype = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
 @Services(value = { @Service(value = LiteMessageTransport.class),
     @Service(value = LiteMessageProfileWriter.class) })
 @Properties(value = {
@@ -92,12 +108,31 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  private static final int DEFAULT_SHARED_BODY_THRESHOLD = 100;
+  @Property(intValue = DEFAULT_SHARED_BODY_THRESHOLD, description = "Messages that reach at least this many recipients have their body stored once, with each recipient getting an entry that points to it rather than a copy.")
+  static final String SHARED_BODY_THRESHOLD = "message.delivery.sharedbody.threshold";
+
+  private static final int DEFAULT_BATCH_SIZE = 200;
+  @Property(intValue = DEFAULT_BATCH_SIZE, description = "The number of entries written between each update of a shared body's access control.")
+  static final String BATCH_SIZE = "message.delivery.batchsize";
+
+  int sharedBodyThreshold = DEFAULT_SHARED_BODY_THRESHOLD;
+  int batchSize = DEFAULT_BATCH_SIZE;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    sharedBodyThreshold = OsgiUtil.toInteger(properties.get(SHARED_BODY_THRESHOLD),
+        DEFAULT_SHARED_BODY_THRESHOLD);
+    batchSize = Math.max(1, OsgiUtil.toInteger(properties.get(BATCH_SIZE),
+        DEFAULT_BATCH_SIZE));
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -110,19 +145,26 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
+      // recipients keeps track of who will receive the message, to avoid
       // duplicate messages
-      List<String> recipients = new ArrayList<String>();
+      Set<String> recipients = new LinkedHashSet<String>();
+      Set<String> groups = new HashSet<String>();
       AuthorizableManager authorizableManager = session.getAuthorizableManager();
       for (MessageRoute route : routes) {
         if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
           String recipient = route.getRcpt();
           LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
+          expandRecipient(recipient, recipients, groups, authorizableManager);
+        }
+      }
+      // the path were we want to save messages in.
+      String messageId = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_ID);
+      if (recipients.size() >= sharedBodyThreshold) {
+        sendShared(recipients, originalMessage, session, messageId);
+      } else {
+        for (String recipient : recipients) {
+          sendCopy(recipient, originalMessage, session, messageId);
         }
       }
     } catch (AccessDeniedException e) {
@@ -142,60 +184,70 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
+  /**
+   * Adds the users a recipient stands for to the recipients, expanding groups, and groups
+   * in groups, to their members.
+   */
+  private void expandRecipient(String recipient, Set<String> recipients,
+      Set<String> groups, AuthorizableManager authManager) {
+    LinkedList<String> pending = new LinkedList<String>();
+    pending.add(recipient);
+    while (!pending.isEmpty()) {
+      String id = pending.removeFirst();
+      if (recipients.contains(id) || groups.contains(id)) {
+        continue;
+      }
+      try {
+        Authorizable au = authManager.findAuthorizable(id);
+        if (au != null && au instanceof Group) {
+          groups.add(id);
+          // user must be in the group directly to send a message:
+          Collections.addAll(pending, ((Group) au).getMembers());
+        } else {
+          recipients.add(id);
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Delivers a copy of the whole message to the recipient.
+   */
+  private void sendCopy(String recipient, Content originalMessage, Session session,
+      String messageId) {
     try {
       ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
-            recipients.add(memberName);
-          }
-        }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+      if ( messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
+        String toPath = messagingService.getFullPathToMessage(recipient, messageId,
+            session);
 
-          if ( messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
-            String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-                session);
-            
-            
-  
-            try {
-              lockManager.waitForLock(toPath);
-            } catch (LockTimeoutException e1) {
-              throw new MessagingException("Unable to lock destination message store");
-            }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
-          } else {
-            LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
-          }
-          recipients.add(recipient);
+        try {
+          lockManager.waitForLock(toPath);
+        } catch (LockTimeoutException e1) {
+          throw new MessagingException("Unable to lock destination message store");
         }
+
+        ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+        // Copy the content into the user his folder.
+        contentManager.update(
+            new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
+                .build()));
+        contentManager.copy(originalMessage.getPath(), toPath, true);
+        Content message = contentManager.get(toPath);
+        LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
+
+        // Add some extra properties on the just created node.
+        message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+        message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+        message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
+        contentManager.update(message);
+      } else {
+        LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
       }
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
@@ -208,6 +260,102 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
+  /**
+   * Delivers a message to many recipients by storing its body once, in the sender's
+   * message store, and writing an entry that points to it in each recipient's inbox.
+   * Entries are written in batches, each of which then grants its recipients read on the
+   * body. Each entry has a path of its own, so no locks are taken. Recipients that are
+   * content paths rather than users get a copy, as there is no telling who can read them.
+   */
+  private void sendShared(Set<String> recipients, Content originalMessage,
+      Session session, String messageId) {
+    String bodyPath = null;
+    try {
+      ContentManager contentManager = session.getContentManager();
+      String store = (String) originalMessage
+          .getProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE);
+      if (store == null) {
+        store = messagingService.getFullPathToStore(
+            PathUtils.getAuthorizableId(originalMessage.getPath()), session);
+      }
+      bodyPath = store + MessageConstants.FOLDER_SHARED_BODIES + "/" + messageId;
+
+      // the entries carry everything but the body, which is only read to show the message.
+      Map<String, Object> body = new HashMap<String, Object>();
+      Map<String, Object> entry = new HashMap<String, Object>();
+      for (Entry<String, Object> e : originalMessage.getProperties().entrySet()) {
+        // internal fields belong to the stored message, and are made afresh.
+        if (!e.getKey().startsWith("_")) {
+          body.put(e.getKey(), e.getValue());
+          if (!MessageConstants.PROP_SAKAI_BODY.equals(e.getKey())) {
+            entry.put(e.getKey(), e.getValue());
+          }
+        }
+      }
+      body.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          MessageConstants.SAKAI_MESSAGE_BODY_RT);
+      contentManager.update(new Content(bodyPath, body));
+      entry.put(MessageConstants.PROP_SAKAI_SHARED_BODY, bodyPath);
+      entry.put(MessageConstants.PROP_SAKAI_READ, false);
+      entry.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+      entry.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+
+      List<String> batch = new ArrayList<String>(batchSize);
+      for (String recipient : recipients) {
+        if (recipient.indexOf('/') >= 0) {
+          sendCopy(recipient, originalMessage, session, messageId);
+          continue;
+        }
+        batch.add(recipient);
+        if (batch.size() == batchSize) {
+          sendBatch(batch, entry, bodyPath, originalMessage, session, messageId);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        sendBatch(batch, entry, bodyPath, originalMessage, session, messageId);
+      }
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOG.error(e.getMessage(), e);
+    }
+  }
+
+  private void sendBatch(List<String> batch, Map<String, Object> entry, String bodyPath,
+      Content originalMessage, Session session, String messageId)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    List<AclModification> grants = new ArrayList<AclModification>(batch.size());
+    for (String recipient : batch) {
+      try {
+        if (messagingService.checkDeliveryAccessOk(recipient, originalMessage, session)) {
+          String store = messagingService.getFullPathToStore(recipient, session);
+          String inbox = store + MessageConstants.BOX_INBOX;
+          if (!contentManager.exists(inbox)) {
+            contentManager.update(new Content(inbox, ImmutableMap.<String, Object> of()));
+          }
+          Map<String, Object> properties = new HashMap<String, Object>(entry);
+          properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, store);
+          contentManager.update(new Content(inbox + "/" + messageId, properties));
+          grants.add(new AclModification(AclModification.grantKey(recipient),
+              Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE));
+        } else {
+          LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+    if (!grants.isEmpty()) {
+      session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, bodyPath,
+          grants.toArray(new AclModification[grants.size()]));
+    }
+    LOG.debug("Delivered {} entries for {} ", grants.size(), bodyPath);
+  }
+
   /**
    * Determines what type of messages this handler will process. {@inheritDoc}
    * 
@@ -40,6 +40,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
@@ -86,6 +87,9 @@ public class MessageIndexingHandler implements IndexingHandler {
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  private LiteMessagingService messagingService;
+
   @Activate
   protected void activate(Map<?, ?> props) {
     resourceIndexingService.addHandler(MessageConstants.SAKAI_MESSAGE_RT, this);
@@ -114,10 +118,17 @@ public class MessageIndexingHandler implements IndexingHandler {
         Content content = cm.get(path);
 
         if (content != null) {
+          // messages delivered with a shared body are indexed with it, but remain the
+          // source of the documents.
+          Content message = content;
+          if (content.hasProperty(MessageConstants.PROP_SAKAI_SHARED_BODY)) {
+            message = messagingService.resolveSharedBody(session, content);
+          }
+
           // index as autonomous message
           SolrInputDocument doc = new SolrInputDocument();
           for (String prop : WHITELISTED_PROPS.keySet()) {
-            Object value = content.getProperty(prop);
+            Object value = message.getProperty(prop);
             doc.addField(WHITELISTED_PROPS.get(prop), value);
           }
           doc.addField(_DOC_SOURCE_OBJECT, content);
@@ -131,8 +142,8 @@ public class MessageIndexingHandler implements IndexingHandler {
             LOGGER.warn("Unable to find auth (user,group) container for message [{}]; not indexing message for user,group searching", path);
           } else {
             doc = new SolrInputDocument();
-            doc.addField("title", content.getProperty("sakai:subject"));
-            doc.addField("content", content.getProperty("sakai:body"));
+            doc.addField("title", message.getProperty("sakai:subject"));
+            doc.addField("content", message.getProperty("sakai:body"));
 
             if (auth.isGroup()) {
               doc.setField("type", "g");
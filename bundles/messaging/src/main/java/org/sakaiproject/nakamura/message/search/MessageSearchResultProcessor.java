@@ -115,6 +115,16 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor {
   public void writeContent(SlingHttpServletRequest request, JSONWriter write,
       Content content) throws JSONException {
 
+    javax.jcr.Session jcrSession =request.getResourceResolver().adaptTo(javax.jcr.Session.class);
+    Session session = StorageClientUtils.adaptToSession(jcrSession);
+    if (content.hasProperty(MessageConstants.PROP_SAKAI_SHARED_BODY)) {
+      try {
+        content = messagingService.resolveSharedBody(session, content);
+      } catch (StorageClientException e) {
+        throw new JSONException(e);
+      }
+    }
+
     write.object();
 
     // Write out all the properties on the message.
@@ -125,9 +135,6 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor {
     String path = content.getPath();
     write.value(path.substring(path.lastIndexOf('/') + 1));
 
-    javax.jcr.Session jcrSession =request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    Session session = StorageClientUtils.adaptToSession(jcrSession);
-
     // Write out all the recipients their information on this message.
     // We always return this as an array, even if it is only 1 recipient.
     LiteMessageProfileWriter defaultProfileWriter = writers.get("internal");
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.message.LiteMessagingServiceImpl;
+import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+
+/**
+ *
+ */
+public class LiteInternalMessageHandlerTest {
+
+  private static final String BODY_PATH = "a:alice/message/shared/msg1";
+
+  private Repository repository;
+  private LiteMessagingServiceImpl messagingService;
+  private LiteInternalMessageHandler handler;
+  private Counter counter;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    messagingService = new LiteMessagingServiceImpl();
+    counter = new Counter();
+    handler = new LiteInternalMessageHandler();
+    handler.messagingService = messagingService;
+    handler.lockManager = mock(LockManager.class);
+    handler.slingRepository = mock(Repository.class);
+    when(handler.slingRepository.loginAdministrative()).thenAnswer(new Answer<Session>() {
+      public Session answer(InvocationOnMock invocation) throws Throwable {
+        return counter.wrap(repository.loginAdministrative());
+      }
+    });
+
+    Session session = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    authorizableManager.createUser("alice", "alice", "test", null);
+    for (int i = 0; i < 6; i++) {
+      authorizableManager.createUser("user" + i, "user" + i, "test", null);
+    }
+    // user0 is in both groups, and club is in course.
+    createGroup(authorizableManager, "g-club", "user3", "user4", "user0");
+    createGroup(authorizableManager, "g-course", "user0", "user1", "user2", "g-club");
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, "a:alice",
+        new AclModification[] {
+            new AclModification(AclModification.denyKey(Group.EVERYONE),
+                Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey("alice"),
+                Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+    session.logout();
+  }
+
+  @Test
+  public void testSmallGroupsGetCopies() throws Exception {
+    handler.send(new LiteMessageRoutesImpl(createMessage()), null, createMessage());
+
+    ContentManager contentManager = repository.loginAdministrative().getContentManager();
+    for (int i = 0; i < 5; i++) {
+      Content message = contentManager.get("a:user" + i + "/message/inbox/msg1");
+      assertNotNull(message);
+      assertEquals("Hello everyone", message.getProperty(MessageConstants.PROP_SAKAI_BODY));
+      assertFalse(message.hasProperty(MessageConstants.PROP_SAKAI_SHARED_BODY));
+    }
+    assertNull(contentManager.get("a:user5/message/inbox/msg1"));
+    assertNull(contentManager.get(BODY_PATH));
+  }
+
+  @Test
+  public void testLargeGroupsShareTheBody() throws Exception {
+    handler.sharedBodyThreshold = 1;
+    handler.batchSize = 2;
+    handler.send(new LiteMessageRoutesImpl(createMessage()), null, createMessage());
+
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    Content body = contentManager.get(BODY_PATH);
+    assertEquals(MessageConstants.SAKAI_MESSAGE_BODY_RT, body.getProperty("sling:resourceType"));
+    assertEquals("Hello everyone", body.getProperty(MessageConstants.PROP_SAKAI_BODY));
+    for (int i = 0; i < 5; i++) {
+      String user = "user" + i;
+      Content entry = contentManager.get("a:" + user + "/message/inbox/msg1");
+      assertFalse(entry.hasProperty(MessageConstants.PROP_SAKAI_BODY));
+      assertEquals(BODY_PATH, entry.getProperty(MessageConstants.PROP_SAKAI_SHARED_BODY));
+      assertEquals("Greetings", entry.getProperty(MessageConstants.PROP_SAKAI_SUBJECT));
+      assertEquals(false, entry.getProperty(MessageConstants.PROP_SAKAI_READ));
+      assertEquals(MessageConstants.BOX_INBOX,
+          entry.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX));
+      assertEquals("a:" + user + "/message/",
+          entry.getProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE));
+
+      // each recipient reads the body as themselves.
+      Content resolved = messagingService.resolveSharedBody(
+          repository.loginAdministrative(user), entry);
+      assertEquals("Hello everyone", resolved.getProperty(MessageConstants.PROP_SAKAI_BODY));
+      assertEquals(MessageConstants.SAKAI_MESSAGE_RT, resolved.getProperty("sling:resourceType"));
+      assertEquals(entry.getPath(), resolved.getPath());
+    }
+
+    // anyone else pointing at the body gets nothing from it.
+    Content forged = new Content("a:user5/message/inbox/msg1", ImmutableMap.of(
+        MessageConstants.PROP_SAKAI_SHARED_BODY, (Object) BODY_PATH));
+    Content resolved = messagingService.resolveSharedBody(
+        repository.loginAdministrative("user5"), forged);
+    assertFalse(resolved.hasProperty(MessageConstants.PROP_SAKAI_BODY));
+    assertNull(contentManager.get("a:user5/message/inbox/msg1"));
+  }
+
+  @Test
+  public void testSharedDeliveryWritesOncePerRecipient() throws Exception {
+    handler.sharedBodyThreshold = 1;
+    handler.batchSize = 2;
+    handler.send(new LiteMessageRoutesImpl(createMessage()), null, createMessage());
+    int shared = counter.writes;
+
+    counter.writes = 0;
+    handler.sharedBodyThreshold = Integer.MAX_VALUE;
+    handler.send(new LiteMessageRoutesImpl(createMessage("msg2")), null,
+        createMessage("msg2"));
+    int copied = counter.writes;
+
+    // the body, the 5 entries, their inboxes and 3 batches of grants.
+    assertEquals(1 + 5 + 5 + 3, shared);
+    assertTrue(shared + " writes is not fewer than " + copied, shared < copied);
+  }
+
+  /**
+   * Delivers a message to groups of growing size, with copies and with a shared body,
+   * printing the time taken and the writes made. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkDelivery() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int[] sizes = { 10, 100, 1000, 5000 };
+    Session session = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    String[] members = new String[sizes[sizes.length - 1]];
+    for (int i = 0; i < members.length; i++) {
+      members[i] = "member" + i;
+      authorizableManager.createUser(members[i], members[i], "test", null);
+    }
+    System.out.println("group size, mode, ms, writes");
+    int n = 0;
+    for (int size : sizes) {
+      String[] group = new String[size];
+      System.arraycopy(members, 0, group, 0, size);
+      createGroup(authorizableManager, "g-size" + size, group);
+      for (int shared = 0; shared < 2; shared++) {
+        handler.sharedBodyThreshold = shared == 1 ? 1 : Integer.MAX_VALUE;
+        String id = "bench" + n++;
+        Content message = createMessage(id);
+        message.setProperty(MessageConstants.PROP_SAKAI_TO, "internal:g-size" + size);
+        session.getContentManager().update(message);
+        message = session.getContentManager().get(message.getPath());
+        counter.writes = 0;
+        long time = System.nanoTime();
+        handler.send(new LiteMessageRoutesImpl(message), null, message);
+        time = System.nanoTime() - time;
+        System.out.println(size + ", " + (shared == 1 ? "shared" : "copies") + ", "
+            + (time / 1000000) + ", " + counter.writes);
+      }
+    }
+  }
+
+  private void createGroup(AuthorizableManager authorizableManager, String id,
+      String... members) throws Exception {
+    authorizableManager.createGroup(id, id, null);
+    Group group = (Group) authorizableManager.findAuthorizable(id);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+
+  private Content createMessage() throws Exception {
+    return createMessage("msg1");
+  }
+
+  /**
+   * Stores a message in alice's outbox, as the messaging service would.
+   */
+  private Content createMessage(String id) throws Exception {
+    String path = "a:alice/message/outbox/" + id;
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    if (!contentManager.exists(path)) {
+      contentManager.update(new Content(path, ImmutableMap.<String, Object> builder()
+          .put("sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT)
+          .put(MessageConstants.PROP_SAKAI_ID, id)
+          .put(MessageConstants.PROP_SAKAI_TO, "internal:g-course")
+          .put(MessageConstants.PROP_SAKAI_FROM, "alice")
+          .put(MessageConstants.PROP_SAKAI_SUBJECT, "Greetings")
+          .put(MessageConstants.PROP_SAKAI_BODY, "Hello everyone")
+          .put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX)
+          .put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, "a:alice/message/").build()));
+    }
+    return contentManager.get(path);
+  }
+
+  /**
+   * Passes calls on to the sessions the handler uses, counting those that write.
+   */
+  private static class Counter {
+    private static final Set<String> WRITES = ImmutableSet.of("update", "copy", "move",
+        "delete", "writeBody", "setAcl");
+    int writes;
+
+    Session wrap(Session session) throws Exception {
+      Session wrapped = mock(Session.class, new Delegate(session));
+      ContentManager contentManager = mock(ContentManager.class, new Delegate(session
+          .getContentManager()));
+      AccessControlManager accessControlManager = mock(AccessControlManager.class,
+          new Delegate(session.getAccessControlManager()));
+      when(wrapped.getContentManager()).thenReturn(contentManager);
+      when(wrapped.getAccessControlManager()).thenReturn(accessControlManager);
+      return wrapped;
+    }
+
+    private class Delegate implements Answer<Object> {
+      private final Object target;
+
+      Delegate(Object target) {
+        this.target = target;
+      }
+
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        if (WRITES.contains(invocation.getMethod().getName())) {
+          writes++;
+        }
+        try {
+          return invocation.getMethod().invoke(target, invocation.getArguments());
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages.search;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pulls the text out of the HTML fragments that pages are made of, in one pass and
+ * without building a document. Markup, comments, scripts and styles are dropped,
+ * character references are decoded and runs of whitespace become single spaces. Block
+ * elements separate words, inline ones do not. Character references are those of HTML 4
+ * and XML, and numeric ones may be to any code point.
+ * <p>
+ * Page content is always HTML, so this stands in for Tika, which would detect the type
+ * and build a document for each page saved.
+ */
+public class HtmlTextExtractor {
+
+  private static final Set<String> BLOCKS = new HashSet<String>();
+  static {
+    for (String block : new String[] { "address", "article", "aside", "blockquote", "br",
+        "caption", "dd", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer",
+        "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "img", "li", "ol", "p",
+        "pre", "section", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul" }) {
+      BLOCKS.add(block);
+    }
+  }
+
+  private final Reader in;
+  private final StringBuilder text;
+  private boolean space;
+  private final char[] buffer = new char[4096];
+  private int position;
+  private int limit;
+  private boolean pushedBack;
+
+  private HtmlTextExtractor(Reader in, StringBuilder text) {
+    this.in = in;
+    this.text = text;
+  }
+
+  /**
+   * @return the text of the HTML.
+   */
+  public static String extract(String html) {
+    try {
+      return extract(new StringReader(html));
+    } catch (IOException e) {
+      // a string can always be read.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the text of the HTML read from the reader, which is not closed.
+   */
+  public static String extract(Reader html) throws IOException {
+    StringBuilder text = new StringBuilder();
+    new HtmlTextExtractor(html, text).run();
+    return text.toString();
+  }
+
+  private void run() throws IOException {
+    int c;
+    while ((c = read()) != -1) {
+      if (c == '<') {
+        tag();
+      } else if (c == '&') {
+        entity();
+      } else {
+        append((char) c);
+      }
+    }
+  }
+
+  private void tag() throws IOException {
+    int c = read();
+    if (c == '!') {
+      c = read();
+      if (c == '-') {
+        c = read();
+        if (c == '-') {
+          skipTo("-->");
+          return;
+        }
+      }
+      skipTo(">");
+      return;
+    }
+    if (c == '?') {
+      skipTo(">");
+      return;
+    }
+    boolean closing = c == '/';
+    if (closing) {
+      c = read();
+    }
+    if (!Character.isLetter(c)) {
+      // not markup, just a less than sign.
+      append('<');
+      if (closing) {
+        append('/');
+      }
+      unread();
+      return;
+    }
+    StringBuilder name = new StringBuilder();
+    while (c != -1 && (Character.isLetterOrDigit(c) || c == ':' || c == '-')) {
+      name.append(Character.toLowerCase((char) c));
+      c = read();
+    }
+    // skip the attributes, minding quotes as they may hold a >.
+    int quote = 0;
+    while (c != -1 && (quote != 0 || c != '>')) {
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      }
+      c = read();
+    }
+    String element = name.toString();
+    if (BLOCKS.contains(element)) {
+      space = true;
+    }
+    if (!closing && ("script".equals(element) || "style".equals(element))) {
+      skipTo("</" + element);
+      skipTo(">");
+      space = true;
+    }
+  }
+
+  private void entity() throws IOException {
+    StringBuilder name = new StringBuilder();
+    int c = read();
+    while (c != -1 && c != ';' && name.length() < 10
+        && (Character.isLetterOrDigit(c) || c == '#')) {
+      name.append((char) c);
+      c = read();
+    }
+    int decoded = -1;
+    if (c == ';') {
+      decoded = decode(name.toString());
+    }
+    if (decoded == -1) {
+      // left as it was written.
+      append('&');
+      for (int i = 0; i < name.length(); i++) {
+        append(name.charAt(i));
+      }
+      unread();
+    } else {
+      for (char d : Character.toChars(decoded)) {
+        append(d);
+      }
+    }
+  }
+
+  /**
+   * @return the code point the reference is to, or -1 if it is not one.
+   */
+  private int decode(String name) {
+    if (name.length() > 1 && name.charAt(0) == '#') {
+      try {
+        int code;
+        if (name.charAt(1) == 'x' || name.charAt(1) == 'X') {
+          code = Integer.parseInt(name.substring(2), 16);
+        } else {
+          code = Integer.parseInt(name.substring(1));
+        }
+        if (code > 0 && code <= Character.MAX_CODE_POINT
+            && (code < Character.MIN_SURROGATE || code > Character.MAX_SURROGATE)) {
+          return code;
+        }
+      } catch (NumberFormatException e) {
+        // not a reference.
+      }
+      return -1;
+    }
+    if ("apos".equals(name)) {
+      // XML's, which HTML 4 does not have.
+      return '\'';
+    }
+    // the name is only letters and digits, so it is either an entity of one character or
+    // left as it is.
+    String decoded = StringEscapeUtils.unescapeHtml("&" + name + ";");
+    return decoded.length() == 1 ? decoded.charAt(0) : -1;
+  }
+
+  private void append(char c) {
+    if (Character.isWhitespace(c) || c == '\u00a0') {
+      space = true;
+      return;
+    }
+    if (space && text.length() > 0) {
+      text.append(' ');
+    }
+    space = false;
+    text.append(c);
+  }
+
+  /**
+   * Reads up to and including the end, ignoring case.
+   */
+  private void skipTo(String end) throws IOException {
+    int matched = 0;
+    int c;
+    while (matched < end.length() && (c = read()) != -1) {
+      if (Character.toLowerCase(c) == end.charAt(matched)) {
+        matched++;
+      } else {
+        matched = Character.toLowerCase(c) == end.charAt(0) ? 1 : 0;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (pushedBack) {
+      pushedBack = false;
+      return limit == -1 ? -1 : buffer[position - 1];
+    }
+    while (position == limit) {
+      limit = in.read(buffer);
+      position = 0;
+    }
+    if (limit == -1) {
+      return -1;
+    }
+    return buffer[position++];
+  }
+
+  /**
+   * Gives back the last character read, so that it is read again.
+   */
+  private void unread() {
+    pushedBack = true;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages.search;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back the indexing of content that is changing often, such as a page being
+ * autosaved by its editor, until it has been left alone for a quiet period.
+ * <p>
+ * An indexing handler asks whether to hold each event it is given. Held events are
+ * dropped, and once their path has had no changes for the quiet period the last of them
+ * is posted again on a topic of the debouncer's own, so that it is indexed, once, with
+ * whatever the content then holds, without the other listeners of the content topics
+ * seeing the change twice. The resource indexing service indexes the events of that
+ * topic as it does content events. With a quiet period of 0 nothing is held.
+ */
+public class IndexingDebouncer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexingDebouncer.class);
+
+  /**
+   * The base of the topics held events are posted again on. It is under the lite topics,
+   * which the indexing queue listens to.
+   */
+  static final String TOPIC_BASE = StoreListener.TOPIC_BASE + "indexing/";
+
+  private final EventAdmin eventAdmin;
+  private final TopicIndexer topicIndexer;
+  private final IndexingHandler indexer;
+  private final String topic;
+  private final long quietPeriod;
+  private final ScheduledExecutorService timer;
+
+  /**
+   * The last change seen for each path that is being held, and the event to post for it.
+   */
+  private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+  private static class Pending {
+    volatile long lastChange;
+    volatile Event event;
+
+    Pending(long lastChange, Event event) {
+      this.lastChange = lastChange;
+      this.event = event;
+    }
+  }
+
+  /**
+   * @param eventAdmin
+   *          posts events again once their paths go quiet.
+   * @param topicIndexer
+   *          indexes the events posted again.
+   * @param resourceIndexingService
+   *          the service that indexes content events. Nothing is held unless it can also
+   *          index the events posted again.
+   * @param name
+   *          the name of the topic held events are posted again on, unique to the
+   *          handler.
+   * @param quietPeriod
+   *          the ms a path must go without changes before it is indexed.
+   */
+  public IndexingDebouncer(EventAdmin eventAdmin, TopicIndexer topicIndexer,
+      ResourceIndexingService resourceIndexingService, String name, long quietPeriod) {
+    this(eventAdmin, topicIndexer, getIndexer(resourceIndexingService, quietPeriod),
+        name, quietPeriod);
+  }
+
+  IndexingDebouncer(EventAdmin eventAdmin, TopicIndexer topicIndexer,
+      IndexingHandler indexer, final String name, long quietPeriod) {
+    this.eventAdmin = eventAdmin;
+    this.topicIndexer = topicIndexer;
+    this.indexer = indexer;
+    this.topic = TOPIC_BASE + name;
+    this.quietPeriod = indexer == null ? 0 : quietPeriod;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Indexing debouncer " + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (this.quietPeriod > 0) {
+      topicIndexer.addHandler(topic, indexer);
+    }
+  }
+
+  private static IndexingHandler getIndexer(
+      ResourceIndexingService resourceIndexingService, long quietPeriod) {
+    if (resourceIndexingService instanceof IndexingHandler) {
+      return (IndexingHandler) resourceIndexingService;
+    }
+    if (quietPeriod > 0) {
+      LOGGER.warn("{} cannot index held events; indexing every change as it comes",
+          resourceIndexingService);
+    }
+    return null;
+  }
+
+  /**
+   * @return the topic held events are posted again on.
+   */
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * @return true if the event should not be indexed now, as it will be posted again once
+   *         its path goes quiet.
+   */
+  public boolean hold(Event event) {
+    String path = (String) event.getProperty(IndexingHandler.FIELD_PATH);
+    if (quietPeriod <= 0 || path == null || topic.equals(event.getTopic())) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    Pending p = pending.get(path);
+    if (p != null) {
+      p.event = event;
+      p.lastChange = now;
+      // the timer may have just given up on the path, in which case it is held afresh.
+      if (pending.get(path) == p) {
+        return true;
+      }
+    }
+    p = new Pending(now, event);
+    if (pending.putIfAbsent(path, p) != null) {
+      return hold(event);
+    }
+    schedule(path, p, quietPeriod);
+    return true;
+  }
+
+  /**
+   * @return the number of paths being held.
+   */
+  public int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * Stops the timer, and sends the events still being held again straight away. They are
+   * sent rather than posted, so that the indexing queue has them before the handler of
+   * the topic is removed.
+   */
+  public void close() {
+    timer.shutdownNow();
+    for (Entry<String, Pending> e : pending.entrySet()) {
+      release(e.getKey(), e.getValue(), true);
+    }
+    if (quietPeriod > 0) {
+      topicIndexer.removeHandler(topic, indexer);
+    }
+  }
+
+  private void schedule(final String path, final Pending p, long delay) {
+    timer.schedule(new Runnable() {
+      public void run() {
+        long quietFor = System.currentTimeMillis() - p.lastChange;
+        if (quietFor < quietPeriod) {
+          schedule(path, p, quietPeriod - quietFor);
+          return;
+        }
+        release(path, p, false);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Posts the event held for the path again, unless it has already been.
+   *
+   * @param wait
+   *          send the event, returning once it has been handled.
+   */
+  private void release(String path, Pending p, boolean wait) {
+    if (!pending.remove(path, p)) {
+      return;
+    }
+    Event event = p.event;
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    for (String name : event.getPropertyNames()) {
+      properties.put(name, event.getProperty(name));
+    }
+    try {
+      if (wait) {
+        eventAdmin.sendEvent(new Event(topic, properties));
+      } else {
+        eventAdmin.postEvent(new Event(topic, properties));
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Unable to post the indexing of {}: {}", path, e.getMessage());
+    }
+  }
+}
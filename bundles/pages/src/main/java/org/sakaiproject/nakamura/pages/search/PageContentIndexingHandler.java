@@ -24,12 +24,13 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
-import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -40,37 +41,50 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
-import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
- *
+ * Indexes the text of pages. Pages are autosaved as they are edited, so a page is only
+ * indexed once it has gone unchanged for a quiet period.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class PageContentIndexingHandler implements IndexingHandler {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(PageContentIndexingHandler.class);
 
+  private static final long DEFAULT_QUIET_PERIOD = 5000;
+  @Property(longValue = DEFAULT_QUIET_PERIOD, description = "The ms a page must go unchanged before it is indexed, 0 to index every change as it comes.")
+  static final String QUIET_PERIOD = "indexing.quiet.period";
+
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
   @Reference
-  private TikaService tika;
+  private TopicIndexer topicIndexer;
+
+  @Reference
+  private EventAdmin eventAdmin;
+
+  private IndexingDebouncer debouncer;
 
   @Activate
-  protected void activate(BundleContext bundleContext) throws Exception {
+  protected void activate(Map<String, Object> properties) throws Exception {
+    debouncer = new IndexingDebouncer(eventAdmin, topicIndexer, resourceIndexingService,
+        "pagecontent", OsgiUtil.toLong(properties.get(QUIET_PERIOD), DEFAULT_QUIET_PERIOD));
     resourceIndexingService.addHandler("sakai/pagecontent", this);
   }
 
   @Deactivate
   protected void deactivate() {
+    // held events are posted again while this is still the handler for them.
+    debouncer.close();
     resourceIndexingService.removeHandler("sakai/pagecontent", this);
   }
 
@@ -85,55 +99,47 @@ public class PageContentIndexingHandler implements IndexingHandler {
     String path = (String) event.getProperty(FIELD_PATH);
 
     List<SolrInputDocument> docs = Lists.newArrayList();
-    if (!StringUtils.isBlank(path)) {
+    if (!StringUtils.isBlank(path) && !debouncer.hold(event)) {
       try {
         Session session = repositorySession.adaptTo(Session.class);
         ContentManager cm = session.getContentManager();
         Content content = cm.get(path);
 
         if (content != null) {
-          try {
-            String pageContent = (String) content.getProperty("sakai:pagecontent");
-            if (pageContent != null) {
-              // set the path of the parent that holds the content
-              String authId = PathUtils.getAuthorizableId(content.getPath());
-              if (authId == null) {
-                LOGGER.warn("Unable to find auth (user,group) container for widget data [{}]; not indexing widget data", path);
-                return docs;
-              }
+          String pageContent = (String) content.getProperty("sakai:pagecontent");
+          if (pageContent != null) {
+            // set the path of the parent that holds the content
+            String authId = PathUtils.getAuthorizableId(content.getPath());
+            if (authId == null) {
+              LOGGER.warn("Unable to find auth (user,group) container for widget data [{}]; not indexing widget data", path);
+              return docs;
+            }
 
-              SolrInputDocument doc = new SolrInputDocument();
-
-              // extract the content
-              String extracted = tika.parseToString(new ByteArrayInputStream(pageContent
-                  .getBytes("UTF-8")));
-              doc.addField("content", extracted);
-
-              AuthorizableManager am = session.getAuthorizableManager();
-              Authorizable auth = am.findAuthorizable(authId);
-              if (auth != null) {
-                if (auth.isGroup()) {
-                  doc.setField("type", "g");
-                } else {
-                  doc.setField("type", "u");
-                }
-              }
-              // set the path here so that it's the first path found when rendering to the
-              // client. the resource indexing service will add all nodes of the path and
-              // we want this one to return first in the result processor.
-              doc.setField(FIELD_PATH, authId);
+            SolrInputDocument doc = new SolrInputDocument();
 
-              // set the return to a single value field so we can group it
-              doc.setField("returnpath", authId);
+            // extract the content
+            doc.addField("content", HtmlTextExtractor.extract(pageContent));
 
-              // add the source for the indexing service
-              doc.addField(_DOC_SOURCE_OBJECT, content);
-              docs.add(doc);
+            AuthorizableManager am = session.getAuthorizableManager();
+            Authorizable auth = am.findAuthorizable(authId);
+            if (auth != null) {
+              if (auth.isGroup()) {
+                doc.setField("type", "g");
+              } else {
+                doc.setField("type", "u");
+              }
             }
-          } catch (TikaException e) {
-            LOGGER.warn(e.getMessage(), e);
-          } catch (IOException e) {
-            LOGGER.warn(e.getMessage(), e);
+            // set the path here so that it's the first path found when rendering to the
+            // client. the resource indexing service will add all nodes of the path and
+            // we want this one to return first in the result processor.
+            doc.setField(FIELD_PATH, authId);
+
+            // set the return to a single value field so we can group it
+            doc.setField("returnpath", authId);
+
+            // add the source for the indexing service
+            doc.addField(_DOC_SOURCE_OBJECT, content);
+            docs.add(doc);
           }
         }
       } catch (StorageClientException e) {
@@ -158,5 +164,4 @@ public class PageContentIndexingHandler implements IndexingHandler {
     String path = (String) event.getProperty(FIELD_PATH);
     return ImmutableList.of("id:" + ClientUtils.escapeQueryChars(path));
   }
-
 }
@@ -24,11 +24,14 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -39,18 +42,23 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * Indexing handler for widget data stored under a group. See {@link https
  * ://confluence.sakaiproject.org/display/KERNDOC/KERN-1675+Searching+Widget+Data} for
  * more details.
+ * <p>
+ * Widgets save their data as it is edited, so it is only indexed once it has gone
+ * unchanged for a quiet period.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 public class WidgetDataIndexingHandler implements IndexingHandler {
 
@@ -59,16 +67,32 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
   private static final Logger logger = LoggerFactory
       .getLogger(WidgetDataIndexingHandler.class);
 
+  private static final long DEFAULT_QUIET_PERIOD = 5000;
+  @Property(longValue = DEFAULT_QUIET_PERIOD, description = "The ms widget data must go unchanged before it is indexed, 0 to index every change as it comes.")
+  static final String QUIET_PERIOD = "indexing.quiet.period";
+
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  private TopicIndexer topicIndexer;
+
+  @Reference
+  private EventAdmin eventAdmin;
+
+  private IndexingDebouncer debouncer;
+
   @Activate
-  protected void activate() {
+  protected void activate(Map<String, Object> properties) {
+    debouncer = new IndexingDebouncer(eventAdmin, topicIndexer, resourceIndexingService,
+        "widget-data", OsgiUtil.toLong(properties.get(QUIET_PERIOD), DEFAULT_QUIET_PERIOD));
     resourceIndexingService.addHandler("sakai/widget-data", this);
   }
 
   @Deactivate
   protected void deactivate() {
+    // held events are posted again while this is still the handler for them.
+    debouncer.close();
     resourceIndexingService.removeHandler("sakai/widget-data", this);
   }
 
@@ -83,11 +107,15 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
     String path = (String) event.getProperty(FIELD_PATH);
 
     Collection<SolrInputDocument> docs = Lists.newArrayList();
-    if (!StringUtils.isBlank(path)) {
+    if (!StringUtils.isBlank(path) && !debouncer.hold(event)) {
       try {
         Session session = repositorySession.adaptTo(Session.class);
         ContentManager cm = session.getContentManager();
         Content content = cm.get(path);
+        if (content == null) {
+          // removed while it was being held.
+          return docs;
+        }
 
         String authId = PathUtils.getAuthorizableId(content.getPath());
         if (authId == null) {
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class HtmlTextExtractorTest {
+
+  @Test
+  public void testMarkupIsDropped() {
+    assertEquals("Week 1 Read chapter one, then the notes.",
+        HtmlTextExtractor.extract("<h1 class=\"title\">Week 1</h1>\n<p>Read <b>chapter</b>"
+            + " one,<br/>then the <a href=\"notes.html\" title=\"a > b\">notes</a>.</p>"));
+    assertEquals("bold", HtmlTextExtractor.extract("<b>bo</b><i>ld</i>"));
+    assertEquals("one two", HtmlTextExtractor.extract("<ul><li>one</li><li>two</li></ul>"));
+  }
+
+  @Test
+  public void testScriptsStylesAndCommentsAreDropped() {
+    assertEquals("before after", HtmlTextExtractor.extract("before<script type=\"text/javascript\">"
+        + "if (a < b) { document.write('<p>no</p>'); }</SCRIPT>after"));
+    assertEquals("text", HtmlTextExtractor.extract("<style>p { color: red; }</style>text"));
+    assertEquals("a b", HtmlTextExtractor.extract("a <!-- <p>hidden</p> --> b"));
+    assertEquals("doc", HtmlTextExtractor.extract("<?xml version=\"1.0\"?><!DOCTYPE html>doc"));
+  }
+
+  @Test
+  public void testReferencesAreDecoded() {
+    assertEquals("Tom & Jerry <3 caf\u00e9 \u2014 \u20ac5 a b",
+        HtmlTextExtractor.extract("Tom &amp; Jerry &lt;3 caf&#233; &mdash; &#x20AC;5 a&nbsp;b"));
+    assertEquals("R&D & co &bogus; &", HtmlTextExtractor.extract("R&D & co &bogus; &"));
+  }
+
+  @Test
+  public void testAllReferencesAreDecoded() {
+    assertEquals("\u00c5ngstr\u00f6m \u03b1\u2264\u03b2 \u2660 it's \u2135",
+        HtmlTextExtractor.extract("&Aring;ngstr&ouml;m &alpha;&le;&beta; &spades; it&apos;s"
+            + " &alefsym;"));
+    assertEquals("\ud83d\ude00 \ud834\udd1e", HtmlTextExtractor.extract("&#x1F600; &#119070;"));
+    assertEquals("&#xD800; &#x110000;", HtmlTextExtractor.extract("&#xD800; &#x110000;"));
+  }
+
+  @Test
+  public void testStrayMarkup() {
+    assertEquals("1 < 2 and 3 </ 4", HtmlTextExtractor.extract("1 < 2 and 3 </ 4"));
+    assertEquals("a", HtmlTextExtractor.extract("a<p class=\"unterminated"));
+    assertEquals("", HtmlTextExtractor.extract(""));
+    assertEquals("<", HtmlTextExtractor.extract("<"));
+  }
+
+  @Test
+  public void testLongContent() {
+    StringBuilder html = new StringBuilder();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      html.append("<p>paragraph &amp; ").append(i).append("</p>\n");
+      text.append(i == 0 ? "" : " ").append("paragraph & ").append(i);
+    }
+    assertEquals(text.toString(), HtmlTextExtractor.extract(html.toString()));
+  }
+}
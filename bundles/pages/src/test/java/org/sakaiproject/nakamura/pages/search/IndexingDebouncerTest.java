@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.tika.Tika;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class IndexingDebouncerTest {
+
+  private static final String TOPIC = "org/sakaiproject/nakamura/lite/content/UPDATED";
+
+  /**
+   * Queues what is posted, as the indexing queue would.
+   */
+  private final LinkedBlockingQueue<Event> posted = new LinkedBlockingQueue<Event>();
+  /**
+   * Queues what is sent while its topic has a handler, which the indexing queue would
+   * then index.
+   */
+  private final LinkedBlockingQueue<Event> sent = new LinkedBlockingQueue<Event>();
+  private final EventAdmin eventAdmin = new EventAdmin() {
+    public void postEvent(Event event) {
+      posted.add(event);
+    }
+
+    public void sendEvent(Event event) {
+      if (topics.containsKey(event.getTopic())) {
+        sent.add(event);
+      }
+    }
+  };
+  /**
+   * The handlers of the topics, as the indexing queue would have them.
+   */
+  private final Map<String, IndexingHandler> topics = new HashMap<String, IndexingHandler>();
+  private final TopicIndexer topicIndexer = new TopicIndexer() {
+    public void addHandler(String topic, IndexingHandler handler) {
+      topics.put(topic, handler);
+    }
+
+    public void removeHandler(String topic, IndexingHandler handler) {
+      topics.remove(topic);
+    }
+  };
+  private final IndexingHandler indexer = new IndexingHandler() {
+    public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+        Event event) {
+      return Collections.emptyList();
+    }
+
+    public Collection<String> getDeleteQueries(RepositorySession repositorySession,
+        Event event) {
+      return Collections.emptyList();
+    }
+  };
+  private IndexingDebouncer debouncer;
+
+  @After
+  public void after() {
+    if (debouncer != null) {
+      debouncer.close();
+    }
+  }
+
+  @Test
+  public void testChangesAreHeldUntilQuiet() throws Exception {
+    debouncer = debouncer(100);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(debouncer.hold(event("a/page", i)));
+      Thread.sleep(10);
+    }
+    assertNull(posted.poll(50, TimeUnit.MILLISECONDS));
+
+    Event event = posted.poll(1, TimeUnit.SECONDS);
+    assertNotNull(event);
+    assertEquals(debouncer.getTopic(), event.getTopic());
+    assertEquals("a/page", event.getProperty("path"));
+    assertEquals(9, event.getProperty("save"));
+    assertFalse(debouncer.hold(event));
+    assertNull(posted.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, debouncer.getPending());
+  }
+
+  @Test
+  public void testPathsAreHeldApart() throws Exception {
+    debouncer = debouncer(50);
+    assertTrue(debouncer.hold(event("a/page", 0)));
+    assertTrue(debouncer.hold(event("b/page", 0)));
+    assertTrue(debouncer.hold(event("a/page", 1)));
+    Set<Object> paths = new HashSet<Object>();
+    paths.add(posted.poll(1, TimeUnit.SECONDS).getProperty("path"));
+    paths.add(posted.poll(1, TimeUnit.SECONDS).getProperty("path"));
+    assertEquals(2, paths.size());
+    assertNull(posted.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testNoQuietPeriod() throws Exception {
+    debouncer = debouncer(0);
+    assertFalse(debouncer.hold(event("a/page", 0)));
+    assertFalse(debouncer.hold(event("a/page", 1)));
+    assertNull(posted.poll(50, TimeUnit.MILLISECONDS));
+    assertTrue(topics.isEmpty());
+  }
+
+  @Test
+  public void testHeldEventsAreIndexedOnTheirOwnTopic() throws Exception {
+    debouncer = debouncer(100);
+    assertSame(indexer, topics.get(debouncer.getTopic()));
+    assertFalse(TOPIC.equals(debouncer.getTopic()));
+    assertTrue(debouncer.getTopic().startsWith(IndexingDebouncer.TOPIC_BASE));
+
+    debouncer.close();
+    assertTrue(topics.isEmpty());
+  }
+
+  @Test
+  public void testHeldEventsAreSentOnClose() throws Exception {
+    debouncer = debouncer(10000);
+    assertTrue(debouncer.hold(event("a/page", 0)));
+    assertTrue(debouncer.hold(event("a/page", 1)));
+    debouncer.close();
+
+    // sent while the topic still had its handler.
+    Event event = sent.poll();
+    assertNotNull(event);
+    assertEquals(debouncer.getTopic(), event.getTopic());
+    assertEquals(1, event.getProperty("save"));
+    assertNull(sent.poll());
+    assertNull(posted.poll());
+    assertEquals(0, debouncer.getPending());
+  }
+
+  @Test
+  public void testNothingIsHeldWithoutAnIndexer() throws Exception {
+    ResourceIndexingService resourceIndexingService = new ResourceIndexingService() {
+      public void addHandler(String key, IndexingHandler handler) {
+      }
+
+      public void removeHandler(String key, IndexingHandler handler) {
+      }
+    };
+    debouncer = new IndexingDebouncer(eventAdmin, topicIndexer, resourceIndexingService,
+        "test", 100);
+    assertFalse(debouncer.hold(event("a/page", 0)));
+    assertTrue(topics.isEmpty());
+  }
+
+  /**
+   * Replays 20 editors autosaving 20KB pages every 10ms for 2 seconds, parsing every save
+   * with Tika as the page indexing handler did, and holding the saves as it does now with
+   * a quiet period of 100ms, extracting the text of each page once it goes quiet. Run
+   * with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkAutosaveStream() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int editors = 20;
+    int saves = 200;
+    Tika tika = new Tika();
+    System.out.println("mode, ms indexing, events, extractions");
+    for (int round = 0; round < 3; round++) {
+      for (int debounced = 0; debounced < 2; debounced++) {
+        final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+        debouncer = debouncer(100);
+        int events = 0;
+        int extractions = 0;
+        long time = 0;
+        for (int save = 0; save < saves; save++) {
+          for (int editor = 0; editor < editors; editor++) {
+            String path = "g/group" + editor + "/pages/_pages/week1";
+            pages.put(path, page(editor, save));
+            events++;
+            long start = System.nanoTime();
+            if (debounced == 0) {
+              tika.parseToString(new ByteArrayInputStream(pages.get(path).getBytes("UTF-8")));
+              extractions++;
+            } else if (!debouncer.hold(event(path, save))) {
+              extractions += extract(path, pages);
+            }
+            time += System.nanoTime() - start;
+          }
+          Event event;
+          while ((event = posted.poll()) != null) {
+            events++;
+            long start = System.nanoTime();
+            extractions += extract((String) event.getProperty("path"), pages);
+            time += System.nanoTime() - start;
+          }
+          Thread.sleep(10);
+        }
+        // the last saves go quiet.
+        Event event;
+        while ((event = posted.poll(500, TimeUnit.MILLISECONDS)) != null) {
+          events++;
+          long start = System.nanoTime();
+          extractions += extract((String) event.getProperty("path"), pages);
+          time += System.nanoTime() - start;
+        }
+        debouncer.close();
+        System.out.println((debounced == 1 ? "debounced" : "every change") + ", "
+            + (time / 1000000) + ", " + events + ", " + extractions);
+      }
+    }
+  }
+
+  private int extract(String path, Map<String, String> pages) {
+    HtmlTextExtractor.extract(pages.get(path));
+    return 1;
+  }
+
+  private IndexingDebouncer debouncer(long quietPeriod) {
+    return new IndexingDebouncer(eventAdmin, topicIndexer, indexer, "test", quietPeriod);
+  }
+
+  private String page(int editor, int save) {
+    StringBuilder html = new StringBuilder();
+    html.append("<h1>Week 1 for group ").append(editor).append("</h1>");
+    for (int i = 0; i < 200; i++) {
+      html.append("<p class=\"para\">Paragraph ").append(i).append(
+          " of the <b>notes</b> &amp; <a href=\"/p/reading\">reading</a> list.</p>\n");
+    }
+    html.append("<p>Last edited at save ").append(save).append("</p>");
+    return html.toString();
+  }
+
+  private Event event(String path, int save) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    properties.put("save", save);
+    return new Event(TOPIC, properties);
+  }
+}
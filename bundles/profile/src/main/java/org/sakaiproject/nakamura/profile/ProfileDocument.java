@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.profile.ProfileConstants;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A profile materialised as the map it is served as, built with one walk of the profile
+ * tree. A document is not changed once built, so that it can be cached and resolved for
+ * any number of readers at once.
+ * <p>
+ * External nodes are rendered from the repository like any other node, and recorded as
+ * sections whose subtree is replaced by what their provider returns when the document
+ * is resolved. Nodes below the top of the profile that carry access control of their
+ * own are recorded too, so that they can be left out for readers that cannot read them.
+ */
+class ProfileDocument {
+
+  /**
+   * A node of the profile, and where it is in the document.
+   */
+  static class Location {
+    final String path;
+    final String[] names;
+
+    Location(String path, String[] names) {
+      this.path = path;
+      this.names = names;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    boolean isBelow(String ancestor) {
+      return path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+  }
+
+  /**
+   * An external node of the profile.
+   */
+  static class Section extends Location {
+    private final ProviderSettings settings;
+
+    Section(String path, String[] names, ProviderSettings settings) {
+      super(path, names);
+      this.settings = settings;
+    }
+
+    ProviderSettings getSettings() {
+      return settings;
+    }
+  }
+
+  private final Map<String, Object> document;
+  private final String idKey;
+  private final String idValue;
+  private final List<Section> sections;
+  private final List<Location> restricted;
+
+  private ProfileDocument(Map<String, Object> document, String idKey, String idValue,
+      List<Section> sections, List<Location> restricted) {
+    this.document = document;
+    this.idKey = idKey;
+    this.idValue = idValue;
+    this.sections = sections;
+    this.restricted = restricted;
+  }
+
+  /**
+   * @param profileContent
+   *          the top node of the profile.
+   * @param jcrSession
+   *          to look up the settings of external nodes with.
+   * @param providerSettingsFactory
+   * @param accessControlManager
+   *          to find the nodes with access control of their own with, or null if the
+   *          profile was read as its reader and there is no need to.
+   * @return the profile, materialised.
+   */
+  static ProfileDocument build(Content profileContent, Session jcrSession,
+      ProviderSettingsFactory providerSettingsFactory,
+      AccessControlManager accessControlManager) throws RepositoryException,
+      StorageClientException, AccessDeniedException {
+    List<Section> sections = new ArrayList<Section>();
+    List<Location> restricted = new ArrayList<Location>();
+    Builder builder = new Builder(jcrSession, providerSettingsFactory,
+        accessControlManager, sections, restricted);
+    Map<String, Object> document = builder.render(profileContent, "", new String[0], true);
+
+    String idKey = null;
+    final String resourceType = (String) profileContent.getProperty("sling:resourceType");
+    if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
+      idKey = "userid";
+    } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
+      idKey = "groupid";
+    }
+    return new ProfileDocument(document, idKey, PathUtils.getAuthorizableId(profileContent
+        .getPath()), Collections.unmodifiableList(sections), Collections
+        .unmodifiableList(restricted));
+  }
+
+  /**
+   * @return the nodes with access control of their own, ancestors first.
+   */
+  List<Location> getRestricted() {
+    return restricted;
+  }
+
+  /**
+   * @param hidden
+   *          the paths of the nodes left out for the reader.
+   * @return the settings of the external nodes the reader will be served.
+   */
+  List<ProviderSettings> getSections(Set<String> hidden) {
+    List<ProviderSettings> settings = new ArrayList<ProviderSettings>();
+    for (Section section : sections) {
+      if (!isHidden(section, hidden)) {
+        settings.add(section.getSettings());
+      }
+    }
+    return settings;
+  }
+
+  /**
+   * @param hidden
+   *          the paths of the nodes to leave out.
+   * @param provided
+   *          what providers returned for external nodes, by path. Those not in it are
+   *          served as they are in the repository.
+   * @return a copy of the document for a reader.
+   */
+  ValueMap resolve(Set<String> hidden, Map<String, Map<String, Object>> provided) {
+    ValueMap map = copy(document);
+    for (Location location : restricted) {
+      if (hidden.contains(location.path)) {
+        Map<String, Object> parent = getParent(map, location.names);
+        if (parent != null) {
+          parent.remove(location.names[location.names.length - 1]);
+        }
+      }
+    }
+    for (Section section : sections) {
+      Map<String, Object> providedMap = provided.get(section.path);
+      if (providedMap == null || isHidden(section, hidden)) {
+        continue;
+      }
+      if (section.names.length == 0) {
+        map = copy(providedMap);
+      } else {
+        Map<String, Object> parent = getParent(map, section.names);
+        if (parent != null) {
+          parent.put(section.names[section.names.length - 1], copy(providedMap));
+        }
+      }
+    }
+    if (idKey != null) {
+      map.put(idKey, idValue);
+    }
+    return map;
+  }
+
+  private boolean isHidden(Location location, Set<String> hidden) {
+    for (String path : hidden) {
+      if (location.isBelow(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> getParent(Map<String, Object> map, String[] names) {
+    Map<String, Object> parent = map;
+    for (int i = 0; parent != null && i < names.length - 1; i++) {
+      Object child = parent.get(names[i]);
+      parent = child instanceof Map ? (Map<String, Object>) child : null;
+    }
+    return parent;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ValueMap copy(Map<String, Object> map) {
+    ValueMap copy = new ValueMapDecorator(new HashMap<String, Object>());
+    for (Entry<String, Object> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        value = copy((Map<String, Object>) value);
+      }
+      copy.put(e.getKey(), value);
+    }
+    return copy;
+  }
+
+  /**
+   * Walks a profile once, rendering it and recording its sections and restricted nodes.
+   */
+  private static class Builder {
+    private final Session jcrSession;
+    private final ProviderSettingsFactory providerSettingsFactory;
+    private final AccessControlManager accessControlManager;
+    private final List<Section> sections;
+    private final List<Location> restricted;
+
+    Builder(Session jcrSession, ProviderSettingsFactory providerSettingsFactory,
+        AccessControlManager accessControlManager, List<Section> sections,
+        List<Location> restricted) {
+      this.jcrSession = jcrSession;
+      this.providerSettingsFactory = providerSettingsFactory;
+      this.accessControlManager = accessControlManager;
+      this.sections = sections;
+      this.restricted = restricted;
+    }
+
+    /**
+     * @param settingsPath
+     *          the path of the node below the top of the profile, which is where its
+     *          provider settings are.
+     * @param scan
+     *          false below an external node, whose subtree its provider replaces.
+     */
+    Map<String, Object> render(Content content, String settingsPath, String[] names,
+        boolean scan) throws RepositoryException, StorageClientException,
+        AccessDeniedException {
+      String path = content.getPath();
+      if (names.length > 0 && hasOwnAcl(path)) {
+        restricted.add(new Location(path, names));
+      }
+      if (scan) {
+        ProviderSettings settings = providerSettingsFactory.newProviderSettings(
+            settingsPath, content, jcrSession);
+        if (settings != null) {
+          sections.add(new Section(path, names, settings));
+          scan = false;
+        }
+      }
+
+      // The Sparse properties excluding any system properties.
+      Map<String, Object> map = new HashMap<String, Object>();
+      for (Entry<String, Object> e : content.getProperties().entrySet()) {
+        String k = e.getKey();
+        if (!k.startsWith("_") && !k.startsWith(":")) {
+          map.put(k, e.getValue());
+        }
+      }
+      map.put("jcr:path", PathUtils.translateAuthorizablePath(path));
+      map.put("jcr:name", StorageClientUtils.getObjectName(path));
+
+      for (Content child : content.listChildren()) {
+        String name = StorageClientUtils.getObjectName(child.getPath());
+        String[] childNames = new String[names.length + 1];
+        System.arraycopy(names, 0, childNames, 0, names.length);
+        childNames[names.length] = name;
+        map.put(name, render(child, StorageClientUtils.newPath(settingsPath, name),
+            childNames, scan));
+      }
+      return map;
+    }
+
+    private boolean hasOwnAcl(String path) throws StorageClientException,
+        AccessDeniedException {
+      if (accessControlManager == null) {
+        return false;
+      }
+      Map<String, Object> acl = accessControlManager.getAcl(Security.ZONE_CONTENT, path);
+      for (String key : acl.keySet()) {
+        if (AclModification.isGrant(key)
+            || key.equals(AclModification.denyKey(AclModification.getPrincipal(key)))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -20,27 +20,42 @@ package org.sakaiproject.nakamura.profile;
 import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_DESCRIPTION_PROPERTY;
 import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_TITLE_PROPERTY;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferenceStrategy;
 import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.profile.ProfileConstants;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
@@ -51,35 +66,92 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 /**
- *
+ * Serves profiles from documents materialised from the profile tree, which are cached
+ * across the cluster by the path of the profile and dropped whenever anything in the
+ * profile changes. A reader is served a copy of the document, without the nodes that
+ * have access control of their own that the reader cannot read, and with the sections
+ * from external providers replaced by what the providers returned, which is cached and
+ * refreshed in the background once older than {@link #PROVIDER_TTL}.
  */
 @Component(immediate = true, metatype=true, specVersion="1.1")
-@Service(value = ProfileService.class)
+@Services(value = { @Service(value = ProfileService.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/*", propertyPrivate = true) })
 @References(value = { @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider") })
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
+
+  static final String DOCUMENT_CACHE = "org.sakaiproject.nakamura.profile.documents";
+  static final String PROVIDED_CACHE = "org.sakaiproject.nakamura.profile.provided";
+
+  private static final long DEFAULT_PROVIDER_TTL = 300;
+  @Property(longValue = DEFAULT_PROVIDER_TTL)
+  static final String PROVIDER_TTL = "profile.provider.ttl";
+
+  private static final String PROFILE_SUFFIX = "/" + LitePersonalUtils.PATH_PUBLIC + "/"
+      + LitePersonalUtils.PATH_AUTH_PROFILE;
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
   public static final Logger LOG = LoggerFactory.getLogger(ProfileServiceImpl.class);
-  
 
-  
-  
+  /**
+   * Counts the changes to profiles, so that a document built while its profile changed
+   * is not cached.
+   */
+  private final AtomicLong changes = new AtomicLong();
+  private ExecutorService refreshExecutor;
+  private ProvidedSectionCache providedSections;
+
+  @Reference
+  protected BasicUserInfoService basicUserInfoService;
+
+  @Reference
+  protected Repository repository;
+
   @Reference
-  private BasicUserInfoService basicUserInfoService;
+  protected CacheManagerService cacheManagerService;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    long ttl = OsgiUtil.toLong(properties.get(PROVIDER_TTL), DEFAULT_PROVIDER_TTL);
+    refreshExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Profile provider refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Cache<ProvidedSectionCache.ProvidedSection> cache = null;
+    if (cacheManagerService != null) {
+      cache = cacheManagerService.getCache(PROVIDED_CACHE, CacheScope.INSTANCE);
+    }
+    providedSections = new ProvidedSectionCache(providers, cache, ttl * 1000L,
+        refreshExecutor);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -158,9 +230,14 @@ public class ProfileServiceImpl implements ProfileService {
     org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils.adaptToSession(session);
     ContentManager contentManager = sparseSession.getContentManager();
     ValueMap profileMap = new ValueMapDecorator(new HashMap<String, Object>());
-    
-    if (contentManager.exists(profilePath)) {
-      Content profileContent = contentManager.get(profilePath);
+
+    Content profileContent = null;
+    try {
+      profileContent = contentManager.get(profilePath);
+    } catch (AccessDeniedException e) {
+      LOG.debug("Unable to read profile {}: {}", profilePath, e.getMessage());
+    }
+    if (profileContent != null) {
       profileMap.putAll(getResolvedProfileMap(authorizable, profileContent, session));
     }
 
@@ -175,127 +252,153 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
-    // Get the data from our external providers.
-    Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
-    Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
-    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-      ProfileProvider pp = providers.get(e.getKey());
-      if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
-      }
-    }
     try {
-      // Return it as a ValueMap.
-      ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
-      handleNode(profileContent, providedNodeData, map);
-      final String resourceType = (String) profileContent
-          .getProperty("sling:resourceType");
-      if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
-        map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
-        map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
+      ProfileDocument document = getDocument(profileContent.getPath(), jcrSession);
+      if (document == null) {
+        // read as the reader, who can only see what they may.
+        document = ProfileDocument.build(profileContent, jcrSession,
+            providerSettingsFactory, null);
+      }
+      Set<String> hidden = getHidden(document, jcrSession);
+      Map<String, Map<String, Object>> provided = Collections.emptyMap();
+      List<ProviderSettings> sections = document.getSections(hidden);
+      if (!sections.isEmpty()) {
+        provided = getProvidedSections().get(sections);
       }
-      return map;
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e.getMessage(),e);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e.getMessage(),e);
+      return document.resolve(hidden, provided);
+    } catch (StorageClientException e) {
+      throw new RepositoryException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new RepositoryException(e.getMessage(), e);
     }
   }
 
   /**
-   * Fills the provided map with the JCR info and the external information.
+   * {@inheritDoc}
    *
-   * @param profileContent
-   *          The node that should be merged with the external info. The entire nodetree
-   *          will be checked.
-   * @param baseMap
-   *          The map that contains the external information.
-   * @param map
-   *          The map that should be filled.
-   * @throws RepositoryException
-   * @throws InterruptedException
-   * @throws ExecutionException
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  protected void handleNode(Content profileContent, Map<Content, Future<Map<String, Object>>> baseMap,
-      Map<String, Object> map) throws RepositoryException, InterruptedException,
-      ExecutionException {
-    // If our map contains this node, that means one of the provides had some information
-    // for it.
-    // We will use the provider.
-    if (baseMap.containsKey(profileContent.getPath())) {
-      map.putAll(baseMap.get(profileContent.getPath()).get());
-    } else {
-
-      // The node wasn't found in the baseMap.
-      // We just dump the Sparse properties excluding any system properties.
-      for ( Entry<String, Object> e : profileContent.getProperties().entrySet()) {
-        String k = e.getKey();
-        if ( !k.startsWith("_") &&  !k.startsWith(":") ) {
-          map.put(k,e.getValue());
-        }
-      }
-      map.put("jcr:path", PathUtils.translateAuthorizablePath(profileContent.getPath()));
-      map.put("jcr:name", StorageClientUtils.getObjectName(profileContent.getPath()));
-
-      // We loop over the child nodes, but each node get checked against the baseMap
-      // again.
-      for (Content childProfile : profileContent.listChildren()) {
-        ValueMap childMap = new ValueMapDecorator(new HashMap<String, Object>());
-        handleNode(childProfile, baseMap, childMap);
-        map.put(StorageClientUtils.getObjectName(childProfile.getPath()), childMap);
-      }
+  public void handleEvent(Event event) {
+    String profilePath = getProfileRoot((String) event
+        .getProperty(StoreListener.PATH_PROPERTY));
+    if (profilePath == null) {
+      return;
+    }
+    changes.incrementAndGet();
+    Cache<ProfileDocument> cache = getDocumentCache();
+    if (cache != null) {
+      cache.remove(profilePath);
     }
   }
 
-
+  /**
+   * @return the path of the profile the path is in, or null if it is not in one.
+   */
+  static String getProfileRoot(String path) {
+    if (path == null) {
+      return null;
+    }
+    int i = path.indexOf(PROFILE_SUFFIX);
+    if (i < 0) {
+      return null;
+    }
+    int end = i + PROFILE_SUFFIX.length();
+    if (end < path.length() && path.charAt(end) != '/') {
+      return null;
+    }
+    return path.substring(0, end);
+  }
 
   /**
-   * Loops over an entire profile and checks if some of the nodes are marked as external.
-   * If there is a node found that has it's sakai:source property set to external, we'll
-   * look for a ProfileProvider that matches that path.
-   *
-   * @param profileContent
-   *          The top node of a profile.
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * @return the materialised profile, from the cache if it is there, or null if it
+   *         cannot be materialised for everyone, and must be read as the reader.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(Content profileContent, Session jcrSession)
-      throws RepositoryException {
-    Map<String, List<ProviderSettings>> providerMap = new HashMap<String, List<ProviderSettings>>();
-    return scanForProviders("", profileContent, providerMap, jcrSession);
+  private ProfileDocument getDocument(String profilePath, Session jcrSession)
+      throws RepositoryException, StorageClientException, AccessDeniedException {
+    Cache<ProfileDocument> cache = getDocumentCache();
+    if (cache == null || repository == null) {
+      return null;
+    }
+    ProfileDocument document = cache.get(profilePath);
+    if (document != null) {
+      return document;
+    }
+    long changesBefore = changes.get();
+    org.sakaiproject.nakamura.api.lite.Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      Content profileContent = adminSession.getContentManager().get(profilePath);
+      if (profileContent == null) {
+        return null;
+      }
+      document = ProfileDocument.build(profileContent, jcrSession, providerSettingsFactory,
+          adminSession.getAccessControlManager());
+    } catch (ClientPoolException e) {
+      throw new RepositoryException(e.getMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+    if (changesBefore == changes.get()) {
+      cache.put(profilePath, document);
+    }
+    return document;
   }
 
   /**
-   * @param path
-   * @param profileContent
-   * @param providerMap
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * @return the paths of the nodes with access control of their own that the reader
+   *         cannot read.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(String path, Content profileContent,
-      Map<String, List<ProviderSettings>> providerMap, Session jcrSession) throws RepositoryException {
-    ProviderSettings settings = providerSettingsFactory.newProviderSettings(path, profileContent, jcrSession);
-    if (settings == null) {
-      for (Content childProfileContent : profileContent.listChildren()) {
-        scanForProviders(StorageClientUtils.newPath(path, StorageClientUtils.getObjectName(childProfileContent.getPath())), childProfileContent, providerMap, jcrSession);
+  private Set<String> getHidden(ProfileDocument document, Session jcrSession)
+      throws StorageClientException {
+    if (document.getRestricted().isEmpty()) {
+      return Collections.emptySet();
+    }
+    Set<String> hidden = new HashSet<String>();
+    AccessControlManager accessControlManager = StorageClientUtils.adaptToSession(
+        jcrSession).getAccessControlManager();
+    for (ProfileDocument.Location location : document.getRestricted()) {
+      boolean below = false;
+      for (String path : hidden) {
+        below = below || location.isBelow(path);
+      }
+      if (below) {
+        continue;
+      }
+      try {
+        accessControlManager.check(Security.ZONE_CONTENT, location.getPath(),
+            Permissions.CAN_READ);
+      } catch (AccessDeniedException e) {
+        hidden.add(location.getPath());
       }
-    } else {
+    }
+    return hidden;
+  }
+
+  private Cache<ProfileDocument> getDocumentCache() {
+    if (cacheManagerService == null) {
+      return null;
+    }
+    return cacheManagerService.getCache(DOCUMENT_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
 
-      List<ProviderSettings> l = providerMap.get(settings.getProvider());
+  private ProvidedSectionCache getProvidedSections() {
+    if (providedSections == null) {
+      // not activated, ask the providers every time.
+      providedSections = new ProvidedSectionCache(providers, null, 0, null);
+    }
+    return providedSections;
+  }
 
-      if (l == null) {
-        l = new ArrayList<ProviderSettings>();
-        providerMap.put(settings.getProvider(), l);
+  private void logout(org.sakaiproject.nakamura.api.lite.Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOG.warn(e.getMessage(), e);
       }
-      l.add(settings);
     }
-    return providerMap;
   }
 
-
   protected void bindProfileProvider(ProfileProvider provider,
       Map<String, Object> properties) {
     String name = (String) properties.get(ProfileProvider.PROVIDER_NAME);
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What external profile providers returned for the sections of profiles, by the path of
+ * the section.
+ * <p>
+ * A section is fetched while its reader waits only when nothing is cached for it. Once
+ * what is cached is older than the ttl it is still served, and fetched again in the
+ * background, once however many read it in the meantime. A section that a provider fails
+ * to return is not cached, and is served as it is in the repository.
+ */
+class ProvidedSectionCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvidedSectionCache.class);
+
+  static class ProvidedSection {
+    private final Map<String, Object> map;
+    private final long fetched;
+
+    ProvidedSection(Map<String, Object> map, long fetched) {
+      this.map = map;
+      this.fetched = fetched;
+    }
+  }
+
+  private final Map<String, ProfileProvider> providers;
+  private final Cache<ProvidedSection> cache;
+  private final long ttl;
+  private final Executor executor;
+  private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * @param providers
+   *          the providers by name.
+   * @param cache
+   *          where to keep what providers return, or null to ask them on every read.
+   * @param ttl
+   *          how long, in ms, what a provider returned is served before it is fetched
+   *          again.
+   * @param executor
+   *          to fetch sections again on.
+   */
+  ProvidedSectionCache(Map<String, ProfileProvider> providers,
+      Cache<ProvidedSection> cache, long ttl, Executor executor) {
+    this.providers = providers;
+    this.cache = cache;
+    this.ttl = ttl;
+    this.executor = executor;
+  }
+
+  /**
+   * @return what the providers returned for each of the sections, by path.
+   */
+  Map<String, Map<String, Object>> get(List<ProviderSettings> sections) {
+    if (cache == null) {
+      return fetch(sections);
+    }
+    Map<String, Map<String, Object>> provided = new HashMap<String, Map<String, Object>>();
+    List<ProviderSettings> missing = new ArrayList<ProviderSettings>();
+    final List<ProviderSettings> stale = new ArrayList<ProviderSettings>();
+    long now = System.currentTimeMillis();
+    for (ProviderSettings settings : sections) {
+      String path = settings.getNode().getPath();
+      ProvidedSection cached = cache.get(path);
+      if (cached == null) {
+        missing.add(settings);
+      } else {
+        provided.put(path, cached.map);
+        if (now - cached.fetched >= ttl && refreshing.putIfAbsent(path, Boolean.TRUE) == null) {
+          stale.add(settings);
+        }
+      }
+    }
+    if (!missing.isEmpty()) {
+      provided.putAll(fetch(missing));
+    }
+    if (!stale.isEmpty()) {
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              fetch(stale);
+            } finally {
+              refreshed(stale);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("Not refreshing profile sections, shutting down");
+        refreshed(stale);
+      }
+    }
+    return provided;
+  }
+
+  private void refreshed(List<ProviderSettings> sections) {
+    for (ProviderSettings settings : sections) {
+      refreshing.remove(settings.getNode().getPath());
+    }
+  }
+
+  /**
+   * Asks each provider for all of its sections at once, and waits for them.
+   */
+  private Map<String, Map<String, Object>> fetch(List<ProviderSettings> sections) {
+    Map<String, List<ProviderSettings>> byProvider = new HashMap<String, List<ProviderSettings>>();
+    for (ProviderSettings settings : sections) {
+      List<ProviderSettings> l = byProvider.get(settings.getProvider());
+      if (l == null) {
+        l = new ArrayList<ProviderSettings>();
+        byProvider.put(settings.getProvider(), l);
+      }
+      l.add(settings);
+    }
+
+    // providers return the nodes they were given, which may not be the same objects.
+    Map<String, Future<Map<String, Object>>> futures = new HashMap<String, Future<Map<String, Object>>>();
+    for (Entry<String, List<ProviderSettings>> e : byProvider.entrySet()) {
+      ProfileProvider pp = providers.get(e.getKey());
+      if (pp == null) {
+        continue;
+      }
+      try {
+        for (Entry<Content, ? extends Future<Map<String, Object>>> provided : pp
+            .getProvidedMap(e.getValue()).entrySet()) {
+          futures.put(provided.getKey().getPath(), provided.getValue());
+        }
+      } catch (RuntimeException ex) {
+        LOGGER.warn("Profile provider " + e.getKey() + " failed: " + ex.getMessage(), ex);
+      }
+    }
+
+    Map<String, Map<String, Object>> provided = new HashMap<String, Map<String, Object>>();
+    for (Entry<String, Future<Map<String, Object>>> e : futures.entrySet()) {
+      try {
+        Map<String, Object> map = e.getValue().get();
+        if (map != null) {
+          provided.put(e.getKey(), map);
+          if (cache != null) {
+            cache.put(e.getKey(), new ProvidedSection(map, System.currentTimeMillis()));
+          }
+        }
+      } catch (ExecutionException ex) {
+        LOGGER.warn("Unable to fetch profile section " + e.getKey() + ": "
+            + ex.getMessage(), ex);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return provided;
+  }
+}
@@ -19,24 +19,31 @@ package org.sakaiproject.nakamura.profile;
 
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
-import org.sakaiproject.nakamura.util.JcrUtils;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 
 /**
- *
+ * The settings of an external profile node. The properties of the settings and provider
+ * nodes are read when the settings are created, so that they can be kept with a
+ * materialised profile and handed to providers after the session they were read with
+ * has gone.
  */
 public class ProviderSettingsImpl implements ProviderSettings {
 
   private String provider;
   private Content profileNode;
-  private Node settingsNode;
-  private Node providerNode;
+  private Map<String, String[]> settingsProperties;
+  private Map<String, String[]> providerProperties;
 
   /**
    * @param node
@@ -48,7 +55,7 @@ public class ProviderSettingsImpl implements ProviderSettings {
   public ProviderSettingsImpl(Content profileContent, Node settingsNode)
       throws RepositoryException {
     this.profileNode = profileContent;
-    this.settingsNode = settingsNode;
+    Node providerNode = null;
     if (settingsNode.hasProperty(ProviderSettings.PROFILE_PROVIDER)) {
       provider = settingsNode.getProperty(ProviderSettings.PROFILE_PROVIDER).getString();
     }
@@ -57,9 +64,11 @@ public class ProviderSettingsImpl implements ProviderSettings {
           ProviderSettings.PROFILE_PROVIDER_SETTINGS).getString();
       Session session = settingsNode.getSession();
       if (session.nodeExists(providerSettingsPath)) {
-        this.providerNode = session.getNode(providerSettingsPath);
+        providerNode = session.getNode(providerSettingsPath);
       }
     }
+    settingsProperties = snapshot(settingsNode);
+    providerProperties = snapshot(providerNode);
   }
 
   /**
@@ -73,33 +82,47 @@ public class ProviderSettingsImpl implements ProviderSettings {
 
   public String[] getProfileSettingsProperty(String propertyName)
       throws RepositoryException {
-    return getStringProperty(settingsNode, propertyName);
+    return getStringProperty(settingsProperties, propertyName);
   }
 
   /**
-   * @param settingsNode2
+   * @param properties
    * @param propertyName
    * @return
    */
-  private String[] getStringProperty(Node node, String propertyName)
-      throws RepositoryException {
-    if (node == null) {
+  private String[] getStringProperty(Map<String, String[]> properties,
+      String propertyName) {
+    String[] s = properties.get(propertyName);
+    if (s == null) {
       return new String[0];
     }
-    Value[] v = JcrUtils.getValues(node, propertyName);
-    if (v == null || v.length == 0) {
-      return new String[0];
+    return s.clone();
+  }
+
+  /**
+   * @return the values of all the properties of a node, as strings.
+   */
+  private static Map<String, String[]> snapshot(Node node) throws RepositoryException {
+    Map<String, String[]> properties = new HashMap<String, String[]>();
+    if (node == null) {
+      return properties;
     }
-    String[] s = new String[v.length];
-    for (int i = 0; i < s.length; i++) {
-      s[i] = v[i].getString();
+    for (PropertyIterator i = node.getProperties(); i.hasNext();) {
+      Property property = i.nextProperty();
+      Value[] v = property.isMultiple() ? property.getValues() : new Value[] { property
+          .getValue() };
+      String[] s = new String[v.length];
+      for (int j = 0; j < s.length; j++) {
+        s[j] = v[j].getString();
+      }
+      properties.put(property.getName(), s);
     }
-    return s;
+    return properties;
   }
 
   public String[] getProviderConfigProperty(String propertyName)
       throws RepositoryException {
-    return getStringProperty(providerNode, propertyName);
+    return getStringProperty(providerProperties, propertyName);
   }
 
   /**
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.profile.ProfileConstants;
+import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Reads a profile with a public section, an external section and a section that only its
+ * owner can read, through the materialised documents.
+ */
+public class ProfileDocumentTest {
+
+  private static final String PROFILE = "a:alice/public/authprofile";
+  private static final String BASIC = PROFILE + "/basic";
+  private static final String ABOUTME = PROFILE + "/aboutme";
+  private static final String PRIVATE = PROFILE + "/private";
+
+  private ProfileServiceImpl profileService;
+  private StubProvider provider;
+  private ContentManager adminContentManager;
+  private org.sakaiproject.nakamura.api.lite.Session readerSession;
+  private Session jcrSession;
+  private Authorizable alice;
+
+  /**
+   * Returns the sections it is asked for with the number of times it has been asked, after
+   * a delay, and waits for a latch if there is one.
+   */
+  private static class StubProvider implements ProfileProvider {
+    final AtomicInteger calls = new AtomicInteger();
+    volatile long delay;
+    volatile CountDownLatch latch;
+
+    public Map<Content, ? extends Future<Map<String, Object>>> getProvidedMap(
+        List<ProviderSettings> list) {
+      final int call = calls.incrementAndGet();
+      try {
+        if (latch != null) {
+          latch.await(10, TimeUnit.SECONDS);
+        }
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      Map<Content, FutureTask<Map<String, Object>>> provided = new HashMap<Content, FutureTask<Map<String, Object>>>();
+      for (ProviderSettings settings : list) {
+        FutureTask<Map<String, Object>> future = new FutureTask<Map<String, Object>>(
+            new Callable<Map<String, Object>>() {
+              public Map<String, Object> call() {
+                Map<String, Object> map = new HashMap<String, Object>();
+                map.put("call", call);
+                return map;
+              }
+            });
+        future.run();
+        // a node that is not the one it was given, as providers that read it again do.
+        String path = settings.getNode().getPath();
+        Content node = mock(Content.class);
+        when(node.getPath()).thenReturn(path);
+        provided.put(node, future);
+      }
+      return provided;
+    }
+  }
+
+  private static class SynchronizedMapCache extends MapCacheImpl<Object> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Object get(String key) {
+      return super.get(key);
+    }
+
+    @Override
+    public synchronized Object put(String key, Object payload) {
+      return super.put(key, payload);
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+      super.remove(key);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Content basic = content(BASIC, properties("name", "Alice"));
+    Content aboutme = content(ABOUTME, properties("sakai:source", "external",
+        "text", "local"), content(ABOUTME + "/interests", properties("a", "b")));
+    Content hidden = content(PRIVATE, properties("phone", "555"));
+    Content profile = content(PROFILE, properties("sling:resourceType",
+        ProfileConstants.USER_PROFILE_RT), basic, aboutme, hidden);
+
+    adminContentManager = mock(ContentManager.class);
+    when(adminContentManager.get(PROFILE)).thenReturn(profile);
+    AccessControlManager adminAccessControlManager = mock(AccessControlManager.class);
+    when(adminAccessControlManager.getAcl(eq(Security.ZONE_CONTENT), anyString()))
+        .thenReturn(Collections.<String, Object> emptyMap());
+    when(adminAccessControlManager.getAcl(Security.ZONE_CONTENT, PRIVATE)).thenReturn(
+        properties(AclModification.denyKey("everyone"), 1));
+    org.sakaiproject.nakamura.api.lite.Session adminSession = mock(org.sakaiproject.nakamura.api.lite.Session.class);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+    when(adminSession.getAccessControlManager()).thenReturn(adminAccessControlManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+
+    ContentManager readerContentManager = mock(ContentManager.class);
+    when(readerContentManager.get(PROFILE)).thenReturn(profile);
+    AccessControlManager readerAccessControlManager = mock(AccessControlManager.class);
+    doThrow(new AccessDeniedException(Security.ZONE_CONTENT, PRIVATE, "read", "bob"))
+        .when(readerAccessControlManager).check(Security.ZONE_CONTENT, PRIVATE,
+            Permissions.CAN_READ);
+    readerSession = mock(org.sakaiproject.nakamura.api.lite.Session.class);
+    when(readerSession.getContentManager()).thenReturn(readerContentManager);
+    when(readerSession.getAccessControlManager()).thenReturn(readerAccessControlManager);
+    jcrSession = mock(Session.class, withSettings().extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(readerSession);
+    Node settings = node(ProviderSettings.PROFILE_PROVIDER, "stub");
+    when(jcrSession.nodeExists(ProviderSettingsFactory.PROVIDER_SETTINGS + "/aboutme"))
+        .thenReturn(true);
+    when(jcrSession.getNode(ProviderSettingsFactory.PROVIDER_SETTINGS + "/aboutme"))
+        .thenReturn(settings);
+
+    alice = mock(Authorizable.class);
+    when(alice.getId()).thenReturn("alice");
+    BasicUserInfoService basicUserInfoService = mock(BasicUserInfoService.class);
+    when(basicUserInfoService.getProperties(alice)).thenReturn(
+        properties("basic", "info"));
+
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(eq(ProfileServiceImpl.DOCUMENT_CACHE),
+        eq(CacheScope.CLUSTERINVALIDATED))).thenReturn(new SynchronizedMapCache());
+    when(cacheManagerService.getCache(eq(ProfileServiceImpl.PROVIDED_CACHE),
+        eq(CacheScope.INSTANCE))).thenReturn(new SynchronizedMapCache());
+
+    provider = new StubProvider();
+    profileService = new ProfileServiceImpl();
+    profileService.basicUserInfoService = basicUserInfoService;
+    profileService.repository = repository;
+    profileService.cacheManagerService = cacheManagerService;
+    profileService.bindProfileProvider(provider, properties(ProfileProvider.PROVIDER_NAME,
+        "stub"));
+  }
+
+  @After
+  public void tearDown() {
+    profileService.deactivate(null);
+  }
+
+  @Test
+  public void testMaterialisedOnce() throws Exception {
+    profileService.activate(properties());
+    for (int i = 0; i < 3; i++) {
+      ValueMap map = profileService.getProfileMap(alice, jcrSession);
+      assertEquals("alice", map.get("userid"));
+      assertEquals("info", map.get("basic"));
+      Map<?, ?> aboutme = (Map<?, ?>) map.get("aboutme");
+      assertEquals(1, aboutme.get("call"));
+      assertNull(aboutme.get("interests"));
+      assertFalse(map.containsKey("private"));
+    }
+    verify(adminContentManager, times(1)).get(PROFILE);
+    assertEquals(1, provider.calls.get());
+  }
+
+  @Test
+  public void testReaderWithAccess() throws Exception {
+    profileService.activate(properties());
+    profileService.getProfileMap(alice, jcrSession);
+    // the owner, who can read it all.
+    AccessControlManager ownerAccessControlManager = mock(AccessControlManager.class);
+    when(readerSession.getAccessControlManager()).thenReturn(ownerAccessControlManager);
+    ValueMap map = profileService.getProfileMap(alice, jcrSession);
+    assertEquals("555", ((Map<?, ?>) map.get("private")).get("phone"));
+    verify(adminContentManager, times(1)).get(PROFILE);
+  }
+
+  @Test
+  public void testChangeDropsDocument() throws Exception {
+    profileService.activate(properties());
+    profileService.getProfileMap(alice, jcrSession);
+    profileService.handleEvent(event("a:bob/public/authprofile/basic"));
+    profileService.handleEvent(event("a:alice/public/authprofilex"));
+    profileService.getProfileMap(alice, jcrSession);
+    verify(adminContentManager, times(1)).get(PROFILE);
+
+    profileService.handleEvent(event(BASIC));
+    profileService.getProfileMap(alice, jcrSession);
+    verify(adminContentManager, times(2)).get(PROFILE);
+    // what the provider returned is kept.
+    assertEquals(1, provider.calls.get());
+  }
+
+  @Test
+  public void testProfileRoot() {
+    assertEquals(PROFILE, ProfileServiceImpl.getProfileRoot(PROFILE));
+    assertEquals(PROFILE, ProfileServiceImpl.getProfileRoot(ABOUTME + "/interests"));
+    assertNull(ProfileServiceImpl.getProfileRoot("a:alice/public/authprofilex"));
+    assertNull(ProfileServiceImpl.getProfileRoot("a:alice/message"));
+    assertNull(ProfileServiceImpl.getProfileRoot(null));
+  }
+
+  @Test
+  public void testStaleServedWhileRefreshed() throws Exception {
+    profileService.activate(properties(ProfileServiceImpl.PROVIDER_TTL, 0L));
+    assertEquals(1, call(profileService.getProfileMap(alice, jcrSession)));
+
+    provider.latch = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      assertEquals(1, call(profileService.getProfileMap(alice, jcrSession)));
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    provider.latch.countDown();
+
+    for (int i = 0; i < 100 && provider.calls.get() < 2; i++) {
+      Thread.sleep(50);
+    }
+    Thread.sleep(100);
+    assertEquals(2, provider.calls.get());
+    assertTrue(call(profileService.getProfileMap(alice, jcrSession)) >= 2);
+  }
+
+  @Test
+  public void testFailingProviderFallsBack() throws Exception {
+    profileService.activate(properties());
+    profileService.bindProfileProvider(new ProfileProvider() {
+      public Map<Content, ? extends Future<Map<String, Object>>> getProvidedMap(
+          List<ProviderSettings> list) {
+        throw new IllegalStateException("unavailable");
+      }
+    }, properties(ProfileProvider.PROVIDER_NAME, "stub"));
+    Map<?, ?> aboutme = (Map<?, ?>) profileService.getProfileMap(alice, jcrSession).get(
+        "aboutme");
+    assertEquals("local", aboutme.get("text"));
+    assertEquals("b", ((Map<?, ?>) aboutme.get("interests")).get("a"));
+  }
+
+  /**
+   * Reads the profile 50 times with and without the stub provider taking 20ms, as it was
+   * read before, walking the tree and asking the provider on every read, and from the
+   * materialised document. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkProfileReads() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int reads = 50;
+    System.out.println("provider, mode, ms per read, provider calls");
+    for (int round = 0; round < 3; round++) {
+      for (long delay : new long[] { 0, 20 }) {
+        for (int materialised = 0; materialised < 2; materialised++) {
+          setUp();
+          provider.delay = delay;
+          if (materialised == 0) {
+            profileService.cacheManagerService = null;
+          } else {
+            profileService.activate(properties());
+          }
+          long start = System.nanoTime();
+          for (int i = 0; i < reads; i++) {
+            profileService.getProfileMap(alice, jcrSession);
+          }
+          long time = System.nanoTime() - start;
+          System.out.println((delay == 0 ? "fast" : "slow") + ", "
+              + (materialised == 0 ? "walked" : "materialised") + ", "
+              + (time / reads / 1000000.0) + ", " + provider.calls.get());
+          profileService.deactivate(null);
+        }
+      }
+    }
+  }
+
+  private int call(ValueMap map) {
+    return (Integer) ((Map<?, ?>) map.get("aboutme")).get("call");
+  }
+
+  private Event event(String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    return new Event(StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+        properties);
+  }
+
+  private Content content(String path, Map<String, Object> properties,
+      Content... children) {
+    Content content = mock(Content.class);
+    when(content.getPath()).thenReturn(path);
+    when(content.getProperties()).thenReturn(properties);
+    for (Map.Entry<String, Object> e : properties.entrySet()) {
+      when(content.hasProperty(e.getKey())).thenReturn(true);
+      when(content.getProperty(e.getKey())).thenReturn(e.getValue());
+    }
+    when(content.listChildren()).thenReturn(Arrays.asList(children));
+    return content;
+  }
+
+  private Node node(String name, String value) throws Exception {
+    Value v = mock(Value.class);
+    when(v.getString()).thenReturn(value);
+    Property property = mock(Property.class);
+    when(property.getName()).thenReturn(name);
+    when(property.getValue()).thenReturn(v);
+    when(property.getString()).thenReturn(value);
+    PropertyIterator properties = mock(PropertyIterator.class);
+    when(properties.hasNext()).thenReturn(true, false);
+    when(properties.nextProperty()).thenReturn(property);
+    Node node = mock(Node.class);
+    when(node.getProperties()).thenReturn(properties);
+    when(node.hasProperty(name)).thenReturn(true);
+    when(node.getProperty(name)).thenReturn(property);
+    return node;
+  }
+
+  private Map<String, Object> properties(Object... keysAndValues) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      properties.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return properties;
+  }
+}
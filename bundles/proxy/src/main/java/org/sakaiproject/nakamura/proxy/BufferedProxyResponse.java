@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A ProxyResponse that is held in memory rather than read from a connection, as served
+ * from the {@link ProxyResponseCache}.
+ */
+public class BufferedProxyResponse implements ProxyResponse {
+
+  private final int result;
+  private final Map<String, String[]> headers;
+  private final byte[] body;
+  private final String charset;
+  private final String cause;
+
+  /**
+   * @param result
+   *          the status of the response.
+   * @param headers
+   *          the response headers.
+   * @param body
+   *          the body of the response, or null if there is none.
+   * @param charset
+   *          the character set of the body.
+   * @param cause
+   *          why the response was made, if it is an error.
+   */
+  public BufferedProxyResponse(int result, Map<String, String[]> headers, byte[] body,
+      String charset, String cause) {
+    this.result = result;
+    this.headers = headers;
+    this.body = body;
+    this.charset = charset;
+    this.cause = cause;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
+   */
+  public int getResultCode() {
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseHeaders()
+   */
+  public Map<String, String[]> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
+   */
+  public byte[] getResponseBody() {
+    return body;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
+   */
+  public InputStream getResponseBodyAsInputStream() {
+    return new ByteArrayInputStream(body == null ? new byte[0] : body);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
+   */
+  public String getResponseBodyAsString() throws IOException {
+    if (body == null) {
+      return null;
+    }
+    return new String(body, charset);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#close()
+   */
+  public void close() {
+  }
+
+  /**
+   * @return the cause
+   */
+  public String getCause() {
+    return cause;
+  }
+}
@@ -20,7 +20,7 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.httpclient.Credentials;
-import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
@@ -46,6 +46,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -63,6 +64,8 @@ import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -83,7 +86,6 @@ import java.util.Set;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
-import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -92,6 +94,8 @@ import javax.servlet.http.HttpServletResponse;
 @Component(immediate = true)
 public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClientServiceImpl.class);
+
   /**
    *
    */
@@ -115,6 +119,54 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  private static final int DEFAULT_MAX_CONNECTIONS = 100;
+  /**
+   * The most connections open to all hosts at once.
+   */
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS)
+  static final String MAX_CONNECTIONS = "http.connections.max";
+
+  private static final int DEFAULT_MAX_HOST_CONNECTIONS = 20;
+  /**
+   * The most connections open to any one host at once.
+   */
+  @Property(intValue = DEFAULT_MAX_HOST_CONNECTIONS)
+  static final String MAX_HOST_CONNECTIONS = "http.connections.per.host";
+
+  /**
+   * Connection limits for particular hosts, as <code>[scheme://]host[:port]=limit</code>.
+   */
+  @Property(cardinality = Integer.MAX_VALUE)
+  static final String HOST_CONNECTIONS = "http.connections.hosts";
+
+  private static final int DEFAULT_CACHE_SIZE = 10 * 1024 * 1024;
+  /**
+   * The total size in bytes of the responses to cache, 0 turns the cache off.
+   */
+  @Property(intValue = DEFAULT_CACHE_SIZE)
+  static final String CACHE_SIZE = "http.cache.size";
+
+  private static final int DEFAULT_CACHE_ENTRY_SIZE = 256 * 1024;
+  /**
+   * The size in bytes of the largest response to cache.
+   */
+  @Property(intValue = DEFAULT_CACHE_ENTRY_SIZE)
+  static final String CACHE_ENTRY_SIZE = "http.cache.entry.size";
+
+  /**
+   * Request headers that identify the user to the origin. Requests with these headers
+   * only share responses the origin has said are public.
+   */
+  static final String[] DEFAULT_CACHE_PRIVATE_HEADERS = { "Authorization", "Cookie",
+      TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME };
+  @Property(value = { "Authorization", "Cookie", TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME })
+  static final String CACHE_PRIVATE_HEADERS = "http.cache.private.headers";
+
+  /**
+   * How long a request waits for another one fetching the same URL.
+   */
+  private static final long CACHE_WAIT = 30000L;
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -131,6 +183,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private HttpClient httpClient;
 
+  /**
+   * Caches the responses to GET requests.
+   */
+  private ProxyResponseCache responseCache;
+
   /**
    * A Thread local holder to bind the resource being processed to this thread.
    */
@@ -186,19 +243,48 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     velocityEngine.setExtendedProperties(configuration);
     velocityEngine.init();
 
-    httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
-    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
-    httpClientConnectionManager.setParams(params);
-
-    httpClient = new HttpClient(httpClientConnectionManager);
-
     // allow communications via a proxy server if command line
     // java parameters http.proxyHost,http.proxyPort,http.proxyUser,
     // http.proxyPassword have been provided.
     externalAuthenticatingProxy=false;
     String proxyHost = System.getProperty("http.proxyHost","");
     int proxyPort = Integer.parseInt(System.getProperty("http.proxyPort","80"));
+
+    httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    params.setMaxTotalConnections(OsgiUtil.toInteger(configProperties
+        .get(MAX_CONNECTIONS), DEFAULT_MAX_CONNECTIONS));
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(configProperties
+        .get(MAX_HOST_CONNECTIONS), DEFAULT_MAX_HOST_CONNECTIONS));
+    for (String hostConnections : OsgiUtil.toStringArray(configProperties
+        .get(HOST_CONNECTIONS), new String[0])) {
+      String[] hostAndLimit = StringUtils.split(hostConnections, '=');
+      if (hostAndLimit.length != 2) {
+        LOGGER.warn("Ignoring connection limit {}, should be host=limit ",
+            hostConnections);
+        continue;
+      }
+      try {
+        URL url = new URL(hostAndLimit[0].contains("://") ? hostAndLimit[0].trim()
+            : "http://" + hostAndLimit[0].trim());
+        // connections are pooled by host, port, scheme and proxy.
+        HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost(url.getHost(), url.getPort(), url.getProtocol());
+        if (!proxyHost.equals("")) {
+          hostConfiguration.setProxy(proxyHost, proxyPort);
+        }
+        params.setMaxConnectionsPerHost(hostConfiguration, Integer
+            .parseInt(hostAndLimit[1].trim()));
+      } catch (MalformedURLException e) {
+        LOGGER.warn("Ignoring connection limit {}, {} ", hostConnections, e.getMessage());
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring connection limit {}, {} ", hostConnections, e.getMessage());
+      }
+    }
+    httpClientConnectionManager.setParams(params);
+
+    httpClient = new HttpClient(httpClientConnectionManager);
+
     if (!proxyHost.equals("") ) {
       // allow communications via a non-authenticating proxy
       httpClient.getHostConfiguration().setProxy(proxyHost, proxyPort);
@@ -213,6 +299,32 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         externalAuthenticatingProxy=true;
       }
     }
+
+    Set<String> privateHeaders = new HashSet<String>();
+    for (String header : OsgiUtil.toStringArray(configProperties
+        .get(CACHE_PRIVATE_HEADERS), DEFAULT_CACHE_PRIVATE_HEADERS)) {
+      privateHeaders.add(header.toLowerCase());
+    }
+    responseCache = new ProxyResponseCache(new ProxyResponseCache.MethodExecutor() {
+      public int execute(HttpMethod method) throws IOException {
+        return executeMethod(method);
+      }
+    }, OsgiUtil.toInteger(configProperties.get(CACHE_SIZE), DEFAULT_CACHE_SIZE),
+        OsgiUtil.toInteger(configProperties.get(CACHE_ENTRY_SIZE),
+            DEFAULT_CACHE_ENTRY_SIZE), CACHE_WAIT, privateHeaders);
+  }
+
+  /**
+   * Executes a method, authenticating with the external proxy if it asks.
+   */
+  private int executeMethod(HttpMethod method) throws IOException {
+    int result = httpClient.executeMethod(method);
+    if (externalAuthenticatingProxy && result == 407) {
+      method.releaseConnection();
+      method.setDoAuthentication(true);
+      result = httpClient.executeMethod(method);
+    }
+    return result;
   }
 
   /**
@@ -333,36 +445,6 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         HttpMethod method = null;
         switch (proxyMethod) {
         case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
-            // make certain we reject the body of a head
-            params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (externalAuthenticatingProxy && result == 407) {
-              method.releaseConnection();
-              method.setDoAuthentication(true);
-              result = httpClient.executeMethod(method);
-            }
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
-                }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
-            }
-          }
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
           // post
@@ -454,24 +536,23 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
-        int result = httpClient.executeMethod(method);
-        if (externalAuthenticatingProxy && result == 407) {
-          method.releaseConnection();
-          method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
+        if (method instanceof GetMethod) {
+          // GETs go through the cache, which also holds them to the size limit.
+          long maxSize = -1;
+          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+            maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+          }
+          return responseCache.execute(method, maxSize);
         }
+
+        int result = executeMethod(method);
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
           method = new GetMethod(url);
           method.setFollowRedirects(true);
           method.setDoAuthentication(false);
-          result = httpClient.executeMethod(method);
-          if (externalAuthenticatingProxy && result == 407) {
-            method.releaseConnection();
-            method.setDoAuthentication(true);
-            result = httpClient.executeMethod(method);
-          }
+          result = executeMethod(method);
         }
 
         return new ProxyResponseImpl(result, method);
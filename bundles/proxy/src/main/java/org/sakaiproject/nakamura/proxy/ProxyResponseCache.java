@@ -0,0 +1,540 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A shared HTTP cache for proxied GET requests.
+ * <p>
+ * Responses are kept according to the <code>Cache-Control</code>, <code>Expires</code>
+ * and <code>Vary</code> headers the origin sends, and served without contacting the
+ * origin while they are fresh. Once they are stale, and when the origin asks for every
+ * use to be checked with <code>no-cache</code>, the cache revalidates them with a
+ * conditional request using their <code>ETag</code> or <code>Last-Modified</code>, so
+ * that an unchanged response costs a 304 rather than the whole body.
+ * <p>
+ * While a URL is being fetched or revalidated, other requests for it wait for that one
+ * to finish rather than going to the origin themselves.
+ * <p>
+ * Responses are only kept whole in memory if they are no bigger than the largest entry,
+ * larger ones are streamed through as before. Requests carrying one of the private
+ * headers, such as <code>Authorization</code>, only use responses the origin has marked
+ * as <code>public</code> or given an <code>s-maxage</code>.
+ */
+public class ProxyResponseCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  /**
+   * Runs a method against the origin, dealing with any authentication needed on the way.
+   */
+  public interface MethodExecutor {
+    int execute(HttpMethod method) throws IOException;
+  }
+
+  /**
+   * A response kept in the cache.
+   */
+  static class Entry {
+    private final Header[] headers;
+    private final byte[] body;
+    private final String charset;
+    private final Map<String, String> vary;
+    private final boolean shared;
+    private final long freshUntil;
+    private final String etag;
+    private final String lastModified;
+
+    private Entry(Header[] headers, byte[] body, String charset, Map<String, String> vary,
+        boolean shared, long now) {
+      this.headers = headers;
+      this.body = body;
+      this.charset = charset;
+      this.vary = vary;
+      this.shared = shared;
+      this.freshUntil = now + getFreshness(headers, now);
+      this.etag = getValue(headers, "ETag");
+      this.lastModified = getValue(headers, "Last-Modified");
+    }
+
+    boolean isFresh(long now) {
+      return now < freshUntil;
+    }
+
+    /**
+     * @return true if the request asks for the same variant of the response.
+     */
+    boolean matches(HttpMethod method) {
+      for (Map.Entry<String, String> e : vary.entrySet()) {
+        String value = getValue(method.getRequestHeaders(), e.getKey());
+        if (value == null ? e.getValue() != null : !value.equals(e.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return this entry with the headers of a 304 response laid over its own.
+     */
+    Entry revalidated(Header[] notModified, long now) {
+      List<Header> merged = new ArrayList<Header>();
+      for (Header header : headers) {
+        if (getValue(notModified, header.getName()) == null) {
+          merged.add(header);
+        }
+      }
+      for (Header header : notModified) {
+        // the 304 has no body of its own.
+        if (!"Content-Length".equalsIgnoreCase(header.getName())
+            && !"Transfer-Encoding".equalsIgnoreCase(header.getName())) {
+          merged.add(header);
+        }
+      }
+      return new Entry(merged.toArray(new Header[merged.size()]), body, charset, vary,
+          shared, now);
+    }
+
+    /**
+     * @return the entry as a response, or as a 304 if the request's own validators
+     *         still match it.
+     */
+    ProxyResponse respond(String ifNoneMatch, String ifModifiedSince) {
+      Map<String, String[]> responseHeaders = ProxyResponseImpl.getHeaders(headers);
+      if ((ifNoneMatch != null && etag != null && matchesETag(ifNoneMatch, etag))
+          || (ifNoneMatch == null && ifModifiedSince != null && ifModifiedSince
+              .equals(lastModified))) {
+        responseHeaders.remove("Content-Length");
+        return new BufferedProxyResponse(HttpServletResponse.SC_NOT_MODIFIED,
+            responseHeaders, null, charset, null);
+      }
+      return new BufferedProxyResponse(HttpServletResponse.SC_OK, responseHeaders, body,
+          charset, null);
+    }
+
+    int size() {
+      return body.length;
+    }
+  }
+
+  /**
+   * A fetch that other requests for the same URL can wait on.
+   */
+  private static class Flight {
+    private final CountDownLatch done = new CountDownLatch(1);
+  }
+
+  private final MethodExecutor executor;
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final long waitTimeout;
+  private final Set<String> privateHeaders;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75f, true);
+  private long bytes;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  /**
+   * @param executor
+   *          runs requests against the origin.
+   * @param maxBytes
+   *          the total size of the bodies to keep.
+   * @param maxEntryBytes
+   *          the size of the largest body to keep.
+   * @param waitTimeout
+   *          how long, in ms, to wait for another request fetching the same URL before
+   *          going to the origin anyway.
+   * @param privateHeaders
+   *          the lower case names of request headers that identify the user to the
+   *          origin.
+   */
+  public ProxyResponseCache(MethodExecutor executor, long maxBytes, int maxEntryBytes,
+      long waitTimeout, Set<String> privateHeaders) {
+    this.executor = executor;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    this.waitTimeout = waitTimeout;
+    this.privateHeaders = privateHeaders;
+  }
+
+  /**
+   * Executes a GET method, from the cache where possible.
+   *
+   * @param method
+   *          the method, with its request headers set.
+   * @param maxSize
+   *          the largest response body to accept, or -1 for no limit. Larger responses
+   *          get a 412, or fail as they are read if the origin didn't give a length.
+   * @return the response, which must be closed.
+   * @throws IOException
+   */
+  public ProxyResponse execute(HttpMethod method, long maxSize) throws IOException {
+    String url = method.getURI().toString();
+    // the cache answers the request's own conditions, so they don't go to the origin.
+    String ifNoneMatch = getValue(method.getRequestHeaders(), "If-None-Match");
+    String ifModifiedSince = getValue(method.getRequestHeaders(), "If-Modified-Since");
+    method.removeRequestHeader("If-None-Match");
+    method.removeRequestHeader("If-Modified-Since");
+    boolean privateRequest = isPrivate(method);
+    boolean reload = isReload(method);
+    if (maxBytes <= 0) {
+      return fetch(url, method, null, maxSize, privateRequest, ifNoneMatch,
+          ifModifiedSince);
+    }
+
+    Entry entry = lookup(url, method, privateRequest);
+    if (entry != null && !reload && entry.isFresh(System.currentTimeMillis())) {
+      return entry.respond(ifNoneMatch, ifModifiedSince);
+    }
+
+    Flight flight = new Flight();
+    Flight inFlight = flights.putIfAbsent(url, flight);
+    if (inFlight != null) {
+      flight = null;
+      try {
+        inFlight.done.await(waitTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      entry = lookup(url, method, privateRequest);
+      if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+        return entry.respond(ifNoneMatch, ifModifiedSince);
+      }
+    }
+    try {
+      return fetch(url, method, entry, maxSize, privateRequest, ifNoneMatch,
+          ifModifiedSince);
+    } finally {
+      if (flight != null) {
+        flights.remove(url, flight);
+        flight.done.countDown();
+      }
+    }
+  }
+
+  private ProxyResponse fetch(String url, HttpMethod method, Entry entry, long maxSize,
+      boolean privateRequest, String ifNoneMatch, String ifModifiedSince)
+      throws IOException {
+    if (entry != null) {
+      if (entry.etag != null) {
+        method.setRequestHeader("If-None-Match", entry.etag);
+      }
+      if (entry.lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", entry.lastModified);
+      }
+    }
+    int result = executor.execute(method);
+    long now = System.currentTimeMillis();
+
+    if (result == HttpServletResponse.SC_NOT_MODIFIED && entry != null) {
+      method.releaseConnection();
+      entry = entry.revalidated(method.getResponseHeaders(), now);
+      store(url, entry);
+      return entry.respond(ifNoneMatch, ifModifiedSince);
+    }
+    if (entry != null) {
+      // the response has changed, so what we had is no use.
+      remove(url, entry);
+    }
+
+    if (maxSize >= 0) {
+      Header length = method.getResponseHeader("Content-Length");
+      if (length != null && parseLong(length.getValue(), -1) > maxSize) {
+        return tooLarge(method);
+      }
+    }
+
+    InputStream in = method.getResponseBodyAsStream();
+    if (in == null) {
+      return new ProxyResponseImpl(result, method);
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    int bufferSize = -1;
+    boolean storable = result == HttpServletResponse.SC_OK
+        && isStorable(method, privateRequest);
+    if (storable) {
+      bufferSize = maxEntryBytes;
+    }
+    if (maxSize >= 0) {
+      in = new SizeLimitedInputStream(in, maxSize);
+      if (contentLength == null && maxSize <= maxEntryBytes) {
+        // small enough to read before answering, so it can still get a 412.
+        bufferSize = Math.max(bufferSize, (int) maxSize);
+      }
+    }
+    if (bufferSize < 0) {
+      return new ProxyResponseImpl(result, method, in);
+    }
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] b = new byte[4096];
+    int n = 0;
+    try {
+      while (buffer.size() <= bufferSize && (n = in.read(b)) != -1) {
+        buffer.write(b, 0, n);
+      }
+    } catch (IOException e) {
+      if (in instanceof SizeLimitedInputStream && ((SizeLimitedInputStream) in).isExceeded()) {
+        return tooLarge(method);
+      }
+      throw e;
+    }
+    if (n != -1) {
+      // too big to keep, so send on what has been read and stream the rest.
+      return new ProxyResponseImpl(result, method, new SequenceInputStream(
+          new ByteArrayInputStream(buffer.toByteArray()), in));
+    }
+    method.releaseConnection();
+    String charset = "ISO-8859-1";
+    if (method instanceof HttpMethodBase) {
+      charset = ((HttpMethodBase) method).getResponseCharSet();
+    }
+    if (!storable) {
+      return new BufferedProxyResponse(result, ProxyResponseImpl.getHeaders(method
+          .getResponseHeaders()), buffer.toByteArray(), charset, null);
+    }
+    entry = new Entry(method.getResponseHeaders(), buffer.toByteArray(), charset,
+        getVary(method), isShared(method), now);
+    store(url, entry);
+    return entry.respond(ifNoneMatch, ifModifiedSince);
+  }
+
+  private ProxyResponse tooLarge(HttpMethod method) {
+    Map<String, String[]> headers = ProxyResponseImpl.getHeaders(method
+        .getResponseHeaders());
+    method.abort();
+    method.releaseConnection();
+    return new BufferedProxyResponse(HttpServletResponse.SC_PRECONDITION_FAILED, headers,
+        null, "UTF-8", "Response too large");
+  }
+
+  private Entry lookup(String url, HttpMethod method, boolean privateRequest) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(url);
+    }
+    if (entry == null || !entry.matches(method) || (privateRequest && !entry.shared)) {
+      return null;
+    }
+    return entry;
+  }
+
+  private synchronized void store(String url, Entry entry) {
+    if (entry.size() > maxEntryBytes || entry.size() > maxBytes) {
+      return;
+    }
+    Entry old = entries.put(url, entry);
+    if (old != null) {
+      bytes -= old.size();
+    }
+    bytes += entry.size();
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (bytes > maxBytes) {
+      bytes -= eldest.next().size();
+      eldest.remove();
+    }
+  }
+
+  private synchronized void remove(String url, Entry entry) {
+    Entry current = entries.get(url);
+    if (current != null && current.body == entry.body) {
+      entries.remove(url);
+      bytes -= current.size();
+    }
+  }
+
+  /**
+   * @return the number of responses in the cache.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private boolean isPrivate(HttpMethod method) {
+    for (Header header : method.getRequestHeaders()) {
+      if (privateHeaders.contains(header.getName().toLowerCase())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the request asks for a response straight from the origin.
+   */
+  private static boolean isReload(HttpMethod method) {
+    Map<String, String> cacheControl = getCacheControl(method.getRequestHeaders());
+    String pragma = getValue(method.getRequestHeaders(), "Pragma");
+    return cacheControl.containsKey("no-cache") || "0".equals(cacheControl.get("max-age"))
+        || (pragma != null && pragma.toLowerCase().contains("no-cache"));
+  }
+
+  /**
+   * @return true if a shared cache may keep the response.
+   */
+  private boolean isStorable(HttpMethod method, boolean privateRequest) {
+    if (maxBytes <= 0) {
+      return false;
+    }
+    Header[] headers = method.getResponseHeaders();
+    Map<String, String> cacheControl = getCacheControl(headers);
+    if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+      return false;
+    }
+    if (method.getResponseHeader("Set-Cookie") != null || getVary(method) == null) {
+      return false;
+    }
+    if (privateRequest && !isShared(method)) {
+      return false;
+    }
+    return getFreshness(headers, System.currentTimeMillis()) > 0
+        || getValue(headers, "ETag") != null || getValue(headers, "Last-Modified") != null;
+  }
+
+  /**
+   * @return true if the origin has said the response may be shared between users.
+   */
+  private static boolean isShared(HttpMethod method) {
+    Map<String, String> cacheControl = getCacheControl(method.getResponseHeaders());
+    return cacheControl.containsKey("public") || cacheControl.containsKey("s-maxage");
+  }
+
+  /**
+   * @return the request headers the response varies on, with their values, or null if
+   *         it varies on everything.
+   */
+  private static Map<String, String> getVary(HttpMethod method) {
+    Map<String, String> vary = new HashMap<String, String>();
+    for (Header header : method.getResponseHeaders("Vary")) {
+      for (String name : header.getValue().split(",")) {
+        name = name.trim();
+        if ("*".equals(name)) {
+          return null;
+        }
+        if (name.length() > 0) {
+          vary.put(name, getValue(method.getRequestHeaders(), name));
+        }
+      }
+    }
+    return vary;
+  }
+
+  /**
+   * @return how long, in ms, the response may be used for without revalidating it.
+   */
+  static long getFreshness(Header[] headers, long now) {
+    Map<String, String> cacheControl = getCacheControl(headers);
+    String pragma = getValue(headers, "Pragma");
+    if (cacheControl.containsKey("no-cache")
+        || (pragma != null && pragma.toLowerCase().contains("no-cache"))) {
+      return 0;
+    }
+    long lifetime = -1;
+    if (cacheControl.containsKey("s-maxage")) {
+      lifetime = parseLong(cacheControl.get("s-maxage"), 0) * 1000;
+    } else if (cacheControl.containsKey("max-age")) {
+      lifetime = parseLong(cacheControl.get("max-age"), 0) * 1000;
+    } else {
+      long expires = parseDate(getValue(headers, "Expires"), 0);
+      if (expires > 0) {
+        lifetime = expires - parseDate(getValue(headers, "Date"), now);
+      }
+    }
+    long age = parseLong(getValue(headers, "Age"), 0) * 1000;
+    return Math.max(0, lifetime - age);
+  }
+
+  private static Map<String, String> getCacheControl(Header[] headers) {
+    Map<String, String> directives = new HashMap<String, String>();
+    for (Header header : headers) {
+      if ("Cache-Control".equalsIgnoreCase(header.getName())) {
+        for (HeaderElement element : header.getElements()) {
+          directives.put(element.getName().toLowerCase(), element.getValue());
+        }
+      }
+    }
+    return directives;
+  }
+
+  private static boolean matchesETag(String ifNoneMatch, String etag) {
+    if ("*".equals(ifNoneMatch.trim())) {
+      return true;
+    }
+    return Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(etag);
+  }
+
+  private static String getValue(Header[] headers, String name) {
+    for (Header header : headers) {
+      if (name.equalsIgnoreCase(header.getName())) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static long parseLong(String value, long defaultValue) {
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.debug("Ignoring invalid number {} ", value);
+      }
+    }
+    return defaultValue;
+  }
+
+  private static long parseDate(String value, long defaultValue) {
+    if (value != null) {
+      try {
+        return DateUtil.parseDate(value).getTime();
+      } catch (DateParseException e) {
+        LOGGER.debug("Ignoring invalid date {} ", value);
+      }
+    }
+    return defaultValue;
+  }
+}
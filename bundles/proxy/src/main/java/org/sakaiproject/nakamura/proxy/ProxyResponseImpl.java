@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
 import java.io.IOException;
@@ -33,18 +35,39 @@ public class ProxyResponseImpl implements ProxyResponse {
 
   private int result;
   private HttpMethod method;
-  private Map<String, String[]> headers = new HashMap<String, String[]>();
+  private Map<String, String[]> headers;
   private String cause;
+  private InputStream body;
 
   /**
    * @param result
    * @param method
    */
   public ProxyResponseImpl(int result, HttpMethod method) {
+    this(result, method, null);
+  }
+
+  /**
+   * @param result
+   * @param method
+   * @param body
+   *          the response body to use in place of the body of the method, or null to use
+   *          the body of the method.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, InputStream body) {
     this.result = result;
     this.method = method;
+    this.body = body;
+    this.headers = getHeaders(method.getResponseHeaders());
+  }
 
-    for (Header header : method.getResponseHeaders()) {
+  /**
+   * Collects response headers into a map of names to values, leaving out any JSESSIONID
+   * cookies.
+   */
+  static Map<String, String[]> getHeaders(Header[] responseHeaders) {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    for (Header header : responseHeaders) {
       String name = header.getName();
       String[] values = headers.get(name);
       if ( values == null ) {
@@ -70,6 +93,7 @@ public class ProxyResponseImpl implements ProxyResponse {
         headers.put(name, values);
       }
     }
+    return headers;
   }
 
   /**
@@ -103,6 +127,9 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
+    if (body != null) {
+      return IOUtils.toByteArray(body);
+    }
     return method.getResponseBody();
   }
 
@@ -111,6 +138,9 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
+    if (body != null) {
+      return body;
+    }
     return method.getResponseBodyAsStream();
   }
 
@@ -119,6 +149,13 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
+    if (body != null) {
+      String charset = "ISO-8859-1";
+      if (method instanceof HttpMethodBase) {
+        charset = ((HttpMethodBase) method).getResponseCharSet();
+      }
+      return IOUtils.toString(body, charset);
+    }
     return method.getResponseBodyAsString();
   }
 
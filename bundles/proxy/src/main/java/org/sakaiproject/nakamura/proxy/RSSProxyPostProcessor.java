@@ -20,7 +20,6 @@ package org.sakaiproject.nakamura.proxy;
 import com.ctc.wstx.stax.WstxInputFactory;
 import com.ctc.wstx.stax.WstxOutputFactory;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
@@ -36,8 +35,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -193,61 +192,58 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
+    // The feed is checked as it is read. Once it is known to be valid the rest of it is
+    // streamed to the client rather than held in memory, and the length is checked on
+    // the bytes read rather than the bytes kept.
     boolean isValid = false;
-    InputStream in = proxyResponse.getResponseBodyAsInputStream();
+    SizeLimitedInputStream in = new SizeLimitedInputStream(proxyResponse
+        .getResponseBodyAsInputStream(), maxLength);
     InputStreamReader reader = new InputStreamReader(in);
+    ResponseOutputStream out = new ResponseOutputStream(response, proxyResponse);
 
-    // XMLStreamWriter writer = null;
     XMLEventWriter writer = null;
-    ByteArrayOutputStream out = null;
 
     int i = 0;
     try {
       XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(reader);
-      // Create a temporary outputstream where we can write to.
-      out = new ByteArrayOutputStream();
+      // The events read before the feed is known to be valid.
+      List<XMLEvent> events = new ArrayList<XMLEvent>();
 
       Set<String> checkedElements = null;
 
-      XMLOutputFactory outputFactory = new WstxOutputFactory();
-      writer = outputFactory.createXMLEventWriter(out);
-
-      while (eventReader.hasNext()) {
+      while (!isValid && eventReader.hasNext()) {
         XMLEvent e = eventReader.nextEvent();
-        // Stream it to an output stream.
-        writer.add(e);
+        events.add(e);
+
+        if (e.getEventType() == XMLEvent.START_ELEMENT) {
+          StartElement el = e.asStartElement();
+          String name = el.getName().getLocalPart().toLowerCase();
+          if (checkedElements == null) {
+            // get the right format to validate against
+            String formatKey = name;
+            Attribute attr = el.getAttributeByName(new QName("version"));
+            if (attr != null) {
+              formatKey += "-" + attr.getValue();
+            }
+            Set<String> format = formats.get(formatKey);
+            if (format != null) {
+              checkedElements = new HashSet<String>(format);
+            }
+          } else {
+            checkedElements.remove(name);
 
-        if (!isValid) {
-          if (e.getEventType() == XMLEvent.START_ELEMENT) {
-            StartElement el = e.asStartElement();
-            String name = el.getName().getLocalPart().toLowerCase();
-            if (checkedElements == null) {
-              // get the right format to validate against
-              String formatKey = name;
-              Attribute attr = el.getAttributeByName(new QName("version"));
-              if (attr != null) {
-                formatKey += "-" + attr.getValue();
-              }
-              Set<String> format = formats.get(formatKey);
-              if (format != null) {
-                checkedElements = new HashSet<String>(format);
-              }
-            } else {
-              checkedElements.remove(name);
-
-              if (checkedElements.isEmpty()) {
-                isValid = true;
-              }
+            if (checkedElements.isEmpty()) {
+              isValid = true;
             }
           }
+        }
 
-          if (i > eventsThreshold) {
-            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-                "This file is too complex.");
-            return;
-          }
-          i++;
+        if (i > eventsThreshold) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+              "This file is too complex.");
+          return;
         }
+        i++;
       }
 
       if (!isValid) {
@@ -256,41 +252,128 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         return;
       }
 
-      // Check if we are not streaming a gigantic file..
-      if (out.size() > maxLength) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "This file is too big.");
-        return;
+      XMLOutputFactory outputFactory = new WstxOutputFactory();
+      writer = outputFactory.createXMLEventWriter(out);
+      for (XMLEvent e : events) {
+        writer.add(e);
       }
-
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
-        }
+      events = null;
+      // Stream the rest of it.
+      while (eventReader.hasNext()) {
+        writer.add(eventReader.nextEvent());
       }
-      // We always return 200 when we get to this point.
-      response.setStatus(200);
-      response.setHeader("Content-Length", Integer.toString(out.size()));
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
+      writer.flush();
 
     } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-          "This is not a valid XML file.");
+      out.abandon();
+      if (in.isExceeded()) {
+        sendError(response, out, "This file is too big.");
+      } else {
+        sendError(response, out, "This is not a valid XML file.");
+      }
     } catch (Exception e) {
-      logger.warn("Exception reading RSS feed.", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "General exception caught.");
+      out.abandon();
+      if (in.isExceeded()) {
+        sendError(response, out, "This file is too big.");
+      } else {
+        logger.warn("Exception reading RSS feed.", e);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "General exception caught.");
+      }
     } finally {
-      out.close();
       reader.close();
-      try {
-        writer.close();
-      } catch (XMLStreamException e) {
-        // Not much we can do?
-        e.printStackTrace();
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (XMLStreamException e) {
+          // Not much we can do?
+          logger.debug("Failed to close the RSS writer {} ", e.getMessage());
+        }
       }
     }
 
   }
+
+  /**
+   * Sends a 400, unless part of the feed has already gone to the client.
+   */
+  private void sendError(SlingHttpServletResponse response, ResponseOutputStream out,
+      String message) throws IOException {
+    if (!out.isStarted()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+    } else if (!response.isCommitted()) {
+      response.reset();
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+    } else {
+      logger.warn("RSS feed failed after it had been partly sent: {} ", message);
+    }
+  }
+
+  /**
+   * Sets the status and headers of the response the first time anything is written to
+   * it, so nothing is sent until the feed has been checked and the writer has some
+   * output.
+   */
+  private static class ResponseOutputStream extends OutputStream {
+    private final SlingHttpServletResponse response;
+    private final ProxyResponse proxyResponse;
+    private OutputStream out;
+    private boolean abandoned;
+
+    private ResponseOutputStream(SlingHttpServletResponse response,
+        ProxyResponse proxyResponse) {
+      this.response = response;
+      this.proxyResponse = proxyResponse;
+    }
+
+    private OutputStream start() throws IOException {
+      if (out == null) {
+        for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
+          // the feed is written out again, so its length may differ.
+          if ("Content-Length".equalsIgnoreCase(h.getKey())) {
+            continue;
+          }
+          for (String v : h.getValue()) {
+            response.setHeader(h.getKey(), v);
+          }
+        }
+        // We always return 200 when we get to this point.
+        response.setStatus(200);
+        out = response.getOutputStream();
+      }
+      return out;
+    }
+
+    boolean isStarted() {
+      return out != null;
+    }
+
+    /**
+     * Drops anything written from now on, so an error can be sent instead.
+     */
+    void abandon() {
+      abandoned = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!abandoned) {
+        start().write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (!abandoned) {
+        start().write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!abandoned) {
+        start().flush();
+      }
+    }
+  }
 }
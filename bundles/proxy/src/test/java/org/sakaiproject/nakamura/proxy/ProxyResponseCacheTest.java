@@ -0,0 +1,384 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.util.IOUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the cache against a local origin that counts the requests it gets.
+ */
+public class ProxyResponseCacheTest {
+
+  private static final String BODY = "<feed>Some content</feed>";
+
+  /**
+   * A server that sends a fixed response, honouring If-None-Match for its ETag.
+   */
+  private static class Origin extends AbstractHandler {
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final Map<String, String> headers = Collections
+        .synchronizedMap(new HashMap<String, String>());
+    private volatile String body = BODY;
+    private volatile boolean chunked;
+    private volatile long delay;
+
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException {
+      hits.incrementAndGet();
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      for (Map.Entry<String, String> e : new HashMap<String, String>(headers).entrySet()) {
+        response.setHeader(e.getKey(), e.getValue());
+      }
+      String etag = headers.get("ETag");
+      if (etag != null && etag.equals(request.getHeader("If-None-Match"))) {
+        notModified.incrementAndGet();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      } else {
+        byte[] b = body.getBytes("UTF-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/xml; charset=UTF-8");
+        if (!chunked) {
+          response.setContentLength(b.length);
+        }
+        response.getOutputStream().write(b);
+      }
+      ((Request) request).setHandled(true);
+    }
+  }
+
+  private Server server;
+  private Origin origin;
+  private String url;
+  private MultiThreadedHttpConnectionManager connectionManager;
+  private ProxyResponseCache cache;
+
+  @Before
+  public void before() throws Exception {
+    origin = new Origin();
+    server = new Server(0);
+    server.setHandler(origin);
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/feed";
+
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(50);
+    connectionManager.getParams().setMaxTotalConnections(50);
+    final HttpClient client = new HttpClient(connectionManager);
+    Set<String> privateHeaders = new HashSet<String>();
+    for (String header : ProxyClientServiceImpl.DEFAULT_CACHE_PRIVATE_HEADERS) {
+      privateHeaders.add(header.toLowerCase());
+    }
+    cache = new ProxyResponseCache(new ProxyResponseCache.MethodExecutor() {
+      public int execute(HttpMethod method) throws IOException {
+        return client.executeMethod(method);
+      }
+    }, 1024 * 1024, 1024, 10000, privateHeaders);
+  }
+
+  @After
+  public void after() throws Exception {
+    connectionManager.shutdown();
+    server.stop();
+  }
+
+  private ProxyResponse get(String... headers) throws IOException {
+    return get(-1, headers);
+  }
+
+  private ProxyResponse get(long maxSize, String... headers) throws IOException {
+    GetMethod method = new GetMethod(url);
+    for (int i = 0; i < headers.length; i += 2) {
+      method.setRequestHeader(headers[i], headers[i + 1]);
+    }
+    return cache.execute(method, maxSize);
+  }
+
+  private String read(ProxyResponse response) throws IOException {
+    try {
+      return IOUtils.readFully(response.getResponseBodyAsInputStream(), "UTF-8");
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void freshResponsesAreServedFromTheCache() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    assertEquals(BODY, read(get()));
+    ProxyResponse response = get();
+    assertEquals(200, response.getResultCode());
+    assertEquals("text/xml; charset=UTF-8",
+        response.getResponseHeaders().get("Content-Type")[0]);
+    assertEquals(BODY, read(response));
+    assertEquals(1, origin.hits.get());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void reloadGoesToTheOrigin() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    read(get());
+    read(get("Cache-Control", "no-cache"));
+    assertEquals(2, origin.hits.get());
+  }
+
+  @Test
+  public void staleResponsesAreRevalidated() throws Exception {
+    origin.headers.put("Cache-Control", "no-cache");
+    origin.headers.put("ETag", "\"v1\"");
+    assertEquals(BODY, read(get()));
+    assertEquals(BODY, read(get()));
+    assertEquals(2, origin.hits.get());
+    assertEquals(1, origin.notModified.get());
+
+    // a changed response replaces the old one.
+    origin.headers.put("ETag", "\"v2\"");
+    origin.body = "<feed>Other content</feed>";
+    assertEquals("<feed>Other content</feed>", read(get()));
+    assertEquals(1, origin.notModified.get());
+  }
+
+  @Test
+  public void clientConditionsAreAnsweredByTheCache() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    origin.headers.put("ETag", "\"v1\"");
+    read(get());
+    ProxyResponse response = get("If-None-Match", "\"v1\"");
+    assertEquals(304, response.getResultCode());
+    assertNull(response.getResponseBody());
+    response = get("If-None-Match", "\"v0\"");
+    assertEquals(200, response.getResultCode());
+    assertEquals(BODY, read(response));
+    assertEquals(1, origin.hits.get());
+  }
+
+  @Test
+  public void noStoreAndPrivateResponsesAreNotKept() throws Exception {
+    origin.headers.put("Cache-Control", "no-store");
+    read(get());
+    read(get());
+    origin.headers.put("Cache-Control", "private, max-age=60");
+    read(get());
+    read(get());
+    origin.headers.put("Cache-Control", "max-age=60");
+    origin.headers.put("Set-Cookie", "JSESSIONID=1234");
+    read(get());
+    read(get());
+    assertEquals(6, origin.hits.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void authorizedRequestsOnlySharePublicResponses() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    read(get("Authorization", "Basic dXNlcjpwYXNz"));
+    read(get("Authorization", "Basic dXNlcjpwYXNz"));
+    assertEquals(2, origin.hits.get());
+
+    origin.headers.put("Cache-Control", "public, max-age=60");
+    read(get("Authorization", "Basic dXNlcjpwYXNz"));
+    read(get("Authorization", "Basic b3RoZXI6cGFzcw=="));
+    assertEquals(3, origin.hits.get());
+  }
+
+  @Test
+  public void requestsWithCookiesOnlySharePublicResponses() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    read(get("Cookie", "JSESSIONID=1234"));
+    read(get("Cookie", "JSESSIONID=5678"));
+    assertEquals(2, origin.hits.get());
+
+    origin.headers.put("Cache-Control", "public, max-age=60");
+    read(get("Cookie", "JSESSIONID=1234"));
+    read(get("Cookie", "JSESSIONID=5678"));
+    assertEquals(3, origin.hits.get());
+  }
+
+  @Test
+  public void responsesAreKeptPerVariant() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    origin.headers.put("Vary", "Accept-Language");
+    read(get("Accept-Language", "en"));
+    read(get("Accept-Language", "en"));
+    read(get("Accept-Language", "fr"));
+    assertEquals(2, origin.hits.get());
+  }
+
+  @Test
+  public void largeResponsesAreStreamed() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 5000) {
+      sb.append(BODY);
+    }
+    origin.body = sb.toString();
+    assertEquals(origin.body, read(get()));
+    assertEquals(origin.body, read(get()));
+    assertEquals(2, origin.hits.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void tooLargeWithLength() throws Exception {
+    ProxyResponse response = get(10);
+    assertEquals(412, response.getResultCode());
+    assertNull(response.getResponseBodyAsString());
+    assertEquals("text/xml; charset=UTF-8",
+        response.getResponseHeaders().get("Content-Type")[0]);
+    response.close();
+    assertEquals(BODY, read(get(BODY.length())));
+  }
+
+  @Test
+  public void tooLargeWithoutLength() throws Exception {
+    origin.chunked = true;
+    ProxyResponse response = get(10);
+    assertEquals(412, response.getResultCode());
+    response.close();
+    assertEquals(BODY, read(get(BODY.length())));
+  }
+
+  @Test
+  public void tooLargeWhileStreaming() throws Exception {
+    origin.chunked = true;
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 5000) {
+      sb.append(BODY);
+    }
+    origin.body = sb.toString();
+    // bigger than the largest entry, so it only fails once it is being read.
+    ProxyResponse response = get(4000);
+    assertEquals(200, response.getResultCode());
+    try {
+      read(response);
+      fail("Should have stopped reading at the limit");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void concurrentRequestsShareOneFetch() throws Exception {
+    origin.headers.put("Cache-Control", "max-age=60");
+    origin.delay = 200;
+    ExecutorService executor = Executors.newFixedThreadPool(20);
+    final CountDownLatch start = new CountDownLatch(1);
+    Future<?>[] futures = new Future<?>[20];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = executor.submit(new Callable<String>() {
+        public String call() throws Exception {
+          start.await();
+          return read(get());
+        }
+      });
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      assertEquals(BODY, future.get());
+    }
+    executor.shutdown();
+    assertEquals(1, origin.hits.get());
+  }
+
+  /**
+   * Sends a burst of requests for a few hot URLs from many threads, with and without the
+   * cache, against an origin that takes 20ms to answer. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkHotUrls() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    origin.headers.put("Cache-Control", "max-age=60");
+    origin.delay = 20;
+    final HttpClient client = new HttpClient(connectionManager);
+    final String[] urls = new String[5];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = url + "?item=" + i;
+    }
+
+    for (final boolean cached : new boolean[] { false, true }) {
+      origin.hits.set(0);
+      ExecutorService executor = Executors.newFixedThreadPool(50);
+      final AtomicInteger n = new AtomicInteger();
+      long start = System.currentTimeMillis();
+      Future<?>[] futures = new Future<?>[50];
+      for (int t = 0; t < futures.length; t++) {
+        futures[t] = executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            for (int i = 0; i < 40; i++) {
+              GetMethod method = new GetMethod(urls[n.incrementAndGet() % urls.length]);
+              if (cached) {
+                read(cache.execute(method, -1));
+              } else {
+                client.executeMethod(method);
+                method.getResponseBody();
+                method.releaseConnection();
+              }
+            }
+            return null;
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      executor.shutdown();
+      long t = System.currentTimeMillis() - start;
+      System.err.println((cached ? "Cached:   " : "Uncached: ") + n.get() + " requests in "
+          + t + "ms, " + origin.hits.get() + " reached the origin");
+    }
+  }
+}
@@ -308,6 +308,17 @@ public abstract class AbstractSparseCreateOperation extends AbstractSparsePostOp
         }
       }
     }
+    // a name that is unique in the cluster can't be taken, so there is nothing to check.
+    if (generatedName == null
+        && defaultNodeNameGenerator instanceof UniqueNodeNameGenerator) {
+      UniqueNodeNameGenerator unique = (UniqueNodeNameGenerator) defaultNodeNameGenerator;
+      if (!unique.isNameRequested(request, requirePrefix)) {
+        String uniqueName = unique.getUniqueNodeName();
+        if (uniqueName != null) {
+          return basePath + "/" + uniqueName;
+        }
+      }
+    }
     if (generatedName == null) {
       generatedName = defaultNodeNameGenerator.getNodeName(request, basePath,
           requirePrefix, defaultNodeNameGenerator);
@@ -327,16 +338,26 @@ public abstract class AbstractSparseCreateOperation extends AbstractSparsePostOp
 
     String path = removeAndValidateWorkspace(basePath);
 
-    // if resulting path exists, add a suffix until it's not the case
-    // anymore
-    if (contentManager.exists(path)) {
-      for (int idx = 0; idx < 1000; idx++) {
-        String newPath = path + "_" + idx;
-        if (!contentManager.exists(newPath)) {
-          basePath = basePath + "_" + idx;
-          path = newPath;
-          break;
-        }
+    if (!contentManager.exists(path)) {
+      return basePath;
+    }
+
+    // if we can make a unique suffix the result can't exist.
+    if (defaultNodeNameGenerator instanceof UniqueNodeNameGenerator) {
+      String suffix = ((UniqueNodeNameGenerator) defaultNodeNameGenerator)
+          .getUniqueNodeName();
+      if (suffix != null) {
+        return basePath + "_" + suffix;
+      }
+    }
+
+    // otherwise add a suffix until it's not the case anymore
+    for (int idx = 0; idx < 1000; idx++) {
+      String newPath = path + "_" + idx;
+      if (!contentManager.exists(newPath)) {
+        basePath = basePath + "_" + idx;
+        path = newPath;
+        break;
       }
     }
 
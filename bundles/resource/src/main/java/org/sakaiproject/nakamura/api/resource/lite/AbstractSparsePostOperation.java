@@ -132,7 +132,7 @@ public abstract class AbstractSparsePostOperation implements SparsePostOperation
             if (!isSkipCheckin(request)) {
                 // now do the checkins
                 for(String checkinPath : nodesToCheckin) {
-                    if (checkin(checkinPath, contentManager)) {
+                    if (checkin(request, checkinPath, contentManager)) {
                         response.onChange("checkin", checkinPath);
                     }
                 }
@@ -337,8 +337,13 @@ public abstract class AbstractSparsePostOperation implements SparsePostOperation
     }
 
 
-    private boolean checkin(String path, ContentManager contentManager) throws StorageClientException, AccessDeniedException  {
-      contentManager.saveVersion(path);
+    private boolean checkin(SlingHttpServletRequest request, String path, ContentManager contentManager) throws StorageClientException, AccessDeniedException  {
+      String versionId = contentManager.saveVersion(path);
+      SparseVersionIndex versionIndex = (SparseVersionIndex) request
+          .getAttribute(SparseVersionIndex.class.getName());
+      if (versionIndex != null) {
+        versionIndex.addVersion(contentManager, path, versionId, null);
+      }
       return true;
     }
 
@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads JSON from a stream one token at a time, so that a large document never has to
+ * be held in memory. It is as lenient as the sling JSONTokener about unquoted strings
+ * and separators, and produces the same value types, so content imported through it
+ * ends up the same as content imported from a JSONObject.
+ */
+class JsonPullParser {
+
+  enum Token {
+    START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, VALUE, END
+  }
+
+  private final Reader reader;
+  /**
+   * True for each object we are in, false for each array.
+   */
+  private final List<Boolean> containers = new ArrayList<Boolean>();
+  private boolean expectKey;
+  /**
+   * Characters read ahead, last in first out. A comment check can read one character
+   * past a '/' that then has to be read again as well.
+   */
+  private final int[] pushedBack = new int[2];
+  private int pushed;
+  private long position;
+  private String key;
+  private Object value;
+
+  JsonPullParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * @return the next token, or {@link Token#END} at the end of the stream.
+   */
+  Token next() throws IOException, JSONException {
+    for (;;) {
+      int c = nextClean();
+      switch (c) {
+      case -1:
+        if (!containers.isEmpty()) {
+          throw syntaxError("Unexpected end of the JSON text");
+        }
+        return Token.END;
+      case '{':
+        containers.add(Boolean.TRUE);
+        expectKey = true;
+        return Token.START_OBJECT;
+      case '[':
+        containers.add(Boolean.FALSE);
+        expectKey = false;
+        return Token.START_ARRAY;
+      case '}':
+        pop(true);
+        return Token.END_OBJECT;
+      case ']':
+        pop(false);
+        return Token.END_ARRAY;
+      case ',':
+      case ';':
+        expectKey = inObject();
+        break;
+      case ':':
+      case '=':
+        if (c == '=') {
+          // the tokenizer also accepts =>
+          int n = read();
+          if (n != '>') {
+            back(n);
+          }
+        }
+        expectKey = false;
+        break;
+      case '"':
+      case '\'':
+        return token(readString((char) c), true);
+      default:
+        back(c);
+        return token(readLiteral(), false);
+      }
+    }
+  }
+
+  /**
+   * @return the key the last {@link Token#KEY} was for.
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value the last {@link Token#VALUE} was for.
+   */
+  Object getValue() {
+    return value;
+  }
+
+  /**
+   * Reads the whole of the value that starts with <code>token</code>, building objects
+   * and arrays in memory. Only for values known to be small.
+   */
+  Object readValue(Token token) throws IOException, JSONException {
+    switch (token) {
+    case VALUE:
+      return value;
+    case START_OBJECT:
+      JSONObject object = new JSONObject();
+      for (Token t = next(); t != Token.END_OBJECT; t = next()) {
+        if (t != Token.KEY) {
+          throw syntaxError("A JSONObject text must have a key");
+        }
+        String k = key;
+        object.put(k, readValue(next()));
+      }
+      return object;
+    case START_ARRAY:
+      JSONArray array = new JSONArray();
+      for (Token t = next(); t != Token.END_ARRAY; t = next()) {
+        array.put(readValue(t));
+      }
+      return array;
+    default:
+      throw syntaxError("Expected a value but got " + token);
+    }
+  }
+
+  /**
+   * Skips over the value that starts with <code>token</code>.
+   */
+  void skip(Token token) throws IOException, JSONException {
+    if (token == Token.START_OBJECT || token == Token.START_ARRAY) {
+      int depth = containers.size();
+      while (containers.size() >= depth) {
+        if (next() == Token.END) {
+          throw syntaxError("Unexpected end of the JSON text");
+        }
+      }
+    } else if (token != Token.VALUE) {
+      throw syntaxError("Expected a value but got " + token);
+    }
+  }
+
+  JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " + position);
+  }
+
+  private Token token(Object s, boolean quoted) throws JSONException {
+    if (expectKey) {
+      if (!quoted && "".equals(s)) {
+        throw syntaxError("Missing key");
+      }
+      key = String.valueOf(s);
+      expectKey = false;
+      return Token.KEY;
+    }
+    value = s;
+    return Token.VALUE;
+  }
+
+  private boolean inObject() {
+    return !containers.isEmpty() && containers.get(containers.size() - 1);
+  }
+
+  private void pop(boolean object) throws JSONException {
+    if (containers.isEmpty() || inObject() != object) {
+      throw syntaxError("Unbalanced " + (object ? "'}'" : "']'"));
+    }
+    containers.remove(containers.size() - 1);
+    expectKey = false;
+  }
+
+  private int read() throws IOException {
+    if (pushed > 0) {
+      return pushedBack[--pushed];
+    }
+    position++;
+    return reader.read();
+  }
+
+  private void back(int c) {
+    pushedBack[pushed++] = c;
+  }
+
+  /**
+   * Skips whitespace and comments, as the tokenizer does.
+   */
+  private int nextClean() throws IOException, JSONException {
+    for (;;) {
+      int c = read();
+      if (c == '/') {
+        int n = read();
+        if (n == '/') {
+          do {
+            c = read();
+          } while (c != '\n' && c != '\r' && c != -1);
+        } else if (n == '*') {
+          int previous = 0;
+          for (c = read(); !(previous == '*' && c == '/'); c = read()) {
+            if (c == -1) {
+              throw syntaxError("Unclosed comment");
+            }
+            previous = c;
+          }
+        } else {
+          back(n);
+          return c;
+        }
+      } else if (c == '#') {
+        do {
+          c = read();
+        } while (c != '\n' && c != '\r' && c != -1);
+      } else if (c == -1 || c > ' ') {
+        return c;
+      }
+    }
+  }
+
+  private String readString(char quote) throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (;;) {
+      int c = read();
+      switch (c) {
+      case -1:
+      case '\n':
+      case '\r':
+        throw syntaxError("Unterminated string");
+      case '\\':
+        c = read();
+        switch (c) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 'u':
+          char[] hex = new char[4];
+          for (int i = 0; i < 4; i++) {
+            int h = read();
+            if (h == -1) {
+              throw syntaxError("Unterminated string");
+            }
+            hex[i] = (char) h;
+          }
+          try {
+            sb.append((char) Integer.parseInt(new String(hex), 16));
+          } catch (NumberFormatException e) {
+            throw syntaxError("Illegal escape \\u" + new String(hex));
+          }
+          break;
+        case -1:
+          throw syntaxError("Unterminated string");
+        default:
+          sb.append((char) c);
+        }
+        break;
+      default:
+        if (c == quote) {
+          return sb.toString();
+        }
+        sb.append((char) c);
+      }
+    }
+  }
+
+  private Object readLiteral() throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (int c = read(); c != -1; c = read()) {
+      if (c <= ' ' || ",:]}/\\\"[{;=#".indexOf(c) >= 0) {
+        back(c);
+        break;
+      }
+      sb.append((char) c);
+    }
+    String s = sb.toString().trim();
+    if (s.length() == 0) {
+      throw syntaxError("Missing value");
+    }
+    if (expectKey) {
+      return s;
+    }
+    if (s.equalsIgnoreCase("true")) {
+      return Boolean.TRUE;
+    }
+    if (s.equalsIgnoreCase("false")) {
+      return Boolean.FALSE;
+    }
+    if (s.equalsIgnoreCase("null")) {
+      return JSONObject.NULL;
+    }
+    char b = s.charAt(0);
+    if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+      try {
+        return Integer.valueOf(s);
+      } catch (NumberFormatException e) {
+        try {
+          return Long.valueOf(s);
+        } catch (NumberFormatException f) {
+          try {
+            return Double.valueOf(s);
+          } catch (NumberFormatException g) {
+            return s;
+          }
+        }
+      }
+    }
+    return s;
+  }
+}
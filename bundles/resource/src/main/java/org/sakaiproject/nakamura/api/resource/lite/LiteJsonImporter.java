@@ -19,10 +19,14 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.resource.lite.JsonPullParser.Token;
 import org.sakaiproject.nakamura.util.ISO8601Date;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.util.Calendar;
@@ -35,6 +39,7 @@ import java.util.Map.Entry;
 public class LiteJsonImporter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteJsonImporter.class);
+  public static final int DEFAULT_BATCH_SIZE = 100;
   private static Map<String, Class<?>> TYPES = null;
 
   static {
@@ -73,23 +78,15 @@ public class LiteJsonImporter {
     while (keys.hasNext()) {
 
       String key = keys.next();
-      if (!key.startsWith("jcr:")) {
+      if (!isIgnored(key)) {
         Object obj = json.get(key);
 
         String pathKey = getPathElement(key);
         Class<?> typeHint = getElementType(key);
 
         if (obj instanceof JSONObject) {
-          if ( key.endsWith("@grant")) {
-            JSONObject acl = (JSONObject) obj;
-            int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
-            Operation op = getOperation(acl.getString("operation"));
-            modifications.add(new AclModification(AclModification.grantKey(pathKey), bitmap, op));
-          } else if ( key.endsWith("@deny")) {
-            JSONObject acl = (JSONObject) obj;
-            int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
-            Operation op = getOperation(acl.getString("operation"));
-            modifications.add(new AclModification(AclModification.denyKey(pathKey), bitmap, op));
+          if ( key.endsWith("@grant") || key.endsWith("@deny")) {
+            modifications.add(getAclModification(key, pathKey, (JSONObject) obj));
           } else if ( key.endsWith("@Delete") ) {
             StorageClientUtils.deleteTree(contentManager, path);
           } else {
@@ -130,6 +127,230 @@ public class LiteJsonImporter {
       accessControlManager.setAcl(Security.ZONE_CONTENT, path, modifications.toArray(new AclModification[modifications.size()]));
     }
   }
+  /**
+   * Imports JSON read from a stream, without ever holding the whole document. Nodes are
+   * written as each JSON object ends, a batch at a time, with the ACLs of a batch
+   * written after its content. A node and its properties are the same as
+   * {@link #importContent(ContentManager, JSONObject, String, boolean, boolean, boolean, AccessControlManager)}
+   * would have produced.
+   *
+   * @param createOnly
+   *          if the imported tree is known to be new, either because path does not exist
+   *          or because removeTree is set, nodes are written without reading them
+   *          first.
+   * @param batchSize
+   *          how many nodes are held before they are written.
+   */
+  public void importContent(ContentManager contentManager, Reader json, String path,
+      boolean continueIfExists, boolean replaceProperties, boolean removeTree,
+      boolean createOnly, int batchSize, AccessControlManager accessControlManager)
+      throws JSONException, IOException, StorageClientException, AccessDeniedException {
+    boolean exists = contentManager.exists(path);
+    if ( !continueIfExists && exists) {
+      LOGGER.debug("replace=false and path exists, so discontinuing JSON import: " + path);
+      return;
+    }
+    if ( removeTree ) {
+      for ( Iterator<String> i = contentManager.listChildPaths(path); i.hasNext(); ) {
+        String childPath = i.next();
+        LOGGER.info("Deleting {} ",childPath);
+        StorageClientUtils.deleteTree(contentManager, childPath);
+        LOGGER.info("Done Deleting {} ",childPath);
+      }
+    }
+    JsonPullParser parser = new JsonPullParser(json);
+    if (parser.next() != Token.START_OBJECT) {
+      throw parser.syntaxError("A JSONObject text must begin with '{'");
+    }
+    ImportBatch batch = new ImportBatch(contentManager, accessControlManager,
+        replaceProperties, Math.max(1, batchSize));
+    if (createOnly) {
+      if (!exists) {
+        batch.newTreePath = path;
+      } else if (removeTree) {
+        // the root is still there, but nothing below it.
+        batch.newTreePath = path + "/";
+      }
+    }
+    importObject(parser, path, batch);
+    batch.flush();
+  }
+
+  /**
+   * Reads JSON from a stream as
+   * {@link #importContent(ContentManager, Reader, String, boolean, boolean, boolean, boolean, int, AccessControlManager)}
+   * would, without writing anything. A stream that is imported a batch at a time is
+   * checked with this first, so that a malformed document is not partly imported.
+   */
+  public void validate(Reader json) throws JSONException, IOException {
+    JsonPullParser parser = new JsonPullParser(json);
+    if (parser.next() != Token.START_OBJECT) {
+      throw parser.syntaxError("A JSONObject text must begin with '{'");
+    }
+    try {
+      importObject(parser, "", new ImportBatch(null, null, false, 1));
+    } catch (StorageClientException e) {
+      // nothing is written while validating.
+      throw new IllegalStateException(e);
+    } catch (AccessDeniedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void importObject(JsonPullParser parser, String path, ImportBatch batch)
+      throws JSONException, IOException, StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    List<AclModification> modifications = Lists.newArrayList();
+    for (Token token = parser.next(); token != Token.END_OBJECT; token = parser.next()) {
+      if (token != Token.KEY) {
+        throw parser.syntaxError("A JSONObject text must have a key");
+      }
+      String key = parser.getKey();
+      token = parser.next();
+      if (isIgnored(key)) {
+        parser.skip(token);
+        continue;
+      }
+      String pathKey = getPathElement(key);
+      Class<?> typeHint = getElementType(key);
+
+      if (token == Token.START_OBJECT) {
+        if ( key.endsWith("@grant") || key.endsWith("@deny")) {
+          modifications.add(getAclModification(key, pathKey,
+              (JSONObject) parser.readValue(token)));
+        } else if ( key.endsWith("@Delete") ) {
+          parser.skip(token);
+          batch.deleteTree(path);
+        } else {
+          importObject(parser, path + "/" + pathKey, batch);
+        }
+      } else if (token == Token.START_ARRAY) {
+        JSONArray arr = (JSONArray) parser.readValue(token);
+        if ( key.endsWith("@Delete") ) {
+          properties.put(pathKey, new RemoveProperty());
+        } else {
+          properties.put(pathKey, getArray(arr, typeHint));
+        }
+      } else if (token == Token.VALUE) {
+        if ( key.endsWith("@Delete") ) {
+          properties.put(pathKey, new RemoveProperty());
+        } else {
+          properties.put(pathKey, getObject(parser.getValue(), typeHint));
+        }
+      } else {
+        throw parser.syntaxError("Expected a value for " + key);
+      }
+    }
+    batch.add(path, properties, modifications);
+  }
+
+  private AclModification getAclModification(String key, String pathKey, JSONObject acl)
+      throws JSONException {
+    int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
+    Operation op = getOperation(acl.getString("operation"));
+    if (key.endsWith("@grant")) {
+      return new AclModification(AclModification.grantKey(pathKey), bitmap, op);
+    }
+    return new AclModification(AclModification.denyKey(pathKey), bitmap, op);
+  }
+
+  /**
+   * Nodes of a streamed import waiting to be written. Without a content manager nothing
+   * is held or written, as when validating.
+   */
+  private static final class ImportBatch {
+    private final ContentManager contentManager;
+    private final AccessControlManager accessControlManager;
+    private final boolean replaceProperties;
+    private final int size;
+    private final List<ImportedNode> nodes = Lists.newArrayList();
+    /**
+     * Nodes at or below this path don't exist yet, so they need not be read.
+     */
+    private String newTreePath;
+
+    private ImportBatch(ContentManager contentManager,
+        AccessControlManager accessControlManager, boolean replaceProperties, int size) {
+      this.contentManager = contentManager;
+      this.accessControlManager = accessControlManager;
+      this.replaceProperties = replaceProperties;
+      this.size = size;
+    }
+
+    private void add(String path, Map<String, Object> properties,
+        List<AclModification> modifications) throws StorageClientException,
+        AccessDeniedException {
+      if (contentManager == null) {
+        return;
+      }
+      nodes.add(new ImportedNode(path, properties, modifications));
+      if (nodes.size() >= size) {
+        flush();
+      }
+    }
+
+    private void deleteTree(String path) throws StorageClientException,
+        AccessDeniedException {
+      if (contentManager == null) {
+        return;
+      }
+      // what has been imported so far may be below the path.
+      flush();
+      StorageClientUtils.deleteTree(contentManager, path);
+    }
+
+    private void flush() throws StorageClientException, AccessDeniedException {
+      for (ImportedNode node : nodes) {
+        Content content = null;
+        if (!isNew(node.path)) {
+          content = contentManager.get(node.path);
+        }
+        if (content == null) {
+          contentManager.update(new Content(node.path, node.properties));
+          LOGGER.debug("Created Node {} ", node.path);
+        } else {
+          for (Entry<String, Object> e : node.properties.entrySet()) {
+            if ( replaceProperties || !content.hasProperty(e.getKey())) {
+              content.setProperty(e.getKey(), e.getValue());
+            }
+          }
+          contentManager.update(content);
+          LOGGER.debug("Updated Node {} ", node.path);
+        }
+      }
+      for (ImportedNode node : nodes) {
+        if (node.modifications.size() > 0) {
+          accessControlManager.setAcl(Security.ZONE_CONTENT, node.path,
+              node.modifications.toArray(new AclModification[node.modifications.size()]));
+        }
+      }
+      nodes.clear();
+    }
+
+    private boolean isNew(String path) {
+      if (newTreePath == null) {
+        return false;
+      }
+      if (newTreePath.endsWith("/")) {
+        return path.startsWith(newTreePath);
+      }
+      return path.equals(newTreePath) || path.startsWith(newTreePath + "/");
+    }
+  }
+
+  private static final class ImportedNode {
+    private final String path;
+    private final Map<String, Object> properties;
+    private final List<AclModification> modifications;
+
+    private ImportedNode(String path, Map<String, Object> properties,
+        List<AclModification> modifications) {
+      this.path = path;
+      this.properties = properties;
+      this.modifications = modifications;
+    }
+  }
+
   protected Operation getOperation(String op) {
     op = op.toLowerCase();
     if ( op.equals("replace")) {
@@ -171,6 +392,15 @@ public class LiteJsonImporter {
     return type;
   }
 
+  /**
+   * @return true for JCR properties, and for the pointer to a shared body, which only the
+   *         shared body store may set.
+   */
+  private boolean isIgnored(String key) {
+    return key.startsWith("jcr:")
+        || SharedBodyUtils.SHARED_BODY_PROPERTY.equals(getPathElement(key));
+  }
+
   protected String getPathElement(String key) {
     if ( key != null && key.length() > 0 && !"@".equals(key)) {
       if ( key.startsWith("@")) {
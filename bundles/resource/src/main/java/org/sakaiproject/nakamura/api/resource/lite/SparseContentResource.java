@@ -24,6 +24,7 @@ import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -31,6 +32,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +69,7 @@ public class SparseContentResource extends AbstractResource {
   private String resourcePath;
 
   private ContentManager contentManager;
+  private Repository repository;
 
   public SparseContentResource(Content content, Session session, ResourceResolver resourceResolver) throws StorageClientException {
     this(content, session, resourceResolver, null);
@@ -74,18 +77,31 @@ public class SparseContentResource extends AbstractResource {
 
   public SparseContentResource(Content content, Session session, ResourceResolver resourceResolver, String resourcePath)
       throws StorageClientException {
+    this(content, session, resourceResolver, resourcePath, null);
+  }
+
+  /**
+   * @param repository
+   *          the repository to read a shared body from as the administrator, once the
+   *          session has been found to be able to read the content. Content with a
+   *          shared body can only be adapted to its body with one.
+   */
+  public SparseContentResource(Content content, Session session,
+      ResourceResolver resourceResolver, String resourcePath, Repository repository)
+      throws StorageClientException {
     this.content = content;
     this.session = session;
     this.contentManager = session.getContentManager();
     this.resourceResolver = resourceResolver;
     this.resourcePath = resourcePath;
+    this.repository = repository;
 
     if (content != null) {
       Map<String, Object> props = content.getProperties();
       metadata = new ResourceMetadata();
       metadata.setCharacterEncoding(UTF_8);
-      metadata
-          .setContentLength(StorageClientUtils.toLong(props.get(Content.LENGTH_FIELD)));
+      metadata.setContentLength(StorageClientUtils.toLong(getBodyProperties(content).get(
+          Content.LENGTH_FIELD)));
       metadata
           .setCreationTime(StorageClientUtils.toLong(props.get(Content.CREATED_FIELD)));
       metadata.setModificationTime(StorageClientUtils.toLong(props
@@ -118,7 +134,7 @@ public class SparseContentResource extends AbstractResource {
       retval = (Type) session;
     } else if (type == InputStream.class) {
       try {
-        retval = (Type) contentManager.getInputStream(content.getPath());
+        retval = (Type) SharedBodyUtils.getInputStream(session, repository, content);
       } catch (IOException e) {
         logger.error(e.getMessage(), e);
       } catch (AccessDeniedException e) {
@@ -150,6 +166,25 @@ public class SparseContentResource extends AbstractResource {
     return retval;
   }
 
+  /**
+   * @return the properties of the content holding the body of the content, which are
+   *         the content's own unless its body is shared.
+   */
+  private Map<String, Object> getBodyProperties(Content content) throws StorageClientException {
+    // content that was pointed at its body before the length was kept with the pointer.
+    if (SharedBodyUtils.isShared(content) && !content.hasProperty(Content.LENGTH_FIELD)) {
+      try {
+        Content body = SharedBodyUtils.getBodyContent(session, repository, content);
+        if (body != null) {
+          return body.getProperties();
+        }
+      } catch (AccessDeniedException e) {
+        logger.debug("Unable to read shared body of {} ", content.getPath());
+      }
+    }
+    return content.getProperties();
+  }
+
   /**
    * Returns the path at which the Resource was resolved, or the Content path
    * if the Resource path was not explicitly set. This allows divergences
@@ -206,7 +241,7 @@ public class SparseContentResource extends AbstractResource {
    */
   @Override
   public Iterator<Resource> listChildren() {
-    return new SparseContentResourceIterator(content.listChildren().iterator(), session, resourceResolver, this);
+    return new SparseContentResourceIterator(content.listChildren().iterator(), session, resourceResolver, this, repository);
   }
 
   @Override
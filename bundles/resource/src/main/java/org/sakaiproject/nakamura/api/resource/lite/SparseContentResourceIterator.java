@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.api.resource.lite;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -34,13 +35,15 @@ public class SparseContentResourceIterator extends PreemptiveIterator<Resource>
   final private Iterator<Content> contentIterator;
   final private Session session;
   final private ResourceResolver resourceResolver;
+  final private Repository repository;
   private SparseContentResource nextResource;
   private String parentPath;
 
-  public SparseContentResourceIterator(Iterator<Content> contentIterator, Session session, ResourceResolver resourceResolver, Resource parent) {
+  public SparseContentResourceIterator(Iterator<Content> contentIterator, Session session, ResourceResolver resourceResolver, Resource parent, Repository repository) {
     this.contentIterator = contentIterator;
     this.session = session;
     this.resourceResolver = resourceResolver;
+    this.repository = repository;
     this.parentPath = parent.getPath();
   }
 
@@ -52,7 +55,7 @@ public class SparseContentResourceIterator extends PreemptiveIterator<Resource>
       if (content != null) {
         try {
           String childPath = StorageClientUtils.newPath(parentPath, StorageClientUtils.getObjectName(content.getPath()));
-          nextResource = new SparseContentResource(content, session, resourceResolver, childPath);
+          nextResource = new SparseContentResource(content, session, resourceResolver, childPath, repository);
         } catch (StorageClientException e) {
           logger.debug("Unable to convert content {} to resource; cause {}", new Object[] {
               content, e.getMessage() }, e);
@@ -0,0 +1,568 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A summary of the saved versions of a content item, kept up to date as versions are
+ * saved so that listing the versions doesn't have to walk the version history and load
+ * every version.
+ * <p>
+ * The index is kept below {@link #INDEX_ROOT}, away from the item so that it is not
+ * listed, rendered, copied or moved with the item's children. Only the administrator
+ * can read or write there, so the index is read and written with an administrative
+ * session, and only once the caller's content manager has shown that the caller can
+ * read the item, or has just saved a version of it. The entries are held oldest first in
+ * chunks of {@link #CHUNK_SIZE} below the index, named 0, 1, 2..., so saving a version
+ * only rewrites the last chunk and a page of the listing reads one or two chunks. The
+ * index node holds the number of chunks and when the item was created, so that an index
+ * left behind by an item that was deleted or moved isn't used for a new item at the
+ * same path.
+ * <p>
+ * Items that have versions from before the index was introduced get their index the
+ * first time their versions are listed, see {@link #build(ContentManager, String)}.
+ * Versions saved while an item has no index are not added, the build picks them up.
+ * Adding a version is a read and rewrite of the last chunk, which another server may be
+ * doing at the same time, so the chunk is read back afterwards. If the version is not in
+ * it after a few attempts, or adding it fails, the index is removed, and the next listing
+ * builds it again.
+ */
+public class SparseVersionIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SparseVersionIndex.class);
+
+  public static final String INDEX_ROOT = "var/versionindex";
+
+  public static final String INDEX_RT = "sakai/version-index";
+
+  public static final int CHUNK_SIZE = 100;
+
+  /**
+   * The number of chunks, on the index node.
+   */
+  public static final String PROP_CHUNKS = "sakai:chunks";
+
+  /**
+   * The path of the item, on the index node.
+   */
+  public static final String PROP_PATH = "sakai:path";
+
+  /**
+   * When the item was created, on the index node.
+   */
+  public static final String PROP_CREATED = "sakai:itemCreated";
+
+  public static final String PROP_VERSION_IDS = "sakai:versionIds";
+
+  public static final String PROP_SAVED_BY = "sakai:savedBy";
+
+  public static final String PROP_LAST_MODIFIED = "sakai:lastModified";
+
+  public static final String PROP_LENGTH = "sakai:length";
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final Object[] LOCKS = new Object[64];
+  static {
+    for (int i = 0; i < LOCKS.length; i++) {
+      LOCKS[i] = new Object();
+    }
+  }
+
+  /**
+   * What the index knows about a version.
+   */
+  public static class Entry {
+    private final String versionId;
+    private final String savedBy;
+    private final long lastModified;
+    private final long length;
+
+    public Entry(String versionId, String savedBy, long lastModified, long length) {
+      this.versionId = versionId;
+      this.savedBy = savedBy;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    public Entry(String versionId, Content version) {
+      this(versionId, (String) version.getProperty(Content.VERSION_SAVEDBY_FIELD),
+          toLong(version.getProperty(Content.LASTMODIFIED_FIELD)), toLong(version
+              .getProperty(Content.LENGTH_FIELD)));
+    }
+
+    public String getVersionId() {
+      return versionId;
+    }
+
+    /**
+     * @return the user that saved the version, or null.
+     */
+    public String getSavedBy() {
+      return savedBy;
+    }
+
+    /**
+     * @return when the content of the version was last modified, or -1.
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * @return the length of the body of the version, or -1 if it has none.
+     */
+    public long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * Some of the entries of an index, newest first.
+   */
+  public static class Page {
+    private final List<Entry> entries;
+    private final int total;
+
+    Page(List<Entry> entries, int total) {
+      this.entries = entries;
+      this.total = total;
+    }
+
+    public List<Entry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return the number of versions in the whole index.
+     */
+    public int getTotal() {
+      return total;
+    }
+  }
+
+  private final Repository repository;
+
+  /**
+   * @param repository
+   *          used to log in administratively to read and write the index.
+   */
+  public SparseVersionIndex(Repository repository) {
+    this.repository = repository;
+  }
+
+  public static String getIndexPath(String path) {
+    return INDEX_ROOT + "/" + StorageClientUtils.insecureHash(path);
+  }
+
+  private static String getChunkPath(String indexPath, int chunk) {
+    return indexPath + "/" + chunk;
+  }
+
+  /**
+   * Adds a version that has just been saved to the index of its item. Does nothing if
+   * the item has no index yet, or if the version is already in it. The version has been
+   * saved by now, so failures are logged rather than thrown, and the index is removed as
+   * it may be missing the version.
+   *
+   * @param contentManager
+   *          the content manager that saved the version.
+   * @param path
+   *          the path of the item.
+   * @param versionId
+   *          the id saveVersion returned.
+   * @param version
+   *          the saved version, or null to load it.
+   */
+  public void addVersion(ContentManager contentManager, String path, String versionId,
+      Content version) {
+    String indexPath = getIndexPath(path);
+    synchronized (getLock(indexPath)) {
+      Session adminSession = null;
+      try {
+        Content item = contentManager.get(path);
+        if (item == null) {
+          return;
+        }
+        if (version == null) {
+          version = contentManager.getVersion(path, versionId);
+          if (version == null) {
+            return;
+          }
+        }
+        Entry entry = new Entry(versionId, version);
+        adminSession = repository.loginAdministrative();
+        ContentManager indexManager = adminSession.getContentManager();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+          Content index = getIndex(indexManager, item);
+          if (index == null || append(indexManager, index, entry)) {
+            return;
+          }
+        }
+        // other servers kept rewriting the chunk, start again from the history.
+        LOGGER.info("Lost version {} of {} from the version index, it will be rebuilt",
+            versionId, path);
+        StorageClientUtils.deleteTree(indexManager, indexPath);
+      } catch (ClientPoolException e) {
+        LOGGER.warn("Failed to add version {} of {} to the version index, it will be rebuilt {} ",
+            new Object[] { versionId, path, e.getMessage() });
+        drop(adminSession, indexPath);
+      } catch (StorageClientException e) {
+        LOGGER.warn("Failed to add version {} of {} to the version index, it will be rebuilt {} ",
+            new Object[] { versionId, path, e.getMessage() });
+        drop(adminSession, indexPath);
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Failed to add version {} of {} to the version index, it will be rebuilt {} ",
+            new Object[] { versionId, path, e.getMessage() });
+        drop(adminSession, indexPath);
+      } finally {
+        logout(adminSession);
+      }
+    }
+  }
+
+  /**
+   * Removes an index that may be missing a version, so that the next listing builds it
+   * again from the history.
+   *
+   * @param adminSession
+   *          the session to remove it with, or null to log in for it.
+   */
+  private void drop(Session adminSession, String indexPath) {
+    Session session = adminSession;
+    try {
+      if (session == null) {
+        session = repository.loginAdministrative();
+      }
+      ContentManager indexManager = session.getContentManager();
+      if (indexManager.exists(indexPath)) {
+        StorageClientUtils.deleteTree(indexManager, indexPath);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to remove the version index {}, it may be missing versions {} ",
+          indexPath, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to remove the version index {}, it may be missing versions {} ",
+          indexPath, e.getMessage());
+    } finally {
+      if (session != adminSession) {
+        logout(session);
+      }
+    }
+  }
+
+  /**
+   * Builds the entries for every version of an item from its version history, oldest
+   * first, and stores them as the index of the item, replacing any index it had.
+   *
+   * @param contentManager
+   *          a content manager that can read the item and its versions.
+   * @return the entries, oldest first.
+   */
+  public List<Entry> build(ContentManager contentManager, String path)
+      throws ClientPoolException, StorageClientException, AccessDeniedException {
+    String indexPath = getIndexPath(path);
+    synchronized (getLock(indexPath)) {
+      Content item = contentManager.get(path);
+      if (item == null) {
+        return new ArrayList<Entry>();
+      }
+      List<String> history = contentManager.getVersionHistory(path);
+      List<Entry> entries = new ArrayList<Entry>(history.size());
+      // the history is newest first.
+      for (int i = history.size() - 1; i >= 0; i--) {
+        String versionId = history.get(i);
+        Content version = contentManager.getVersion(path, versionId);
+        if (version != null) {
+          entries.add(new Entry(versionId, version));
+        }
+      }
+      Session adminSession = repository.loginAdministrative();
+      try {
+        ContentManager indexManager = adminSession.getContentManager();
+        if (indexManager.exists(indexPath)) {
+          StorageClientUtils.deleteTree(indexManager, indexPath);
+        }
+        int chunks = 0;
+        for (int start = 0; start < entries.size(); start += CHUNK_SIZE) {
+          Content chunk = new Content(getChunkPath(indexPath, chunks),
+              new HashMap<String, Object>());
+          append(chunk,
+              entries.subList(start, Math.min(start + CHUNK_SIZE, entries.size())));
+          indexManager.update(chunk);
+          chunks++;
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("sling:resourceType", INDEX_RT);
+        properties.put(PROP_PATH, path);
+        properties.put(PROP_CHUNKS, chunks);
+        Object created = item.getProperty(Content.CREATED_FIELD);
+        if (created != null) {
+          properties.put(PROP_CREATED, created);
+        }
+        indexManager.update(new Content(indexPath, properties));
+      } finally {
+        logout(adminSession);
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * Loads a page of the index, newest first.
+   *
+   * @param contentManager
+   *          the caller's content manager, which must be able to read the item.
+   * @param path
+   *          the path of the item.
+   * @param offset
+   *          the number of versions to skip, counting from the newest.
+   * @param count
+   *          the most versions to return.
+   * @return the page, or null if the item has no index.
+   */
+  public Page getPage(ContentManager contentManager, String path, int offset, int count)
+      throws ClientPoolException, StorageClientException, AccessDeniedException {
+    Content item = contentManager.get(path);
+    if (item == null) {
+      return null;
+    }
+    Session adminSession = repository.loginAdministrative();
+    try {
+      ContentManager indexManager = adminSession.getContentManager();
+      Content index = getIndex(indexManager, item);
+      if (index == null) {
+        return null;
+      }
+      String indexPath = index.getPath();
+      int chunks = toInt(index.getProperty(PROP_CHUNKS));
+      List<Entry> page = new ArrayList<Entry>();
+      if (chunks == 0) {
+        return new Page(page, 0);
+      }
+      // every chunk but the last is full, so the last one gives the total.
+      Content lastChunk = indexManager.get(getChunkPath(indexPath, chunks - 1));
+      if (lastChunk == null) {
+        // written by another server that has not finished yet.
+        return null;
+      }
+      List<Entry> last = read(lastChunk);
+      int size = (chunks - 1) * CHUNK_SIZE + last.size();
+      // the page, as positions in the index, oldest first.
+      int high = size - 1 - offset;
+      int low = Math.max(0, size - offset - count);
+      if (high < low) {
+        return new Page(page, size);
+      }
+      for (int c = high / CHUNK_SIZE; c >= low / CHUNK_SIZE; c--) {
+        List<Entry> entries;
+        if (c == chunks - 1) {
+          entries = last;
+        } else {
+          Content chunk = indexManager.get(getChunkPath(indexPath, c));
+          entries = chunk == null ? new ArrayList<Entry>() : read(chunk);
+        }
+        int first = c * CHUNK_SIZE;
+        int from = Math.min(high, first + entries.size() - 1);
+        for (int i = from; i >= Math.max(low, first); i--) {
+          page.add(entries.get(i - first));
+        }
+      }
+      return new Page(page, size);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * @return the index of the item, or null if it has none or the index is for an item
+   *         that was at the same path before.
+   */
+  private static Content getIndex(ContentManager indexManager, Content item)
+      throws StorageClientException, AccessDeniedException {
+    Content index = indexManager.get(getIndexPath(item.getPath()));
+    if (index == null || !item.getPath().equals(index.getProperty(PROP_PATH))) {
+      return null;
+    }
+    Object created = item.getProperty(Content.CREATED_FIELD);
+    if (created != null && !String.valueOf(created).equals(
+        String.valueOf(index.getProperty(PROP_CREATED)))) {
+      return null;
+    }
+    return index;
+  }
+
+  /**
+   * Appends the entry to the last chunk of the index, unless it is there already.
+   *
+   * @return true if the entry is in the index afterwards, false if another server wrote
+   *         the chunk at the same time.
+   */
+  private static boolean append(ContentManager indexManager, Content index, Entry entry)
+      throws StorageClientException, AccessDeniedException {
+    String indexPath = index.getPath();
+    int chunks = toInt(index.getProperty(PROP_CHUNKS));
+    Content chunk = chunks == 0 ? null : indexManager.get(getChunkPath(indexPath,
+        chunks - 1));
+    if (chunk != null && contains(chunk, entry.getVersionId())) {
+      return true;
+    }
+    List<Entry> entries = Collections.singletonList(entry);
+    if (chunk == null || getStrings(chunk, PROP_VERSION_IDS).length >= CHUNK_SIZE) {
+      chunk = new Content(getChunkPath(indexPath, chunks), new HashMap<String, Object>());
+      append(chunk, entries);
+      // write the chunk before the node that counts it.
+      indexManager.update(chunk);
+      index.setProperty(PROP_CHUNKS, chunks + 1);
+      indexManager.update(index);
+    } else {
+      append(chunk, entries);
+      indexManager.update(chunk);
+    }
+    Content written = indexManager.get(chunk.getPath());
+    return written != null && contains(written, entry.getVersionId());
+  }
+
+  private static boolean contains(Content chunk, String versionId) {
+    for (String id : getStrings(chunk, PROP_VERSION_IDS)) {
+      if (id.equals(versionId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  private static Object getLock(String path) {
+    return LOCKS[(path.hashCode() & 0x7fffffff) % LOCKS.length];
+  }
+
+  private static List<Entry> read(Content chunk) {
+    String[] ids = getStrings(chunk, PROP_VERSION_IDS);
+    String[] savedBy = getStrings(chunk, PROP_SAVED_BY);
+    String[] lastModified = getStrings(chunk, PROP_LAST_MODIFIED);
+    String[] length = getStrings(chunk, PROP_LENGTH);
+    List<Entry> entries = new ArrayList<Entry>(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      entries.add(new Entry(ids[i], get(savedBy, i), toLong(get(lastModified, i)),
+          toLong(get(length, i))));
+    }
+    return entries;
+  }
+
+  private static void append(Content chunk, List<Entry> entries) {
+    String[] ids = getStrings(chunk, PROP_VERSION_IDS);
+    String[] savedBy = getStrings(chunk, PROP_SAVED_BY);
+    String[] lastModified = getStrings(chunk, PROP_LAST_MODIFIED);
+    String[] length = getStrings(chunk, PROP_LENGTH);
+    int n = ids.length;
+    ids = grow(ids, n + entries.size());
+    savedBy = grow(savedBy, n + entries.size());
+    lastModified = grow(lastModified, n + entries.size());
+    length = grow(length, n + entries.size());
+    for (Entry entry : entries) {
+      ids[n] = entry.getVersionId();
+      // absent values are stored as empty strings to keep the arrays in step.
+      savedBy[n] = entry.getSavedBy() == null ? "" : entry.getSavedBy();
+      lastModified[n] = String.valueOf(entry.getLastModified());
+      length[n] = String.valueOf(entry.getLength());
+      n++;
+    }
+    chunk.setProperty(PROP_VERSION_IDS, ids);
+    chunk.setProperty(PROP_SAVED_BY, savedBy);
+    chunk.setProperty(PROP_LAST_MODIFIED, lastModified);
+    chunk.setProperty(PROP_LENGTH, length);
+  }
+
+  private static String[] grow(String[] values, int size) {
+    String[] grown = new String[size];
+    System.arraycopy(values, 0, grown, 0, Math.min(values.length, size));
+    for (int i = values.length; i < size; i++) {
+      grown[i] = "";
+    }
+    return grown;
+  }
+
+  private static String get(String[] values, int i) {
+    if (i < values.length && values[i] != null && values[i].length() > 0) {
+      return values[i];
+    }
+    return null;
+  }
+
+  private static String[] getStrings(Content content, String name) {
+    Object value = content.getProperty(name);
+    if (value instanceof String[]) {
+      return (String[]) value;
+    } else if (value instanceof String) {
+      return new String[] { (String) value };
+    }
+    return new String[0];
+  }
+
+  private static int toInt(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    } else if (value != null) {
+      try {
+        return Integer.parseInt(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static long toLong(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.servlets.post.NodeNameGenerator;
+
+/**
+ * A node name generator that can also make names that are unique in the cluster. The
+ * create operations use those names when the request doesn't ask for a name of its own,
+ * and to make a requested name unique, so they don't have to look for a free name.
+ */
+public interface UniqueNodeNameGenerator extends NodeNameGenerator {
+
+  /**
+   * @param request
+   *          the request.
+   * @param requirePrefix
+   *          true if the parameter names for properties require a prefix.
+   * @return true if the request suggests a name for the new node, through
+   *         <code>:name</code>, <code>:nameHint</code> or one of the properties names
+   *         are made from.
+   */
+  boolean isNameRequested(SlingHttpServletRequest request, boolean requirePrefix);
+
+  /**
+   * @return a name that has not been made before anywhere in the cluster, or null if
+   *         unique names can't be made at the moment.
+   */
+  String getUniqueNodeName();
+}
@@ -21,10 +21,12 @@ package org.sakaiproject.nakamura.resource.lite;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -53,6 +55,13 @@ public class HomeResourceProvider implements ResourceProvider {
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  /**
+   * Reads shared bodies, which only the administrator can read, for those who can read
+   * the content.
+   */
+  @Reference
+  protected Repository repository;
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
     LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
@@ -113,7 +122,7 @@ public class HomeResourceProvider implements ResourceProvider {
           LOGGER.debug("Resolving [{}] to [{}] ", userPath, content);
           if (content != null) {
             SparseContentResource cpr = new SparseContentResource(content, session,
-                resourceResolver, path);
+                resourceResolver, path, repository);
             cpr.getResourceMetadata().put(HOME_RESOURCE_PROVIDER, this);
             return cpr;
           }
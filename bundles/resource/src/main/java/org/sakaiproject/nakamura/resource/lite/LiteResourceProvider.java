@@ -19,11 +19,13 @@ package org.sakaiproject.nakamura.resource.lite;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -49,6 +51,13 @@ public class LiteResourceProvider implements ResourceProvider {
   private static final Logger logger = LoggerFactory
       .getLogger(LiteResourceProvider.class);
 
+  /**
+   * Reads shared bodies, which only the administrator can read, for those who can read
+   * the content.
+   */
+  @Reference
+  protected Repository repository;
+
   // ---------- ResourceProvider interface ----------
   /**
    * {@inheritDoc}
@@ -65,8 +74,8 @@ public class LiteResourceProvider implements ResourceProvider {
       Content content = cm.get(path);
       if (content != null) {
         String userId = jcrSession.getUserID();
-        ResourceResolver rr = new LiteResourceResolver(session, userId);
-        retRes = new SparseContentResource(content, session, rr);
+        ResourceResolver rr = new LiteResourceResolver(session, userId, repository);
+        retRes = new SparseContentResource(content, session, rr, null, repository);
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
@@ -22,6 +22,7 @@ import com.google.common.collect.Iterators;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -44,13 +45,17 @@ public class LiteResourceResolver implements ResourceResolver {
 
   private Session session;
   private String userId;
+  private Repository repository;
 
   /**
-   *
+   * @param repository
+   *          the repository to read shared bodies from as the administrator, for content
+   *          the session can read.
    */
-  public LiteResourceResolver(Session session, String userId) {
+  public LiteResourceResolver(Session session, String userId, Repository repository) {
     this.session = session;
     this.userId = userId;
+    this.repository = repository;
   }
 
   /**
@@ -141,7 +146,7 @@ public class LiteResourceResolver implements ResourceResolver {
       ContentManager cm = session.getContentManager();
       Content content = cm.get(path);
       if (content != null) {
-        resource = new SparseContentResource(content, session, this);
+        resource = new SparseContentResource(content, session, this, null, repository);
       }
     } catch (ClientPoolException e) {
       logger.error(e.getMessage(), e);
@@ -68,7 +68,7 @@ public class LiteResourceResolverFactory implements ResourceResolverFactory {
       // bundle >= 2.1.0
       String userId = (String) authnInfo.get(USER);
       Session session = repository.loginAdministrative();
-      return new LiteResourceResolver(session, userId);
+      return new LiteResourceResolver(session, userId, repository);
     } catch (AccessDeniedException e) {
       throw new LoginException(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -88,7 +88,7 @@ public class LiteResourceResolverFactory implements ResourceResolverFactory {
       // bundle >= 2.1.0
       String userId = (String) authnInfo.get(USER);
       Session session = repository.loginAdministrative(userId);
-      return new LiteResourceResolver(session, userId);
+      return new LiteResourceResolver(session, userId, repository);
     } catch (AccessDeniedException e) {
       throw new LoginException(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -36,10 +36,13 @@ import org.apache.sling.servlets.post.VersioningConfiguration;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.resource.DateParser;
 import org.sakaiproject.nakamura.api.resource.JSONResponse;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostOperation;
 import org.sakaiproject.nakamura.api.resource.lite.SparsePostProcessor;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.DefaultNodeNameGenerator;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.MediaRangeList;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.operations.CheckinOperation;
@@ -147,6 +150,12 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
 
   private VersioningConfiguration baseVersioningConfiguration;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private ClusterTrackingService clusterTrackingService;
+
+  @Reference
+  private Repository repository;
+
   @Override
   public void init() {
     // default operation: create/modify
@@ -180,6 +189,9 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
     VersioningConfiguration localVersioningConfig = createRequestVersioningConfiguration(request);
 
     request.setAttribute(VersioningConfiguration.class.getName(), localVersioningConfig);
+    // versions checked in by the operation are added to the index of their item.
+    request.setAttribute(SparseVersionIndex.class.getName(), new SparseVersionIndex(
+        repository));
 
     // prepare the response
     HtmlResponse htmlResponse = createHtmlResponse(request);
@@ -353,7 +365,10 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
     String[] nameHints = OsgiUtil
         .toStringArray(props.get(PROP_NODE_NAME_HINT_PROPERTIES));
     int nameMax = (int) OsgiUtil.toLong(props.get(PROP_NODE_NAME_MAX_LENGTH), -1);
-    defaultNodeNameGenerator = new DefaultNodeNameGenerator(nameHints, nameMax);
+    DefaultNodeNameGenerator nodeNameGenerator = new DefaultNodeNameGenerator(nameHints,
+        nameMax);
+    nodeNameGenerator.setClusterTrackingService(clusterTrackingService);
+    defaultNodeNameGenerator = nodeNameGenerator;
 
     dateParser = new DateParser();
     String[] dateFormats = OsgiUtil.toStringArray(props.get(PROP_DATE_FORMAT));
@@ -380,6 +395,20 @@ public class SparsePostServlet extends SlingAllMethodsServlet {
     this.componentContext = null;
   }
 
+  protected void bindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = clusterTrackingService;
+    if (defaultNodeNameGenerator instanceof DefaultNodeNameGenerator) {
+      ((DefaultNodeNameGenerator) defaultNodeNameGenerator)
+          .setClusterTrackingService(clusterTrackingService);
+    }
+  }
+
+  protected void unbindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    if (this.clusterTrackingService == clusterTrackingService) {
+      bindClusterTrackingService(null);
+    }
+  }
+
   protected void bindPostOperation(ServiceReference ref) {
     synchronized (this.delayedPostOperations) {
       if (this.componentContext == null) {
@@ -21,13 +21,17 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.servlets.post.NodeNameGenerator;
 import org.apache.sling.servlets.post.SlingPostConstants;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.resource.lite.UniqueNodeNameGenerator;
 
 /**
  * Generates a node name based on a set of well-known request parameters
  * like title, description, etc.
  * See SLING-128.
+ * When nothing in the request suggests a name, and the cluster tracking service is
+ * available, the name is an ID that is unique in the cluster.
  */
-public class DefaultNodeNameGenerator implements NodeNameGenerator {
+public class DefaultNodeNameGenerator implements UniqueNodeNameGenerator {
 
     private final String[] parameterNames;
     private final NodeNameFilter filter = new NodeNameFilter();
@@ -36,6 +40,7 @@ public class DefaultNodeNameGenerator implements NodeNameGenerator {
 
     private int maxLength = DEFAULT_MAX_NAME_LENGTH;
     private int counter;
+    private volatile ClusterTrackingService clusterTrackingService;
 
     public DefaultNodeNameGenerator(String[] parameterNames, int maxNameLength) {
         if (parameterNames == null) {
@@ -77,33 +82,7 @@ public class DefaultNodeNameGenerator implements NodeNameGenerator {
                 }
             }
             if ( valueToUse == null ) {
-                specialParam = parameters.getValue(SlingPostConstants.RP_NODE_NAME_HINT);
-                if ( specialParam != null ) {
-                    if ( specialParam.getString() != null && specialParam.getString().length() > 0 ) {
-                        valueToUse = specialParam.getString();
-                    }
-                }
-            }
-
-            if (valueToUse == null) {
-                for (String param : parameterNames) {
-                    if (valueToUse != null) {
-                        break;
-                    }
-                    if (requirePrefix) {
-                        param = SlingPostConstants.ITEM_PREFIX_RELATIVE_CURRENT.concat(param);
-                    }
-                    final RequestParameter[] pp = parameters.get(param);
-                    if (pp != null) {
-                        for (RequestParameter p : pp) {
-                            valueToUse = p.getString();
-                            if (valueToUse != null && valueToUse.length() > 0) {
-                                break;
-                            }
-                            valueToUse = null;
-                        }
-                    }
-                }
+                valueToUse = getHint(parameters, requirePrefix);
             }
         }
         String result;
@@ -117,7 +96,10 @@ public class DefaultNodeNameGenerator implements NodeNameGenerator {
             }
         } else {
             // default value if none provided
-            result = nextCounter() + "_" + System.currentTimeMillis();
+            result = getUniqueNodeName();
+            if (result == null) {
+                result = nextCounter() + "_" + System.currentTimeMillis();
+            }
         }
 
         if ( doFilter ) {
@@ -130,6 +112,80 @@ public class DefaultNodeNameGenerator implements NodeNameGenerator {
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     * @see org.sakaiproject.nakamura.api.resource.lite.UniqueNodeNameGenerator#isNameRequested(org.apache.sling.api.SlingHttpServletRequest, boolean)
+     */
+    public boolean isNameRequested(SlingHttpServletRequest request, boolean requirePrefix) {
+        RequestParameterMap parameters = request.getRequestParameterMap();
+        if (parameters == null) {
+            return false;
+        }
+        RequestParameter specialParam = parameters.getValue(SlingPostConstants.RP_NODE_NAME);
+        if ( specialParam != null ) {
+            if ( specialParam.getString() != null && specialParam.getString().length() > 0 ) {
+                return true;
+            }
+        }
+        return getHint(parameters, requirePrefix) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see org.sakaiproject.nakamura.api.resource.lite.UniqueNodeNameGenerator#getUniqueNodeName()
+     */
+    public String getUniqueNodeName() {
+        ClusterTrackingService cluster = clusterTrackingService;
+        if (cluster == null) {
+            return null;
+        }
+        return cluster.getClusterUniqueId();
+    }
+
+    /**
+     * @param clusterTrackingService the service unique names are made by, or null if
+     *      there is none.
+     */
+    public void setClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+        this.clusterTrackingService = clusterTrackingService;
+    }
+
+    /**
+     * @return the value of <code>:nameHint</code>, or of the first of our parameterNames
+     *      that has one, or null.
+     */
+    private String getHint(RequestParameterMap parameters, boolean requirePrefix) {
+        String valueToUse = null;
+        RequestParameter specialParam = parameters.getValue(SlingPostConstants.RP_NODE_NAME_HINT);
+        if ( specialParam != null ) {
+            if ( specialParam.getString() != null && specialParam.getString().length() > 0 ) {
+                valueToUse = specialParam.getString();
+            }
+        }
+
+        if (valueToUse == null) {
+            for (String param : parameterNames) {
+                if (valueToUse != null) {
+                    break;
+                }
+                if (requirePrefix) {
+                    param = SlingPostConstants.ITEM_PREFIX_RELATIVE_CURRENT.concat(param);
+                }
+                final RequestParameter[] pp = parameters.get(param);
+                if (pp != null) {
+                    for (RequestParameter p : pp) {
+                        valueToUse = p.getString();
+                        if (valueToUse != null && valueToUse.length() > 0) {
+                            break;
+                        }
+                        valueToUse = null;
+                    }
+                }
+            }
+        }
+        return valueToUse;
+    }
+
     public synchronized int nextCounter() {
         return ++counter;
     }
@@ -24,7 +24,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
@@ -76,6 +78,9 @@ public class ImportOperation extends AbstractSparseCreateOperation {
         .getParameter(SlingPostConstants.RP_REPLACE_PROPERTIES));
     final boolean removeTree = "true".equalsIgnoreCase(request
         .getParameter(":removeTree"));
+    // the caller knows that nothing below the path exists yet.
+    final boolean createOnly = "true".equalsIgnoreCase(request
+        .getParameter(":createOnly"));
 
     String basePath = getItemPath(request);
     if (basePath.endsWith("/")) {
@@ -86,31 +91,49 @@ public class ImportOperation extends AbstractSparseCreateOperation {
     response.setCreateRequest(true);
 
     try {
-      InputStream contentStream = null;
       String content = request.getParameter(SlingPostConstants.RP_CONTENT);
+      RequestParameter contentFile = null;
       if (content == null) {
-        RequestParameter contentFile = request
-            .getRequestParameter(SlingPostConstants.RP_CONTENT_FILE);
-        if (contentFile != null) {
-          contentStream = contentFile.getInputStream();
-          content = IOUtils.toString(contentStream, "UTF-8");
-        }
+        contentFile = request.getRequestParameter(SlingPostConstants.RP_CONTENT_FILE);
       }
 
-      if (content == null) {
+      if (content == null && contentFile == null) {
         response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED,
             "Missing content for import");
         return;
       } else {
-        
-        JSONObject json = new JSONObject(content);
-        if ( LOGGER.isDebugEnabled() ) {
-          LOGGER.debug("to {} importing {} ",basePath,json.toString(3));
-        }
         LiteJsonImporter simpleJsonImporter = new LiteJsonImporter();
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         AccessControlManager accessControlManager = session.getAccessControlManager();
-        simpleJsonImporter.importContent(contentManager, json, basePath, replace, replaceProperties, removeTree, accessControlManager);
+        if (!createOnly) {
+          if (content == null) {
+            content = IOUtils.toString(contentFile.getInputStream(), "UTF-8");
+          }
+          JSONObject json = new JSONObject(content);
+          if ( LOGGER.isDebugEnabled() ) {
+            LOGGER.debug("to {} importing {} ",basePath,json.toString(3));
+          }
+          simpleJsonImporter.importContent(contentManager, json, basePath, replace, replaceProperties, removeTree, accessControlManager);
+        } else {
+          // Large dumps into a new tree are streamed rather than parsed up front, once to
+          // check them and then to import them, so that a malformed dump is not partly
+          // imported. An uploaded file can be opened again for the second pass.
+          Reader reader = openContent(content, contentFile);
+          try {
+            simpleJsonImporter.validate(reader);
+          } finally {
+            reader.close();
+          }
+          reader = openContent(content, contentFile);
+          try {
+            LOGGER.debug("to {} streaming import", basePath);
+            simpleJsonImporter.importContent(contentManager, reader, basePath, replace,
+                replaceProperties, removeTree, createOnly,
+                LiteJsonImporter.DEFAULT_BATCH_SIZE, accessControlManager);
+          } finally {
+            reader.close();
+          }
+        }
           response.setLocation(externalizePath(request, basePath));
           response.setPath(basePath);
           int lastSlashIndex = basePath.lastIndexOf('/');
@@ -129,4 +152,12 @@ public class ImportOperation extends AbstractSparseCreateOperation {
     }
   }
 
+  private Reader openContent(String content, RequestParameter contentFile)
+      throws IOException {
+    if (content != null) {
+      return new StringReader(content);
+    }
+    return new InputStreamReader(contentFile.getInputStream(), "UTF-8");
+  }
+
 }
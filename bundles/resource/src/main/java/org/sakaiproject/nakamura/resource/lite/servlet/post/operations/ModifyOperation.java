@@ -40,6 +40,7 @@ import org.sakaiproject.nakamura.api.resource.lite.SparseNonExistingResource;
 import org.sakaiproject.nakamura.api.resource.lite.SparseRequestProperty;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.SparseFileUploadHandler;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.SparsePropertyValueHandler;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 
 import java.io.IOException;
 import java.util.List;
@@ -137,6 +138,10 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
             || prop.getName().equals("jcr:mixinTypes")) {
           continue;
         }
+        // only the shared body store points content at a body it holds.
+        if (prop.getName().equals(SharedBodyUtils.SHARED_BODY_PROPERTY)) {
+          continue;
+        }
         if (prop.isFileUpload()) {
           uploadHandler.setFile(content, contentManager, prop, changes);
         } else {
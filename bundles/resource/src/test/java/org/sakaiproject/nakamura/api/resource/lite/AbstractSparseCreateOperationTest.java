@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestParameterMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.servlets.HtmlResponse;
+import org.apache.sling.servlets.post.Modification;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.DefaultNodeNameGenerator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ */
+public class AbstractSparseCreateOperationTest {
+
+  private SlingHttpServletRequest request;
+  private RequestParameterMap parameters;
+  private ContentManager contentManager;
+  private ClusterTrackingService clusterTrackingService;
+  private DefaultNodeNameGenerator nodeNameGenerator;
+  private AbstractSparseCreateOperation operation;
+
+  @Before
+  public void setUp() {
+    request = mock(SlingHttpServletRequest.class);
+    parameters = mock(RequestParameterMap.class);
+    contentManager = mock(ContentManager.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResource()).thenReturn(resource);
+    when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
+    when(request.getRequestParameterMap()).thenReturn(parameters);
+    when(request.getParameterNames()).thenReturn(
+        Collections.enumeration(Collections.emptyList()));
+
+    clusterTrackingService = mock(ClusterTrackingService.class);
+    when(clusterTrackingService.getClusterUniqueId()).thenReturn("0Ht3wKkgOk1",
+        "0Ht3wKkgOk2");
+    nodeNameGenerator = new DefaultNodeNameGenerator(new String[] { "title" }, 20);
+    operation = new AbstractSparseCreateOperation(nodeNameGenerator) {
+      @Override
+      protected void doRun(SlingHttpServletRequest request, HtmlResponse response,
+          ContentManager contentManager, List<Modification> changes, String contentPath) {
+      }
+    };
+  }
+
+  private void setTitle(String title) {
+    RequestParameter parameter = mock(RequestParameter.class);
+    when(parameter.getString()).thenReturn(title);
+    when(parameters.get("title")).thenReturn(new RequestParameter[] { parameter });
+  }
+
+  @Test
+  public void testUnnamedNodeIsNotProbed() throws Exception {
+    nodeNameGenerator.setClusterTrackingService(clusterTrackingService);
+
+    assertEquals("/a/0Ht3wKkgOk1", operation.generateName(request, "/a"));
+    verify(contentManager, never()).exists(anyString());
+  }
+
+  @Test
+  public void testTakenNameGetsUniqueSuffix() throws Exception {
+    nodeNameGenerator.setClusterTrackingService(clusterTrackingService);
+    setTitle("notes");
+    when(contentManager.exists("/a/notes")).thenReturn(true);
+
+    assertEquals("/a/notes_0Ht3wKkgOk1", operation.generateName(request, "/a"));
+    verify(contentManager, times(1)).exists(anyString());
+  }
+
+  @Test
+  public void testFreeNameIsUsed() throws Exception {
+    nodeNameGenerator.setClusterTrackingService(clusterTrackingService);
+    setTitle("notes");
+
+    assertEquals("/a/notes", operation.generateName(request, "/a"));
+    verify(clusterTrackingService, never()).getClusterUniqueId();
+  }
+
+  @Test
+  public void testProbesWithoutCluster() throws Exception {
+    setTitle("notes");
+    when(contentManager.exists("/a/notes")).thenReturn(true);
+    when(contentManager.exists("/a/notes_0")).thenReturn(true);
+
+    assertEquals("/a/notes_1", operation.generateName(request, "/a"));
+  }
+}
@@ -9,22 +9,47 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.util.SharedBodyUtils;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
 public class LiteJsonImporterTest {
 
@@ -197,4 +222,277 @@ public class LiteJsonImporterTest {
       liteJsonImporter.importContent(contentManager, json, testFile, true, true, true, accessControlManager);
     }
   }
+
+  @Test
+  public void testStreamingImportMatchesJsonObjectImport() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+
+    for ( String testFile : TEST_FILES ) {
+      String text = IOUtils.toString(getClass().getClassLoader().getResourceAsStream(testFile));
+      liteJsonImporter.importContent(contentManager, new JSONObject(text), "object/"
+          + testFile, true, true, true, accessControlManager);
+      // a batch of 2 so that some nodes are written before their parents are read.
+      liteJsonImporter.importContent(contentManager, new StringReader(text), "stream/"
+          + testFile, true, true, true, false, 2, accessControlManager);
+      assertSameTree(contentManager, accessControlManager, "object/" + testFile, "stream/"
+          + testFile);
+    }
+  }
+
+  @Test
+  public void testCreateOnlyDoesNotReadBeforeWriting() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    final ContentManager contentManager = session.getContentManager();
+    final int[] gets = new int[1];
+    ContentManager countingContentManager = (ContentManager) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { ContentManager.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("get".equals(method.getName())) {
+              gets[0]++;
+            }
+            try {
+              return method.invoke(contentManager, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+    String text = IOUtils.toString(getClass().getClassLoader().getResourceAsStream(
+        "testimport/test3.json"));
+
+    liteJsonImporter.importContent(countingContentManager, new StringReader(text),
+        "createonly", true, true, false, true, LiteJsonImporter.DEFAULT_BATCH_SIZE,
+        session.getAccessControlManager());
+    Assert.assertEquals(0, gets[0]);
+    Content nested4 = contentManager.get("createonly/testnested/nested1/nested2/nested4");
+    Assert.assertArrayEquals(new Long[] { 30L, 31L, 32L },
+        (Long[]) nested4.getProperty("propertyE"));
+
+    // the path exists now, so the second import has to merge.
+    liteJsonImporter.importContent(countingContentManager, new StringReader(text),
+        "createonly", true, true, false, true, LiteJsonImporter.DEFAULT_BATCH_SIZE,
+        session.getAccessControlManager());
+    Assert.assertTrue(gets[0] > 0);
+  }
+
+  @Test
+  public void testSharedBodyPointersAreNotImported() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    String text = "{\"title\":\"mine\",\"" + SharedBodyUtils.SHARED_BODY_PROPERTY
+        + "\":\"var/pool/bodies/abc\",\"child\":{\"" + SharedBodyUtils.SHARED_BODY_PROPERTY
+        + "@String\":\"var/pool/bodies/abc\"}}";
+
+    liteJsonImporter.importContent(contentManager, new JSONObject(text), "forged/object",
+        true, true, true, accessControlManager);
+    liteJsonImporter.importContent(contentManager, new StringReader(text), "forged/stream",
+        true, true, true, false, LiteJsonImporter.DEFAULT_BATCH_SIZE, accessControlManager);
+    for (String path : new String[] { "forged/object", "forged/stream" }) {
+      Assert.assertEquals("mine", contentManager.get(path).getProperty("title"));
+      Assert.assertFalse(contentManager.get(path).hasProperty(
+          SharedBodyUtils.SHARED_BODY_PROPERTY));
+      Assert.assertFalse(contentManager.get(path + "/child").hasProperty(
+          SharedBodyUtils.SHARED_BODY_PROPERTY));
+    }
+  }
+
+  @Test
+  public void testPullParser() throws Exception {
+    JsonPullParser parser = new JsonPullParser(new StringReader(
+        "{ \"a\" : \"x\\u0041\\n\", // comment\n b: [1, 2147483648, 1.5, true, null],"
+            + " 'c' : { } }"));
+    JSONObject json = (JSONObject) parser.readValue(parser.next());
+    Assert.assertEquals("xA\n", json.get("a"));
+    JSONArray b = json.getJSONArray("b");
+    Assert.assertEquals(Integer.valueOf(1), b.get(0));
+    Assert.assertEquals(Long.valueOf(2147483648L), b.get(1));
+    Assert.assertEquals(Double.valueOf(1.5), b.get(2));
+    Assert.assertEquals(Boolean.TRUE, b.get(3));
+    Assert.assertEquals(JSONObject.NULL, b.get(4));
+    Assert.assertEquals(0, json.getJSONObject("c").length());
+    Assert.assertEquals(JsonPullParser.Token.END, parser.next());
+
+    try {
+      parser = new JsonPullParser(new StringReader("{ \"a\" : [ 1, 2 }"));
+      parser.readValue(parser.next());
+      Assert.fail();
+    } catch (JSONException e) {
+      // unbalanced
+    }
+
+    // a '/' that does not start a comment is read again along with what follows it.
+    parser = new JsonPullParser(new StringReader("{ a : 1 /* x */, b: 2// y\n}"));
+    json = (JSONObject) parser.readValue(parser.next());
+    Assert.assertEquals(2, json.length());
+    try {
+      parser = new JsonPullParser(new StringReader("{ \"a\" : /x }"));
+      parser.readValue(parser.next());
+      Assert.fail();
+    } catch (JSONException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Missing value"));
+    }
+  }
+
+  @Test
+  public void testValidate() throws Exception {
+    LiteJsonImporter importer = new LiteJsonImporter();
+    importer.validate(new StringReader(
+        "{ \"a\" : 1, \"b\" : { \"c@TypeLong\" : 2, \"d\" : [ 1, 2 ] },"
+            + " \"e@Delete\" : { } }"));
+    String[] malformed = { "[ 1 ]", "{ \"a\" : { \"b\" : 1 }", "{ \"a\" : [ 1 }",
+        "{ \"a@grant\" : { \"operation\" : \"replace\" } }" };
+    for (String json : malformed) {
+      try {
+        importer.validate(new StringReader(json));
+        Assert.fail(json);
+      } catch (JSONException e) {
+        // nothing written.
+      }
+    }
+  }
+
+  /**
+   * Imports a generated tree of about 100 MB (-Dsakai.benchmark.importMb to change) into
+   * a fresh memory repository, from a JSONObject as the import operation used to and
+   * streamed in create only mode, and reports wall time and peak heap. The memory
+   * repository keeps everything imported on the heap too, so peak heap includes that for
+   * both. Run with -Dsakai.benchmark=true and a large -Xmx.
+   */
+  @Test
+  public void benchmarkLargeImport() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    long targetBytes = Long.getLong("sakai.benchmark.importMb", 100) * 1024 * 1024;
+    File file = File.createTempFile("import", ".json");
+    file.deleteOnExit();
+    writeLargeTree(file, targetBytes);
+    System.out.println("file MB, mode, ms, peak heap MB");
+    for (boolean streaming : new boolean[] { false, true }) {
+      Session session = new BaseMemoryRepository().getRepository().loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      AccessControlManager accessControlManager = session.getAccessControlManager();
+      LiteJsonImporter liteJsonImporter = new LiteJsonImporter();
+      System.gc();
+      resetPeakHeap();
+      long time = System.currentTimeMillis();
+      Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      try {
+        if (streaming) {
+          liteJsonImporter.importContent(contentManager, reader, "/import", true, true,
+              false, true, LiteJsonImporter.DEFAULT_BATCH_SIZE, accessControlManager);
+        } else {
+          JSONObject json = new JSONObject(IOUtils.toString(reader));
+          liteJsonImporter.importContent(contentManager, json, "/import", true, true,
+              false, accessControlManager);
+        }
+      } finally {
+        reader.close();
+      }
+      time = System.currentTimeMillis() - time;
+      System.out.println((file.length() / 1024 / 1024) + ", "
+          + (streaming ? "streamed" : "JSONObject") + ", " + time + ", "
+          + (peakHeap() / 1024 / 1024));
+      session.logout();
+    }
+  }
+
+  private void writeLargeTree(File file, long targetBytes) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      char[] filler = new char[512];
+      Arrays.fill(filler, 'x');
+      String text = new String(filler);
+      w.write("{\n");
+      int section = 0;
+      while (file.length() < targetBytes) {
+        if (section > 0) {
+          w.write(",\n");
+        }
+        w.write("\"section" + section + "\" : { \"title\" : \"Section " + section + "\"");
+        for (int page = 0; page < 100; page++) {
+          w.write(", \"page" + page + "\" : { \"sling:resourceType\" : \"sakai/page\","
+              + " \"order@TypeLong\" : " + page + ", \"tags\" : [\"a\", \"b\"],"
+              + " \"content\" : \"" + text + "\","
+              + " \"widget\" : { \"type\" : \"text\", \"body\" : \"" + text + "\" } }");
+        }
+        w.write(", \"everyone@grant\" : { \"operation\" : \"replace\","
+            + " \"permission\" : [\"read\"] } }");
+        section++;
+        w.flush();
+      }
+      w.write("\n}\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  private void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private void assertSameTree(ContentManager contentManager,
+      AccessControlManager accessControlManager, String expectedPath, String actualPath)
+      throws Exception {
+    Content expected = contentManager.get(expectedPath);
+    Content actual = contentManager.get(actualPath);
+    if (expected == null) {
+      Assert.assertNull(actualPath, actual);
+      return;
+    }
+    Assert.assertNotNull(actualPath, actual);
+    Assert.assertEquals(actualPath, comparable(expected.getProperties()),
+        comparable(actual.getProperties()));
+    Assert.assertEquals(actualPath,
+        accessControlManager.getAcl(Security.ZONE_CONTENT, expectedPath),
+        accessControlManager.getAcl(Security.ZONE_CONTENT, actualPath));
+    int children = 0;
+    for (Iterator<String> i = contentManager.listChildPaths(expectedPath); i.hasNext();) {
+      String child = i.next();
+      assertSameTree(contentManager, accessControlManager, child, actualPath
+          + child.substring(expectedPath.length()));
+      children++;
+    }
+    for (Iterator<String> i = contentManager.listChildPaths(actualPath); i.hasNext(); i
+        .next()) {
+      children--;
+    }
+    Assert.assertEquals(actualPath, 0, children);
+  }
+
+  /**
+   * The imported properties, with arrays as lists so they can be compared.
+   */
+  private Map<String, Object> comparable(Map<String, Object> properties) {
+    Map<String, Object> comparable = new TreeMap<String, Object>();
+    for (Entry<String, Object> e : properties.entrySet()) {
+      if (!e.getKey().startsWith("_")) {
+        Object value = e.getValue();
+        if (value instanceof Object[]) {
+          value = Arrays.asList((Object[]) value);
+        }
+        comparable.put(e.getKey(), value);
+      }
+    }
+    return comparable;
+  }
 }
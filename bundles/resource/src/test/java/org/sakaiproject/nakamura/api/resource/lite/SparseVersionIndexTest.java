@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex.Entry;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex.Page;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SparseVersionIndexTest {
+
+  private static final String PATH = "versioned/item";
+
+  private Session session;
+  private ContentManager contentManager;
+  private SparseVersionIndex versionIndex;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(PATH, ImmutableMap.of("title", (Object) "v0")));
+    versionIndex = new SparseVersionIndex(repository);
+  }
+
+  private void saveVersions(int n, boolean index) throws Exception {
+    for (int i = 0; i < n; i++) {
+      Content content = contentManager.get(PATH);
+      content.setProperty("title", "v" + i);
+      contentManager.update(content);
+      String versionId = contentManager.saveVersion(PATH);
+      if (index) {
+        versionIndex.addVersion(contentManager, PATH, versionId, null);
+      }
+    }
+  }
+
+  private void assertPagesMatchHistory(int pageSize) throws Exception {
+    List<String> history = contentManager.getVersionHistory(PATH);
+    for (int offset = 0; offset < history.size() + pageSize; offset += pageSize) {
+      Page page = versionIndex.getPage(contentManager, PATH, offset, pageSize);
+      Assert.assertEquals(history.size(), page.getTotal());
+      int expected = Math.max(0, Math.min(pageSize, history.size() - offset));
+      Assert.assertEquals(expected, page.getEntries().size());
+      for (int i = 0; i < expected; i++) {
+        Entry entry = page.getEntries().get(i);
+        Assert.assertEquals(history.get(offset + i), entry.getVersionId());
+        Assert.assertEquals(session.getUserId(), entry.getSavedBy());
+      }
+    }
+  }
+
+  @Test
+  public void testIndexFollowsSavedVersions() throws Exception {
+    Assert.assertNull(versionIndex.getPage(contentManager, PATH, 0, 25));
+    Assert.assertEquals(0, versionIndex.build(contentManager, PATH).size());
+
+    saveVersions(SparseVersionIndex.CHUNK_SIZE * 2 + 30, true);
+
+    assertPagesMatchHistory(25);
+    assertPagesMatchHistory(SparseVersionIndex.CHUNK_SIZE);
+    assertPagesMatchHistory(1);
+  }
+
+  @Test
+  public void testBuildFromHistory() throws Exception {
+    saveVersions(SparseVersionIndex.CHUNK_SIZE + 5, true);
+    // no index, so nothing was added.
+    Assert.assertNull(versionIndex.getPage(contentManager, PATH, 0, 25));
+
+    List<Entry> entries = versionIndex.build(contentManager, PATH);
+    List<String> history = contentManager.getVersionHistory(PATH);
+    Assert.assertEquals(history.size(), entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      Assert.assertEquals(history.get(history.size() - i - 1), entries.get(i)
+          .getVersionId());
+    }
+    assertPagesMatchHistory(25);
+
+    // and from then on it is kept up to date.
+    saveVersions(10, true);
+    assertPagesMatchHistory(25);
+  }
+
+  @Test
+  public void testIndexIsNotPartOfTheItem() throws Exception {
+    versionIndex.build(contentManager, PATH);
+    saveVersions(3, true);
+    Assert.assertFalse(contentManager.listChildPaths(PATH).hasNext());
+    Assert.assertFalse(SparseVersionIndex.getIndexPath(PATH).startsWith(PATH));
+  }
+
+  @Test
+  public void testVersionIsAddedOnce() throws Exception {
+    versionIndex.build(contentManager, PATH);
+    saveVersions(2, true);
+    String versionId = contentManager.getVersionHistory(PATH).get(0);
+    versionIndex.addVersion(contentManager, PATH, versionId, null);
+    assertPagesMatchHistory(25);
+  }
+
+  @Test
+  public void testIndexOfAnEarlierItemIsNotUsed() throws Exception {
+    versionIndex.build(contentManager, PATH);
+    saveVersions(3, true);
+    contentManager.delete(PATH);
+    // the same path, but not the same item.
+    Thread.sleep(10);
+    contentManager.update(new Content(PATH, ImmutableMap.of("title", (Object) "new")));
+    Assert.assertNull(versionIndex.getPage(contentManager, PATH, 0, 25));
+    saveVersions(1, true);
+    Assert.assertEquals(1, versionIndex.build(contentManager, PATH).size());
+    assertPagesMatchHistory(25);
+  }
+
+  @Test
+  public void testIndexIsRemovedWhenAVersionCannotBeAdded() throws Exception {
+    versionIndex.build(contentManager, PATH);
+    saveVersions(2, true);
+    Assert.assertNotNull(versionIndex.getPage(contentManager, PATH, 0, 25));
+    String versionId = contentManager.saveVersion(PATH);
+    ContentManager failing = (ContentManager) Proxy.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { ContentManager.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getVersion".equals(method.getName())) {
+          throw new StorageClientException("unavailable");
+        }
+        try {
+          return method.invoke(contentManager, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+    versionIndex.addVersion(failing, PATH, versionId, null);
+
+    // missing the version, so it is built again.
+    Assert.assertNull(versionIndex.getPage(contentManager, PATH, 0, 25));
+    Assert.assertEquals(3, versionIndex.build(contentManager, PATH).size());
+    assertPagesMatchHistory(25);
+  }
+
+  /**
+   * The first page of the history of an item with 5,000 versions, read as the list
+   * versions servlet did before the index and from the index. Reports the content
+   * manager calls, user lookups and time for each. getVersionHistory is a single call but
+   * follows the whole chain of versions, which the time shows. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkFirstPage() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int versions = 5000;
+    int pageSize = 25;
+    versionIndex.build(contentManager, PATH);
+    saveVersions(versions, true);
+    final int[] reads = new int[1];
+    ContentManager counting = (ContentManager) Proxy.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { ContentManager.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        reads[0]++;
+        try {
+          return method.invoke(contentManager, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+
+    for (int round = 0; round < 3; round++) {
+      reads[0] = 0;
+      long start = System.nanoTime();
+      int lookups = 0;
+      List<String> history = counting.getVersionHistory(PATH);
+      for (int j = 0; j < pageSize; j++) {
+        Content version = counting.getVersion(PATH, history.get(j));
+        authorizableManager.findAuthorizable((String) version
+            .getProperty(Content.VERSION_SAVEDBY_FIELD));
+        lookups++;
+      }
+      long before = System.nanoTime() - start;
+      int beforeReads = reads[0];
+
+      reads[0] = 0;
+      start = System.nanoTime();
+      Map<String, Authorizable> editors = new HashMap<String, Authorizable>();
+      Page page = versionIndex.getPage(counting, PATH, 0, pageSize);
+      for (Entry entry : page.getEntries()) {
+        if (!editors.containsKey(entry.getSavedBy())) {
+          editors.put(entry.getSavedBy(), authorizableManager.findAuthorizable(entry
+              .getSavedBy()));
+        }
+      }
+      long after = System.nanoTime() - start;
+      Assert.assertEquals(versions, page.getTotal());
+
+      System.out.println("History walk: " + beforeReads + " content calls, " + lookups
+          + " user lookups, " + (before / 1000000) + " ms. Index: " + reads[0]
+          + " content calls, " + editors.size() + " user lookups, " + (after / 1000000)
+          + " ms");
+    }
+  }
+}
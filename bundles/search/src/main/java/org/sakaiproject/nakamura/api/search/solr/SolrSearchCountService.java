@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+
+import java.util.Map;
+
+/**
+ * Counts the hits of a Solr query without fetching them. The counts are taken from the
+ * query response header and from facets, so they cost the same whether the query
+ * matches ten documents or twenty thousand. The same reader restrictions as
+ * {@link SolrSearchServiceFactory} apply.
+ */
+public interface SolrSearchCountService {
+
+  /**
+   * @return the number of documents matching the query.
+   */
+  long getCount(SlingHttpServletRequest request, Query query, boolean asAnon)
+      throws SolrSearchException;
+
+  /**
+   * @param field
+   *          the indexed field to group the matching documents by.
+   * @return the number of matching documents for each value of <code>field</code>, most
+   *         frequent first. Values with no matching documents are left out.
+   */
+  Map<String, Long> getCounts(SlingHttpServletRequest request, Query query, String field,
+      boolean asAnon) throws SolrSearchException;
+
+  /**
+   * Applies the reader restrictions for the user of the request to a query, so that it
+   * can be counted later without the request or its session, for instance on another
+   * thread.
+   *
+   * @return a query that only matches documents the user may read.
+   */
+  Query restrict(SlingHttpServletRequest request, Query query, boolean asAnon)
+      throws SolrSearchException;
+
+  /**
+   * @param restricted
+   *          a query returned by {@link #restrict(SlingHttpServletRequest, Query, boolean)}.
+   * @return the number of documents matching the query.
+   */
+  long getCount(Query restricted) throws SolrSearchException;
+
+  /**
+   * @param restricted
+   *          a query returned by {@link #restrict(SlingHttpServletRequest, Query, boolean)}.
+   * @return the number of matching documents for each value of <code>field</code>, as
+   *         {@link #getCounts(SlingHttpServletRequest, Query, String, boolean)}.
+   */
+  Map<String, Long> getCounts(Query restricted, String field) throws SolrSearchException;
+}
@@ -78,9 +78,9 @@ import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PersonalUtils;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -376,7 +376,7 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        StreamingJSONWriter write = new StreamingJSONWriter(response.getOutputStream());
         write.setTidy(isTidy(request));
 
         write.object();
@@ -429,6 +429,7 @@ public class SearchServlet extends SlingSafeMethodsServlet {
           write.endObject();
         }
         write.endObject();
+        write.flush();
       }
     } catch (RepositoryException e) {
       e.printStackTrace();
@@ -29,16 +29,13 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.Map;
 
 /**
@@ -68,11 +65,6 @@ public class GroupMembersSearchPropertyProvider implements SolrSearchPropertyPro
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
       AuthorizableManager am = session.getAuthorizableManager();
 
-      if (request.getParameter("q") == null) {
-        throw new IllegalArgumentException(
-            "Must provide 'q' parameter to use for search.");
-      }
-
       // get the request group name
       String groupName = request.getParameter("group");
       if (groupName == null) {
@@ -80,49 +72,23 @@ public class GroupMembersSearchPropertyProvider implements SolrSearchPropertyPro
       }
 
       // get the authorizable associated to the requested group name
-      Group group = (Group) am.findAuthorizable(groupName);
-      if (group == null) {
+      Authorizable group = am.findAuthorizable(groupName);
+      if (group == null || !group.isGroup()) {
         throw new IllegalArgumentException("Unable to find group [" + groupName + "]");
       }
 
-      LinkedHashSet<String> memberIds = new LinkedHashSet<String>();
-
-      // collect the declared members of the requested group
-      addDeclaredMembers(memberIds, group);
+      // users are indexed with every group they are in, directly or through other
+      // groups, so the members are one filter that Solr caches for each group. Paging and
+      // totals then come from Solr at any group size.
+      propertiesMap.put("_groupFilter",
+          "type:u AND group:" + ClientUtils.escapeQueryChars(groupName));
 
       boolean includeSelf = Boolean.parseBoolean(request.getParameter("includeSelf"));
       String currentUser = request.getRemoteUser();
-      if (!includeSelf) {
-        memberIds.remove(currentUser);
-      }
-
-      // 900 is the number raydavis said we should split on. This can be tuned as needed.
-      if (memberIds.size() > 900) {
-        // more than the threshold; pass along for post processing
-        request.setAttribute("memberIds", memberIds);
+      if (includeSelf || currentUser == null) {
+        propertiesMap.put("_excludeSelf", "");
       } else {
-        // update the query to filter before writing nodes
-
-        // start building solr query
-        StringBuilder solrQuery = new StringBuilder("name:(");
-
-        // add member id's
-        Iterator<String> members = memberIds.iterator();
-        while(members.hasNext()) {
-          String memberId = members.next();
-          solrQuery.append("'");
-          solrQuery.append(ClientUtils.escapeQueryChars(memberId));
-          solrQuery.append("'");
-
-          if (members.hasNext()) {
-            solrQuery.append(" OR ");
-          }
-        }
-
-        // finish building solr query
-        solrQuery.append(")");
-
-        propertiesMap.put("_groupQuery", solrQuery.toString());
+        propertiesMap.put("_excludeSelf", " AND -id:" + ClientUtils.escapeQueryChars(currentUser));
       }
     } catch (StorageClientException e) {
       logger.error(e.getMessage(), e);
@@ -130,18 +96,4 @@ public class GroupMembersSearchPropertyProvider implements SolrSearchPropertyPro
       logger.error(e.getMessage(), e);
     }
   }
-
-  /**
-   * Add any declared members of {@link group} to {@link memberIds}.
-   *
-   * @param memberIds List to collect member IDs.
-   * @param group Group to plunder through for member IDs.
-   */
-  private void addDeclaredMembers(Collection<String> memberIds, Group group) {
-    String[] members = group.getPrincipals();
-    for (String member : members) {
-      memberIds.add(member);
-    }
-  }
-  
 }
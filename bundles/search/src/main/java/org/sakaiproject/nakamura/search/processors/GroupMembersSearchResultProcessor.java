@@ -38,8 +38,12 @@ import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
 
 /**
+ * Filters JCR results to the members of a group set in the memberIds request attribute.
  *
+ * @deprecated group member searches filter on the indexed memberships of users, see
+ *             {@link GroupMembersSearchPropertyProvider}, and nothing sets memberIds.
  */
+@Deprecated
 @Component
 @Service
 @Properties(value = {
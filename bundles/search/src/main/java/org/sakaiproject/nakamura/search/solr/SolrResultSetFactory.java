@@ -106,23 +106,8 @@ public class SolrResultSetFactory implements ResultSetFactory {
   public SolrSearchResultSet processQuery(SlingHttpServletRequest request, Query query,
       boolean asAnon) throws SolrSearchException {
     try {
-      String queryString = query.getQueryString();
-      // apply readers restrictions.
-      if (asAnon) {
-        queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
-      } else {
-        Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-        if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(session.getUserId());
-          queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
-        }
-      }
+      String queryString = applyReadersRestrictions(request, query.getQueryString(),
+          asAnon);
 
       SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
 
@@ -158,6 +143,30 @@ public class SolrResultSetFactory implements ResultSetFactory {
     }
   }
 
+  /**
+   * Restrict a query to the documents the current user, or anonymous, can read.
+   */
+  static String applyReadersRestrictions(SlingHttpServletRequest request,
+      String queryString, boolean asAnon) throws StorageClientException,
+      AccessDeniedException {
+    if (asAnon) {
+      queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+    } else {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+      if (!User.ADMIN_USER.equals(session.getUserId())) {
+        AuthorizableManager am = session.getAuthorizableManager();
+        Authorizable user = am.findAuthorizable(session.getUserId());
+        Set<String> readers = Sets.newHashSet();
+        for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+          readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
+        }
+        readers.add(session.getUserId());
+        queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+      }
+    }
+    return queryString;
+  }
+
   /**
    * @param request
    * @param query
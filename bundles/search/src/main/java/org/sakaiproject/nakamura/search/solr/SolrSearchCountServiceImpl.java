@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchCountService;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts with <code>rows=0</code> queries, so no documents come back from Solr and
+ * grouped counts come from a facet on the grouping field.
+ */
+@Component
+@Service
+public class SolrSearchCountServiceImpl implements SolrSearchCountService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(SolrSearchCountServiceImpl.class);
+
+  @Reference
+  protected SolrServerService solrSearchService;
+
+  public long getCount(SlingHttpServletRequest request, Query query, boolean asAnon)
+      throws SolrSearchException {
+    return getCount(restrict(request, query, asAnon));
+  }
+
+  public Map<String, Long> getCounts(SlingHttpServletRequest request, Query query,
+      String field, boolean asAnon) throws SolrSearchException {
+    return getCounts(restrict(request, query, asAnon), field);
+  }
+
+  public Query restrict(SlingHttpServletRequest request, Query query, boolean asAnon)
+      throws SolrSearchException {
+    if (!Query.SOLR.equals(query.getType())) {
+      throw new SolrSearchException(500, "Only Solr queries can be counted, not "
+          + query.getType());
+    }
+    try {
+      return new Query(SolrResultSetFactory.applyReadersRestrictions(request,
+          query.getQueryString(), asAnon));
+    } catch (StorageClientException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    } catch (AccessDeniedException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    }
+  }
+
+  public long getCount(Query restricted) throws SolrSearchException {
+    QueryResponse response = execute(buildCountQuery(restricted));
+    return response.getResults() == null ? 0 : response.getResults().getNumFound();
+  }
+
+  public Map<String, Long> getCounts(Query restricted, String field)
+      throws SolrSearchException {
+    SolrQuery solrQuery = buildCountQuery(restricted);
+    solrQuery.setFacet(true);
+    solrQuery.addFacetField(field);
+    // every value, not just the default top 100, and none that have no hits.
+    solrQuery.setFacetLimit(-1);
+    solrQuery.setFacetMinCount(1);
+    QueryResponse response = execute(solrQuery);
+
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    FacetField facet = response.getFacetField(field);
+    if (facet != null && facet.getValues() != null) {
+      for (FacetField.Count count : facet.getValues()) {
+        counts.put(count.getName(), count.getCount());
+      }
+    }
+    return counts;
+  }
+
+  private SolrQuery buildCountQuery(Query restricted) {
+    SolrQuery solrQuery = new SolrQuery(restricted.getQueryString());
+    solrQuery.setRows(0);
+    return solrQuery;
+  }
+
+  private QueryResponse execute(SolrQuery solrQuery) throws SolrSearchException {
+    try {
+      long tquery = System.currentTimeMillis();
+      QueryResponse response = solrSearchService.getServer().query(solrQuery);
+      LOGGER.debug("Counted {} in {} ms", solrQuery, System.currentTimeMillis() - tquery);
+      return response;
+    } catch (SolrServerException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    }
+  }
+}
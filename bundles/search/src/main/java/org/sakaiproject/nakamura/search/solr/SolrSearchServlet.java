@@ -71,7 +71,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -243,7 +243,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        StreamingJSONWriter write = new StreamingJSONWriter(response.getOutputStream());
         write.setTidy(isTidy(request));
 
         write.object();
@@ -293,6 +293,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.value(rs.getSize());
 
         write.endObject();
+        write.flush();
       }
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
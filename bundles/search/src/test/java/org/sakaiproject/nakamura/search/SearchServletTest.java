@@ -30,9 +30,8 @@ import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 
 import javax.jcr.Node;
 import javax.jcr.PropertyIterator;
@@ -46,6 +45,7 @@ import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 public class SearchServletTest extends AbstractEasyMockTest {
@@ -53,7 +53,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
   private SlingHttpServletRequest request;
   private SlingHttpServletResponse response;
   private SearchServlet searchServlet;
-  private StringWriter stringWriter;
+  private ByteArrayOutputStream output;
   private SearchResultProcessor proc;
 
   private static final String SQL_QUERY = "select * from \\y where x = '{q}'";
@@ -288,13 +288,18 @@ public class SearchServletTest extends AbstractEasyMockTest {
 
   private void executeQuery(Node queryNode) throws IOException,
       ServletException, RepositoryException {
-    stringWriter = new StringWriter();
+    output = new ByteArrayOutputStream();
     response = createMock(SlingHttpServletResponse.class);
     response.setContentType("application/json");
     expectLastCall();
     response.setCharacterEncoding("UTF-8");
     expectLastCall();
-    expect(response.getWriter()).andReturn(new PrintWriter(stringWriter));
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
     searchServlet = new SearchServlet();
     searchServlet.defaultSearchProcessor = proc;
     expect(queryNode.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false)
@@ -303,7 +308,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     replay();
 
     searchServlet.doGet(request, response);
-    stringWriter.close();
+    output.close();
 
     verify();
   }
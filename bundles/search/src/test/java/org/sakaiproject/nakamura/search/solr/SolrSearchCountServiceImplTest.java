@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SolrSearchCountServiceImplTest {
+
+  private static final String[] BOXES = { "inbox", "outbox", "trash" };
+
+  private MailboxSolrServer server;
+  private SolrSearchCountServiceImpl countService;
+  private SlingHttpServletRequest request;
+
+  @Before
+  public void setUp() {
+    server = new MailboxSolrServer();
+    SolrServerService solrServerService = createMock(SolrServerService.class);
+    expect(solrServerService.getServer()).andReturn(server).anyTimes();
+    replay(solrServerService);
+    countService = new SolrSearchCountServiceImpl();
+    countService.solrSearchService = solrServerService;
+    request = createMock(SlingHttpServletRequest.class);
+    replay(request);
+  }
+
+  @Test
+  public void testCountDoesNotFetchDocuments() throws Exception {
+    server.mailboxSize = 1000;
+
+    assertEquals(1000, countService.getCount(request, new Query("messagebox:*"), true));
+    assertEquals("0", server.lastParams.get(CommonParams.ROWS));
+    assertTrue(server.lastParams.get(CommonParams.Q).contains("readers:anonymous"));
+  }
+
+  @Test
+  public void testCountsComeFromFacet() throws Exception {
+    server.mailboxSize = 1000;
+
+    Map<String, Long> counts = countService.getCounts(request,
+        new Query("messagebox:*"), "messagebox", true);
+    assertEquals("0", server.lastParams.get(CommonParams.ROWS));
+    assertEquals("messagebox", server.lastParams.get(FacetParams.FACET_FIELD));
+    assertEquals(3, counts.size());
+    assertEquals(Long.valueOf(334), counts.get("inbox"));
+    assertEquals(Long.valueOf(333), counts.get("outbox"));
+    assertEquals(Long.valueOf(333), counts.get("trash"));
+  }
+
+  @Test
+  public void testEmptyMailbox() throws Exception {
+    server.mailboxSize = 0;
+
+    assertEquals(0, countService.getCount(request, new Query("messagebox:*"), true));
+    assertTrue(countService.getCounts(request, new Query("messagebox:*"), "messagebox",
+        true).isEmpty());
+  }
+
+  @Test
+  public void testRestrictedQueryIsCountedLater() throws Exception {
+    server.mailboxSize = 1000;
+
+    Query restricted = countService.restrict(request, new Query("messagebox:*"), true);
+    assertTrue(restricted.getQueryString().contains("readers:anonymous"));
+    assertEquals(1000, countService.getCount(restricted));
+    assertEquals(restricted.getQueryString(), server.lastParams.get(CommonParams.Q));
+    assertEquals(3, countService.getCounts(restricted, "messagebox").size());
+  }
+
+  /**
+   * Compares grouping a mailbox by fetching and iterating every message, as the count
+   * servlets used to, against a facet query. Responses go through the javabin codec so
+   * the cost of moving the documents to the client is included, but there is no
+   * network or index, so only the relative numbers mean anything. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkLatencyAgainstMailboxSize() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int[] sizes = { 100, 1000, 5000, 20000 };
+    int runs = 10;
+    System.out.println("mailbox size, iterate ms, facet ms");
+    for (int size : sizes) {
+      server.mailboxSize = size;
+      // warm up both paths before timing.
+      iterateAndCount(size);
+      countService.getCounts(request, new Query("messagebox:*"), "messagebox", true);
+
+      long iterate = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        iterateAndCount(size);
+      }
+      iterate = System.nanoTime() - iterate;
+
+      long facet = System.nanoTime();
+      for (int i = 0; i < runs; i++) {
+        countService.getCounts(request, new Query("messagebox:*"), "messagebox", true);
+      }
+      facet = System.nanoTime() - facet;
+
+      System.out.println(size + ", " + (iterate / runs / 1000000.0) + ", "
+          + (facet / runs / 1000000.0));
+    }
+  }
+
+  private Map<String, Integer> iterateAndCount(int size) throws SolrServerException {
+    SolrQuery solrQuery = new SolrQuery("messagebox:*");
+    solrQuery.setRows(size);
+    SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(server.query(solrQuery));
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (Iterator<Result> i = rs.getResultSetIterator(); i.hasNext();) {
+      String box = (String) i.next().getFirstValue("messagebox");
+      Integer count = counts.get(box);
+      counts.put(box, count == null ? 1 : count + 1);
+    }
+    return counts;
+  }
+
+  /**
+   * Answers every query as if it matched a mailbox of <code>mailboxSize</code> messages
+   * spread over the inbox, outbox and trash.
+   */
+  private static class MailboxSolrServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+
+    int mailboxSize;
+    SolrParams lastParams;
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException,
+        IOException {
+      SolrParams params = request.getParams();
+      lastParams = params;
+      int rows = params.getInt(CommonParams.ROWS, 10);
+
+      SolrDocumentList docs = new SolrDocumentList();
+      docs.setNumFound(mailboxSize);
+      docs.setStart(0);
+      for (int i = 0; i < Math.min(rows, mailboxSize); i++) {
+        SolrDocument doc = new SolrDocument();
+        doc.addField("id", "a:user1/message/" + i);
+        doc.addField("path", "a:user1/message/" + i);
+        doc.addField("resourceType", "sakai/message");
+        doc.addField("messagebox", BOXES[i % BOXES.length]);
+        doc.addField("subject", "Message number " + i);
+        doc.addField("from", "user2");
+        doc.addField("to", "internal:user1");
+        docs.add(doc);
+      }
+
+      NamedList<Object> response = new SimpleOrderedMap<Object>();
+      response.add("response", docs);
+      String facetField = params.get(FacetParams.FACET_FIELD);
+      if (facetField != null) {
+        NamedList<Object> values = new NamedList<Object>();
+        for (int b = 0; b < BOXES.length; b++) {
+          int count = mailboxSize / BOXES.length + (b < mailboxSize % BOXES.length ? 1 : 0);
+          if (count > 0) {
+            values.add(BOXES[b], count);
+          }
+        }
+        NamedList<Object> fields = new SimpleOrderedMap<Object>();
+        fields.add(facetField, values);
+        NamedList<Object> facets = new SimpleOrderedMap<Object>();
+        facets.add("facet_queries", new SimpleOrderedMap<Object>());
+        facets.add("facet_fields", fields);
+        facets.add("facet_dates", new SimpleOrderedMap<Object>());
+        response.add("facet_counts", facets);
+      }
+
+      // round trip through javabin, which is what a remote server costs the client.
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new JavaBinCodec().marshal(response, out);
+      @SuppressWarnings("unchecked")
+      NamedList<Object> decoded = (NamedList<Object>) new JavaBinCodec()
+          .unmarshal(new ByteArrayInputStream(out.toByteArray()));
+      return decoded;
+    }
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.apache.jackrabbit.core.security.principal.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The groups each authorizable is in, directly or through other groups, so that
+ * membership checks and the principals of a session do not walk the hierarchy each time.
+ * <p>
+ * The groups of an authorizable are its own principals together with the groups of each
+ * of them, so each group is expanded once and then shared by all of its members. Each
+ * group also records the authorizables whose groups were built through it, so that when
+ * an authorizable changes only it and those below it are dropped, to be built again on
+ * next use. Groups are also dropped once they are older than the time to live, as
+ * changes made on other servers of a cluster send no events here. The dependents are
+ * kept up to a number for each authorizable whose groups are kept, past which everything
+ * is dropped, as groups cannot be kept that could not be dropped when they change.
+ * <p>
+ * The groups are read with every authorizable visible. What a caller is shown must be
+ * read with the caller's own authorizable manager, for which the index can only rule
+ * memberships out.
+ */
+public class GroupMembershipIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMembershipIndex.class);
+
+  /**
+   * The dependents recorded for each authorizable whose groups are kept, past which
+   * everything is dropped.
+   */
+  static final int DEPENDENTS_PER_AUTHORIZABLE = 32;
+
+  private final Repository repository;
+  private final AuthorizableManager authorizableManager;
+  private final long timeToLive;
+  private final Map<String, Known> groups;
+  /**
+   * The authorizables whose groups were built through each group.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<String, Boolean>> dependents = new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+  /**
+   * The number of dependents recorded, and the most that may be.
+   */
+  private final AtomicInteger dependentCount = new AtomicInteger();
+  private final int maxDependents;
+  /**
+   * Moved on by every change, so that groups built while a change was made are not kept.
+   */
+  private final AtomicLong changes = new AtomicLong();
+
+  private static class Known {
+    final Set<String> groups;
+    final long built;
+
+    Known(Set<String> groups, long built) {
+      this.groups = groups;
+      this.built = built;
+    }
+  }
+
+  /**
+   * @param repository
+   *          read with an administrative session of its own each time groups are built,
+   *          as sessions are not to be shared between threads.
+   * @param maxSize
+   *          the number of authorizables to keep the groups of.
+   * @param timeToLive
+   *          the ms groups are kept for.
+   */
+  public GroupMembershipIndex(Repository repository, int maxSize, long timeToLive) {
+    this(repository, null, maxSize, timeToLive);
+  }
+
+  /**
+   * @param authorizableManager
+   *          reads the authorizables, and is used by one thread at a time.
+   * @param maxSize
+   *          the number of authorizables to keep the groups of.
+   */
+  public GroupMembershipIndex(AuthorizableManager authorizableManager, int maxSize) {
+    this(null, authorizableManager, maxSize, Long.MAX_VALUE);
+  }
+
+  private GroupMembershipIndex(Repository repository,
+      AuthorizableManager authorizableManager, int maxSize, long timeToLive) {
+    this.repository = repository;
+    this.authorizableManager = authorizableManager;
+    this.timeToLive = timeToLive;
+    this.groups = new ConcurrentLRUMap<String, Known>(maxSize);
+    this.maxDependents = maxSize * DEPENDENTS_PER_AUTHORIZABLE;
+  }
+
+  /**
+   * @return the ids of the groups the authorizable is in, directly or through other
+   *         groups, nearest first. Empty if there is no such authorizable.
+   */
+  public Set<String> getGroups(String id) {
+    Set<String> known = getKnown(id);
+    if (known != null) {
+      return known;
+    }
+    Session session = login();
+    try {
+      AuthorizableManager reader = getReader(session);
+      if (reader == null) {
+        return Collections.emptySet();
+      }
+      return getGroups(reader, id, new LinkedHashSet<String>(), new boolean[1]);
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * @return true if the authorizable is in the group, directly or through other groups
+   *         the reader can see.
+   */
+  public boolean isMember(AuthorizableManager reader, String groupId, String id) {
+    // the reader sees no more than the index, so the index can rule a member out.
+    Set<String> above = getGroups(id);
+    if (!above.contains(groupId)) {
+      return false;
+    }
+    // only the groups the member is in can be on the way down to it, so only those are
+    // read as the reader.
+    Set<String> seen = new LinkedHashSet<String>();
+    List<String> next = new ArrayList<String>();
+    next.add(groupId);
+    while (!next.isEmpty()) {
+      String group = next.remove(next.size() - 1);
+      if (!seen.add(group)) {
+        continue;
+      }
+      Authorizable a = find(reader, group);
+      if (a instanceof Group) {
+        for (String member : ((Group) a).getMembers()) {
+          if (member.equals(id)) {
+            return true;
+          }
+          if (above.contains(member)) {
+            next.add(member);
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the ids of the members of the group, directly or through other groups the
+   *         reader can see, in the order they are found.
+   */
+  public Set<String> getMembers(AuthorizableManager reader, String groupId) {
+    Set<String> members = new LinkedHashSet<String>();
+    List<String> next = new ArrayList<String>();
+    next.add(groupId);
+    while (!next.isEmpty()) {
+      List<String> level = next;
+      next = new ArrayList<String>();
+      for (String id : level) {
+        Authorizable a = find(reader, id);
+        if (a instanceof Group) {
+          for (String member : ((Group) a).getMembers()) {
+            if (!member.equals(groupId) && members.add(member)) {
+              next.add(member);
+            }
+          }
+        }
+      }
+    }
+    return members;
+  }
+
+  /**
+   * Drops what is known of an authorizable that changed, and of everything that is in it.
+   */
+  public void invalidate(String id) {
+    changes.incrementAndGet();
+    List<String> next = new ArrayList<String>();
+    next.add(id);
+    Set<String> seen = new LinkedHashSet<String>();
+    while (!next.isEmpty()) {
+      String dropped = next.remove(next.size() - 1);
+      if (seen.add(dropped)) {
+        groups.remove(dropped);
+        Map<String, Boolean> below = dependents.remove(dropped);
+        if (below != null) {
+          dependentCount.addAndGet(-below.size());
+          next.addAll(below.keySet());
+        }
+      }
+    }
+    LOGGER.debug("Dropped the groups of {} authorizables after {} changed", seen.size(), id);
+  }
+
+  /**
+   * Drops everything.
+   */
+  public void clear() {
+    changes.incrementAndGet();
+    groups.clear();
+    dependents.clear();
+    dependentCount.set(0);
+  }
+
+  /**
+   * @return the groups kept for the authorizable, or null if there are none or they have
+   *         outlived the time to live.
+   */
+  private Set<String> getKnown(String id) {
+    Known known = groups.get(id);
+    if (known == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - known.built > timeToLive) {
+      groups.remove(id);
+      return null;
+    }
+    return known.groups;
+  }
+
+  /**
+   * @param building
+   *          the authorizables whose groups are being built, above this one.
+   * @param cut
+   *          set if one of those was met again, through a group that is in itself, in
+   *          which case what was built is short of the groups being built above it and is
+   *          not kept.
+   */
+  private Set<String> getGroups(AuthorizableManager reader, String id, Set<String> building,
+      boolean[] cut) {
+    Set<String> known = getKnown(id);
+    if (known != null) {
+      return known;
+    }
+    long change = changes.get();
+    long built = System.currentTimeMillis();
+    Authorizable a = find(reader, id);
+    if (a == null) {
+      return Collections.emptySet();
+    }
+    building.add(id);
+    boolean[] cutBelow = new boolean[1];
+    Set<String> all = new LinkedHashSet<String>();
+    String[] principals = a.getPrincipals();
+    Collections.addAll(all, principals);
+    for (String principal : principals) {
+      if (building.contains(principal)) {
+        cutBelow[0] = true;
+      } else {
+        all.addAll(getGroups(reader, principal, building, cutBelow));
+      }
+    }
+    building.remove(id);
+    all.remove(id);
+    Set<String> result = Collections.unmodifiableSet(all);
+    for (String principal : principals) {
+      if (dependentsOf(principal).put(id, Boolean.TRUE) == null
+          && dependentCount.incrementAndGet() > maxDependents) {
+        // what was built is not kept, as clearing moves the changes on.
+        LOGGER.debug("Dropping all groups, as more than {} dependents are recorded", maxDependents);
+        clear();
+        break;
+      }
+    }
+    if (cutBelow[0]) {
+      cut[0] = true;
+    } else if (changes.get() == change) {
+      groups.put(id, new Known(result, built));
+    }
+    return result;
+  }
+
+  private Map<String, Boolean> dependentsOf(String id) {
+    ConcurrentMap<String, Boolean> below = dependents.get(id);
+    if (below == null) {
+      below = new ConcurrentHashMap<String, Boolean>();
+      ConcurrentMap<String, Boolean> raced = dependents.putIfAbsent(id, below);
+      if (raced != null) {
+        below = raced;
+      }
+    }
+    return below;
+  }
+
+  /**
+   * @return the authorizable as it is now, or null.
+   */
+  Authorizable find(String id) {
+    Session session = login();
+    try {
+      AuthorizableManager reader = getReader(session);
+      return reader == null ? null : find(reader, id);
+    } finally {
+      logout(session);
+    }
+  }
+
+  private Authorizable find(AuthorizableManager reader, String id) {
+    try {
+      return reader.findAuthorizable(id);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  /**
+   * @return a session of the index's own, or null if it reads with a manager it was
+   *         given or the session could not be had.
+   */
+  private Session login() {
+    if (repository == null) {
+      return null;
+    }
+    try {
+      return repository.loginAdministrative();
+    } catch (ClientPoolException e) {
+      LOGGER.warn("Unable to read group membership: " + e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to read group membership: " + e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to read group membership: " + e.getMessage(), e);
+    }
+    return null;
+  }
+
+  private AuthorizableManager getReader(Session session) {
+    if (session == null) {
+      return authorizableManager;
+    }
+    try {
+      return session.getAuthorizableManager();
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to read group membership: " + e.getMessage(), e);
+    }
+    return null;
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the {@link GroupMembershipIndex} up to date as authorizables change. Only the
+ * authorizables whose groups changed are dropped: the members added to or removed from a
+ * group, and whatever is in them, or an authorizable whose own groups changed.
+ * Registered in OSGI-INF/serviceComponents.xml.
+ */
+public class GroupMembershipIndexer implements EventHandler {
+
+  /**
+   * The stored members of a group, and the groups of an authorizable, as found in the
+   * before event of a change.
+   */
+  private static final String MEMBERS_PROPERTY = "members";
+  private static final String PRINCIPALS_PROPERTY = "principals";
+
+  public void handleEvent(Event event) {
+    GroupMembershipIndex index = SparseRepositoryHolder.getGroupMembershipIndex();
+    String id = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (index == null || id == null) {
+      return;
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> before = (Map<String, Object>) event
+        .getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+    Authorizable authorizable = index.find(id);
+    if (before == null || authorizable == null
+        || !event.getTopic().endsWith(StoreListener.UPDATED_TOPIC)) {
+      index.invalidate(id);
+      return;
+    }
+    if (before.containsKey(PRINCIPALS_PROPERTY)
+        && !toSet(before.get(PRINCIPALS_PROPERTY)).equals(
+            toSet(authorizable.getPrincipals()))) {
+      index.invalidate(id);
+    }
+    if (authorizable instanceof Group && before.containsKey(MEMBERS_PROPERTY)) {
+      Set<String> previous = toSet(before.get(MEMBERS_PROPERTY));
+      Set<String> members = toSet(((Group) authorizable).getMembers());
+      for (String member : members) {
+        if (!previous.remove(member)) {
+          index.invalidate(member);
+        }
+      }
+      for (String removed : previous) {
+        index.invalidate(removed);
+      }
+    }
+  }
+
+  private Set<String> toSet(Object value) {
+    Set<String> set = new HashSet<String>();
+    if (value instanceof String[]) {
+      Collections.addAll(set, (String[]) value);
+    } else if (value != null) {
+      Collections.addAll(set, StringUtils.split(String.valueOf(value), ",;"));
+    }
+    return set;
+  }
+}
@@ -111,6 +111,8 @@ public class SparseAuthorizable implements Authorizable {
   }
 
   public Iterator<Group> memberOf() throws RepositoryException {
+    // walked with this authorizable's manager, so that only the groups it can see are
+    // followed.
     final List<String> memberIds = new ArrayList<String>();
     Collections.addAll(memberIds, sparseAuthorizable.getPrincipals());
     return new PreemptiveIterator<Group>() {
@@ -152,6 +154,18 @@ public class SparseAuthorizable implements Authorizable {
     };
   }
 
+  /**
+   * @return the shared index of group membership, or one for this authorizable's manager
+   *         if there is no Sparse Repository to share one.
+   */
+  GroupMembershipIndex getGroupMembershipIndex() {
+    GroupMembershipIndex index = SparseRepositoryHolder.getGroupMembershipIndex();
+    if (index == null) {
+      index = new GroupMembershipIndex(authorizableManager, 100);
+    }
+    return index;
+  }
+
   public void remove() throws RepositoryException {
     try {
       authorizableManager.delete(sparseAuthorizable.getId());
@@ -28,10 +28,7 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.ValueFactory;
@@ -90,29 +87,23 @@ public class SparseGroup extends SparseAuthorizable implements Group {
   }
 
   public Iterator<Authorizable> getMembers() throws RepositoryException {
-    final List<String> memberIds = new ArrayList<String>();
-    Collections.addAll(memberIds, getSparseGroup().getMembers());
+    // only the groups this group's manager can see are followed.
+    final Iterator<String> memberIterator = getGroupMembershipIndex().getMembers(
+        authorizableManager, getSparseGroup().getId()).iterator();
     return new PreemptiveIterator<Authorizable>() {
 
-      private int p;
       private SparseAuthorizable authorizable;
 
       protected boolean internalHasNext() {
-       while (p < memberIds.size()) {
-          String id = memberIds.get(p);
-          p++;
+        while (memberIterator.hasNext()) {
           try {
+            String id = memberIterator.next();
             org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
                 .findAuthorizable(id);
             if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
               authorizable = new SparseGroup(
                   (org.sakaiproject.nakamura.api.lite.authorizable.Group) a,
                   authorizableManager, accessControlManager, valueFactory);
-              for (String pid : a.getPrincipals()) {
-                if (!memberIds.contains(pid)) {
-                  memberIds.add(pid);
-                }
-              }
               return true;
             } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
               authorizable = new SparseUser(
@@ -143,34 +134,8 @@ public class SparseGroup extends SparseAuthorizable implements Group {
         return true;
       }
     }
-    final List<String> memberIds = new ArrayList<String>();
-    Collections.addAll(memberIds, getSparseGroup().getMembers());
-    int p = 0;
-    while (p < memberIds.size()) {
-      String s = memberIds.get(p);
-      p++;
-      if (id.equals(s)) {
-        return true;
-      }
-
-      try {
-        org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-            .findAuthorizable(s);
-        if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
-          for (String mid : ((org.sakaiproject.nakamura.api.lite.authorizable.Group) a)
-              .getMembers()) {
-            if (!memberIds.contains(mid)) {
-              memberIds.add(mid);
-            }
-          }
-        }
-      } catch (AccessDeniedException e) {
-        LOGGER.debug(e.getMessage(), e);
-      } catch (StorageClientException e) {
-        LOGGER.debug(e.getMessage(), e);
-      }
-    }
-    return false;
+    return getGroupMembershipIndex().isMember(authorizableManager, getSparseGroup().getId(),
+        id);
   }
 
   public boolean addMember(Authorizable authorizable) throws RepositoryException {
@@ -41,7 +41,6 @@ import org.slf4j.LoggerFactory;
 
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -67,6 +66,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
   private AccessControlManager accesControlManager;
+  private GroupMembershipIndex ownMembershipIndex;
 
   /**
    * Creates a new DefaultPrincipalProvider reading the principals from the storage below
@@ -137,18 +137,21 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public PrincipalIterator getGroupMembership(final Principal principal) {
-    final List<String> memberIds = new ArrayList<String>();
-    try {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-          .findAuthorizable(principal.getName());
-      if (a == null) {
-        return PrincipalIteratorAdapter.EMPTY;
+    // the groups are found once for each principal and kept until its membership changes.
+    // they are read as this provider's own administrative session would read them, and
+    // the principal manager only shows a session those it can read.
+    final List<String> memberIds = new ArrayList<String>(getGroupMembershipIndex()
+        .getGroups(principal.getName()));
+    if (memberIds.isEmpty()) {
+      try {
+        if (authorizableManager.findAuthorizable(principal.getName()) == null) {
+          return PrincipalIteratorAdapter.EMPTY;
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.debug(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOGGER.debug(e.getMessage(), e);
       }
-      Collections.addAll(memberIds, a.getPrincipals());
-    } catch (AccessDeniedException e) {
-      LOGGER.debug(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOGGER.debug(e.getMessage(), e);
     }
     if (everyonePrincipal.isMember(principal)
         && !memberIds.contains(everyonePrincipal.getName())) {
@@ -169,29 +172,15 @@ public class SparsePrincipalProvider implements PrincipalProvider {
             if (everyonePrincipal.getName().equals(id)) {
               prin = everyonePrincipal;
               return true;
+            } else if (cache.containsKey(id)) {
+              prin = cache.get(id);
+              return true;
             } else {
               org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
                   .findAuthorizable(id);
-              if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
-                for (String pid : a.getPrincipals()) {
-                  if (!memberIds.contains(pid)) {
-                    memberIds.add(pid);
-                  }
-                }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
-                return true;
-              } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
+              if (a != null) {
+                prin = new SparsePrincipal(a, this.getClass().getName());
+                addToCache(prin);
                 return true;
               }
             }
@@ -258,6 +247,23 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     return null;
   }
 
+  /**
+   * @return the shared index of group membership, or one of this provider's own if there
+   *         is no Sparse Repository to share one.
+   */
+  private GroupMembershipIndex getGroupMembershipIndex() {
+    GroupMembershipIndex index = SparseRepositoryHolder.getGroupMembershipIndex();
+    if (index == null) {
+      synchronized (this) {
+        if (ownMembershipIndex == null) {
+          ownMembershipIndex = new GroupMembershipIndex(authorizableManager, 1000);
+        }
+        index = ownMembershipIndex;
+      }
+    }
+    return index;
+  }
+
   public void close() {
     try {
       session.logout();
@@ -25,10 +25,33 @@ public class SparseRepositoryHolder {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparseRepositoryHolder.class);
+  /**
+   * The number of authorizables to keep the groups of.
+   */
+  private static final int GROUP_MEMBERSHIP_INDEX_SIZE = 10000;
+  /**
+   * The ms the groups of an authorizable are kept for, so that changes made on other
+   * servers of a cluster are seen.
+   */
+  private static final long GROUP_MEMBERSHIP_TTL = 60000;
   private static Repository sparseRepositoryInstance;
+  private static volatile GroupMembershipIndex groupMembershipIndex;
 
-  public static void setSparseRespository(Repository repository) {
+  public static synchronized void setSparseRespository(Repository repository) {
     sparseRepositoryInstance = repository;
+    if (repository == null) {
+      groupMembershipIndex = null;
+    } else {
+      groupMembershipIndex = new GroupMembershipIndex(repository,
+          GROUP_MEMBERSHIP_INDEX_SIZE, GROUP_MEMBERSHIP_TTL);
+    }
+  }
+
+  /**
+   * @return the groups of each authorizable, or null if there is no Sparse Repository.
+   */
+  public static GroupMembershipIndex getGroupMembershipIndex() {
+    return groupMembershipIndex;
   }
 
   public static Repository getSparseRepositoryInstance() {
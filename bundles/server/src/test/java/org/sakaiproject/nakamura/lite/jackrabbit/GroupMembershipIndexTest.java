@@ -0,0 +1,436 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ */
+public class GroupMembershipIndexTest {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.UPDATED_TOPIC;
+
+  private Repository repository;
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private GroupMembershipIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    SparseRepositoryHolder.setSparseRespository(repository);
+    index = SparseRepositoryHolder.getGroupMembershipIndex();
+    session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    for (int i = 0; i < 4; i++) {
+      authorizableManager.createUser("user" + i, "user" + i, "test", null);
+    }
+    // user0 is in the course through the club, user1 directly, user2 in both.
+    createGroup("g-club", "user0", "user2");
+    createGroup("g-course", "g-club", "user1", "user2");
+  }
+
+  @After
+  public void tearDown() {
+    SparseRepositoryHolder.setSparseRespository(null);
+  }
+
+  @Test
+  public void testNestedGroups() throws Exception {
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    assertEquals(ImmutableSet.of("g-course"), groups("user1"));
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user2"));
+    assertEquals(ImmutableSet.of("g-course"), groups("g-club"));
+    assertEquals(ImmutableSet.of(), groups("user3"));
+    assertEquals(ImmutableSet.of(), groups("nobody"));
+
+    assertTrue(index.isMember(authorizableManager, "g-course", "user0"));
+    assertTrue(index.isMember(authorizableManager, "g-club", "user0"));
+    assertFalse(index.isMember(authorizableManager, "g-club", "user1"));
+    assertFalse(index.isMember(authorizableManager, "g-course", "user3"));
+
+    assertEquals(ImmutableSet.of("g-club", "user0", "user1", "user2"),
+        index.getMembers(authorizableManager, "g-course"));
+    assertEquals(ImmutableSet.of("user0", "user2"),
+        index.getMembers(authorizableManager, "g-club"));
+  }
+
+  @Test
+  public void testMembersAreThoseTheCallerCanSee() throws Exception {
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    AuthorizableManager caller = (AuthorizableManager) Proxy.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { AuthorizableManager.class },
+        new Hiding(authorizableManager, "g-club"));
+
+    assertFalse(index.isMember(caller, "g-course", "user0"));
+    assertTrue(index.isMember(caller, "g-course", "user2"));
+    assertEquals(ImmutableSet.of("g-club", "user1", "user2"),
+        index.getMembers(caller, "g-course"));
+  }
+
+  @Test
+  public void testMembershipOnlyReadsTheGroupsOnTheWay() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      createGroup("g-team" + i, "user3");
+      Group course = (Group) authorizableManager.findAuthorizable("g-course");
+      course.addMember("g-team" + i);
+      authorizableManager.updateAuthorizable(course);
+    }
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    Counter counter = new Counter(authorizableManager);
+    AuthorizableManager counting = (AuthorizableManager) Proxy.newProxyInstance(getClass()
+        .getClassLoader(), new Class<?>[] { AuthorizableManager.class }, counter);
+
+    assertTrue(index.isMember(counting, "g-course", "user0"));
+    assertEquals(2, counter.reads);
+  }
+
+  @Test
+  public void testGroupsAreKeptForTheirTimeToLive() throws Exception {
+    GroupMembershipIndex expiring = new GroupMembershipIndex(repository, 100, 1000);
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups(expiring, "user0"));
+    // made elsewhere in the cluster, so there is no event.
+    Group club = (Group) authorizableManager.findAuthorizable("g-club");
+    club.removeMember("user0");
+    authorizableManager.updateAuthorizable(club);
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups(expiring, "user0"));
+
+    Thread.sleep(1100);
+    assertEquals(ImmutableSet.of(), groups(expiring, "user0"));
+  }
+
+  @Test
+  public void testGroupsInThemselves() throws Exception {
+    createGroup("g-a", "user3");
+    createGroup("g-b", "g-a");
+    Group a = (Group) authorizableManager.findAuthorizable("g-a");
+    a.addMember("g-b");
+    authorizableManager.updateAuthorizable(a);
+
+    assertEquals(ImmutableSet.of("g-a", "g-b"), groups("user3"));
+    assertEquals(ImmutableSet.of("g-b"), groups("g-a"));
+    assertEquals(ImmutableSet.of("user3", "g-b"), index.getMembers(authorizableManager,
+        "g-a"));
+  }
+
+  @Test
+  public void testGroupsAreKeptUntilMembershipChanges() throws Exception {
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    createGroup("g-school");
+    Group school = (Group) authorizableManager.findAuthorizable("g-school");
+    String before = StringUtils.join(school.getMembers(), ';');
+    school.addMember("g-course");
+    authorizableManager.updateAuthorizable(school);
+
+    // nothing has been told of the change yet.
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    assertEquals(ImmutableSet.of("g-course"), groups("user1"));
+
+    new GroupMembershipIndexer().handleEvent(event("g-school", "members", before));
+    assertEquals(ImmutableSet.of("g-club", "g-course", "g-school"), groups("user0"));
+    assertEquals(ImmutableSet.of("g-course", "g-school"), groups("user1"));
+    assertEquals(ImmutableSet.of("g-course", "g-school"), groups("g-club"));
+  }
+
+  @Test
+  public void testRemovedMembersAreDropped() throws Exception {
+    assertTrue(index.isMember(authorizableManager, "g-course", "user0"));
+    Group course = (Group) authorizableManager.findAuthorizable("g-course");
+    String[] before = course.getMembers();
+    course.removeMember("g-club");
+    authorizableManager.updateAuthorizable(course);
+
+    new GroupMembershipIndexer().handleEvent(event("g-course", "members", before));
+    assertFalse(index.isMember(authorizableManager, "g-course", "user0"));
+    assertTrue(index.isMember(authorizableManager, "g-course", "user2"));
+    assertEquals(ImmutableSet.of("g-club"), groups("user0"));
+  }
+
+  @Test
+  public void testOtherChangesKeepTheGroups() throws Exception {
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+    Group course = (Group) authorizableManager.findAuthorizable("g-course");
+    String[] members = course.getMembers();
+    new GroupMembershipIndexer().handleEvent(event("g-course", "sakai:group-title", "Course"));
+    new GroupMembershipIndexer().handleEvent(event("g-course", "members", members));
+    // had the groups been dropped, they would be read again without the club.
+    Group club = (Group) authorizableManager.findAuthorizable("g-club");
+    club.removeMember("user0");
+    authorizableManager.updateAuthorizable(club);
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups("user0"));
+  }
+
+  @Test
+  public void testSparseGroupMembership() throws Exception {
+    SparseGroup course = new SparseGroup((Group) authorizableManager
+        .findAuthorizable("g-course"), authorizableManager,
+        session.getAccessControlManager(), null);
+    assertTrue(course.isMember(sparseUser("user0")));
+    assertTrue(course.isMember(sparseUser("user1")));
+    assertFalse(course.isMember(sparseUser("user3")));
+  }
+
+  /**
+   * Builds a hierarchy of groups, each with a few users of its own, and checks the
+   * membership of users at the bottom in the group at the top, and resolves their
+   * groups as a session login does, as SparseGroup and SparsePrincipalProvider did
+   * before and with the index, cold and then warm. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkNestedHierarchies() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int[][] shapes = { { 3, 4 }, { 5, 4 }, { 8, 2 }, { 20, 1 } };
+    System.out.println("depth, fan out, groups, mode, ms for 1000 checks, "
+        + "ms for 1000 logins, authorizables read");
+    int n = 0;
+    for (int[] shape : shapes) {
+      int depth = shape[0];
+      int fanOut = shape[1];
+      String prefix = "h" + (n++) + "-";
+      List<String> level = new ArrayList<String>();
+      level.add(prefix + "g");
+      createGroup(prefix + "g");
+      int groups = 1;
+      List<String> bottom = new ArrayList<String>();
+      for (int d = 1; d < depth; d++) {
+        List<String> next = new ArrayList<String>();
+        for (String parent : level) {
+          Group p = (Group) authorizableManager.findAuthorizable(parent);
+          for (int f = 0; f < fanOut; f++) {
+            String id = parent + "-" + f;
+            createGroup(id, users(id, 5));
+            p.addMember(id);
+            next.add(id);
+            groups++;
+          }
+          authorizableManager.updateAuthorizable(p);
+        }
+        level = next;
+      }
+      for (String leaf : level) {
+        bottom.add(leaf + "-user0");
+      }
+      for (int mode = 0; mode < 3; mode++) {
+        Counter counter = new Counter(authorizableManager);
+        AuthorizableManager counting = (AuthorizableManager) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { AuthorizableManager.class }, counter);
+        GroupMembershipIndex indexed = new GroupMembershipIndex(counting, 10000);
+        long checks = 0;
+        long logins = 0;
+        for (int pass = 0; pass < (mode == 2 ? 2 : 1); pass++) {
+          counter.reads = 0;
+          long start = System.nanoTime();
+          for (int i = 0; i < 1000; i++) {
+            String user = bottom.get(i % bottom.size());
+            boolean member = mode == 0 ? isMemberBefore(counting, prefix + "g", user)
+                : indexed.isMember(counting, prefix + "g", user);
+            assertTrue(member);
+          }
+          checks = System.nanoTime() - start;
+          start = System.nanoTime();
+          for (int i = 0; i < 1000; i++) {
+            String user = bottom.get(i % bottom.size());
+            Set<String> principals = mode == 0 ? groupMembershipBefore(counting, user)
+                : indexed.getGroups(user);
+            assertTrue(principals.contains(prefix + "g"));
+          }
+          logins = System.nanoTime() - start;
+        }
+        System.out.println(depth + ", " + fanOut + ", " + groups + ", "
+            + (mode == 0 ? "walked" : mode == 1 ? "index cold" : "index warm") + ", "
+            + (checks / 1000000) + ", " + (logins / 1000000) + ", " + counter.reads);
+      }
+    }
+  }
+
+  /**
+   * Counts the authorizables read.
+   */
+  private static class Counter implements InvocationHandler {
+    private final AuthorizableManager authorizableManager;
+    int reads;
+
+    Counter(AuthorizableManager authorizableManager) {
+      this.authorizableManager = authorizableManager;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("findAuthorizable".equals(method.getName())) {
+        reads++;
+      }
+      try {
+        return method.invoke(authorizableManager, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Denies the caller some authorizables, as their access control would.
+   */
+  private static class Hiding implements InvocationHandler {
+    private final AuthorizableManager authorizableManager;
+    private final String hidden;
+
+    Hiding(AuthorizableManager authorizableManager, String hidden) {
+      this.authorizableManager = authorizableManager;
+      this.hidden = hidden;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("findAuthorizable".equals(method.getName()) && hidden.equals(args[0])) {
+        throw new AccessDeniedException(Security.ZONE_AUTHORIZABLES, hidden, "read",
+            "caller");
+      }
+      try {
+        return method.invoke(authorizableManager, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * As SparseGroup.isMember walked the members below the group.
+   */
+  private boolean isMemberBefore(AuthorizableManager am, String groupId, String id)
+      throws Exception {
+    List<String> memberIds = new ArrayList<String>();
+    Collections.addAll(memberIds, ((Group) am.findAuthorizable(groupId)).getMembers());
+    int p = 0;
+    while (p < memberIds.size()) {
+      String s = memberIds.get(p);
+      p++;
+      if (id.equals(s)) {
+        return true;
+      }
+      Authorizable a = am.findAuthorizable(s);
+      if (a instanceof Group) {
+        for (String mid : ((Group) a).getMembers()) {
+          if (!memberIds.contains(mid)) {
+            memberIds.add(mid);
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * As SparsePrincipalProvider.getGroupMembership walked the groups above the principal.
+   */
+  private Set<String> groupMembershipBefore(AuthorizableManager am, String id)
+      throws Exception {
+    List<String> memberIds = new ArrayList<String>();
+    Collections.addAll(memberIds, am.findAuthorizable(id).getPrincipals());
+    int p = 0;
+    while (p < memberIds.size()) {
+      Authorizable a = am.findAuthorizable(memberIds.get(p));
+      p++;
+      if (a instanceof Group) {
+        for (String pid : a.getPrincipals()) {
+          if (!memberIds.contains(pid)) {
+            memberIds.add(pid);
+          }
+        }
+      }
+    }
+    Set<String> groups = new HashSet<String>(memberIds);
+    groups.remove(Group.EVERYONE);
+    return groups;
+  }
+
+  private String[] users(String group, int count) throws Exception {
+    String[] users = new String[count];
+    for (int i = 0; i < count; i++) {
+      users[i] = group + "-user" + i;
+      authorizableManager.createUser(users[i], users[i], "test", null);
+    }
+    return users;
+  }
+
+  private void createGroup(String id, String... members) throws Exception {
+    authorizableManager.createGroup(id, id, null);
+    Group group = (Group) authorizableManager.findAuthorizable(id);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+
+  private SparseUser sparseUser(String id) throws Exception {
+    return new SparseUser((User) authorizableManager.findAuthorizable(id),
+        authorizableManager, session.getAccessControlManager(), null);
+  }
+
+  private Set<String> groups(String id) {
+    return groups(index, id);
+  }
+
+  private Set<String> groups(GroupMembershipIndex index, String id) {
+    Set<String> groups = new HashSet<String>(index.getGroups(id));
+    groups.remove(Group.EVERYONE);
+    return groups;
+  }
+
+  private Event event(String path, String property, Object before) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    Map<String, Object> beforeMap = new HashMap<String, Object>();
+    beforeMap.put(property, before);
+    properties.put(StoreListener.BEFORE_EVENT_PROPERTY, beforeMap);
+    return new Event(UPDATED, properties);
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the parts of a MIME multipart body as it arrives, so that each part can be
+ * streamed on without the whole message being held in memory, as MimeMultipart does.
+ * <p>
+ * Each call to {@link #next()} moves on to the next part, whose headers and body are then
+ * read from {@link #getPart()} up to, but not including, the line break before the
+ * following boundary. Anything not read from a part is skipped. Lines may end with CRLF
+ * or, as mail dropped into the server by hand often does, with a bare LF.
+ */
+class MultipartReader {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+  /**
+   * The line break that starts a boundary line, followed by the boundary.
+   */
+  private final byte[] delimiter;
+  private final byte[] buffer;
+  private final byte[] skipped = new byte[BUFFER_SIZE];
+  private int head;
+  private int tail;
+  /**
+   * Where the delimiter starts in the buffer, once it has been found.
+   */
+  private int found = -1;
+  /**
+   * The positions in the buffer before this have been searched for the delimiter.
+   */
+  private int scanned;
+  private boolean eof;
+  private boolean done;
+  private PartStream current;
+
+  /**
+   * @param in
+   *          the body of the multipart, after its headers.
+   * @param boundary
+   *          the boundary parameter of its content type.
+   */
+  MultipartReader(InputStream in, String boundary) {
+    this.in = in;
+    delimiter = new byte[boundary.length() + 3];
+    delimiter[0] = '\n';
+    delimiter[1] = '-';
+    delimiter[2] = '-';
+    for (int i = 0; i < boundary.length(); i++) {
+      delimiter[i + 3] = (byte) boundary.charAt(i);
+    }
+    buffer = new byte[Math.max(BUFFER_SIZE, 2 * delimiter.length + 2)];
+    // the first boundary need not follow a line break.
+    buffer[0] = '\n';
+    tail = 1;
+    // the preamble, which is skipped.
+    current = new PartStream();
+  }
+
+  /**
+   * @return true if there is another part, which is then read from {@link #getPart()};
+   *         false once the closing boundary, or the end of the stream, is reached.
+   */
+  boolean next() throws IOException {
+    if (done) {
+      return false;
+    }
+    current.skipAll();
+    if (!current.delimited || (peek(0) == '-' && peek(1) == '-')) {
+      done = true;
+      return false;
+    }
+    // skip whatever follows the boundary on its line.
+    int c;
+    while ((c = peek(0)) != -1) {
+      head++;
+      if (c == '\n') {
+        current = new PartStream();
+        return true;
+      }
+    }
+    done = true;
+    return false;
+  }
+
+  /**
+   * @return the headers and body of the current part.
+   */
+  InputStream getPart() {
+    return current;
+  }
+
+  private int peek(int offset) throws IOException {
+    while (head + offset >= tail && !eof) {
+      fill();
+    }
+    return head + offset < tail ? buffer[head + offset] & 0xff : -1;
+  }
+
+  private void fill() throws IOException {
+    if (head > 0) {
+      System.arraycopy(buffer, head, buffer, 0, tail - head);
+      tail -= head;
+      scanned = Math.max(0, scanned - head);
+      if (found >= 0) {
+        found -= head;
+      }
+      head = 0;
+    }
+    int n = in.read(buffer, tail, buffer.length - tail);
+    if (n == -1) {
+      eof = true;
+    } else {
+      tail += n;
+    }
+  }
+
+  /**
+   * @return where the delimiter starts in the buffer, or -1 if it is not all there.
+   */
+  private int findDelimiter() {
+    if (found >= 0) {
+      return found;
+    }
+    int last = tail - delimiter.length;
+    int i = Math.max(head, scanned);
+    for (; i <= last; i++) {
+      int j = 0;
+      while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+        j++;
+      }
+      if (j == delimiter.length) {
+        found = i;
+        return i;
+      }
+    }
+    scanned = i;
+    return -1;
+  }
+
+  private class PartStream extends InputStream {
+
+    private final byte[] one = new byte[1];
+    private boolean ended;
+    /**
+     * True if the part ended at a boundary, rather than at the end of the stream.
+     */
+    private boolean delimited;
+
+    @Override
+    public int read() throws IOException {
+      return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (ended) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        int at = findDelimiter();
+        int end;
+        if (at >= 0) {
+          end = at > head && buffer[at - 1] == '\r' ? at - 1 : at;
+        } else if (eof) {
+          end = tail;
+        } else {
+          // hold back what could be the start of a delimiter, and the CR before it.
+          end = tail - delimiter.length - 1;
+        }
+        if (end > head) {
+          int n = Math.min(len, end - head);
+          System.arraycopy(buffer, head, b, off, n);
+          head += n;
+          return n;
+        }
+        if (at >= 0) {
+          head = at + delimiter.length;
+          found = -1;
+          ended = true;
+          delimited = true;
+          return -1;
+        }
+        if (eof) {
+          head = tail;
+          ended = true;
+          return -1;
+        }
+        fill();
+      }
+    }
+
+    void skipAll() throws IOException {
+      while (read(skipped, 0, skipped.length) != -1) {
+        // skip
+      }
+    }
+  }
+}
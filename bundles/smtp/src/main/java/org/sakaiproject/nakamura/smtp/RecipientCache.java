@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The message stores that mail for each local recipient goes to, so that accepting a
+ * recipient, and delivering to it, only needs the messaging service the first time the
+ * recipient is seen. A recipient is dropped when it, or any authorizable its aliases
+ * expanded to, changes. The recipients are indexed by those authorizables, so a change
+ * only touches the recipients that depend on it, and each recent change is numbered, so
+ * that stores resolved while something they depend on changed are not kept.
+ */
+class RecipientCache {
+
+  private static class Entry {
+    private final List<String> expanded;
+    private final List<String> paths;
+
+    private Entry(List<String> expanded, List<String> paths) {
+      this.expanded = expanded;
+      this.paths = paths;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+  /**
+   * The recipients kept for each authorizable they are, or were expanded to.
+   */
+  private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+  /**
+   * The number of the last change of each authorizable that changed recently, oldest
+   * first.
+   */
+  private final Map<String, Long> changed;
+  /**
+   * The number of the last change, and of the last one no longer in {@link #changed}.
+   */
+  private long changes;
+  private long forgotten;
+
+  /**
+   * @param maxSize
+   *          the number of recipients to keep, least recently used going first, and of
+   *          recent changes to remember.
+   */
+  RecipientCache(final int maxSize) {
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > maxSize) {
+          unindex(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+    changed = new LinkedHashMap<String, Long>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        if (size() > maxSize) {
+          forgotten = eldest.getValue();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the message stores of the local recipient, or null if they are not known.
+   */
+  synchronized List<String> get(String recipient) {
+    Entry entry = entries.get(recipient);
+    return entry == null ? null : entry.paths;
+  }
+
+  /**
+   * @return the number of the last change, to be passed to
+   *         {@link #put(String, List, List, long)}.
+   */
+  synchronized long getChanges() {
+    return changes;
+  }
+
+  /**
+   * @param recipient
+   *          the local part of the address.
+   * @param expanded
+   *          the recipients its aliases expanded to.
+   * @param paths
+   *          the message stores of those recipients.
+   * @param change
+   *          what {@link #getChanges()} returned before the stores were resolved.
+   * @return the stores, which must not be changed.
+   */
+  synchronized List<String> put(String recipient, List<String> expanded,
+      List<String> paths, long change) {
+    paths = Collections.unmodifiableList(paths);
+    if (change < forgotten || changedSince(recipient, change)) {
+      return paths;
+    }
+    for (String id : expanded) {
+      if (changedSince(id, change)) {
+        return paths;
+      }
+    }
+    Entry old = entries.put(recipient, new Entry(expanded, paths));
+    if (old != null) {
+      unindex(recipient, old);
+    }
+    dependentsOf(recipient).add(recipient);
+    for (String id : expanded) {
+      dependentsOf(id).add(recipient);
+    }
+    return paths;
+  }
+
+  /**
+   * Drops the recipients that are, or were expanded through, an authorizable that
+   * changed.
+   */
+  synchronized void invalidate(String id) {
+    // moved to the end, as the latest change.
+    changed.remove(id);
+    changed.put(id, ++changes);
+    Set<String> dropped = dependents.remove(id);
+    if (dropped != null) {
+      for (String recipient : dropped) {
+        Entry entry = entries.remove(recipient);
+        if (entry != null) {
+          unindex(recipient, entry);
+        }
+      }
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private boolean changedSince(String id, long change) {
+    Long last = changed.get(id);
+    return last != null && last > change;
+  }
+
+  private Set<String> dependentsOf(String id) {
+    Set<String> recipients = dependents.get(id);
+    if (recipients == null) {
+      recipients = new LinkedHashSet<String>();
+      dependents.put(id, recipients);
+    }
+    return recipients;
+  }
+
+  private void unindex(String recipient, Entry entry) {
+    unindex(recipient, recipient);
+    for (String id : entry.expanded) {
+      unindex(id, recipient);
+    }
+  }
+
+  private void unindex(String id, String recipient) {
+    Set<String> recipients = dependents.get(id);
+    if (recipients != null && recipients.remove(recipient) && recipients.isEmpty()) {
+      dependents.remove(id);
+    }
+  }
+}
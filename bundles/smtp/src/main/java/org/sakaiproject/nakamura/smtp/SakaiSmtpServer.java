@@ -5,12 +5,16 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -34,18 +38,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.mail.BodyPart;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetHeaders;
-import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
+/**
+ * Delivers incoming mail for local recipients to their message stores. Multipart
+ * messages are read part by part as they arrive, each part being written with its
+ * headers in one update and its body streamed. The message stores of recent recipients
+ * are kept, and dropped when the authorizables they were resolved through change.
+ */
 @Component(immediate = true, metatype = true)
-public class SakaiSmtpServer implements SimpleMessageListener {
+@Service(value = EventHandler.class)
+public class SakaiSmtpServer implements SimpleMessageListener, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
-  private static final int MAX_PROPERTY_SIZE = 32 * 1024;
-  private static final Map<String, Object> EMPTY_MAP = Collections.emptyMap();
+  private static final int RECIPIENT_CACHE_SIZE = 10000;
 
   private SMTPServer server;
 
@@ -64,8 +74,13 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  @Property(value = "org/sakaiproject/nakamura/lite/authorizables/*", propertyPrivate = true)
+  static final String EVENT_TOPICS = "event.topics";
+
   private Set<String> domains = new HashSet<String>();
 
+  private final RecipientCache recipients = new RecipientCache(RECIPIENT_CACHE_SIZE);
+
   public void activate(ComponentContext context) throws Exception {
     Integer port = (Integer) context.getProperties().get(SMTP_SERVER_PORT);
     if ( port == null ) {
@@ -98,38 +113,56 @@ public class SakaiSmtpServer implements SimpleMessageListener {
    *      java.lang.String)
    */
   public boolean accept(String from, String recipient) {
-    Session session = null;
     try {
-      session = contentRepository.loginAdministrative();
-      List<String> paths = getLocalPath(session, recipient);
+      List<String> paths = getLocalPaths(null, recipient);
       return paths.size() > 0;
     } catch (Exception e) {
       LOGGER.error("Develier message with this handler ", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          throw new RuntimeException("Failed to logout session.", e);
-        }
-      }
     }
     return false;
   }
 
   /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (id != null) {
+      recipients.invalidate(id);
+    }
+  }
+
+  /**
+   * @param session
+   *          a session to resolve the recipient with if it is not already known, or null
+   *          to log in only then.
    * @param recipient
-   * @return
+   *          a fully qualified email address of the form xxx@foo.com
+   * @return the message stores to deliver to, none if the recipient is not local.
    */
-  private List<String> getLocalPath(Session session, String recipient) {
-    // assume recipient is a fully qualified email address of the form xxx@foo.com
+  private List<String> getLocalPaths(Session session, String recipient)
+      throws ClientPoolException, StorageClientException, AccessDeniedException {
     String[] parts = StringUtils.split(recipient, '@');
-    List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
-      List<String> recipients = messagingService.expandAliases(parts[0]);
-      for (String localRecipient : recipients) {
+    if (parts.length != 2 || !domains.contains(parts[1])) {
+      return Collections.emptyList();
+    }
+    List<String> localPaths = recipients.get(parts[0]);
+    if (localPaths != null) {
+      return localPaths;
+    }
+    long change = recipients.getChanges();
+    Session resolving = session;
+    try {
+      if (resolving == null) {
+        resolving = contentRepository.loginAdministrative();
+      }
+      localPaths = new ArrayList<String>();
+      List<String> expanded = messagingService.expandAliases(parts[0]);
+      for (String localRecipient : expanded) {
         try {
-          String path = messagingService.getFullPathToStore(localRecipient, session);
+          String path = messagingService.getFullPathToStore(localRecipient, resolving);
           if (path != null && path.length() > 0) {
             localPaths.add(path);
           }
@@ -137,8 +170,16 @@ public class SakaiSmtpServer implements SimpleMessageListener {
           LOGGER.warn("Failed to expand recipient {} ", localRecipient, ex);
         }
       }
+      return recipients.put(parts[0], expanded, localPaths, change);
+    } finally {
+      if (session == null && resolving != null) {
+        try {
+          resolving.logout();
+        } catch (ClientPoolException e) {
+          throw new RuntimeException("Failed to logout session.", e);
+        }
+      }
     }
-    return localPaths;
   }
 
   public void deliver(String from, String recipient, InputStream data)
@@ -148,7 +189,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     try {
       session = contentRepository.loginAdministrative();
 
-      List<String> paths = getLocalPath(session, recipient);
+      List<String> paths = getLocalPaths(session, recipient);
       if (paths.size() > 0) {
         Map<String, Object> mapProperties = new HashMap<String, Object>();
         mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
@@ -210,11 +251,9 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     String[] contentType = internetHeaders.getHeader("content-type");
     if (contentType != null && contentType.length > 0
         && contentType[0].contains("boundary") && contentType[0].contains("multipart/")) {
-        MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
-            data));
         Content message = messagingService.create(session, mapProperties,
             (String) mapProperties.get("sakai:message-id"), storePath);
-        writeMultipartToNode(session, message, multipart);
+        writeMultipartToNode(session, message.getPath(), getBoundary(contentType[0]), data);
         return message;
     } else {
       Content node = messagingService.create(session, mapProperties);
@@ -224,89 +263,64 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     }
   }
 
-  private void writeMultipartToNode(Session session, Content message, MimeMultipart multipart) throws MessagingException, AccessDeniedException, StorageClientException, IOException
-      {
-    int count = multipart.getCount();
-    for (int i = 0; i < count; i++) {
-      createChildNodeForPart(session, i, multipart.getBodyPart(i), message);
+  private String getBoundary(String contentType) throws MessagingException {
+    String boundary = new ContentType(MimeUtility.unfold(contentType))
+        .getParameter("boundary");
+    if (boundary == null) {
+      throw new MessagingException("Missing multipart boundary in " + contentType);
     }
+    return boundary;
   }
 
-  private boolean isTextType(BodyPart part) throws MessagingException {
-    return part.getSize() < MAX_PROPERTY_SIZE
-        && part.getContentType().toLowerCase().startsWith("text/");
+  /**
+   * Writes each part of a multipart body to a child of the parent as it is read.
+   */
+  private void writeMultipartToNode(Session session, String parentPath, String boundary,
+      InputStream data) throws MessagingException, AccessDeniedException,
+      StorageClientException, IOException {
+    MultipartReader multipart = new MultipartReader(data, boundary);
+    for (int i = 0; multipart.next(); i++) {
+      createChildNodeForPart(session, i, multipart.getPart(), parentPath);
+    }
   }
 
-  private void createChildNodeForPart(Session session, int index, BodyPart part,
-      Content message) throws MessagingException, AccessDeniedException, StorageClientException, IOException {
+  /**
+   * Creates the child for a part with its headers as properties in one update, and then
+   * streams its decoded body, or its own parts if it is a multipart. Parts that are not
+   * text keep their content type as the mime type of the child, so that attachments can
+   * be served from it.
+   */
+  @SuppressWarnings("unchecked")
+  private void createChildNodeForPart(Session session, int index, InputStream part,
+      String parentPath) throws MessagingException, AccessDeniedException,
+      StorageClientException, IOException {
     ContentManager contentManager = session.getContentManager();
     String childName = String.format("part%1$03d", index);
-    String childPath = message.getPath() + "/" + childName;
-    // multipart message
-    if (part.getContentType().toLowerCase().startsWith("multipart/")) {
-      contentManager.update(new Content(childPath, EMPTY_MAP));
-      Content childNode = contentManager.get(childPath);
-      writePartPropertiesToNode(part, childNode);
-      contentManager.update(childNode);
-      MimeMultipart multi = new MimeMultipart(new SMTPDataSource(part.getContentType(),
-          part.getInputStream()));
-      writeMultipartToNode(session, childNode, multi);
-      return;
+    String childPath = parentPath + "/" + childName;
+    InternetHeaders headers = new InternetHeaders(part);
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Enumeration<Header> e = headers.getAllHeaders(); e.hasMoreElements();) {
+      Header header = e.nextElement();
+      properties.put(header.getName(), header.getValue());
     }
-
-    // text
-    if (!isTextType(part)) {
-      writePartAsFile(session, part, childName, message);
+    String contentType = headers.getHeader("content-type", null);
+    contentType = contentType == null ? "text/plain" : MimeUtility.unfold(contentType)
+        .trim();
+    // multipart message
+    if (contentType.toLowerCase().startsWith("multipart/")) {
+      contentManager.update(new Content(childPath, properties));
+      writeMultipartToNode(session, childPath, getBoundary(contentType), part);
       return;
     }
 
     // not multipart; not text
-    contentManager.update(new Content(childPath, EMPTY_MAP));
-    Content childNode = contentManager.get(childPath);
-    writePartPropertiesToNode(part, childNode);
-    contentManager.update(childNode);
-    // childNode.setProperty(MessageConstants.PROP_SAKAI_BODY, part.getInputStream());
-    contentManager.writeBody(childNode.getPath(), part.getInputStream());
-  }
-
-  private void writePartAsFile(Session session, BodyPart part, String nodeName,
-      Content parentNode) throws AccessDeniedException, StorageClientException, MessagingException, IOException {
-    // String filePath = parentNode.getPath() + "/nt:file";
-    // String fileContentPath = filePath + "/jcr:content";
-    // session.getContentManager().update(
-    // new Content(filePath, new HashMap<String, Object>()));
-    // session.getContentManager().update(new Content(fileContentPath, new HashMap<String,
-    // Object>()));
-    // Content resourceNode = session.getContentManager().get(fileContentPath);
-    // resourceNode.setProperty("jcr:primaryType", "nt:resource");
-    
-    /*
-     * Instead of creating a child node, just write the body part to the parentNode. I
-     * think this will work, but may collide/override properties already set on the
-     * message content. Let's ensure there are no collisions.
-     */
-    if (!parentNode.hasProperty(Content.MIMETYPE_FIELD)) {
-      parentNode.setProperty(Content.MIMETYPE_FIELD, part.getContentType());
-    } else {
-      if (part.getContentType().equals(parentNode.getProperty(Content.MIMETYPE_FIELD))) {
-        LOGGER.debug("Same mimeType; no worries");
-      } else {
-        throw new IllegalStateException(
-            "This sparse approach is bust; must create a subpath for file body");
-      }
-    }
-    // parentNode.setProperty("jcr:data", part.getInputStream());
-    session.getContentManager().writeBody(parentNode.getPath(), part.getInputStream());
-  }
-
-  @SuppressWarnings("unchecked")
-  private void writePartPropertiesToNode(BodyPart part, Content childNode)
-      throws MessagingException {
-    Enumeration<Header> headers = part.getAllHeaders();
-    while (headers.hasMoreElements()) {
-      Header header = headers.nextElement();
-      childNode.setProperty(header.getName(), header.getValue());
+    if (!contentType.toLowerCase().startsWith("text/")) {
+      properties.put(Content.MIMETYPE_FIELD, contentType);
     }
+    contentManager.update(new Content(childPath, properties));
+    String encoding = headers.getHeader("content-transfer-encoding", null);
+    InputStream body = encoding == null ? part : MimeUtility.decode(part, encoding.trim());
+    contentManager.writeBody(childPath, body);
   }
 
 }
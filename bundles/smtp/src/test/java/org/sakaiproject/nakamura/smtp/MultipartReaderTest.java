@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class MultipartReaderTest {
+
+  private static final String BOUNDARY = "------------f3b190387c2b219c0963513dca170ceb";
+
+  @Test
+  public void testParts() throws Exception {
+    String body = "This is a preamble\r\n--" + BOUNDARY + "\r\n"
+        + "Content-Type: text/plain\r\n\r\nfirst part\r\n" + "--" + BOUNDARY
+        + "  \r\nContent-Type: text/html\r\n\r\n<p>second\r\npart</p>\r\n\r\n--" + BOUNDARY
+        + "--\r\nThis is an epilogue\r\n";
+    MultipartReader reader = new MultipartReader(stream(body), BOUNDARY);
+    assertTrue(reader.next());
+    assertEquals("Content-Type: text/plain\r\n\r\nfirst part", read(reader.getPart()));
+    assertTrue(reader.next());
+    assertEquals("Content-Type: text/html\r\n\r\n<p>second\r\npart</p>\r\n",
+        read(reader.getPart()));
+    assertFalse(reader.next());
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testBareLineFeeds() throws Exception {
+    String body = "--" + BOUNDARY + "\nContent-Type: text/plain\n\nfirst\n--" + BOUNDARY
+        + "\nContent-Type: text/plain\n\nsecond\n--" + BOUNDARY + "--\n";
+    MultipartReader reader = new MultipartReader(stream(body), BOUNDARY);
+    assertTrue(reader.next());
+    assertEquals("Content-Type: text/plain\n\nfirst", read(reader.getPart()));
+    assertTrue(reader.next());
+    assertEquals("Content-Type: text/plain\n\nsecond", read(reader.getPart()));
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testUnreadPartsAreSkipped() throws Exception {
+    String body = "--" + BOUNDARY + "\r\n\r\nfirst\r\n--" + BOUNDARY + "\r\n\r\nsecond\r\n--"
+        + BOUNDARY + "\r\n\r\nthird\r\n--" + BOUNDARY + "--";
+    MultipartReader reader = new MultipartReader(stream(body), BOUNDARY);
+    assertTrue(reader.next());
+    assertEquals('\r', reader.getPart().read());
+    assertTrue(reader.next());
+    assertTrue(reader.next());
+    assertEquals("\r\nthird", read(reader.getPart()));
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    String body = "--" + BOUNDARY + "\r\n\r\nfirst\r\n--" + BOUNDARY + "\r\n\r\nsecond";
+    MultipartReader reader = new MultipartReader(stream(body), BOUNDARY);
+    assertTrue(reader.next());
+    assertEquals("\r\nfirst", read(reader.getPart()));
+    assertTrue(reader.next());
+    assertEquals("\r\nsecond", read(reader.getPart()));
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void testNested() throws Exception {
+    String inner = "inner-boundary";
+    String body = "--" + BOUNDARY + "\r\nContent-Type: multipart/alternative; boundary="
+        + inner + "\r\n\r\n--" + inner + "\r\n\r\nplain\r\n--" + inner
+        + "\r\n\r\n<p>html</p>\r\n--" + inner + "--\r\n\r\n--" + BOUNDARY
+        + "\r\nContent-Type: image/png\r\n\r\nPNG\r\n--" + BOUNDARY + "--\r\n";
+    MultipartReader reader = new MultipartReader(stream(body), BOUNDARY);
+    assertTrue(reader.next());
+    InputStream part = reader.getPart();
+    assertEquals("Content-Type: multipart/alternative; boundary=" + inner, readLine(part));
+    assertEquals("", readLine(part));
+    MultipartReader nested = new MultipartReader(part, inner);
+    assertTrue(nested.next());
+    assertEquals("\r\nplain", read(nested.getPart()));
+    assertTrue(nested.next());
+    assertEquals("\r\n<p>html</p>", read(nested.getPart()));
+    assertFalse(nested.next());
+    assertTrue(reader.next());
+    assertEquals("Content-Type: image/png\r\n\r\nPNG", read(reader.getPart()));
+    assertFalse(reader.next());
+  }
+
+  /**
+   * Parts larger than the buffer, arriving a byte at a time, so that boundaries, and the
+   * line breaks before them, are split across reads.
+   */
+  @Test
+  public void testLargePartsInSmallReads() throws Exception {
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; large.length() < 50000; i++) {
+      large.append("line ").append(i).append(" --").append(BOUNDARY.substring(0, 20))
+          .append("\r\n");
+    }
+    String body = "--" + BOUNDARY + "\r\n\r\n" + large + "\r\n--" + BOUNDARY + "\r\n\r\n"
+        + large + "--" + BOUNDARY + "--\r\n";
+    InputStream trickle = new FilterInputStream(stream(body)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+    MultipartReader reader = new MultipartReader(trickle, BOUNDARY);
+    assertTrue(reader.next());
+    assertEquals("\r\n" + large, read(reader.getPart()));
+    assertTrue(reader.next());
+    assertEquals("\r\n" + large.substring(0, large.length() - 2), read(reader.getPart()));
+    assertFalse(reader.next());
+  }
+
+  private InputStream stream(String s) throws IOException {
+    return new ByteArrayInputStream(s.getBytes("ISO-8859-1"));
+  }
+
+  private String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toString("ISO-8859-1");
+  }
+
+  private String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+}
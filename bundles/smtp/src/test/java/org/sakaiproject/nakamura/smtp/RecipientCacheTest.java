@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RecipientCacheTest {
+
+  private static final List<String> NONE = Collections.emptyList();
+
+  @Test
+  public void testOnlyDependentsAreDropped() {
+    RecipientCache cache = new RecipientCache(10);
+    cache.put("alice", NONE, paths("alice"), cache.getChanges());
+    cache.put("staff", Arrays.asList("bob", "carol"), paths("bob", "carol"),
+        cache.getChanges());
+
+    cache.invalidate("dave");
+    assertEquals(2, cache.size());
+
+    cache.invalidate("carol");
+    assertNotNull(cache.get("alice"));
+    assertNull(cache.get("staff"));
+
+    cache.invalidate("alice");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testResolutionRacingAChangeIsNotKept() {
+    RecipientCache cache = new RecipientCache(10);
+    long change = cache.getChanges();
+    cache.invalidate("bob");
+    cache.put("staff", Arrays.asList("bob", "carol"), paths("bob", "carol"), change);
+    assertNull(cache.get("staff"));
+
+    // changes to anything else do not stop it being kept.
+    change = cache.getChanges();
+    cache.invalidate("dave");
+    cache.put("staff", Arrays.asList("bob", "carol"), paths("bob", "carol"), change);
+    assertNotNull(cache.get("staff"));
+  }
+
+  @Test
+  public void testResolutionOlderThanTheRememberedChangesIsNotKept() {
+    RecipientCache cache = new RecipientCache(2);
+    long change = cache.getChanges();
+    cache.invalidate("a");
+    cache.invalidate("b");
+    cache.invalidate("c");
+    cache.put("alice", NONE, paths("alice"), change);
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testEvictedRecipientsAreNotIndexed() {
+    RecipientCache cache = new RecipientCache(1);
+    cache.put("staff", Arrays.asList("bob"), paths("bob"), cache.getChanges());
+    cache.put("alice", NONE, paths("alice"), cache.getChanges());
+    assertNull(cache.get("staff"));
+
+    cache.put("staff", Arrays.asList("carol"), paths("carol"), cache.getChanges());
+    cache.put("staff", Arrays.asList("dave"), paths("dave"), cache.getChanges());
+    cache.invalidate("carol");
+    assertEquals(Arrays.asList("/dave"), cache.get("staff"));
+  }
+
+  private List<String> paths(String... ids) {
+    String[] paths = new String[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      paths[i] = "/" + ids[i];
+    }
+    return Arrays.asList(paths);
+  }
+}
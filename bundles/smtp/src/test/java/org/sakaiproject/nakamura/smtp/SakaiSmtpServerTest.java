@@ -18,28 +18,37 @@
 package org.sakaiproject.nakamura.smtp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.activemq.util.ByteArrayInputStream;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -47,14 +56,21 @@ import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @RunWith(MockitoJUnitRunner.class)
@@ -117,13 +133,21 @@ public class SakaiSmtpServerTest {
   Content part0node;
   @Mock
   Content part1node;
+  @Captor
+  ArgumentCaptor<Content> parts;
   List<String> recipents;
   List<String> senders;
+  AtomicInteger logins = new AtomicInteger();
 
   @Before
   public void setUp() throws ClientPoolException, StorageClientException,
       AccessDeniedException {
-    when(slingRepository.loginAdministrative()).thenReturn(adminSession);
+    when(slingRepository.loginAdministrative()).thenAnswer(new Answer<Session>() {
+      public Session answer(InvocationOnMock invocation) throws Throwable {
+        logins.incrementAndGet();
+        return adminSession;
+      }
+    });
     when(adminSession.getContentManager()).thenReturn(contentManager);
 
     final Dictionary<String, Object> properties = new Hashtable<String, Object>();
@@ -373,4 +397,230 @@ public class SakaiSmtpServerTest {
     sakaiSmtpServer.deactivate(componentContext);
   }
 
+  @Test
+  public void testRecipientsAreCached() throws Exception {
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    assertTrue(sakaiSmtpServer.accept("carol@localhost", "alice@localhost"));
+    assertFalse(sakaiSmtpServer.accept("bob@localhost", "alice@example.com"));
+    assertEquals(1, logins.get());
+    verify(messagingService, times(1)).getFullPathToStore(eq("alice"),
+        any(Session.class));
+
+    // changes to other authorizables leave alice alone.
+    sakaiSmtpServer.handleEvent(authorizableEvent("bob"));
+    assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    assertEquals(1, logins.get());
+
+    sakaiSmtpServer.handleEvent(authorizableEvent("alice"));
+    assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    assertEquals(2, logins.get());
+    verify(messagingService, times(2)).getFullPathToStore(eq("alice"),
+        any(Session.class));
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testMultipartPartsAreStreamed() throws Exception {
+    InputStream dataStream = this.getClass().getResourceAsStream("testmultipartbinarygood.txt");
+    assertNotNull(dataStream);
+
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
+    final List<String> bodies = new ArrayList<String>();
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        bodies.add(read((InputStream) invocation.getArguments()[1]));
+        return null;
+      }
+    }).when(contentManager).writeBody(anyString(), any(InputStream.class));
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+
+    // each part is written in one update, without being read back.
+    verify(contentManager, times(2)).update(parts.capture());
+    verify(contentManager, never()).get(anyString());
+    List<Content> written = parts.getAllValues();
+    assertEquals("a:bob/message/messagenode/part000", written.get(0).getPath());
+    assertEquals("7bit", written.get(0).getProperty("Content-Transfer-Encoding"));
+    assertNull(written.get(0).getProperty(Content.MIMETYPE_FIELD));
+    assertEquals("a:bob/message/messagenode/part001", written.get(1).getPath());
+    assertTrue(((String) written.get(1).getProperty(Content.MIMETYPE_FIELD))
+        .startsWith("image/JPG"));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode/part000"),
+        any(InputStream.class));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode/part001"),
+        any(InputStream.class));
+    // the attachment is decoded as it is written.
+    assertTrue(bodies.get(1).startsWith("\u00ff\u00d8\u00ff"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  /**
+   * Sends thousands of multipart messages through the server from a local SMTP client,
+   * with the repository mocked out, and reports the rate along with the administrative
+   * logins and content calls each message took. Run with -Dsakai.benchmark=true.
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void benchmarkMultipartBurst() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    byte[] message = read(getClass().getResourceAsStream("testmultipartbinarygood.txt"))
+        .getBytes("ISO-8859-1");
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
+    final AtomicInteger lookups = new AtomicInteger();
+    final AtomicInteger updates = new AtomicInteger();
+    final AtomicInteger bodies = new AtomicInteger();
+    when(messagingService.getFullPathToStore(eq("alice"), any(Session.class))).thenAnswer(
+        new Answer<String>() {
+          public String answer(InvocationOnMock invocation) throws Throwable {
+            lookups.incrementAndGet();
+            return "a:alice/message";
+          }
+        });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        updates.incrementAndGet();
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        InputStream in = (InputStream) invocation.getArguments()[1];
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+          // as the body would be streamed to storage.
+        }
+        bodies.incrementAndGet();
+        return null;
+      }
+    }).when(contentManager).writeBody(anyString(), any(InputStream.class));
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+    sakaiSmtpServer.activate(componentContext);
+    int port = (Integer) componentContext.getProperties().get("smtp.port");
+    System.out.println("messages, ms, messages/s, logins, store lookups, updates, bodies");
+    try {
+      for (int round = 0; round < 3; round++) {
+        int messages = 2000;
+        logins.set(0);
+        lookups.set(0);
+        updates.set(0);
+        bodies.set(0);
+        sakaiSmtpServer.handleEvent(authorizableEvent("alice"));
+        SmtpClient client = new SmtpClient(port);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+          client.send("bob@localhost", "alice@localhost", message);
+        }
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        client.close();
+        System.out.println(messages + ", " + time + ", " + (messages * 1000L / time) + ", "
+            + logins.get() + ", " + lookups.get() + ", " + updates.get() + ", "
+            + bodies.get());
+      }
+    } finally {
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+  }
+
+  private Event authorizableEvent(String id) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, id);
+    return new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, properties);
+  }
+
+  private String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toString("ISO-8859-1");
+  }
+
+  /**
+   * Just enough of an SMTP client to send messages over one connection.
+   */
+  private static class SmtpClient {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final OutputStream out;
+
+    SmtpClient(int port) throws IOException {
+      socket = new Socket("localhost", port);
+      // commands are small, and would otherwise wait on delayed acknowledgements.
+      socket.setTcpNoDelay(true);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+      out = new BufferedOutputStream(socket.getOutputStream());
+      expect(220);
+      command("HELO localhost", 250);
+    }
+
+    void send(String from, String to, byte[] message) throws IOException {
+      command("MAIL FROM:<" + from + ">", 250);
+      command("RCPT TO:<" + to + ">", 250);
+      command("DATA", 354);
+      boolean lineStart = true;
+      for (byte b : message) {
+        if (b == '\r') {
+          continue;
+        }
+        if (b == '\n') {
+          out.write('\r');
+        } else if (lineStart && b == '.') {
+          out.write('.');
+        }
+        out.write(b);
+        lineStart = b == '\n';
+      }
+      if (!lineStart) {
+        out.write('\r');
+        out.write('\n');
+      }
+      command(".", 250);
+    }
+
+    void close() throws IOException {
+      command("QUIT", 221);
+      socket.close();
+    }
+
+    private void command(String line, int code) throws IOException {
+      out.write((line + "\r\n").getBytes("US-ASCII"));
+      out.flush();
+      expect(code);
+    }
+
+    private void expect(int code) throws IOException {
+      String line;
+      do {
+        line = in.readLine();
+      } while (line != null && line.length() > 3 && line.charAt(3) == '-');
+      if (line == null || !line.startsWith(String.valueOf(code))) {
+        throw new IOException("Expected " + code + " but got " + line);
+      }
+    }
+  }
 }
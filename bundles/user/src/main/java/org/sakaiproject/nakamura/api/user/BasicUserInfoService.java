@@ -2,13 +2,27 @@ package org.sakaiproject.nakamura.api.user;
 
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 
+import java.util.Collection;
 import java.util.Map;
 
 
 public interface BasicUserInfoService {
 
+  /**
+   * @return the basic info of the authorizable. Keys may be added to the map, but the
+   *         maps nested in it are shared and cannot be changed.
+   */
   Map<String, Object> getProperties(Authorizable au);
 
+  /**
+   * The basic info of several authorizables, each looked up as
+   * {@link #getProperties(Authorizable)} would. Null authorizables and repeats are
+   * skipped.
+   *
+   * @return the basic info keyed by authorizable ID, in the order given.
+   */
+  Map<String, Map<String, Object>> getProperties(Collection<Authorizable> authorizables);
+
   String[] getBasicProfileElements();
 
 }
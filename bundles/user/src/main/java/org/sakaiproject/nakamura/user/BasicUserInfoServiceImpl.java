@@ -28,25 +28,47 @@ import com.google.common.collect.Maps;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.user.counts.CountProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
+/**
+ * Builds the basic info of authorizables. The maps are cached per authorizable, and
+ * dropped from the cache across the cluster when the authorizable is updated. A cached
+ * map is also ignored if the authorizable it is asked for has been modified since, or
+ * its counts are due a refresh.
+ */
 @Component(immediate=true, metatype=true)
-@Service(value=BasicUserInfoService.class)
-public class BasicUserInfoServiceImpl implements BasicUserInfoService {
+@Services(value={@Service(value=BasicUserInfoService.class),
+    @Service(value=EventHandler.class)})
+@Properties(value = {
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class BasicUserInfoServiceImpl implements BasicUserInfoService, EventHandler {
 
 
 
@@ -64,9 +86,14 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(BasicUserInfoServiceImpl.class);
 
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.user.basicinfo";
+
   @Reference
   protected CountProvider countProvider;
 
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
 
   @Activate
   protected void activated(Map<String, Object> properties ) {
@@ -76,6 +103,11 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   @Modified
   protected void modified(Map<String, Object> properties ) {
     basicUserInfoElements = OsgiUtil.toStringArray(properties.get(BASIC_PROFILE_ELEMENTS), DEFAULT_BASIC_USER_INFO_ELEMENTS);
+    // the cached maps were built with the old elements.
+    Cache<CachedInfo> cache = getCache();
+    if (cache != null) {
+      cache.clear();
+    }
   }
 
   
@@ -83,12 +115,74 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   
   
   public Map<String, Object> getProperties(Authorizable authorizable) {
+    return getProperties(authorizable, getCache());
+  }
+
+  public Map<String, Map<String, Object>> getProperties(
+      Collection<Authorizable> authorizables) {
+    Cache<CachedInfo> cache = getCache();
+    Map<String, Map<String, Object>> properties = Maps.newLinkedHashMap();
+    for (Authorizable authorizable : authorizables) {
+      if (authorizable != null && !properties.containsKey(authorizable.getId())) {
+        properties.put(authorizable.getId(), getProperties(authorizable, cache));
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    Cache<CachedInfo> cache = getCache();
+    if (authorizableId != null && cache != null) {
+      cache.remove(authorizableId);
+    }
+  }
+
+  private Cache<CachedInfo> getCache() {
+    if (cacheManagerService == null) {
+      return null;
+    }
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Map<String, Object> getProperties(Authorizable authorizable,
+      Cache<CachedInfo> cache) {
     if (authorizable == null || User.ANON_USER.equals(authorizable.getId())) {
       return anonymousBasicInfo();
     }
-    
+    if (cache == null) {
+      return buildProperties(authorizable);
+    }
+    Object lastModified = authorizable.getProperty(Authorizable.LASTMODIFIED_FIELD);
+    CachedInfo cached = cache.get(authorizable.getId());
+    if (cached == null || !cached.isFor(lastModified) || countsNeedRefresh(authorizable)) {
+      cached = new CachedInfo(lastModified, buildProperties(authorizable));
+      cache.put(authorizable.getId(), cached);
+    }
+    // callers add their own keys to the top level map, the maps below it are
+    // unmodifiable as they are shared with the cache.
+    return Maps.newHashMap(cached.properties);
+  }
+
+  private boolean countsNeedRefresh(Authorizable authorizable) {
+    try {
+      return countProvider != null && countProvider.needsRefresh(authorizable);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Unable to check the counts of {} {} ", authorizable, e.getMessage());
+    }
+    return true;
+  }
+
+  private Map<String, Object> buildProperties(Authorizable authorizable) {
     Map<String, Object> basicUserInfo = Maps.newHashMap();
-    basicUserInfo.put(USER_BASIC, basicProfileMapForAuthorizable(authorizable));
+    basicUserInfo.put(USER_BASIC, Collections.unmodifiableMap(basicProfileMapForAuthorizable(authorizable)));
     basicUserInfo.put(COUNTS_PROP, countsMapforAuthorizable(authorizable));
     if ( authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
       basicUserInfo.put(UserConstants.SAKAI_EXCLUDE, authorizable.getProperty(UserConstants.SAKAI_EXCLUDE));
@@ -174,7 +268,7 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
     for (String key : elementsMap.keySet()) {
       elements.put(key, ImmutableMap.of("value", (Object) elementsMap.get(key)));
     }
-    basic.put("elements", elements);
+    basic.put("elements", Collections.unmodifiableMap(elements));
     return basic;
   }
   
@@ -192,6 +286,26 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
     return basicUserInfoElements;
   }
 
+  /**
+   * The basic info of an authorizable as it was when last modified at
+   * <code>lastModified</code>.
+   */
+  private static final class CachedInfo implements Serializable {
+    private static final long serialVersionUID = -6371530233016236521L;
+    private final Object lastModified;
+    private final Map<String, Object> properties;
+
+    private CachedInfo(Object lastModified, Map<String, Object> properties) {
+      this.lastModified = lastModified;
+      this.properties = properties;
+    }
+
+    private boolean isFor(Object lastModified) {
+      return this.lastModified == null ? lastModified == null : this.lastModified
+          .equals(lastModified);
+    }
+  }
+
 
 
 }
@@ -24,7 +24,6 @@ import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
@@ -49,11 +48,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
@@ -171,20 +172,16 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
           items, page);
 
+      List<Authorizable> pageOfMembers = new ArrayList<Authorizable>();
+      while (iterator.hasNext() && pageOfMembers.size() < items) {
+        pageOfMembers.add(iterator.next().getValue());
+      }
+
       // Write the whole lot out.
       writer.array();
-      int i = 0;
-      while (iterator.hasNext() && i < items) {
-        Entry<String, Authorizable> entry = iterator.next();
-        Authorizable au = entry.getValue();
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        if (profile != null) {
-          writer.valueMap(profile);
-          i++;
-        } /*else {
-          // profile wasn't found.  safe to ignore and not include the group
-          logger.info("Profile not found for " + au.getId());
-        }*/
+      for (Map<String, Object> properties : basicUserInfoService.getProperties(
+          pageOfMembers).values()) {
+        writer.valueMap(new ValueMapDecorator(properties));
       }
       writer.endArray();
 
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
@@ -34,6 +35,7 @@ import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -66,6 +68,10 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
       StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC,
       StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC };
 
+  /**
+   * The stored members of a group, as found in the before event of a change.
+   */
+  private static final String MEMBERS_PROPERTY = "members";
 
   // list of properties to be indexed
   private static final Map<String, String> USER_WHITELISTED_PROPS;
@@ -125,11 +131,11 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
   public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
       Event event) {
     /*
-     * This general process can be better generalized so that a group is sent through
-     * common processing and only users are indexed in "group" but that's not necessary
-     * yet. The processing below just indexes what is found rather than recursing down the
-     * hierarchy. This suffices as long as the inherited members are not required to be
-     * indexed which will raise the cost of indexing a group.
+     * A user is indexed with every group it is in, directly or through nested groups, so
+     * that a group's members can be found with one filter on the group field. When the
+     * members of a group change, the users that joined or left it, directly or through a
+     * group that was added or removed, are indexed again. This version of Solr cannot
+     * update a single field, so their documents are rebuilt whole.
      */
     logger.debug("GetDocuments for {} ", event);
     List<SolrInputDocument> documents = Lists.newArrayList();
@@ -150,6 +156,10 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
         String topic = PathUtils.lastElement(event.getTopic());
         logger.info("{} authorizable for searching: {}", topic, authName);
       }
+
+      if (authorizable.isGroup()) {
+        addMemberDocuments(documents, (Group) authorizable, event, repositorySession);
+      }
     }
     logger.debug("Got documents {} ", documents);
     return documents;
@@ -209,10 +219,22 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
       }
     }
 
-    // add groups to the user doc so we can find the user as a group member
+    // add groups to the user doc so we can find the user as a group member, including
+    // the groups it is in through other groups
     if (!authorizable.isGroup()) {
-      for (String principal : authorizable.getPrincipals()) {
-        doc.addField("group", StringUtils.removeEnd(principal, "-managers"));
+      Set<String> groups = Sets.newLinkedHashSet();
+      try {
+        for (String principal : new GroupClosure(getAuthorizableManager(repositorySession))
+            .getGroups(authorizable)) {
+          groups.add(StringUtils.removeEnd(principal, "-managers"));
+        }
+      } catch (StorageClientException e) {
+        logger.error(e.getMessage(), e);
+      } catch (AccessDeniedException e) {
+        logger.error(e.getMessage(), e);
+      }
+      for (String group : groups) {
+        doc.addField("group", group);
       }
     }
 
@@ -284,11 +306,8 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
   protected Authorizable getAuthorizable(String authName, RepositorySession repositorySession) {
     Authorizable authorizable = null;
     try {
-      Session session = repositorySession.adaptTo(Session.class);
-      AuthorizableManager authzMgr = session.getAuthorizableManager();
-
       // get the name of the authorizable (user,group)
-      authorizable = authzMgr.findAuthorizable(authName);
+      authorizable = getAuthorizableManager(repositorySession).findAuthorizable(authName);
     } catch (StorageClientException e) {
       logger.error(e.getMessage(), e);
     } catch (AccessDeniedException e) {
@@ -296,4 +315,66 @@ public class AuthorizableIndexingHandler implements IndexingHandler {
     }
     return authorizable;
   }
+
+  /**
+   * Adds the documents of the users whose memberships changed with the members of a
+   * group. Those are the users that were added or removed, and the members of groups that
+   * were added or removed. A group that was just added has all of its users indexed.
+   */
+  protected void addMemberDocuments(List<SolrInputDocument> documents, Group group,
+      Event event, RepositorySession repositorySession) {
+    Set<String> changed;
+    Set<String> members = Sets.newHashSet(StorageClientUtils.nonNullStringArray(group
+        .getMembers()));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> before = (Map<String, Object>) event
+        .getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+    if (before != null && before.containsKey(MEMBERS_PROPERTY)) {
+      Set<String> previous = toMembers(before.get(MEMBERS_PROPERTY));
+      changed = Sets.newHashSet(Sets.symmetricDifference(members, previous));
+    } else if (event.getTopic().endsWith(StoreListener.ADDED_TOPIC)) {
+      changed = members;
+    } else {
+      return;
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+    try {
+      GroupClosure closure = new GroupClosure(getAuthorizableManager(repositorySession));
+      Set<String> users = closure.getUsers(changed);
+      logger.debug("Membership of {} changed, indexing {} users", group.getId(),
+          users.size());
+      for (String userId : users) {
+        Authorizable user = closure.get(userId);
+        if (user == null
+            || Boolean.parseBoolean(String.valueOf(user.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
+          continue;
+        }
+        SolrInputDocument doc = createAuthDoc(user, repositorySession);
+        if (doc != null) {
+          documents.add(doc);
+        }
+      }
+    } catch (StorageClientException e) {
+      logger.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  private Set<String> toMembers(Object value) {
+    if (value instanceof String[]) {
+      return Sets.newHashSet((String[]) value);
+    } else if (value != null) {
+      return Sets.newHashSet(StringUtils.split(String.valueOf(value), ",;"));
+    }
+    return Collections.emptySet();
+  }
+
+  private AuthorizableManager getAuthorizableManager(RepositorySession repositorySession)
+      throws StorageClientException {
+    Session session = repositorySession.adaptTo(Session.class);
+    return session.getAuthorizableManager();
+  }
 }
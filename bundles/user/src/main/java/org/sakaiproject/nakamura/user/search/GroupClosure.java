@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.search;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Follows memberships through nested groups. Authorizables are loaded once per closure,
+ * so one should be used for the documents of a single event and then dropped.
+ */
+class GroupClosure {
+
+  private final AuthorizableManager authorizableManager;
+  private final Map<String, Authorizable> loaded = new HashMap<String, Authorizable>();
+
+  GroupClosure(AuthorizableManager authorizableManager) {
+    this.authorizableManager = authorizableManager;
+  }
+
+  /**
+   * @return the ids of the groups the authorizable is a member of, directly or through
+   *         the groups it is in, nearest first. Ids that are not groups are included but
+   *         not followed.
+   */
+  Set<String> getGroups(Authorizable authorizable) throws StorageClientException,
+      AccessDeniedException {
+    Set<String> groups = new LinkedHashSet<String>();
+    List<String> next = new ArrayList<String>();
+    addAll(next, authorizable.getPrincipals());
+    while (!next.isEmpty()) {
+      List<String> level = next;
+      next = new ArrayList<String>();
+      for (String id : level) {
+        if (!id.equals(authorizable.getId()) && groups.add(id)) {
+          Authorizable group = get(id);
+          if (group != null && group.isGroup()) {
+            addAll(next, group.getPrincipals());
+          }
+        }
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * @param ids
+   *          users and groups.
+   * @return the users among the ids, and the users that are members of the groups among
+   *         them, directly or through nested groups.
+   */
+  Set<String> getUsers(Collection<String> ids) throws StorageClientException,
+      AccessDeniedException {
+    Set<String> users = new LinkedHashSet<String>();
+    Set<String> seen = new LinkedHashSet<String>();
+    List<String> next = new ArrayList<String>(ids);
+    while (!next.isEmpty()) {
+      List<String> level = next;
+      next = new ArrayList<String>();
+      for (String id : level) {
+        if (seen.add(id)) {
+          Authorizable authorizable = get(id);
+          if (authorizable == null) {
+            continue;
+          }
+          if (authorizable.isGroup()) {
+            addAll(next, ((Group) authorizable).getMembers());
+          } else {
+            users.add(id);
+          }
+        }
+      }
+    }
+    return users;
+  }
+
+  /**
+   * @return the authorizable, or null if there is none with that id.
+   */
+  Authorizable get(String id) throws StorageClientException, AccessDeniedException {
+    if (loaded.containsKey(id)) {
+      return loaded.get(id);
+    }
+    Authorizable authorizable = authorizableManager.findAuthorizable(id);
+    loaded.put(id, authorizable);
+    return authorizable;
+  }
+
+  private void addAll(List<String> ids, String[] more) {
+    if (more != null) {
+      for (String id : more) {
+        ids.add(id);
+      }
+    }
+  }
+}
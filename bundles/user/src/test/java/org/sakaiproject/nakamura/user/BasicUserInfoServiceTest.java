@@ -1,9 +1,13 @@
 package org.sakaiproject.nakamura.user;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -11,24 +15,33 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.SolrParams;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.user.counts.CountProviderImpl;
 
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,6 +51,8 @@ public class BasicUserInfoServiceTest {
   
   private Repository repository;
   private Session session;
+  private Cache<Object> cache;
+  private CacheManagerService cacheManagerService;
   
   @Before
   public void before() throws ClientPoolException, StorageClientException, AccessDeniedException, ClassNotFoundException, SolrServerException {
@@ -74,6 +89,11 @@ public class BasicUserInfoServiceTest {
     Map<String, Object> m = ImmutableMap.of();
     countProviderImpl.modify(m);
     basicUserInfoService.countProvider = countProviderImpl;
+    cache = new MapCacheImpl<Object>();
+    cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(
+        cacheManagerService.getCache(Mockito.eq(BasicUserInfoServiceImpl.CACHE_NAME),
+            Mockito.eq(CacheScope.CLUSTERINVALIDATED))).thenReturn(cache);
   }
   
   @After
@@ -98,4 +118,122 @@ public class BasicUserInfoServiceTest {
     assertEquals("ieb@gmail.com", String.valueOf(emailProp.get("value")));
     return;
   }
+
+  @Test
+  public void testBulkPropertiesAreInOrderAndDistinct() throws Exception {
+    Session adminSession = repository.loginAdministrative();
+    AuthorizableManager aam = adminSession.getAuthorizableManager();
+    aam.createUser("jack", "Jack", "password", ImmutableMap.of("firstName", (Object) "Jack"));
+    Authorizable ieb = aam.findAuthorizable("ieb");
+    Authorizable jack = aam.findAuthorizable("jack");
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+
+    List<Authorizable> authorizables = Lists.newArrayList(jack, null, ieb, jack);
+    Map<String, Map<String, Object>> properties = basicUserInfoService
+        .getProperties(authorizables);
+    assertEquals(ImmutableList.of("jack", "ieb"), Lists.newArrayList(properties.keySet()));
+    assertEquals("ieb", properties.get("ieb").get("userid"));
+    assertEquals("Jack", getFirstName(properties.get("jack")));
+  }
+
+  @Test
+  public void testCachedUntilTheAuthorizableIsUpdated() throws Exception {
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+    Authorizable a = session.getAuthorizableManager().findAuthorizable("ieb");
+    assertEquals("Ian", getFirstName(basicUserInfoService.getProperties(a)));
+    assertTrue(cache.containsKey("ieb"));
+
+    // not saved, so there is no event and the cached map is still used.
+    a.setProperty("firstName", "Jan");
+    assertEquals("Ian", getFirstName(basicUserInfoService.getProperties(a)));
+
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(StoreListener.PATH_PROPERTY, "ieb");
+    basicUserInfoService.handleEvent(new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, props));
+    assertEquals("Jan", getFirstName(basicUserInfoService.getProperties(a)));
+  }
+
+  @Test
+  public void testCallersCanAddToTheirCopy() throws Exception {
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+    Authorizable a = session.getAuthorizableManager().findAuthorizable("ieb");
+    basicUserInfoService.getProperties(a).put("extra", "value");
+    assertFalse(basicUserInfoService.getProperties(a).containsKey("extra"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSharedMapsCannotBeChanged() throws Exception {
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+    Authorizable a = session.getAuthorizableManager().findAuthorizable("ieb");
+    Map<String, Object> properties = basicUserInfoService.getProperties(a);
+    Map<String, Object> basic = (Map<String, Object>) properties.get(UserConstants.USER_BASIC);
+    assertUnmodifiable(basic);
+    assertUnmodifiable((Map<String, Object>) basic.get("elements"));
+    assertUnmodifiable((Map<String, Object>) properties.get(UserConstants.COUNTS_PROP));
+    assertEquals("Ian", getFirstName(basicUserInfoService.getProperties(a)));
+  }
+
+  private void assertUnmodifiable(Map<String, Object> map) {
+    try {
+      map.put("firstName", "changed");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // shared with the cache.
+    }
+  }
+
+  /**
+   * Renders the profiles of a 100 person search page, one authorizable at a time without
+   * the cache as before, and in bulk from the cache. Run with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkSearchPage() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    Session adminSession = repository.loginAdministrative();
+    AuthorizableManager aam = adminSession.getAuthorizableManager();
+    List<String> userIds = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      Map<String, Object> userProps = new HashMap<String, Object>();
+      userProps.put("firstName", "First" + i);
+      userProps.put("lastName", "Last" + i);
+      userProps.put("email", "user" + i + "@sakai.invalid");
+      aam.createUser("user" + i, "User " + i, "password", userProps);
+      userIds.add("user" + i);
+    }
+    int runs = 200;
+    System.out.println("mode, ms per page");
+    for (int round = 0; round < 3; round++) {
+      basicUserInfoService.cacheManagerService = null;
+      long time = System.nanoTime();
+      for (int run = 0; run < runs; run++) {
+        for (String userId : userIds) {
+          basicUserInfoService.getProperties(aam.findAuthorizable(userId));
+        }
+      }
+      time = System.nanoTime() - time;
+      System.out.println("one at a time, " + (time / runs / 1000000.0));
+
+      basicUserInfoService.cacheManagerService = cacheManagerService;
+      time = System.nanoTime();
+      for (int run = 0; run < runs; run++) {
+        List<Authorizable> page = Lists.newArrayList();
+        for (String userId : userIds) {
+          page.add(aam.findAuthorizable(userId));
+        }
+        basicUserInfoService.getProperties(page);
+      }
+      time = System.nanoTime() - time;
+      System.out.println("bulk and cached, " + (time / runs / 1000000.0));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private String getFirstName(Map<String, Object> properties) {
+    Map<String, Object> basicProfile = (Map<String, Object>) properties
+        .get(UserConstants.USER_BASIC);
+    Map<String, Object> elements = (Map<String, Object>) basicProfile.get("elements");
+    return String.valueOf(((Map<String, Object>) elements.get("firstName")).get("value"));
+  }
 }
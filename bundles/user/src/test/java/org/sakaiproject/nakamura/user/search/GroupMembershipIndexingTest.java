@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ */
+public class GroupMembershipIndexingTest {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.UPDATED_TOPIC;
+  private static final String ADDED = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.ADDED_TOPIC;
+
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private RepositorySession repositorySession;
+  private AuthorizableIndexingHandler handler;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    for (int i = 0; i < 6; i++) {
+      authorizableManager.createUser("user" + i, "user" + i, "test", null);
+    }
+    // user0 is in both groups, and club is in course.
+    createGroup("g-club", "user3", "user4", "user0");
+    createGroup("g-course", "user0", "user1", "user2", "g-club");
+    repositorySession = mock(RepositorySession.class);
+    when(repositorySession.adaptTo(Session.class)).thenReturn(session);
+    handler = new AuthorizableIndexingHandler();
+  }
+
+  @Test
+  public void testUsersAreIndexedWithNestedGroups() throws Exception {
+    assertEquals(ImmutableSet.of("g-club", "g-course"),
+        groups(handler.createAuthDoc(authorizableManager.findAuthorizable("user3"),
+            repositorySession)));
+    assertEquals(ImmutableSet.of("g-club", "g-course"),
+        groups(handler.createAuthDoc(authorizableManager.findAuthorizable("user0"),
+            repositorySession)));
+    assertEquals(ImmutableSet.of("g-course"),
+        groups(handler.createAuthDoc(authorizableManager.findAuthorizable("user1"),
+            repositorySession)));
+    assertEquals(ImmutableSet.of(),
+        groups(handler.createAuthDoc(authorizableManager.findAuthorizable("user5"),
+            repositorySession)));
+  }
+
+  @Test
+  public void testManagersAreIndexedAsTheGroup() throws Exception {
+    createGroup("g-course-managers", "user5");
+    Group course = (Group) authorizableManager.findAuthorizable("g-course");
+    course.addMember("g-course-managers");
+    authorizableManager.updateAuthorizable(course);
+
+    assertEquals(ImmutableSet.of("g-course"),
+        groups(handler.createAuthDoc(authorizableManager.findAuthorizable("user5"),
+            repositorySession)));
+  }
+
+  @Test
+  public void testAddedMemberIsIndexed() throws Exception {
+    Group club = (Group) authorizableManager.findAuthorizable("g-club");
+    String before = StringUtils.join(club.getMembers(), ';');
+    club.addMember("user5");
+    authorizableManager.updateAuthorizable(club);
+
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        event(UPDATED, "g-club", before));
+    assertEquals(ImmutableSet.of("user5"), ids(docs));
+    assertEquals(ImmutableSet.of("g-club", "g-course"), groups(docs.iterator().next()));
+  }
+
+  @Test
+  public void testRemovedMemberIsIndexed() throws Exception {
+    Group course = (Group) authorizableManager.findAuthorizable("g-course");
+    String[] before = course.getMembers();
+    course.removeMember("user1");
+    authorizableManager.updateAuthorizable(course);
+
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        event(UPDATED, "g-course", before));
+    assertEquals(ImmutableSet.of("user1"), ids(docs));
+    assertEquals(ImmutableSet.of(), groups(docs.iterator().next()));
+  }
+
+  @Test
+  public void testNestedGroupMembersAreIndexed() throws Exception {
+    createGroup("g-school", "user5");
+    Group school = (Group) authorizableManager.findAuthorizable("g-school");
+    String before = StringUtils.join(school.getMembers(), ';');
+    school.addMember("g-course");
+    authorizableManager.updateAuthorizable(school);
+
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        event(UPDATED, "g-school", before));
+    assertEquals(ImmutableSet.of("user0", "user1", "user2", "user3", "user4"), ids(docs));
+    for (SolrInputDocument doc : docs) {
+      assertEquals(doc.getFieldValue(IndexingHandler.FIELD_ID).toString(), true,
+          groups(doc).contains("g-school"));
+    }
+  }
+
+  @Test
+  public void testExcludedMembersAreNotIndexed() throws Exception {
+    Authorizable user5 = authorizableManager.findAuthorizable("user5");
+    user5.setProperty(UserConstants.SAKAI_EXCLUDE, "true");
+    authorizableManager.updateAuthorizable(user5);
+    Group club = (Group) authorizableManager.findAuthorizable("g-club");
+    String before = StringUtils.join(club.getMembers(), ';');
+    club.addMember("user5");
+    authorizableManager.updateAuthorizable(club);
+
+    assertEquals(0, handler.getDocuments(repositorySession,
+        event(UPDATED, "g-club", before)).size());
+  }
+
+  @Test
+  public void testNewGroupIndexesAllMembers() throws Exception {
+    assertEquals(ImmutableSet.of("user0", "user1", "user2", "user3", "user4"),
+        ids(handler.getDocuments(repositorySession, event(ADDED, "g-course", null))));
+  }
+
+  @Test
+  public void testOtherChangesIndexNoMembers() throws Exception {
+    assertEquals(0, handler.getDocuments(repositorySession,
+        event(UPDATED, "g-course", null)).size());
+    Group club = (Group) authorizableManager.findAuthorizable("g-club");
+    assertEquals(0, handler.getDocuments(repositorySession,
+        event(UPDATED, "g-club", club.getMembers())).size());
+  }
+
+  /**
+   * Searches groups of 100, 1,000 and 50,000 members, and adds one member to each. The
+   * member search was a clause naming every member, and above 900 members a filter of the
+   * rows after the query, so that pages came back short and the total counted everyone
+   * who matched. It is now one filter, the same for every search of the group, which Solr
+   * caches and applies before paging. Adding a member indexed the group document with a
+   * reader for each member; it now indexes the group and the one new member. Run with
+   * -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkGroupSizes() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    int[] sizes = { 100, 1000, 50000 };
+    String[] members = new String[sizes[sizes.length - 1] + 1];
+    for (int i = 0; i < members.length; i++) {
+      members[i] = "member" + i;
+      authorizableManager.createUser(members[i], members[i], "test", null);
+    }
+    System.out.println("group size, mode, query chars, ms to query, docs to index, "
+        + "values to index, ms to index");
+    for (int size : sizes) {
+      String id = "g-size" + size;
+      String[] group = new String[size];
+      System.arraycopy(members, 0, group, 0, size);
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put("sakai:group-title", id);
+      authorizableManager.createGroup(id, id, properties);
+      Group g = (Group) authorizableManager.findAuthorizable(id);
+      for (String member : group) {
+        g.addMember(member);
+      }
+      authorizableManager.updateAuthorizable(g);
+
+      for (int round = 0; round < 3; round++) {
+        // as the provider built it, from the members of the group.
+        long start = System.nanoTime();
+        StringBuilder query = new StringBuilder("name:(");
+        String[] ids = ((Group) authorizableManager.findAuthorizable(id)).getMembers();
+        for (int i = 0; i < ids.length; i++) {
+          query.append(i == 0 ? "'" : " OR '").append(ClientUtils.escapeQueryChars(ids[i]))
+              .append("'");
+        }
+        query.append(")");
+        long queryTime = System.nanoTime() - start;
+
+        // the group document with all of its members, as every change indexed it.
+        start = System.nanoTime();
+        SolrInputDocument doc = handler.createAuthDoc(authorizableManager.findAuthorizable(id),
+            repositorySession);
+        long indexTime = System.nanoTime() - start;
+        System.out.println(size + ", " + (size > 900 ? "post filtered" : "name clause") + ", "
+            + query.length() + ", " + (queryTime / 1000000) + ", 1, "
+            + doc.getFieldValues(IndexingHandler.FIELD_READERS).size() + ", "
+            + (indexTime / 1000000));
+
+        // now, one member joining.
+        Group changed = (Group) authorizableManager.findAuthorizable(id);
+        String before = StringUtils.join(changed.getMembers(), ';');
+        changed.addMember(members[size]);
+        authorizableManager.updateAuthorizable(changed);
+        start = System.nanoTime();
+        String filter = "type:u AND group:" + ClientUtils.escapeQueryChars(id);
+        queryTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+            event(UPDATED, id, before));
+        indexTime = System.nanoTime() - start;
+        int values = 0;
+        for (SolrInputDocument d : docs) {
+          values += d.getFieldValues(IndexingHandler.FIELD_READERS).size();
+          if (d.getFieldValues("group") != null) {
+            values += d.getFieldValues("group").size();
+          }
+        }
+        System.out.println(size + ", group filter, " + filter.length() + ", "
+            + (queryTime / 1000000) + ", " + docs.size() + ", " + values + ", "
+            + (indexTime / 1000000));
+        changed.removeMember(members[size]);
+        authorizableManager.updateAuthorizable(changed);
+      }
+    }
+  }
+
+  private void createGroup(String id, String... members) throws Exception {
+    authorizableManager.createGroup(id, id, null);
+    Group group = (Group) authorizableManager.findAuthorizable(id);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+
+  private Event event(String topic, String path, Object beforeMembers) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    if (beforeMembers != null) {
+      Map<String, Object> before = new HashMap<String, Object>();
+      before.put("members", beforeMembers);
+      properties.put(StoreListener.BEFORE_EVENT_PROPERTY, before);
+    }
+    return new Event(topic, properties);
+  }
+
+  private Set<String> ids(Collection<SolrInputDocument> docs) {
+    Set<String> ids = Sets.newHashSet();
+    for (SolrInputDocument doc : docs) {
+      ids.add(String.valueOf(doc.getFieldValue(IndexingHandler.FIELD_ID)));
+    }
+    return ids;
+  }
+
+  private Set<String> groups(SolrInputDocument doc) {
+    Set<String> groups = Sets.newHashSet();
+    Collection<Object> values = doc.getFieldValues("group");
+    if (values != null) {
+      for (Object value : values) {
+        groups.add(String.valueOf(value));
+      }
+    }
+    groups.remove(Group.EVERYONE);
+    return groups;
+  }
+}
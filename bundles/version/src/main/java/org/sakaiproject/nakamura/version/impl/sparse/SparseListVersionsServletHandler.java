@@ -19,34 +19,47 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.AbstractSafeMethodsServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.SafeServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex.Entry;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex.Page;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Gets a version
+ * Lists the versions of a content item, a page at a time, from the item's
+ * {@link SparseVersionIndex}. Each entry has the version id, when the content was last
+ * modified, its length and the details of the user that saved it. The full version is
+ * available from the version servlet.
  */
 
 @Component(metatype=true, immediate=true)
@@ -54,6 +67,8 @@ import javax.servlet.http.HttpServletResponse;
 @Property(name="handling.servlet",value="ListVersionsServlet")
 public class SparseListVersionsServletHandler extends AbstractSafeMethodsServletResourceHandler {
 
+  @Reference
+  protected transient Repository repository;
 
   /**
    *
@@ -99,13 +114,25 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       }
       path = content.getPath();
       int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
-      int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
-
-      List<String> versionList = contentManager.getVersionHistory(path);
-      int total = versionList.size();
-      int start = Math.min(offset, total);
-      int end = Math.min(start+nitems, total);
-      nitems = end - start;
+      int offset = Math.max(0, intRequestParameter(request, PARAMS_PAGE, 0) * nitems);
+
+      List<Entry> entries;
+      int total;
+      SparseVersionIndex versionIndex = new SparseVersionIndex(repository);
+      Page page = versionIndex.getPage(contentManager, path, offset, nitems);
+      if (page != null) {
+        entries = page.getEntries();
+        total = page.getTotal();
+      } else {
+        // the first listing since the index was introduced.
+        List<Entry> all = versionIndex.build(contentManager, path);
+        total = all.size();
+        entries = new ArrayList<Entry>();
+        for (int j = offset; j < Math.min(offset + nitems, total); j++) {
+          entries.add(all.get(total - j - 1));
+        }
+      }
+      nitems = entries.size();
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -132,15 +159,22 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.key(JSON_VERSIONS);
       write.object();
       
-      for (int j = start; j < end ; j++) {
-        write.key("1."+(versionList.size()-j-1));
+      Map<String, Map<String, Object>> editors = new HashMap<String, Map<String, Object>>();
+      for (int j = 0; j < nitems; j++) {
+        Entry entry = entries.get(j);
+        write.key("1." + (total - offset - j - 1));
         write.object();
         write.key("versionId");
-        String versionId = versionList.get(j);
-        write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
-        writeEditorDetails(vContent, write, authorizableManager);
-        ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+        write.value(entry.getVersionId());
+        writeEditorDetails(entry.getSavedBy(), editors, write, authorizableManager);
+        if (entry.getLastModified() >= 0) {
+          write.key(Content.LASTMODIFIED_FIELD);
+          write.value(entry.getLastModified());
+        }
+        if (entry.getLength() >= 0) {
+          write.key(Content.LENGTH_FIELD);
+          write.value(entry.getLength());
+        }
         write.endObject();
       }
       write.endObject();
@@ -150,6 +184,11 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       response.reset();
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
       return;
+    } catch (ClientPoolException e) {
+      LOGGER.info("Failed to get version History ", e);
+      response.reset();
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      return;
     } catch (StorageClientException e) {
       LOGGER.info("Failed to get version History ", e);
       response.reset();
@@ -163,23 +202,30 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     }
   }
 
-  private void writeEditorDetails(Content content, ExtendedJSONWriter write, AuthorizableManager authorizableManager)
+  /**
+   * Writes the details of the user that saved a version, looking each user up once per
+   * listing.
+   */
+  private void writeEditorDetails(String user, Map<String, Map<String, Object>> editors,
+      ExtendedJSONWriter write, AuthorizableManager authorizableManager)
       throws JSONException, AccessDeniedException, StorageClientException {
-    String user = null;
-    if (content.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
-      user = (String) content.getProperty(Content.VERSION_SAVEDBY_FIELD);
+    if (user == null) {
+      return;
     }
-    
-
-    if (user != null) {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
+    Map<String, Object> editor = editors.get(user);
+    if (editor == null && !editors.containsKey(user)) {
+      Authorizable authorizable = authorizableManager.findAuthorizable(user);
+      if (authorizable != null) {
+        editor = authorizable.getSafeProperties();
+      }
+      editors.put(user, editor);
+    }
+    if (editor != null) {
       write.key(Content.VERSION_SAVEDBY_FIELD);
-      write.valueMap(authorizable.getSafeProperties());
+      write.valueMap(editor);
     }
   }
 
-
-
   private int intRequestParameter(SlingHttpServletRequest request, String paramName,
       int defaultVal) throws ServletException {
     RequestParameter param = request.getRequestParameter(paramName);
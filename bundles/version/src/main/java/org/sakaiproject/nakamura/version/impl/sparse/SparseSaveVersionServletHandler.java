@@ -19,11 +19,13 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -31,6 +33,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.AbstractAllMethodsServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.ServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.api.resource.lite.SparseVersionIndex;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +53,8 @@ import javax.servlet.http.HttpServletResponse;
 @Property(name="handling.servlet",value="SaveVersionServlet")
 public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletResourceHandler {
 
+  @Reference
+  protected transient Repository repository;
 
   /**
    *
@@ -74,6 +79,8 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
       
       String versionId  = contentManager.saveVersion(content.getPath());
       Content savedVersion = contentManager.getVersion(content.getPath(), versionId);
+      new SparseVersionIndex(repository).addVersion(contentManager, content.getPath(),
+          versionId, savedVersion);
       LOGGER.info("Saved Version as {} got as {} ", versionId, savedVersion);
 
       response.setContentType("application/json");
@@ -17,12 +17,10 @@
  */
 package org.sakaiproject.nakamura.auth.cas;
 
-import com.ctc.wstx.stax.WstxInputFactory;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -43,16 +41,7 @@ import org.slf4j.LoggerFactory;
 import javax.jcr.SimpleCredentials;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.security.Principal;
@@ -83,7 +72,10 @@ import static org.apache.sling.jcr.resource.JcrResourceConstants.AUTHENTICATION_
     @Property(name = CasAuthenticationHandler.LOGOUT_URL, value = CasAuthenticationHandler.DEFAULT_LOGOUT_URL),
     @Property(name = CasAuthenticationHandler.SERVER_URL, value = CasAuthenticationHandler.DEFAULT_SERVER_URL),
     @Property(name = CasAuthenticationHandler.RENEW, boolValue = CasAuthenticationHandler.DEFAULT_RENEW),
-    @Property(name = CasAuthenticationHandler.GATEWAY, boolValue = CasAuthenticationHandler.DEFAULT_GATEWAY)
+    @Property(name = CasAuthenticationHandler.GATEWAY, boolValue = CasAuthenticationHandler.DEFAULT_GATEWAY),
+    @Property(name = CasAuthenticationHandler.VALIDATE_MAX_CONNECTIONS, intValue = CasAuthenticationHandler.DEFAULT_VALIDATE_MAX_CONNECTIONS),
+    @Property(name = CasAuthenticationHandler.VALIDATE_CONNECTION_TIMEOUT, intValue = CasAuthenticationHandler.DEFAULT_VALIDATE_CONNECTION_TIMEOUT),
+    @Property(name = CasAuthenticationHandler.VALIDATE_SOCKET_TIMEOUT, intValue = CasAuthenticationHandler.DEFAULT_VALIDATE_SOCKET_TIMEOUT)
 })
 public class CasAuthenticationHandler implements AuthenticationHandler,
     AuthenticationFeedbackHandler {
@@ -99,6 +91,9 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
   static final String DEFAULT_SERVER_URL = "http://localhost/cas";
   static final boolean DEFAULT_RENEW = false;
   static final boolean DEFAULT_GATEWAY = false;
+  static final int DEFAULT_VALIDATE_MAX_CONNECTIONS = 20;
+  static final int DEFAULT_VALIDATE_CONNECTION_TIMEOUT = 5000;
+  static final int DEFAULT_VALIDATE_SOCKET_TIMEOUT = 10000;
 
   /** Represents the constant for where the assertion will be located in memory. */
   static final String AUTHN_INFO = "org.sakaiproject.nakamura.auth.cas.SsoAuthnInfo";
@@ -122,6 +117,15 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
   static final String GATEWAY = "sakai.auth.cas.prop.gateway";
   private boolean gateway;
 
+  static final String VALIDATE_MAX_CONNECTIONS = "sakai.auth.cas.validate.maxconnections";
+  static final String VALIDATE_CONNECTION_TIMEOUT = "sakai.auth.cas.validate.connectiontimeout";
+  static final String VALIDATE_SOCKET_TIMEOUT = "sakai.auth.cas.validate.sockettimeout";
+
+  /**
+   * Shared client for serviceValidate calls, rebuilt whenever the configuration changes.
+   */
+  private volatile CasTicketValidator ticketValidator;
+
   /**
    * Define the set of authentication-related query parameters which should
    * be removed from the "service" URL sent to the SSO server.
@@ -150,6 +154,34 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
 
     renew = OsgiUtil.toBoolean(props.get(RENEW), DEFAULT_RENEW);
     gateway = OsgiUtil.toBoolean(props.get(GATEWAY), DEFAULT_GATEWAY);
+
+    int maxConnections = OsgiUtil.toInteger(props.get(VALIDATE_MAX_CONNECTIONS),
+        DEFAULT_VALIDATE_MAX_CONNECTIONS);
+    int connectionTimeout = OsgiUtil.toInteger(props.get(VALIDATE_CONNECTION_TIMEOUT),
+        DEFAULT_VALIDATE_CONNECTION_TIMEOUT);
+    int socketTimeout = OsgiUtil.toInteger(props.get(VALIDATE_SOCKET_TIMEOUT),
+        DEFAULT_VALIDATE_SOCKET_TIMEOUT);
+    CasTicketValidator oldValidator = ticketValidator;
+    ticketValidator = new CasTicketValidator(serverUrl, maxConnections,
+        connectionTimeout, socketTimeout);
+    if (oldValidator != null) {
+      oldValidator.shutdown();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (ticketValidator != null) {
+      ticketValidator.shutdown();
+      ticketValidator = null;
+    }
+  }
+
+  /**
+   * @return the client used to validate tickets, exposing its latency and error counts.
+   */
+  CasTicketValidator getTicketValidator() {
+    return ticketValidator;
   }
 
   //----------- AuthenticationHandler interface ----------------------------
@@ -176,7 +208,12 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
       HttpServletResponse response) {
     LOGGER.debug("extractCredentials called");
 
-    AuthenticationInfo authnInfo = null;
+    // credentials already extracted for this request are reused rather than sending the
+    // ticket, which may only be used once, back to the server.
+    AuthenticationInfo authnInfo = (AuthenticationInfo) request.getAttribute(AUTHN_INFO);
+    if (authnInfo != null) {
+      return authnInfo;
+    }
 
     String artifact = extractArtifact(request);
 
@@ -184,26 +221,14 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
       try {
         // make REST call to validate artifact
         String service = constructServiceParameter(request);
-        String validateUrl = serverUrl + "/serviceValidate?service=" + service + "&ticket=" + artifact;
-        GetMethod get = new GetMethod(validateUrl);
-        HttpClient httpClient = new HttpClient();
-        int returnCode = httpClient.executeMethod(get);
-
-        if (returnCode >= 200 && returnCode < 300) {
-          // successful call; test for valid response
-          String body = get.getResponseBodyAsString();
-          String credentials = retrieveCredentials(body);
-          if (credentials != null) {
-            // found some credentials; proceed
-            authnInfo = createAuthnInfo(credentials);
-
-            request.setAttribute(AUTHN_INFO, authnInfo);
-          } else {
-            LOGGER.warn("Unable to extract credentials from validation server.");
-            authnInfo = AuthenticationInfo.FAIL_AUTH;
-          }
+        String credentials = ticketValidator.validate(service, artifact);
+        if (credentials != null) {
+          // found some credentials; proceed
+          authnInfo = createAuthnInfo(credentials);
+
+          request.setAttribute(AUTHN_INFO, authnInfo);
         } else {
-          LOGGER.error("Failed response from validation server: [" + returnCode + "]");
+          LOGGER.warn("Unable to extract credentials from validation server.");
           authnInfo = AuthenticationInfo.FAIL_AUTH;
         }
       } catch (Exception e) {
@@ -358,90 +383,6 @@ public class CasAuthenticationHandler implements AuthenticationHandler,
     return request.getParameter(DEFAULT_ARTIFACT_NAME);
   }
 
-  private String retrieveCredentials(String responseBody) {
-    String username = null;
-    String failureCode = null;
-    String failureMessage = null;
-
-    try {
-      XMLInputFactory xmlInputFactory = new WstxInputFactory();
-      xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
-      xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
-      xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
-      XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(new StringReader(
-          responseBody));
-
-      while (eventReader.hasNext()) {
-        XMLEvent event = eventReader.nextEvent();
-
-        // process the event if we're starting an element
-        if (event.isStartElement()) {
-          StartElement startEl = event.asStartElement();
-          QName startElName = startEl.getName();
-          String startElLocalName = startElName.getLocalPart();
-
-          /*
-           * Example of failure XML
-          <cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>
-            <cas:authenticationFailure code='INVALID_REQUEST'>
-              &#039;service&#039; and &#039;ticket&#039; parameters are both required
-            </cas:authenticationFailure>
-          </cas:serviceResponse>
-          */
-          if ("authenticationFailure".equalsIgnoreCase(startElLocalName)) {
-            // get code of the failure
-            Attribute code = startEl.getAttributeByName(QName.valueOf("code"));
-            failureCode = code.getValue();
-
-            // get the message of the failure
-            event = eventReader.nextEvent();
-            assert event.isCharacters();
-            Characters chars = event.asCharacters();
-            failureMessage = chars.getData();
-            break;
-          }
-
-          /*
-           * Example of success XML
-          <cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>
-            <cas:authenticationSuccess>
-              <cas:user>NetID</cas:user>
-            </cas:authenticationSuccess>
-          </cas:serviceResponse>
-          */
-          if ("authenticationSuccess".equalsIgnoreCase(startElLocalName)) {
-            // skip to the user tag start
-            event = eventReader.nextTag();
-            assert event.isStartElement();
-            startEl = event.asStartElement();
-            startElName = startEl.getName();
-            startElLocalName = startElName.getLocalPart();
-            if (!"user".equals(startElLocalName)) {
-              LOGGER.error("Found unexpected element [" + startElName
-                  + "] while inside 'authenticationSuccess'");
-              break;
-            }
-
-            // move on to the body of the user tag
-            event = eventReader.nextEvent();
-            assert event.isCharacters();
-            Characters chars = event.asCharacters();
-            username = chars.getData();
-            break;
-          }
-        }
-      }
-    } catch (XMLStreamException e) {
-      LOGGER.error(e.getMessage(), e);
-    }
-
-    if (failureCode != null || failureMessage != null) {
-      LOGGER.error("Error response from server [code=" + failureCode
-          + ", message=" + failureMessage);
-    }
-    return username;
-  }
-
   static final class SsoPrincipal implements Principal {
     private String principalName;
 
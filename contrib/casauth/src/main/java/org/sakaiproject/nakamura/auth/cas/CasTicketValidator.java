@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.cas;
+
+import com.ctc.wstx.stax.WstxInputFactory;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates CAS service tickets against the <code>serviceValidate</code> endpoint of a
+ * CAS server.
+ * <p>
+ * A single pooled {@link HttpClient} is shared by all request threads so that a burst
+ * of logins reuses kept-alive connections to the CAS server rather than opening a new
+ * one per ticket. The number of validations in flight is bounded; requests that cannot
+ * get a slot within the connection timeout fail rather than queue indefinitely. The
+ * response is parsed as a stream.
+ * <p>
+ * Every call goes to the CAS server. A service ticket may only be used once, so a
+ * repeated ticket must be refused by the server rather than answered from memory;
+ * once a login has succeeded the user is known by their session, not their ticket.
+ */
+public class CasTicketValidator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CasTicketValidator.class);
+
+  private final String serverUrl;
+  private final int connectionTimeout;
+  private final MultiThreadedHttpConnectionManager connectionManager;
+  private final HttpClient httpClient;
+  private final Semaphore inFlight;
+  private final XMLInputFactory xmlInputFactory;
+
+  private final AtomicLong validations = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+
+  /**
+   * @param serverUrl
+   *          base URL of the CAS server, eg https://login.example.com/cas
+   * @param maxConnections
+   *          size of the connection pool, and the number of validations allowed in
+   *          flight at once.
+   * @param connectionTimeout
+   *          milliseconds to wait for a connection to the CAS server, or for a free
+   *          validation slot.
+   * @param socketTimeout
+   *          milliseconds to wait for data from the CAS server.
+   */
+  public CasTicketValidator(String serverUrl, int maxConnections, int connectionTimeout,
+      int socketTimeout) {
+    this.serverUrl = serverUrl;
+    this.connectionTimeout = connectionTimeout;
+
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    // all traffic goes to the one CAS server, so the per host limit is the pool size.
+    params.setDefaultMaxConnectionsPerHost(maxConnections);
+    params.setMaxTotalConnections(maxConnections);
+    params.setConnectionTimeout(connectionTimeout);
+    params.setSoTimeout(socketTimeout);
+    params.setStaleCheckingEnabled(true);
+    connectionManager.setParams(params);
+    httpClient = new HttpClient(connectionManager);
+    httpClient.getParams().setConnectionManagerTimeout(connectionTimeout);
+
+    inFlight = new Semaphore(maxConnections, true);
+
+    xmlInputFactory = new WstxInputFactory();
+    xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+  }
+
+  /**
+   * Validate a ticket issued for a service.
+   *
+   * @param service
+   *          the URL encoded service parameter the ticket was issued for.
+   * @param ticket
+   *          the ticket to validate.
+   * @return the authenticated user name, or null if the CAS server rejected the ticket
+   *         or answered with an error status.
+   * @throws IOException
+   *           if the CAS server could not be reached or no validation slot became free
+   *           in time.
+   */
+  public String validate(String service, String ticket) throws IOException {
+    try {
+      if (!inFlight.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS)) {
+        errors.incrementAndGet();
+        throw new IOException("Timed out waiting to validate ticket against " + serverUrl);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      errors.incrementAndGet();
+      throw new IOException("Interrupted waiting to validate ticket against " + serverUrl);
+    }
+
+    String username = null;
+    boolean answered = false;
+    long start = System.currentTimeMillis();
+    GetMethod get = new GetMethod(serverUrl + "/serviceValidate?service=" + service
+        + "&ticket=" + ticket);
+    try {
+      int returnCode = httpClient.executeMethod(get);
+      if (returnCode >= 200 && returnCode < 300) {
+        answered = true;
+        InputStream in = get.getResponseBodyAsStream();
+        if (in != null) {
+          username = retrieveCredentials(in);
+        }
+      } else {
+        LOGGER.error("Failed response from validation server: [" + returnCode + "]");
+        errors.incrementAndGet();
+      }
+    } catch (IOException e) {
+      errors.incrementAndGet();
+      throw e;
+    } finally {
+      // hands the connection back to the pool, consuming what is left of the body.
+      get.releaseConnection();
+      inFlight.release();
+      long latency = System.currentTimeMillis() - start;
+      validations.incrementAndGet();
+      totalLatency.addAndGet(latency);
+      LOGGER.debug("Validated ticket against {} in {} ms", serverUrl, latency);
+    }
+
+    // an error status is not an answer about the ticket, so it is only counted as an
+    // error.
+    if (answered && username == null) {
+      failures.incrementAndGet();
+    }
+    return username;
+  }
+
+  /**
+   * Release the pooled connections. The validator must not be used afterwards.
+   */
+  public void shutdown() {
+    connectionManager.shutdown();
+  }
+
+  /**
+   * @return the number of round trips made to the CAS server.
+   */
+  public long getValidationCount() {
+    return validations.get();
+  }
+
+  /**
+   * @return the number of tickets the CAS server rejected.
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * @return the number of validations that could not be completed.
+   */
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  /**
+   * @return the mean time in milliseconds of a round trip to the CAS server.
+   */
+  public long getAverageLatency() {
+    long count = validations.get();
+    return count == 0 ? 0 : totalLatency.get() / count;
+  }
+
+  /**
+   * Read the user name out of a serviceValidate response. Parsing stops as soon as the
+   * outcome is known, so the rest of the body is never read.
+   */
+  private String retrieveCredentials(InputStream responseBody) {
+    String username = null;
+    String failureCode = null;
+    String failureMessage = null;
+
+    XMLEventReader eventReader = null;
+    try {
+      eventReader = xmlInputFactory.createXMLEventReader(responseBody);
+
+      while (eventReader.hasNext()) {
+        XMLEvent event = eventReader.nextEvent();
+
+        if (event.isStartElement()) {
+          StartElement startEl = event.asStartElement();
+          String startElLocalName = startEl.getName().getLocalPart();
+
+          /*
+           * Example of failure XML
+          <cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>
+            <cas:authenticationFailure code='INVALID_REQUEST'>
+              &#039;service&#039; and &#039;ticket&#039; parameters are both required
+            </cas:authenticationFailure>
+          </cas:serviceResponse>
+          */
+          if ("authenticationFailure".equalsIgnoreCase(startElLocalName)) {
+            Attribute code = startEl.getAttributeByName(QName.valueOf("code"));
+            if (code != null) {
+              failureCode = code.getValue();
+            }
+            event = eventReader.nextEvent();
+            if (event.isCharacters()) {
+              failureMessage = event.asCharacters().getData().trim();
+            }
+            break;
+          }
+
+          /*
+           * Example of success XML
+          <cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>
+            <cas:authenticationSuccess>
+              <cas:user>NetID</cas:user>
+            </cas:authenticationSuccess>
+          </cas:serviceResponse>
+          */
+          if ("authenticationSuccess".equalsIgnoreCase(startElLocalName)) {
+            event = eventReader.nextTag();
+            QName startElName = event.asStartElement().getName();
+            if (!"user".equals(startElName.getLocalPart())) {
+              LOGGER.error("Found unexpected element [" + startElName
+                  + "] while inside 'authenticationSuccess'");
+              break;
+            }
+            event = eventReader.nextEvent();
+            if (event.isCharacters()) {
+              username = event.asCharacters().getData().trim();
+            }
+            break;
+          }
+        }
+      }
+    } catch (XMLStreamException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      if (eventReader != null) {
+        try {
+          eventReader.close();
+        } catch (XMLStreamException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+
+    if (failureCode != null || failureMessage != null) {
+      LOGGER.error("Error response from server [code=" + failureCode + ", message="
+          + failureMessage);
+    }
+    return username;
+  }
+}
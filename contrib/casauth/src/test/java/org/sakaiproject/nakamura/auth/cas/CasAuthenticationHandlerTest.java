@@ -78,6 +78,7 @@ public class CasAuthenticationHandlerTest {
 
   @After
   public void tearDown() throws Exception {
+    authnHandler.deactivate();
     if (server != null) {
       server.stop();
     }
@@ -168,6 +169,16 @@ public class CasAuthenticationHandlerTest {
         isA(AuthenticationInfo.class));
   }
 
+  @Test
+  public void extractCredentialsAgainInTheSameRequest() throws Exception {
+    setUpSsoCredentials(true);
+    AuthenticationInfo first = authnHandler.extractCredentials(request, response);
+    when(request.getAttribute(CasAuthenticationHandler.AUTHN_INFO)).thenReturn(first);
+
+    assertSame(first, authnHandler.extractCredentials(request, response));
+    assertEquals(1, authnHandler.getTicketValidator().getValidationCount());
+  }
+
   // AuthenticationFeedbackHandler tests.
 
   @Test
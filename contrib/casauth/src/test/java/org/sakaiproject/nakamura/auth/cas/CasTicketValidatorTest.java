@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.cas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CasTicketValidatorTest {
+
+  private static final String SUCCESS = "<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n"
+      + "  <cas:authenticationSuccess>\n"
+      + "    <cas:user>NetID</cas:user>\n"
+      + "  </cas:authenticationSuccess>\n"
+      + "</cas:serviceResponse>\n";
+
+  private static final String FAILURE = "<cas:serviceResponse xmlns:cas='http://www.yale.edu/tp/cas'>\n"
+      + "  <cas:authenticationFailure code='INVALID_TICKET'>\n"
+      + "    ticket not recognized\n"
+      + "  </cas:authenticationFailure>\n"
+      + "</cas:serviceResponse>\n";
+
+  private LocalTestServer server;
+  private CasTicketValidator validator;
+  private AtomicInteger calls = new AtomicInteger();
+  private volatile int status = 200;
+  private volatile String body = SUCCESS;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalTestServer(null, null);
+    server.start();
+    server.register("/cas/serviceValidate", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        calls.incrementAndGet();
+        response.setStatusCode(status);
+        response.setEntity(new StringEntity(body));
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (validator != null) {
+      validator.shutdown();
+    }
+    server.stop();
+  }
+
+  private String serverUrl() {
+    return "http://" + server.getServiceHostName() + ":" + server.getServicePort()
+        + "/cas";
+  }
+
+  @Test
+  public void validatesTicket() throws Exception {
+    validator = new CasTicketValidator(serverUrl(), 4, 5000, 5000);
+
+    assertEquals("NetID", validator.validate("service", "ST-1"));
+
+    assertEquals(1, calls.get());
+    assertEquals(1, validator.getValidationCount());
+    assertEquals(0, validator.getFailureCount());
+  }
+
+  @Test
+  public void repeatedTicketGoesBackToTheServer() throws Exception {
+    validator = new CasTicketValidator(serverUrl(), 4, 5000, 5000);
+
+    assertEquals("NetID", validator.validate("service", "ST-1"));
+    // the server refuses a ticket that has already been used.
+    body = FAILURE;
+    assertNull(validator.validate("service", "ST-1"));
+
+    assertEquals(2, calls.get());
+    assertEquals(1, validator.getFailureCount());
+  }
+
+  @Test
+  public void rejectedTicketIsCounted() throws Exception {
+    body = FAILURE;
+    validator = new CasTicketValidator(serverUrl(), 4, 5000, 5000);
+
+    assertNull(validator.validate("service", "ST-1"));
+    assertNull(validator.validate("service", "ST-1"));
+
+    assertEquals(2, calls.get());
+    assertEquals(2, validator.getFailureCount());
+  }
+
+  @Test
+  public void errorStatusIsCounted() throws Exception {
+    status = 500;
+    validator = new CasTicketValidator(serverUrl(), 4, 5000, 5000);
+
+    assertNull(validator.validate("service", "ST-1"));
+
+    assertEquals(1, validator.getErrorCount());
+    assertEquals(0, validator.getFailureCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void unreachableServerThrows() throws Exception {
+    validator = new CasTicketValidator("http://localhost:1/cas", 4, 1000, 1000);
+    try {
+      validator.validate("service", "ST-1");
+    } finally {
+      assertEquals(1, validator.getErrorCount());
+    }
+  }
+
+  @Test
+  public void concurrentValidationsShareThePool() throws Exception {
+    validator = new CasTicketValidator(serverUrl(), 4, 5000, 5000);
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 200; i++) {
+        final String ticket = "ST-" + i;
+        results.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            return validator.validate("service", ticket);
+          }
+        }));
+      }
+      for (Future<String> result : results) {
+        assertEquals("NetID", result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(200, calls.get());
+    assertEquals(0, validator.getErrorCount());
+    assertTrue(validator.getAverageLatency() >= 0);
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.ldap;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPException;
+import com.novell.ldap.LDAPSearchResults;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Looks up single directory entries by key, eg a user id, through an
+ * {@link LdapConnectionManager}, keeping the results for a configurable time.
+ * <p>
+ * Entries that do not exist are cached too, for a separate (normally shorter) time, so
+ * that repeated requests for unknown users do not reach the directory. Concurrent
+ * lookups of the same key share a single search. Lookups of several keys are sent as
+ * one OR filter per batch when the filter pattern has the simple form
+ * <code>attribute={}</code>, and fall back to one search per key otherwise.
+ */
+public class CachingLdapDirectory {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachingLdapDirectory.class);
+
+  /**
+   * Matches filter patterns that compare a single attribute with the key, with or
+   * without surrounding parentheses.
+   */
+  private static final Pattern SIMPLE_FILTER = Pattern
+      .compile("^\\(?([A-Za-z][A-Za-z0-9\\-;.]*)=\\{\\}\\)?$");
+
+  /**
+   * The largest number of keys put in a single OR filter.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 50;
+
+  private static final LdapDirectoryEntry NOT_FOUND = new LdapDirectoryEntry("",
+      new HashMap<String, String[]>());
+
+  private final LdapConnectionManager connMgr;
+  private final String baseDn;
+  private final String filterPattern;
+  private final String keyAttribute;
+  private final String[] attributes;
+  private final String[] batchAttributes;
+  private final Set<String> attributeNames;
+  private final long ttl;
+  private final long negativeTtl;
+  private final int batchSize;
+
+  private final Map<String, CachedEntry> cache;
+  private final ConcurrentHashMap<String, FutureTask<LdapDirectoryEntry>> inFlight = new ConcurrentHashMap<String, FutureTask<LdapDirectoryEntry>>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong searches = new AtomicLong();
+  private final AtomicLong batchSearches = new AtomicLong();
+  private final AtomicLong searchTime = new AtomicLong();
+
+  /**
+   * @param connMgr
+   *          supplies connections bound as the application user.
+   * @param baseDn
+   *          the base of every subtree search.
+   * @param filterPattern
+   *          the search filter, with <code>{}</code> standing for the escaped key.
+   * @param attributes
+   *          the attributes to fetch, or null to fetch all of them.
+   * @param ttl
+   *          milliseconds to keep entries that were found. 0 disables caching.
+   * @param negativeTtl
+   *          milliseconds to remember that an entry was not found. 0 disables negative
+   *          caching.
+   * @param maxEntries
+   *          the most entries kept; the least recently used are dropped beyond that.
+   */
+  public CachingLdapDirectory(LdapConnectionManager connMgr, String baseDn,
+      String filterPattern, String[] attributes, long ttl, long negativeTtl,
+      final int maxEntries) {
+    this.connMgr = connMgr;
+    this.baseDn = baseDn;
+    this.filterPattern = filterPattern;
+    this.attributes = attributes;
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.batchSize = DEFAULT_BATCH_SIZE;
+
+    Matcher m = SIMPLE_FILTER.matcher(filterPattern.trim());
+    keyAttribute = m.matches() ? m.group(1) : null;
+
+    if (attributes == null) {
+      attributeNames = null;
+      batchAttributes = null;
+    } else {
+      attributeNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+      attributeNames.addAll(Arrays.asList(attributes));
+      if (keyAttribute != null && !attributeNames.contains(keyAttribute)) {
+        // batch results are matched back to keys through the key attribute.
+        batchAttributes = Arrays.copyOf(attributes, attributes.length + 1);
+        batchAttributes[attributes.length] = keyAttribute;
+      } else {
+        batchAttributes = attributes;
+      }
+    }
+
+    cache = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Look up the entry for a key.
+   *
+   * @param key
+   *          the unescaped key, eg a user id.
+   * @return the entry, or null if there is none.
+   * @throws LDAPException
+   *           if the directory could not be searched.
+   */
+  public LdapDirectoryEntry lookup(final String key) throws LDAPException {
+    LdapDirectoryEntry entry = getCached(key);
+    if (entry != null) {
+      return entry == NOT_FOUND ? null : entry;
+    }
+    misses.incrementAndGet();
+
+    FutureTask<LdapDirectoryEntry> task = new FutureTask<LdapDirectoryEntry>(
+        new Callable<LdapDirectoryEntry>() {
+          public LdapDirectoryEntry call() throws Exception {
+            LdapDirectoryEntry found = search(key);
+            put(key, found);
+            return found;
+          }
+        });
+    FutureTask<LdapDirectoryEntry> running = inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      running = task;
+    } else {
+      coalesced.incrementAndGet();
+    }
+    return await(running);
+  }
+
+  /**
+   * Look up the entries for several keys, searching for all those not already cached in
+   * as few requests as possible.
+   *
+   * @param keys
+   *          the unescaped keys.
+   * @return the entries found, by key. Keys without an entry are left out.
+   * @throws LDAPException
+   *           if the directory could not be searched.
+   */
+  public Map<String, LdapDirectoryEntry> lookupAll(Collection<String> keys)
+      throws LDAPException {
+    Map<String, LdapDirectoryEntry> results = new LinkedHashMap<String, LdapDirectoryEntry>();
+    List<String> missing = new ArrayList<String>();
+    for (String key : new LinkedHashSet<String>(keys)) {
+      LdapDirectoryEntry entry = getCached(key);
+      if (entry == null) {
+        FutureTask<LdapDirectoryEntry> running = inFlight.get(key);
+        if (running != null) {
+          coalesced.incrementAndGet();
+          entry = await(running);
+          if (entry != null) {
+            results.put(key, entry);
+          }
+        } else {
+          misses.incrementAndGet();
+          missing.add(key);
+        }
+      } else if (entry != NOT_FOUND) {
+        results.put(key, entry);
+      }
+    }
+
+    if (keyAttribute == null || missing.size() == 1) {
+      for (String key : missing) {
+        LdapDirectoryEntry entry = search(key);
+        put(key, entry);
+        if (entry != null) {
+          results.put(key, entry);
+        }
+      }
+    } else {
+      for (int i = 0; i < missing.size(); i += batchSize) {
+        List<String> batch = missing.subList(i, Math.min(missing.size(), i + batchSize));
+        Map<String, LdapDirectoryEntry> found = searchBatch(batch);
+        for (String key : batch) {
+          LdapDirectoryEntry entry = found.get(key.toLowerCase());
+          put(key, entry);
+          if (entry != null) {
+            results.put(key, entry);
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Forget what is known about a key, eg after the entry has been changed.
+   */
+  public void invalidate(String key) {
+    synchronized (cache) {
+      cache.remove(key);
+    }
+  }
+
+  /**
+   * Forget everything.
+   */
+  public void invalidateAll() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return the number of cached entries, including those recorded as not found.
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * @return the number of lookups answered with a cached entry.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of lookups answered with a cached "not found".
+   */
+  public long getNegativeHitCount() {
+    return negativeHits.get();
+  }
+
+  /**
+   * @return the number of keys that had to be looked up in the directory.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of lookups that waited on a search already running for the same
+   *         key.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the number of single key searches sent to the directory.
+   */
+  public long getSearchCount() {
+    return searches.get();
+  }
+
+  /**
+   * @return the number of OR filter searches sent to the directory.
+   */
+  public long getBatchSearchCount() {
+    return batchSearches.get();
+  }
+
+  /**
+   * @return the total time in milliseconds spent searching the directory.
+   */
+  public long getSearchTime() {
+    return searchTime.get();
+  }
+
+  private LdapDirectoryEntry getCached(String key) {
+    CachedEntry cached;
+    synchronized (cache) {
+      cached = cache.get(key);
+      if (cached != null && cached.expires <= System.currentTimeMillis()) {
+        cache.remove(key);
+        cached = null;
+      }
+    }
+    if (cached == null) {
+      return null;
+    }
+    if (cached.entry == NOT_FOUND) {
+      negativeHits.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return cached.entry;
+  }
+
+  private void put(String key, LdapDirectoryEntry entry) {
+    long lifetime = entry == null ? negativeTtl : ttl;
+    if (lifetime > 0) {
+      CachedEntry cached = new CachedEntry(entry == null ? NOT_FOUND : entry,
+          System.currentTimeMillis() + lifetime);
+      synchronized (cache) {
+        cache.put(key, cached);
+      }
+    }
+  }
+
+  /**
+   * Not every connection manager honours a null dn in getBoundConnection, so bind as
+   * the configured application user explicitly.
+   */
+  private LDAPConnection getAppUserConnection() throws LDAPException {
+    LdapConnectionManagerConfig config = connMgr.getConfig();
+    if (config == null) {
+      return connMgr.getBoundConnection(null, null);
+    }
+    return connMgr.getBoundConnection(config.getLdapUser(), config.getLdapPassword());
+  }
+
+  private LdapDirectoryEntry await(FutureTask<LdapDirectoryEntry> task)
+      throws LDAPException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LDAPException("Interrupted waiting for directory search",
+          LDAPException.OTHER, e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof LDAPException) {
+        throw (LDAPException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new LDAPException(String.valueOf(cause), LDAPException.OTHER,
+          String.valueOf(cause));
+    }
+  }
+
+  private LdapDirectoryEntry search(String key) throws LDAPException {
+    String filter = filterPattern.replace("{}", LdapUtil.escapeLDAPSearchFilter(key));
+    LOGGER.debug("search(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
+    long start = System.currentTimeMillis();
+    searches.incrementAndGet();
+    LDAPConnection conn = null;
+    try {
+      conn = getAppUserConnection();
+      LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, filter,
+          attributes, false);
+      if (results.hasMore()) {
+        return new LdapDirectoryEntry(results.next(), attributeNames);
+      }
+      return null;
+    } finally {
+      connMgr.returnConnection(conn);
+      searchTime.addAndGet(System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * @return the entries found, keyed by the lower cased value of the key attribute.
+   */
+  private Map<String, LdapDirectoryEntry> searchBatch(List<String> keys)
+      throws LDAPException {
+    StringBuilder filter = new StringBuilder("(|");
+    for (String key : keys) {
+      filter.append('(').append(keyAttribute).append('=')
+          .append(LdapUtil.escapeLDAPSearchFilter(key)).append(')');
+    }
+    filter.append(')');
+    LOGGER.debug("searchBatch(): [baseDN = {}][keys = {}]", baseDn, keys.size());
+
+    Map<String, LdapDirectoryEntry> found = new HashMap<String, LdapDirectoryEntry>();
+    long start = System.currentTimeMillis();
+    batchSearches.incrementAndGet();
+    LDAPConnection conn = null;
+    try {
+      conn = getAppUserConnection();
+      LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+          filter.toString(), batchAttributes, false);
+      while (results.hasMore()) {
+        LDAPEntry ldapEntry = results.next();
+        LdapDirectoryEntry entry = new LdapDirectoryEntry(ldapEntry, attributeNames);
+        String[] keyValues = ldapEntry.getAttribute(keyAttribute) == null ? new String[0]
+            : ldapEntry.getAttribute(keyAttribute).getStringValueArray();
+        for (String keyValue : keyValues) {
+          String lowerKey = keyValue.toLowerCase();
+          // like a single search, the first entry found for a key wins.
+          if (!found.containsKey(lowerKey)) {
+            found.put(lowerKey, entry);
+          }
+        }
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+      searchTime.addAndGet(System.currentTimeMillis() - start);
+    }
+    return found;
+  }
+
+  private static final class CachedEntry {
+    private final LdapDirectoryEntry entry;
+    private final long expires;
+
+    private CachedEntry(LdapDirectoryEntry entry, long expires) {
+      this.entry = entry;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.ldap;
+
+import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPEntry;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of an <code>LDAPEntry</code>, safe to keep in a cache and share
+ * between threads after the connection it was read from has gone back to the pool.
+ */
+public class LdapDirectoryEntry {
+
+  private final String dn;
+  private final Map<String, String[]> attributes;
+
+  public LdapDirectoryEntry(String dn, Map<String, String[]> attributes) {
+    this.dn = dn;
+    this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, String[]>(
+        attributes));
+  }
+
+  /**
+   * Copy the attributes of an entry, keeping only those named in
+   * <code>attributeNames</code> unless it is null.
+   *
+   * @param entry
+   *          the entry to copy.
+   * @param attributeNames
+   *          the attribute names to keep, or null to keep every attribute.
+   */
+  public LdapDirectoryEntry(LDAPEntry entry, Set<String> attributeNames) {
+    Map<String, String[]> values = new LinkedHashMap<String, String[]>();
+    Iterator<?> attrIter = entry.getAttributeSet().iterator();
+    while (attrIter.hasNext()) {
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      if (attributeNames == null || attributeNames.contains(name)) {
+        values.put(name, attr.getStringValueArray());
+      }
+    }
+    this.dn = entry.getDN();
+    this.attributes = Collections.unmodifiableMap(values);
+  }
+
+  /**
+   * @return the distinguished name of the entry.
+   */
+  public String getDn() {
+    return dn;
+  }
+
+  /**
+   * @return the attributes of the entry, keyed by name as the server returned them.
+   */
+  public Map<String, String[]> getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * @param name
+   *          the attribute name, matched without regard to case.
+   * @return the first value of the attribute, or null if the entry does not have it.
+   */
+  public String getStringValue(String name) {
+    for (Map.Entry<String, String[]> attr : attributes.entrySet()) {
+      if (attr.getKey().equalsIgnoreCase(name)) {
+        String[] values = attr.getValue();
+        return values == null || values.length == 0 ? null : values[0];
+      }
+    }
+    return null;
+  }
+}
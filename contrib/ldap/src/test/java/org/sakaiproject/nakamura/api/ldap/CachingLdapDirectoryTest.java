@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.ldap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.ldap.SimpleLdapConnectionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link CachingLdapDirectory} against an in-process LDAP server.
+ */
+public class CachingLdapDirectoryTest {
+  private static final String BASE_DN = "dc=sakai";
+  private static final int USERS = 120;
+
+  private InMemoryDirectoryServer server;
+  private SimpleLdapConnectionManager mgr;
+
+  @Before
+  public void setUp() throws Exception {
+    InMemoryDirectoryServerConfig serverConfig = new InMemoryDirectoryServerConfig(
+        BASE_DN);
+    serverConfig.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("test", 0));
+    serverConfig.addAdditionalBindCredentials("cn=admin", "secret");
+    serverConfig.setSchema(null);
+    server = new InMemoryDirectoryServer(serverConfig);
+    server.add("dn: dc=sakai", "objectClass: top", "objectClass: domain", "dc: sakai");
+    server.add("dn: ou=people,dc=sakai", "objectClass: top",
+        "objectClass: organizationalUnit", "ou: people");
+    for (int i = 0; i < USERS; i++) {
+      server.add("dn: uid=user" + i + ",ou=people,dc=sakai", "objectClass: top",
+          "objectClass: inetOrgPerson", "uid: user" + i, "cn: User " + i, "sn: " + i,
+          "mail: user" + i + "@example.com");
+    }
+    server.startListening();
+
+    LdapConnectionManagerConfig config = new LdapConnectionManagerConfig();
+    config.setLdapHost("localhost");
+    config.setLdapPort(server.getListenPort());
+    config.setLdapUser("cn=admin");
+    config.setLdapPassword("secret");
+    config.setAutoBind(true);
+    mgr = new SimpleLdapConnectionManager();
+    mgr.init(config);
+  }
+
+  @After
+  public void tearDown() {
+    server.shutDown(true);
+  }
+
+  private CachingLdapDirectory newDirectory(String filter, long ttl, long negativeTtl) {
+    return new CachingLdapDirectory(mgr, BASE_DN, filter, new String[] { "cn", "mail" },
+        ttl, negativeTtl, 1000);
+  }
+
+  @Test
+  public void testLookupIsCached() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 60000, 60000);
+
+    LdapDirectoryEntry entry = directory.lookup("user1");
+    assertNotNull(entry);
+    assertEquals("uid=user1,ou=people,dc=sakai", entry.getDn());
+    assertEquals("User 1", entry.getStringValue("cn"));
+    assertEquals(2, entry.getAttributes().size());
+
+    assertEquals(entry, directory.lookup("user1"));
+    assertEquals(1, directory.getSearchCount());
+    assertEquals(1, directory.getHitCount());
+    assertEquals(1, directory.getMissCount());
+  }
+
+  @Test
+  public void testNotFoundIsCached() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 60000, 60000);
+
+    assertNull(directory.lookup("nobody"));
+    assertNull(directory.lookup("nobody"));
+    assertEquals(1, directory.getSearchCount());
+    assertEquals(1, directory.getNegativeHitCount());
+  }
+
+  @Test
+  public void testNegativeCachingCanBeDisabled() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 60000, 0);
+
+    assertNull(directory.lookup("nobody"));
+    assertNull(directory.lookup("nobody"));
+    assertEquals(2, directory.getSearchCount());
+  }
+
+  @Test
+  public void testEntriesExpire() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 1, 1);
+
+    directory.lookup("user1");
+    Thread.sleep(10);
+    directory.lookup("user1");
+    assertEquals(2, directory.getSearchCount());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 60000, 60000);
+
+    directory.lookup("user1");
+    directory.invalidate("user1");
+    directory.lookup("user1");
+    assertEquals(2, directory.getSearchCount());
+  }
+
+  @Test
+  public void testKeyIsEscaped() throws Exception {
+    CachingLdapDirectory directory = newDirectory("uid={}", 60000, 60000);
+
+    assertNull(directory.lookup("*"));
+  }
+
+  @Test
+  public void testLookupAllUsesOrFilterBatches() throws Exception {
+    CachingLdapDirectory directory = newDirectory("(uid={})", 60000, 60000);
+    directory.lookup("user0");
+
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < USERS; i++) {
+      keys.add("user" + i);
+    }
+    keys.add("nobody");
+
+    Map<String, LdapDirectoryEntry> entries = directory.lookupAll(keys);
+    assertEquals(USERS, entries.size());
+    assertEquals("user5@example.com", entries.get("user5").getStringValue("mail"));
+    // the key attribute is fetched to match entries, but not handed back.
+    assertNull(entries.get("user5").getStringValue("uid"));
+
+    // 120 misses in batches of 50.
+    assertEquals(3, directory.getBatchSearchCount());
+    assertEquals(1, directory.getSearchCount());
+
+    directory.lookupAll(keys);
+    assertEquals(3, directory.getBatchSearchCount());
+    assertNull(directory.lookup("nobody"));
+    assertEquals(1, directory.getSearchCount());
+  }
+
+  @Test
+  public void testLookupAllWithComplexFilter() throws Exception {
+    CachingLdapDirectory directory = newDirectory("(&(objectClass=inetOrgPerson)(uid={}))",
+        60000, 60000);
+
+    Map<String, LdapDirectoryEntry> entries = directory.lookupAll(Arrays.asList("user1",
+        "user2"));
+    assertEquals(2, entries.size());
+    assertEquals(0, directory.getBatchSearchCount());
+    assertEquals(2, directory.getSearchCount());
+  }
+
+  @Test
+  public void testConcurrentLookupsAreCoalesced() throws Exception {
+    final CachingLdapDirectory directory = newDirectory("uid={}", 60000, 60000);
+    ExecutorService executor = Executors.newFixedThreadPool(20);
+    final CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<LdapDirectoryEntry>> results = new ArrayList<Future<LdapDirectoryEntry>>();
+      for (int i = 0; i < 200; i++) {
+        results.add(executor.submit(new Callable<LdapDirectoryEntry>() {
+          public LdapDirectoryEntry call() throws Exception {
+            start.await();
+            return directory.lookup("user7");
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<LdapDirectoryEntry> result : results) {
+        assertEquals("User 7", result.get().getStringValue("cn"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, directory.getSearchCount());
+    assertTrue(directory.getHitCount() + directory.getCoalescedCount() == 199);
+  }
+}
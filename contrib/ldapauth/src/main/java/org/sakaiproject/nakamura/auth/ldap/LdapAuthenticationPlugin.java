@@ -18,8 +18,10 @@
 package org.sakaiproject.nakamura.auth.ldap;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -39,7 +41,9 @@ import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.jackrabbit.server.security.AuthenticationPlugin;
 import org.apache.sling.servlets.post.ModificationType;
+import org.sakaiproject.nakamura.api.ldap.CachingLdapDirectory;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.ldap.LdapDirectoryEntry;
 import org.sakaiproject.nakamura.api.ldap.LdapUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -93,6 +97,28 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   static final String USER_PROPS = "sakai.auth.ldap.user.props";
   private HashMap<String, String> attrsProps;
 
+  /**
+   * How long, in milliseconds, the user entry found by a login is remembered. Later
+   * logins by the same user skip the search as the application user and only bind as
+   * the user. 0 searches on every login.
+   */
+  public static final long CACHE_TTL_DEFAULT = 0;
+  @Property(longValue = CACHE_TTL_DEFAULT)
+  static final String CACHE_TTL = "sakai.auth.ldap.cache.ttl";
+
+  public static final long CACHE_NEGATIVE_TTL_DEFAULT = 30000;
+  @Property(longValue = CACHE_NEGATIVE_TTL_DEFAULT)
+  static final String CACHE_NEGATIVE_TTL = "sakai.auth.ldap.cache.negativettl";
+
+  public static final int CACHE_MAX_ENTRIES_DEFAULT = 10000;
+  @Property(intValue = CACHE_MAX_ENTRIES_DEFAULT)
+  static final String CACHE_MAX_ENTRIES = "sakai.auth.ldap.cache.maxentries";
+
+  /**
+   * Cache of user entries, or null when caching is switched off.
+   */
+  private CachingLdapDirectory userDirectory;
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -130,6 +156,29 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     createAccount = OsgiUtil.toBoolean(props.get(CREATE_ACCOUNT), CREATE_ACCOUNT_DEFAULT);
 
     parseUserProps(props);
+
+    long cacheTtl = OsgiUtil.toLong(props.get(CACHE_TTL), CACHE_TTL_DEFAULT);
+    if (cacheTtl > 0) {
+      List<String> attributes = new ArrayList<String>();
+      attributes.add("objectClass");
+      attributes.add("aliasedObjectName");
+      if (attrsProps != null) {
+        attributes.addAll(attrsProps.keySet());
+      }
+      userDirectory = new CachingLdapDirectory(connMgr, baseDn, userFilter,
+          attributes.toArray(new String[attributes.size()]), cacheTtl,
+          OsgiUtil.toLong(props.get(CACHE_NEGATIVE_TTL), CACHE_NEGATIVE_TTL_DEFAULT),
+          OsgiUtil.toInteger(props.get(CACHE_MAX_ENTRIES), CACHE_MAX_ENTRIES_DEFAULT));
+    } else {
+      userDirectory = null;
+    }
+  }
+
+  /**
+   * @return the cache of user entries, or null if caching is switched off.
+   */
+  CachingLdapDirectory getUserDirectory() {
+    return userDirectory;
   }
 
   protected boolean canDecorateUser() {
@@ -212,7 +261,9 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
       LDAPConnection conn = null;
       Exception ldapTrouble = null;
       boolean didLdapSucceed = false;
+      CachingLdapDirectory directory = userDirectory;
       for (int i = 0; i < 4; i++) {
+        LdapDirectoryEntry cachedEntry = null;
         try {
           if (i > 0) {
             log.debug("LDAP error on ldap auth. Retrying. " + ldapTrouble.getMessage());
@@ -220,34 +271,49 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
           // 0) Get a connection to the server
           conn = connMgr.getConnection();
           log.debug("Connected to LDAP server");
-          bindAppUser(appUser, appPass, conn);
-          // 2) Search for username (not authz).
-          // If search fails, log/report invalid username or password.
-          LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-              userDn, null, true);
-          if (results.hasMore()) {
-            log.debug("Found user via search");
-          } else {
-            throw new IllegalArgumentException("Can't find user [" + userDn + "]");
-          }
-
-          // 3) Bind as user.
-          // If bind fails, log/report invalid username or password.
 
           // value is set below. define here for use in authz check.
           String userEntryDn = null;
-          // KERN-776 Resolve the user DN from the search results and check for an aliased
-          // entry
-          LDAPEntry userEntry = results.next();
-          LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
-
-          if ("aliasObject".equals(objectClass.getStringValue())) {
-            LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
-            userEntryDn = aliasDN.getStringValue();
+          if (directory != null) {
+            // 1, 2) Resolve the user entry through the cache, which searches as the
+            // application user when it has to.
+            cachedEntry = directory.lookup(sc.getUserID());
+            if (cachedEntry == null) {
+              throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+            }
+            log.debug("Found user via cache");
+            if ("aliasObject".equals(cachedEntry.getStringValue("objectClass"))) {
+              userEntryDn = cachedEntry.getStringValue("aliasedObjectName");
+            } else {
+              userEntryDn = cachedEntry.getDn();
+            }
           } else {
-            userEntryDn = userEntry.getDN();
+            bindAppUser(appUser, appPass, conn);
+            // 2) Search for username (not authz).
+            // If search fails, log/report invalid username or password.
+            LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+                userDn, null, true);
+            if (results.hasMore()) {
+              log.debug("Found user via search");
+            } else {
+              throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+            }
+
+            // KERN-776 Resolve the user DN from the search results and check for an
+            // aliased entry
+            LDAPEntry userEntry = results.next();
+            LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
+
+            if ("aliasObject".equals(objectClass.getStringValue())) {
+              LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
+              userEntryDn = aliasDN.getStringValue();
+            } else {
+              userEntryDn = userEntry.getDN();
+            }
           }
 
+          // 3) Bind as user.
+          // If bind fails, log/report invalid username or password.
           conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
           log.debug("Bound as user");
 
@@ -258,8 +324,8 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
             // 5) Search user DN with authz filter
             // If search fails, log/report that user is not authorized
             String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
-            results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter,
-                null, true);
+            LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+                userAuthzFilter, null, true);
             if (results.hasMore()) {
               log.debug("Found user + authz filter via search");
             } else {
@@ -278,7 +344,11 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
 
           if (authorizable != null && attrsProps != null) {
             log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
-            decorateUser(session, authorizable, conn);
+            if (cachedEntry != null) {
+              decorateUser(session, authorizable, cachedEntry);
+            } else {
+              decorateUser(session, authorizable, conn);
+            }
           }
           // if we made it this far, we can exit the retry loop
           didLdapSucceed = true;
@@ -286,6 +356,10 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
         } catch (Exception e) {
           ldapTrouble = e;
           log.warn(e.getMessage(), e);
+          if (cachedEntry != null && !isInvalidCredentials(e)) {
+            // the entry may have moved or changed; look it up again on the retry.
+            directory.invalidate(sc.getUserID());
+          }
         } finally {
           log.debug("Returning LDAP connection to pool.");
           connMgr.returnConnection(conn);
@@ -301,12 +375,31 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     return auth;
   }
 
+  private boolean isInvalidCredentials(Exception e) {
+    return e instanceof LDAPException
+        && ((LDAPException) e).getResultCode() == LDAPException.INVALID_CREDENTIALS;
+  }
+
   private void bindAppUser(String appUser, String appPass, LDAPConnection conn)
       throws LDAPException, UnsupportedEncodingException {
     conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
     log.debug("Bound as application user");
   }
 
+  /**
+   * Decorate the user with extra information from an entry that has already been read.
+   */
+  private void decorateUser(Session session, Authorizable user, LdapDirectoryEntry entry)
+      throws AccessDeniedException, StorageClientException {
+    for (Entry<String, String> attrProp : attrsProps.entrySet()) {
+      String value = entry.getStringValue(attrProp.getKey());
+      if (value != null) {
+        user.setProperty(attrProp.getValue(), value);
+      }
+    }
+    session.getAuthorizableManager().updateAuthorizable(user);
+  }
+
   private Authorizable getJcrUser(Session session, String userId) throws Exception {
 	AuthorizableManager am = session.getAuthorizableManager(); 
     Authorizable auth = am.findAuthorizable(userId);
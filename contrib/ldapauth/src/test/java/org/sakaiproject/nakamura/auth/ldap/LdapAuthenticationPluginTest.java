@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.auth.ldap;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Answers.RETURNS_DEEP_STUBS;
@@ -30,10 +31,12 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.novell.ldap.LDAPAttribute;
+import com.novell.ldap.LDAPAttributeSet;
 import com.novell.ldap.LDAPConnection;
 import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
@@ -214,6 +217,41 @@ public class LdapAuthenticationPluginTest {
     verify(ldapEntry, atLeastOnce()).getAttribute("aliasedObjectName");
   }
 
+  @Test
+  public void authenticateWithCachedUserEntry() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    props.put(LdapAuthenticationPlugin.CACHE_TTL, 60000L);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
+    when(
+        conn.search(isA(String.class), anyInt(), isA(String.class),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+
+    LDAPEntry entry = mock(LDAPEntry.class);
+    when(results.next()).thenReturn(entry);
+    String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
+    when(entry.getDN()).thenReturn(userEntryDn);
+    when(entry.getAttributeSet()).thenReturn(new LDAPAttributeSet());
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    // the user is searched for once, but has to bind every time.
+    assertEquals(1, ldapAuthenticationPlugin.getUserDirectory().getSearchCount());
+    verify(conn, times(2)).bind(LDAPConnection.LDAP_V3, userEntryDn,
+        PASS.getBytes("UTF-8"));
+  }
+
   @Test
   public void failConnectingToLdapHost() throws Exception {
     // given
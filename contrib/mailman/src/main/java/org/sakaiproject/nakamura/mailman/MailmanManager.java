@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.mailman;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.mailman.impl.MailmanException;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public interface MailmanManager {
   public boolean isServerActive() throws MailmanException;
@@ -29,6 +31,21 @@ public interface MailmanManager {
   public boolean listHasMember(String listName, String listPassword, String memberEmail) throws MailmanException;
   public boolean addMember(String listName, String listPassword, String userEmail) throws MailmanException;
   public boolean removeMember(String listName, String listPassword, String userEmail) throws MailmanException;
+  /**
+   * Subscribes all the addresses in one mass subscription.
+   * @return the addresses Mailman reports as subscribed, without those already members.
+   */
+  public List<String> addMembers(String listName, String listPassword, Collection<String> memberEmails) throws MailmanException;
+  /**
+   * Unsubscribes all the addresses in one mass removal.
+   * @return the addresses Mailman reports as unsubscribed, without those not members.
+   */
+  public List<String> removeMembers(String listName, String listPassword, Collection<String> memberEmails) throws MailmanException;
+  /**
+   * Reads the roster from the membership pages of the list, every letter and chunk of it.
+   * @return the addresses subscribed to the list, in lower case as Mailman keeps them.
+   */
+  public Set<String> getMembers(String listName, String listPassword) throws MailmanException;
   public MessageRoute generateMessageRouteForGroup(String groupName);
   public void setListSettings(String principalName, String listManagementPassword) throws MailmanException;
 }
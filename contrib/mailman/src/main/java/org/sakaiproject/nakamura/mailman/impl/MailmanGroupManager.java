@@ -16,8 +16,11 @@
  */
 package org.sakaiproject.nakamura.mailman.impl;
 
-import java.util.logging.Level;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -26,25 +29,25 @@ import org.osgi.service.cm.ManagedService;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
 import org.sakaiproject.nakamura.mailman.MailmanManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import javax.jcr.RepositoryException;
-import org.apache.felix.scr.annotations.Activate;
-import org.apache.felix.scr.annotations.Deactivate;
-import org.apache.felix.scr.annotations.Modified;
-
-import org.sakaiproject.nakamura.api.lite.Repository;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import java.util.Set;
 
+/**
+ * Creates a Mailman list for each group, and queues changes to the members of the group
+ * to be synced to its list, and to the list of the group it is below, by
+ * {@link MailmanSync}.
+ */
 @Component(immediate = true, metatype = true, label = "%mail.manager.impl.label", description = "%mail.manager.impl.desc")
 @Service(value = EventHandler.class)
 public class MailmanGroupManager implements EventHandler, ManagedService {
@@ -61,12 +64,19 @@ public class MailmanGroupManager implements EventHandler, ManagedService {
     private static final String EVENT_TOPICS = "event.topics";
     @Property(value = "password")
     private static final String LIST_MANAGEMENT_PASSWORD = "mailman.listmanagement.password";
+    @Property(longValue = 5000)
+    static final String SYNC_DELAY = "mailman.sync.delay";
+    @Property(longValue = 60)
+    static final String SYNC_RECONCILE = "mailman.sync.reconcile";
+    /**
+     * The members of a group before it changed, as found in the before event.
+     */
+    private static final String MEMBERS_PROPERTY = "members";
     @Reference
     private MailmanManager mailmanManager;
     @Reference
     private Repository repository;
-    private Session session; // fetched from the repository
-    private AuthorizableManager authorizableManager = null; // fetchs from the session
+    private MailmanSync sync;
     private String listManagementPassword;
 
     public MailmanGroupManager() {
@@ -81,19 +91,15 @@ public class MailmanGroupManager implements EventHandler, ManagedService {
     public void activate(Map<?, ?> props) throws ClientPoolException, StorageClientException, AccessDeniedException {
         LOGGER.info("Got component initialization");
         listManagementPassword = (String) props.get(LIST_MANAGEMENT_PASSWORD);
-
-        session = this.repository.loginAdministrative();
-        authorizableManager = session.getAuthorizableManager();
+        sync = new MailmanSync(mailmanManager, repository, listManagementPassword,
+                toLong(props.get(SYNC_DELAY), 5000), toLong(props.get(SYNC_RECONCILE), 60));
     }
 
     @Deactivate
     public void deactivate() {
-        try {
-            session.logout();
-        } catch (Exception e) {
-            LOGGER.error("Error logging out of the session", e);
-        } finally {
-            session = null;
+        if (sync != null) {
+            sync.close();
+            sync = null;
         }
     }
 
@@ -102,115 +108,73 @@ public class MailmanGroupManager implements EventHandler, ManagedService {
     public void updated(Dictionary config) throws ConfigurationException {
         LOGGER.info("Got config update");
         listManagementPassword = (String) config.get(LIST_MANAGEMENT_PASSWORD);
+        MailmanSync current = sync;
+        if (current != null) {
+            current.setListPassword(listManagementPassword);
+        }
     }
 
     public void handleEvent(Event event) {
-        if (!"group".equalsIgnoreCase(event.getProperty("type").toString())) {
+        Object type = event.getProperty("type");
+        String groupId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+        MailmanSync current = sync;
+        if (current == null || groupId == null || type == null || !"group".equalsIgnoreCase(type.toString())) {
             return; // we only need the events with type: group
         }
-        LOGGER.info("Got event on topic: " + event.getTopic());
-
-        Operation operation = null;
-        if (event.getProperty("added") != null) {
-            operation = Operation.join;
-        } else if (event.getProperty("removed") != null) {
-            operation = Operation.part;
-        } else {
-            operation = Operation.create;
-        }
-
-        String principalName = event.getProperty("path").toString();
-        switch (operation) {
-            case create:
-                LOGGER.info("Got authorizable creation: " + principalName);
-
-                try {
-                    mailmanManager.createList(principalName, listManagementPassword);
-                } catch (Exception e) {
-                    LOGGER.error("Unable to create mailman list for group", e);
-                }
-                break;
-            case delete:
-                LOGGER.info("Got authorizable deletion: " + principalName);
-                try {
-                    mailmanManager.deleteList(principalName, listManagementPassword);
-                } catch (Exception e) {
-                    LOGGER.error("Unable to delete mailman list for group", e);
-                }
-                break;
-            case join: {
-                String addedId = event.getProperty("added").toString();
-                LOGGER.info("Got group join event ***" + addedId + "***");
-                String emailAddress = null;
-                try {
-                    if (!isSubgroup(addedId)) {
-                        emailAddress = getEmailForUser(addedId);
-                        if (emailAddress != null) {
-                            // add the user to the subgroup
-                            mailmanManager.addMember(principalName, listManagementPassword, emailAddress);
-                            LOGGER.info("Added: " + addedId + " to mailman group " + principalName);
-                            // add the user to the maingroup
-                            String[] splittedPrincipalName = principalName.split("-");
-                            principalName = "";
-                            for (int i = 0; i < splittedPrincipalName.length; i++) {
-                                if (i < (splittedPrincipalName.length - 1)) {
-                                    principalName += splittedPrincipalName[i];
-                                    if (i < (splittedPrincipalName.length - 2)) {
-                                        principalName += "-";
-                                    }
-                                }
-                            }
-                            LOGGER.info("Added: " + addedId + " to mailman group " + principalName);
-                            mailmanManager.addMember(principalName, listManagementPassword, emailAddress);
-                        } else {
-                            LOGGER.warn("No email address recorded for user: " + addedId + ". Not adding to mailman list");
-                            return;
-                        }
-                    }
-                } catch (RepositoryException ex) {
-                    java.util.logging.Logger.getLogger(MailmanGroupManager.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (AccessDeniedException ex) {
-                    java.util.logging.Logger.getLogger(MailmanGroupManager.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (StorageClientException ex) {
-                    java.util.logging.Logger.getLogger(MailmanGroupManager.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (MailmanException e) {
-                    LOGGER.error("Mailman exception adding user to mailman group", e);
+        LOGGER.debug("Got event on topic: {}", event.getTopic());
+
+        boolean created = event.getTopic().endsWith(StoreListener.ADDED_TOPIC);
+        Set<String> joined = toSet(event.getProperty("added"));
+        Set<String> parted = toSet(event.getProperty("removed"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> before = (Map<String, Object>) event.getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+        if (joined.isEmpty() && parted.isEmpty()
+                && (created || (before != null && before.containsKey(MEMBERS_PROPERTY)))) {
+            Set<String> previous = created ? new LinkedHashSet<String>() : toSet(before.get(MEMBERS_PROPERTY));
+            for (String member : current.getMembers(groupId)) {
+                if (!previous.remove(member)) {
+                    joined.add(member);
                 }
             }
-            break;
-            case part: {
-                LOGGER.info("Got group join event");
-                String userId = event.getProperty("removed").toString();
-                try {
-                    String emailAddress = getEmailForUser(userId);
-                    if (emailAddress != null) {
-                        LOGGER.info("Removing user: " + userId + " to mailman group " + principalName);
-                        mailmanManager.removeMember(userId, listManagementPassword, emailAddress);
-                    } else {
-                        LOGGER.warn("No email address recorded for user: " + userId + ". Not removing from mailman list");
-                    }
-                } catch (AccessDeniedException ex) {
-                    java.util.logging.Logger.getLogger(MailmanGroupManager.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (StorageClientException ex) {
-                    java.util.logging.Logger.getLogger(MailmanGroupManager.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (RepositoryException e) {
-                    LOGGER.error("Repository exception removing user from mailman group", e);
-                } catch (MailmanException e) {
-                    LOGGER.error("Mailman exception removing user from mailman group", e);
-                }
-            }
-            break;
+            parted.addAll(previous);
+        }
+        if (!created && joined.isEmpty() && parted.isEmpty()) {
+            return;
         }
+        LOGGER.info("Queueing sync of mailman list {}: {} joined, {} parted", new Object[] {
+                groupId, joined.size(), parted.size() });
+        current.enqueue(groupId, created, joined, parted);
+        // those joining are also added to the list the group is below.
+        String parent = MailmanSync.getParentList(groupId);
+        if (parent != null && !joined.isEmpty()) {
+            current.enqueue(parent, false, joined, Collections.<String>emptySet());
+        }
+    }
+
+    MailmanSync getSync() {
+        return sync;
     }
 
-    private Boolean isSubgroup(String groupId) throws AccessDeniedException, StorageClientException {
-        Authorizable authorizable = authorizableManager.findAuthorizable(groupId);
-        return authorizable.isGroup();
+    private Set<String> toSet(Object value) {
+        Set<String> set = new LinkedHashSet<String>();
+        if (value instanceof String[]) {
+            Collections.addAll(set, (String[]) value);
+        } else if (value != null) {
+            Collections.addAll(set, StringUtils.split(String.valueOf(value), ",;"));
+        }
+        return set;
     }
 
-    private String getEmailForUser(String userId) throws RepositoryException, AccessDeniedException, StorageClientException {
-        Authorizable authorizable = authorizableManager.findAuthorizable(userId);
-        String email = (String) authorizable.getProperty("email");
-        return email;
+    private long toLong(Object value, long defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            try {
+                return Long.parseLong(String.valueOf(value));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Ignoring {}, not a number", value);
+            }
+        }
+        return defaultValue;
     }
 }
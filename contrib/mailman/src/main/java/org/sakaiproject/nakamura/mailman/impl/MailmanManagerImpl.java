@@ -48,11 +48,15 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -272,6 +276,140 @@ public class MailmanManagerImpl implements MailmanManager, ManagedService {
         }
     }
 
+    public List<String> addMembers(String listName, String listPassword, Collection<String> memberEmails) throws MailmanException {
+        NameValuePair[] parametersBody = new NameValuePair[]{
+            new NameValuePair("subscribe_or_invite", "0"),
+            new NameValuePair("send_welcome_msg_to_this_batch", "0"),
+            new NameValuePair("notification_to_list_owner", "0"),
+            new NameValuePair("subscribees_upload", joinLines(memberEmails)),
+            new NameValuePair("adminpw", listPassword)
+        };
+        return postMembers("/admin/" + listName + "/members/add", parametersBody, "Successfully subscribed:");
+    }
+
+    public List<String> removeMembers(String listName, String listPassword, Collection<String> memberEmails) throws MailmanException {
+        NameValuePair[] parametersBody = new NameValuePair[]{
+            new NameValuePair("send_unsub_ack_to_this_batch", "0"),
+            new NameValuePair("send_unsub_notifications_to_list_owner", "0"),
+            new NameValuePair("unsubscribees_upload", joinLines(memberEmails)),
+            new NameValuePair("adminpw", listPassword)
+        };
+        return postMembers("/admin/" + listName + "/members/remove", parametersBody, "Successfully Unsubscribed:");
+    }
+
+    public Set<String> getMembers(String listName, String listPassword) throws MailmanException {
+        Set<String> members = new LinkedHashSet<String>();
+        // the roster is split by the first letter of the address, and each letter into
+        // chunks, once there are too many members to show on one page.
+        Set<String> pages = new LinkedHashSet<String>();
+        List<String> next = new ArrayList<String>();
+        next.add("");
+        pages.add("");
+        HttpClient client = new HttpClient(proxyClientService.getHttpConnectionManager());
+        while (!next.isEmpty()) {
+            String page = next.remove(0);
+            GetMethod get = new GetMethod(getMailmanUrl("/admin/" + listName + "/members"));
+            try {
+                get.setQueryString((page.length() == 0 ? "" : page + "&") + "adminpw="
+                        + URLEncoder.encode(listPassword, "utf8"));
+                int result = client.executeMethod(get);
+                if (result != HttpServletResponse.SC_OK) {
+                    throw new MailmanException("Unable to read members");
+                }
+                Document dom = parseHtml(get);
+                NodeList inputs = dom.getElementsByTagName("INPUT");
+                for (int i = 0; i < inputs.getLength(); i++) {
+                    String name = getAttribute(inputs.item(i), "name");
+                    if (name != null && name.endsWith("_unsub")) {
+                        members.add(URLDecoder.decode(name.substring(0, name.length() - "_unsub".length()), "utf8"));
+                    }
+                }
+                NodeList anchors = dom.getElementsByTagName("A");
+                for (int i = 0; i < anchors.getLength(); i++) {
+                    String href = getAttribute(anchors.item(i), "href");
+                    int query = href == null ? -1 : href.indexOf("/members?letter=");
+                    if (query >= 0) {
+                        String other = href.substring(query + "/members?".length());
+                        if (pages.add(other)) {
+                            next.add(other);
+                        }
+                    }
+                }
+            } catch (SAXException e) {
+                throw new MailmanException("Error parsing mailman response", e);
+            } catch (HttpException e) {
+                throw new MailmanException("HTTP Exception communicating with mailman server", e);
+            } catch (IOException e) {
+                throw new MailmanException("IOException communicating with mailman server", e);
+            } finally {
+                get.releaseConnection();
+            }
+        }
+        return members;
+    }
+
+    private String getAttribute(Node node, String name) {
+        if (node.getAttributes() == null) {
+            return null;
+        }
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? null : attribute.getTextContent();
+    }
+
+    /**
+     * Posts a mass subscription or removal, which may be too large for a query string.
+     * @return the addresses listed under the heading that reports those changed.
+     */
+    private List<String> postMembers(String stub, NameValuePair[] parametersBody, String heading) throws MailmanException {
+        HttpClient client = new HttpClient(proxyClientService.getHttpConnectionManager());
+        PostMethod post = new PostMethod(getMailmanUrl(stub));
+        post.setRequestBody(parametersBody);
+        try {
+            int result = client.executeMethod(post);
+            if (result != HttpServletResponse.SC_OK) {
+                throw new MailmanException("Unable to change members");
+            }
+            Document dom = parseHtml(post);
+            List<String> changed = new ArrayList<String>();
+            NodeList lists = dom.getElementsByTagName("UL");
+            for (int i = 0; i < lists.getLength(); i++) {
+                Node list = lists.item(i);
+                Node previous = list.getPreviousSibling();
+                while (previous != null && previous.getNodeType() != Node.ELEMENT_NODE) {
+                    previous = previous.getPreviousSibling();
+                }
+                if (previous == null || !heading.equals(previous.getTextContent().trim())) {
+                    continue;
+                }
+                NodeList items = list.getChildNodes();
+                for (int j = 0; j < items.getLength(); j++) {
+                    if ("LI".equalsIgnoreCase(items.item(j).getNodeName())) {
+                        String address = items.item(j).getTextContent().trim();
+                        int reason = address.indexOf(" -- ");
+                        changed.add(reason < 0 ? address : address.substring(0, reason));
+                    }
+                }
+            }
+            return changed;
+        } catch (SAXException e) {
+            throw new MailmanException("Error parsing mailman response", e);
+        } catch (HttpException e) {
+            throw new MailmanException("HTTP Exception communicating with mailman server", e);
+        } catch (IOException e) {
+            throw new MailmanException("IOException communicating with mailman server", e);
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    private String joinLines(Collection<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(value).append('\n');
+        }
+        return sb.toString();
+    }
+
     private Document parseHtml(HttpMethodBase method) throws SAXException, IOException {
         DOMParser parser = new DOMParser();
         parser.parse(new InputSource(method.getResponseBodyAsStream()));
@@ -0,0 +1,538 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.nakamura.mailman.impl;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.mailman.MailmanManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the Mailman lists of groups in step with their members, away from the threads
+ * that change the groups.
+ * <p>
+ * Changes to a list are queued and coalesced, so that a member who joins and then
+ * parts before the list is next synced is not sent to Mailman at all, and are applied
+ * together after a short delay with one mass subscription and one mass removal per list.
+ * The queue is kept in the repository under {@link #SYNC_PATH}, one node per list, so
+ * that changes not yet applied when the server stops are applied once it starts again.
+ * Changes that fail are retried, backing off up to {@link #MAX_RETRY_DELAY}. Each node
+ * also records the addresses synced to its list, and every list is reconciled with the
+ * members of its group periodically, to make up for changes that were missed.
+ * <p>
+ * The addresses of members are resolved by the sync thread with a session of its own,
+ * without holding the lock that the threads queueing changes wait on.
+ */
+class MailmanSync {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailmanSync.class);
+
+    static final String SYNC_PATH = "/var/mailman/sync";
+    static final String CREATE_PROPERTY = "create";
+    static final String SUBSCRIBE_PROPERTY = "subscribe";
+    static final String UNSUBSCRIBE_PROPERTY = "unsubscribe";
+    /**
+     * The addresses synced to the list.
+     */
+    static final String MEMBERS_PROPERTY = "members";
+    static final String EMAIL_PROPERTY = "email";
+    /**
+     * The most addresses sent to Mailman in one mass subscription or removal.
+     */
+    static final int BATCH_SIZE = 1000;
+    static final long MAX_RETRY_DELAY = 600000L;
+
+    private final MailmanManager mailmanManager;
+    private final Session session;
+    /**
+     * Resolves the addresses of members and reads what was synced, used only while
+     * {@link #applying} is held.
+     */
+    private final Session syncSession;
+    private final long delay;
+    private final ScheduledExecutorService timer;
+    private volatile String listPassword;
+
+    /**
+     * Held while changes are applied to Mailman, so that only one flush or reconcile
+     * runs at a time, and while the sync session is used.
+     */
+    private final Object applying = new Object();
+
+    /**
+     * The changes to each list not yet taken to be applied. Guarded by this, as is all
+     * use of {@link #session}.
+     */
+    private final Map<String, Change> pending = new LinkedHashMap<String, Change>();
+    /**
+     * The changes to each list being applied.
+     */
+    private final Map<String, Change> inFlight = new HashMap<String, Change>();
+    private boolean scheduled;
+    private long retryDelay;
+
+    /**
+     * The changes to be made to a list. Ids are of users or groups, whose users are then
+     * subscribed or unsubscribed.
+     */
+    static class Change {
+        boolean create;
+        final Set<String> subscribe = new LinkedHashSet<String>();
+        final Set<String> unsubscribe = new LinkedHashSet<String>();
+
+        /**
+         * Adds later changes. Joining and parting are changes from what the list was, so
+         * one that undoes an earlier one cancels it.
+         */
+        void merge(boolean create, Collection<String> subscribe, Collection<String> unsubscribe) {
+            this.create |= create;
+            for (String id : subscribe) {
+                if (!this.unsubscribe.remove(id)) {
+                    this.subscribe.add(id);
+                }
+            }
+            for (String id : unsubscribe) {
+                if (!this.subscribe.remove(id)) {
+                    this.unsubscribe.add(id);
+                }
+            }
+        }
+
+        /**
+         * @return this change followed by the later one, which may be null.
+         */
+        Change then(Change later) {
+            Change change = new Change();
+            change.merge(create, subscribe, unsubscribe);
+            if (later != null) {
+                change.merge(later.create, later.subscribe, later.unsubscribe);
+            }
+            return change;
+        }
+
+        boolean isEmpty() {
+            return !create && subscribe.isEmpty() && unsubscribe.isEmpty();
+        }
+    }
+
+    /**
+     * @param delay
+     *          the ms to wait after a change before applying it, so that those that follow
+     *          are applied with it.
+     * @param reconcilePeriod
+     *          the minutes between reconciling every list, or 0 not to.
+     */
+    MailmanSync(MailmanManager mailmanManager, Repository repository, String listPassword,
+            long delay, long reconcilePeriod) throws ClientPoolException, StorageClientException, AccessDeniedException {
+        this.mailmanManager = mailmanManager;
+        this.listPassword = listPassword;
+        this.delay = delay;
+        this.session = repository.loginAdministrative();
+        this.syncSession = repository.loginAdministrative();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Mailman list sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        load();
+        if (reconcilePeriod > 0) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    reconcile();
+                }
+            }, reconcilePeriod, reconcilePeriod, TimeUnit.MINUTES);
+        }
+    }
+
+    void setListPassword(String listPassword) {
+        this.listPassword = listPassword;
+    }
+
+    /**
+     * Queues changes to a list, to be applied once the delay has passed.
+     */
+    synchronized void enqueue(String listName, boolean create, Collection<String> subscribe,
+            Collection<String> unsubscribe) {
+        Change change = pending.get(listName);
+        if (change == null) {
+            change = new Change();
+            pending.put(listName, change);
+        }
+        change.merge(create, subscribe, unsubscribe);
+        try {
+            store(listName, null);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to record changes to mailman list {}, they will be lost on restart: {}",
+                    listName, e.getMessage());
+        }
+        schedule(delay);
+    }
+
+    /**
+     * @return the ids of the direct members of a group, none if there is no such group.
+     */
+    synchronized Set<String> getMembers(String groupId) {
+        Set<String> members = new LinkedHashSet<String>();
+        Authorizable authorizable = find(session, groupId);
+        if (authorizable instanceof Group) {
+            Collections.addAll(members, ((Group) authorizable).getMembers());
+        }
+        return members;
+    }
+
+    /**
+     * @return the number of lists with changes not yet applied.
+     */
+    synchronized int getPending() {
+        return pending.size() + inFlight.size();
+    }
+
+    /**
+     * Applies the changes queued so far. Changes to a list that fail are queued again.
+     */
+    void flush() {
+        synchronized (applying) {
+            Map<String, Change> taken;
+            synchronized (this) {
+                scheduled = false;
+                taken = new LinkedHashMap<String, Change>(pending);
+                pending.clear();
+                inFlight.putAll(taken);
+            }
+            boolean failed = false;
+            for (Entry<String, Change> e : taken.entrySet()) {
+                String listName = e.getKey();
+                Set<String> synced = null;
+                try {
+                    synced = apply(listName, e.getValue());
+                } catch (MailmanException ex) {
+                    LOGGER.warn("Unable to sync mailman list {}, will retry: {}", listName, ex.getMessage());
+                    failed = true;
+                }
+                synchronized (this) {
+                    Change change = inFlight.remove(listName);
+                    if (synced == null) {
+                        pending.put(listName, change.then(pending.get(listName)));
+                    } else {
+                        try {
+                            store(listName, synced);
+                        } catch (Exception ex) {
+                            LOGGER.warn("Unable to record sync of mailman list {}: {}", listName, ex.getMessage());
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                if (failed) {
+                    retryDelay = retryDelay == 0 ? delay : Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                    schedule(retryDelay);
+                } else {
+                    retryDelay = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings every list synced so far in step with the members of its group, and of the
+     * groups of the lists below it, sending only the addresses missing from the roster of
+     * the list and those on it that should not be. Addresses are only removed if they
+     * were synced, so that those subscribed in Mailman itself are left alone.
+     */
+    void reconcile() {
+        synchronized (applying) {
+            Map<String, Set<String>> desired = new LinkedHashMap<String, Set<String>>();
+            Map<String, Set<String>> recorded = new HashMap<String, Set<String>>();
+            try {
+                ContentManager contentManager = syncSession.getContentManager();
+                for (Iterator<String> i = contentManager.listChildPaths(SYNC_PATH); i.hasNext();) {
+                    Content content = contentManager.get(i.next());
+                    if (content != null) {
+                        String listName = StorageClientUtils.getObjectName(content.getPath());
+                        desired.put(listName, getEmails(Collections.singleton(listName)));
+                        recorded.put(listName, getIds(content, MEMBERS_PROPERTY));
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Unable to read the mailman lists to reconcile: {}", e.getMessage());
+                return;
+            }
+            for (Entry<String, Set<String>> e : new ArrayList<Entry<String, Set<String>>>(desired.entrySet())) {
+                String parent = getParentList(e.getKey());
+                if (parent != null && desired.containsKey(parent)) {
+                    desired.get(parent).addAll(e.getValue());
+                }
+            }
+            for (Entry<String, Set<String>> e : desired.entrySet()) {
+                String listName = e.getKey();
+                Set<String> missing = new LinkedHashSet<String>();
+                Set<String> stale = new LinkedHashSet<String>();
+                try {
+                    Set<String> roster = mailmanManager.getMembers(listName, listPassword);
+                    Set<String> wanted = new HashSet<String>();
+                    for (String email : e.getValue()) {
+                        wanted.add(email.toLowerCase());
+                        if (!roster.contains(email.toLowerCase())) {
+                            missing.add(email);
+                        }
+                    }
+                    for (String email : recorded.get(listName)) {
+                        if (roster.contains(email.toLowerCase()) && !wanted.contains(email.toLowerCase())) {
+                            stale.add(email);
+                        }
+                    }
+                    send(listName, missing, true);
+                    send(listName, stale, false);
+                } catch (MailmanException ex) {
+                    LOGGER.warn("Unable to reconcile mailman list {}: {}", listName, ex.getMessage());
+                    continue;
+                }
+                LOGGER.debug("Reconciled mailman list {}: {} subscribed, {} unsubscribed", new Object[] {
+                        listName, missing.size(), stale.size() });
+                synchronized (this) {
+                    try {
+                        store(listName, e.getValue());
+                    } catch (Exception ex) {
+                        LOGGER.warn("Unable to record sync of mailman list {}: {}", listName, ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops syncing. Changes not yet applied are applied when syncing next starts.
+     */
+    void close() {
+        timer.shutdownNow();
+        synchronized (this) {
+            try {
+                session.logout();
+            } catch (ClientPoolException e) {
+                LOGGER.warn("Unable to log out of the mailman sync session", e);
+            }
+        }
+        // not waiting for a flush still running, whose changes are recorded to be
+        // applied again.
+        try {
+            syncSession.logout();
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Unable to log out of the mailman sync session", e);
+        }
+    }
+
+    /**
+     * @return the list a list is below, the part of its name before the last '-', or null.
+     */
+    static String getParentList(String listName) {
+        int last = listName.lastIndexOf('-');
+        return last > 0 ? listName.substring(0, last) : null;
+    }
+
+    /**
+     * @return the addresses now synced to the list.
+     */
+    private Set<String> apply(String listName, Change change) throws MailmanException {
+        if (change.create) {
+            mailmanManager.createList(listName, listPassword);
+        }
+        Set<String> subscribe = getEmails(change.subscribe);
+        Set<String> unsubscribe = getEmails(change.unsubscribe);
+        // those parted through one group may still be members through another.
+        unsubscribe.removeAll(getEmails(Collections.singleton(listName)));
+        Set<String> synced;
+        try {
+            synced = getIds(syncSession.getContentManager().get(path(listName)), MEMBERS_PROPERTY);
+        } catch (Exception e) {
+            synced = new LinkedHashSet<String>();
+        }
+        send(listName, subscribe, true);
+        send(listName, unsubscribe, false);
+        synced.addAll(subscribe);
+        synced.removeAll(unsubscribe);
+        LOGGER.debug("Synced mailman list {}: {} subscribed, {} unsubscribed", new Object[] {
+                listName, subscribe.size(), unsubscribe.size() });
+        return synced;
+    }
+
+    private void send(String listName, Set<String> emails, boolean subscribe) throws MailmanException {
+        List<String> batch = new ArrayList<String>(Math.min(emails.size(), BATCH_SIZE));
+        for (Iterator<String> i = emails.iterator(); i.hasNext();) {
+            batch.add(i.next());
+            if (batch.size() == BATCH_SIZE || !i.hasNext()) {
+                if (subscribe) {
+                    mailmanManager.addMembers(listName, listPassword, batch);
+                } else {
+                    mailmanManager.removeMembers(listName, listPassword, batch);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Resolved with the sync session.
+     * @return the addresses of the users, and of the users in the groups, directly or
+     *         through other groups. Users with no address are left out.
+     */
+    private Set<String> getEmails(Collection<String> ids) {
+        Set<String> emails = new LinkedHashSet<String>();
+        Set<String> seen = new LinkedHashSet<String>();
+        List<String> next = new ArrayList<String>(ids);
+        while (!next.isEmpty()) {
+            String id = next.remove(next.size() - 1);
+            if (!seen.add(id)) {
+                continue;
+            }
+            Authorizable authorizable = find(syncSession, id);
+            if (authorizable instanceof Group) {
+                Collections.addAll(next, ((Group) authorizable).getMembers());
+            } else if (authorizable != null) {
+                Object email = authorizable.getProperty(EMAIL_PROPERTY);
+                if (email != null && String.valueOf(email).length() > 0) {
+                    emails.add(String.valueOf(email));
+                } else {
+                    LOGGER.debug("No email address recorded for user {}, not syncing to mailman", id);
+                }
+            }
+        }
+        return emails;
+    }
+
+    private Authorizable find(Session session, String id) {
+        try {
+            AuthorizableManager authorizableManager = session.getAuthorizableManager();
+            return authorizableManager.findAuthorizable(id);
+        } catch (AccessDeniedException e) {
+            LOGGER.debug(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            LOGGER.debug(e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Queues the changes recorded in the repository when syncing last stopped.
+     */
+    private synchronized void load() throws StorageClientException, AccessDeniedException {
+        ContentManager contentManager = session.getContentManager();
+        for (Iterator<String> i = contentManager.listChildPaths(SYNC_PATH); i.hasNext();) {
+            Content content = contentManager.get(i.next());
+            if (content == null) {
+                continue;
+            }
+            Change change = new Change();
+            change.merge(Boolean.TRUE.equals(content.getProperty(CREATE_PROPERTY)),
+                    getIds(content, SUBSCRIBE_PROPERTY), getIds(content, UNSUBSCRIBE_PROPERTY));
+            if (!change.isEmpty()) {
+                pending.put(StorageClientUtils.getObjectName(content.getPath()), change);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Resuming the sync of {} mailman lists", pending.size());
+            schedule(delay);
+        }
+    }
+
+    /**
+     * Records the changes to a list not yet applied, those being applied included.
+     * @param synced the addresses now synced to the list, or null to leave them.
+     */
+    private void store(String listName, Set<String> synced) throws StorageClientException, AccessDeniedException {
+        Change inFlightChange = inFlight.get(listName);
+        Change change = inFlightChange == null ? pending.get(listName) : inFlightChange.then(pending.get(listName));
+        if (change == null) {
+            change = new Change();
+        }
+        ContentManager contentManager = session.getContentManager();
+        String path = path(listName);
+        Content content = contentManager.get(path);
+        if (content == null) {
+            content = new Content(path, new HashMap<String, Object>());
+        }
+        content.setProperty(CREATE_PROPERTY, change.create);
+        setIds(content, SUBSCRIBE_PROPERTY, change.subscribe);
+        setIds(content, UNSUBSCRIBE_PROPERTY, change.unsubscribe);
+        if (synced != null) {
+            setIds(content, MEMBERS_PROPERTY, synced);
+        }
+        contentManager.update(content);
+    }
+
+    private void setIds(Content content, String name, Set<String> ids) {
+        if (ids.isEmpty()) {
+            if (content.hasProperty(name)) {
+                content.removeProperty(name);
+            }
+        } else {
+            content.setProperty(name, ids.toArray(new String[ids.size()]));
+        }
+    }
+
+    private Set<String> getIds(Content content, String name) {
+        Set<String> ids = new LinkedHashSet<String>();
+        if (content != null) {
+            Collections.addAll(ids, StorageClientUtils.nonNullStringArray((String[]) content.getProperty(name)));
+        }
+        return ids;
+    }
+
+    private String path(String listName) {
+        return SYNC_PATH + "/" + listName;
+    }
+
+    private void schedule(long after) {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        timer.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, after, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,159 +1,393 @@
 package org.sakaiproject.nakamura.mailman.impl;
 
-import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
-import org.apache.jackrabbit.api.security.user.Group;
-import org.apache.jackrabbit.api.security.user.User;
-import org.apache.sling.jcr.api.SlingRepository;
-import org.easymock.EasyMock;
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
 import org.osgi.service.event.Event;
-import org.sakaiproject.nakamura.api.personal.PersonalConstants;
-import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
-import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
-import org.sakaiproject.nakamura.mailman.MailmanManager;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
-import org.sakaiproject.nakamura.util.PersonalUtils;
 
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.jcr.Node;
-import javax.jcr.Property;
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.jcr.Value;
-import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Syncs groups through the real manager to a stub Mailman that counts the calls made
+ * to each of its pages.
+ */
 public class MailmanGroupManagerTest extends AbstractEasyMockTest {
 
-  private MailmanManager mailmanManager;
-  private SlingRepository slingRepository;
+  private static final String ADDED = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.ADDED_TOPIC;
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.UPDATED_TOPIC;
+
+  private Repository repository;
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private StubMailman mailman;
+  private MailmanManagerImpl mailmanManager;
   private MailmanGroupManager groupManager;
 
   @Override
   @Before
   public void setUp() throws Exception {
     super.setUp();
-    mailmanManager = createMock(MailmanManager.class);
-    slingRepository = createMock(SlingRepository.class);
-    groupManager = new MailmanGroupManager(mailmanManager, slingRepository);
+    repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    mailman = new StubMailman();
+    mailmanManager = new MailmanManagerImpl();
+    mailmanManager.setServer("localhost:" + mailman.port);
+    mailmanManager.setMailmanPath("/mailman");
+    ProxyClientService proxyClientService = createMock(ProxyClientService.class);
+    expect(proxyClientService.getHttpConnectionManager()).andReturn(
+        new MultiThreadedHttpConnectionManager()).anyTimes();
+    mailmanManager.setProxyClientService(proxyClientService);
+    replay();
+    groupManager = activate();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    groupManager.deactivate();
+    mailman.close();
+    session.logout();
   }
 
   @Test
-  public void testHandleGroupAdd() throws MailmanException {
-    String groupName = "g-testgroup";
-    String topic = "org/apache/sling/jackrabbit/usermanager/event/create";
-    Dictionary<String,Object> properties = new Hashtable<String, Object>();
-    properties.put(AuthorizableEvent.OPERATION, Operation.create);
-    properties.put(AuthorizableEvent.PRINCIPAL_NAME, groupName);
-    properties.put(AuthorizableEvent.TOPIC, topic);
-    Event event = new Event(topic, properties);
-
-    mailmanManager.createList(groupName, groupName + "@example.com", null);
-    replay();
-    groupManager.handleEvent(event);
-    verify();
+  public void testGroupCreationCreatesList() throws Exception {
+    createGroup("course");
+    groupManager.handleEvent(event(ADDED, "course", null));
+    // changes to other properties of the group are not synced.
+    groupManager.handleEvent(event(UPDATED, "course", null));
+    groupManager.getSync().flush();
+    assertEquals(1, mailman.calls("/create"));
+    assertEquals(2, mailman.total());
   }
 
   @Test
-  public void testHandleGroupRemove() throws MailmanException {
-    String groupName = "g-testgroup";
-    String topic = "org/apache/sling/jackrabbit/usermanager/event/delete";
-    Dictionary<String,Object> properties = new Hashtable<String, Object>();
-    properties.put(AuthorizableEvent.OPERATION, Operation.delete);
-    properties.put(AuthorizableEvent.PRINCIPAL_NAME, groupName);
-    properties.put(AuthorizableEvent.TOPIC, topic);
-    Event event = new Event(topic, properties);
-
-    mailmanManager.deleteList(groupName, null);
-    replay();
-    groupManager.handleEvent(event);
-    verify();
+  public void testJoinSubscribesToListAndParentList() throws Exception {
+    createUsers("alice");
+    createGroup("course-students", "alice");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice"));
+    assertEquals("Expected nothing to be sent on the event thread", 0, mailman.total());
+    groupManager.getSync().flush();
+    assertEquals(set("alice@example.com"), mailman.members("course-students"));
+    assertEquals(set("alice@example.com"), mailman.members("course"));
   }
 
   @Test
-  public void testHandleGroupJoin() throws MailmanException, RepositoryException {
-    String groupName = "g-testgroup";
-    Group dummyGroup = createDummyGroup(groupName);
-    String user = "testuser";
-    User dummyUser = createDummyUser(user);
-    EasyMock.replay(dummyUser);
-    String testAddress = "test@test.com";
-    addUserEmailExpectation(dummyUser, testAddress);
-    String topic = "org/apache/sling/jackrabbit/usermanager/event/join";
-    Dictionary<String,Object> properties = new Hashtable<String, Object>();
-    properties.put(AuthorizableEvent.OPERATION, Operation.join);
-    properties.put(AuthorizableEvent.PRINCIPAL_NAME, groupName);
-    properties.put(AuthorizableEvent.TOPIC, topic);
-    properties.put(AuthorizableEvent.USER, dummyUser);
-    properties.put(AuthorizableEvent.GROUP, dummyGroup);
-    Event event = new Event(topic, properties);
-
-    expect(mailmanManager.addMember(groupName, null, testAddress)).andReturn(true);
-    replay();
-    groupManager.handleEvent(event);
-    verify();
+  public void testRosterIsSyncedWithOneCallPerList() throws Exception {
+    String[] students = createUsers(1000, "student");
+    createGroup("course-students", students);
+    // one event per student, as a roster import makes them.
+    for (String student : students) {
+      groupManager.handleEvent(event(UPDATED, "course-students", student));
+    }
+    groupManager.getSync().flush();
+    assertEquals(1, mailman.calls("/admin/course-students/members/add"));
+    assertEquals(1, mailman.calls("/admin/course/members/add"));
+    assertEquals(2, mailman.total());
+    assertEquals(1000, mailman.members("course-students").size());
+    assertEquals(1000, mailman.members("course").size());
+
+    // and parting them all is one mass removal.
+    Group group = (Group) authorizableManager.findAuthorizable("course-students");
+    for (String student : students) {
+      group.removeMember(student);
+    }
+    authorizableManager.updateAuthorizable(group);
+    groupManager.handleEvent(event(UPDATED, "course-students", null, students));
+    groupManager.getSync().flush();
+    assertEquals(1, mailman.calls("/admin/course-students/members/remove"));
+    assertEquals(3, mailman.total());
+    assertTrue(mailman.members("course-students").isEmpty());
   }
 
   @Test
-  public void testHandleGroupPart() throws MailmanException, RepositoryException {
-    String groupName = "g-testgroup";
-    Group dummyGroup = createDummyGroup(groupName);
-    String user = "testuser";
-    User dummyUser = createDummyUser(user);
-    EasyMock.replay(dummyUser);
-    String testAddress = "test@test.com";
-    addUserEmailExpectation(dummyUser, testAddress);
-    String topic = "org/apache/sling/jackrabbit/usermanager/event/part";
-    Dictionary<String,Object> properties = new Hashtable<String, Object>();
-    properties.put(AuthorizableEvent.OPERATION, Operation.part);
-    properties.put(AuthorizableEvent.PRINCIPAL_NAME, groupName);
-    properties.put(AuthorizableEvent.TOPIC, topic);
-    properties.put(AuthorizableEvent.USER, dummyUser);
-    properties.put(AuthorizableEvent.GROUP, dummyGroup);
-    Event event = new Event(topic, properties);
-
-    expect(mailmanManager.removeMember(groupName, null, testAddress)).andReturn(true);
-    replay();
-    groupManager.handleEvent(event);
-    verify();
+  public void testPartUnsubscribesFromList() throws Exception {
+    createUsers("alice", "bob");
+    createGroup("course-students", "alice", "bob");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice;bob"));
+    groupManager.getSync().flush();
+
+    Group group = (Group) authorizableManager.findAuthorizable("course-students");
+    group.removeMember("bob");
+    authorizableManager.updateAuthorizable(group);
+    groupManager.handleEvent(event(UPDATED, "course-students", null, "alice", "bob"));
+    groupManager.getSync().flush();
+    assertEquals(1, mailman.calls("/admin/course-students/members/remove"));
+    assertEquals(set("alice@example.com"), mailman.members("course-students"));
   }
 
-  private void addUserEmailExpectation(User user, String testAddress) throws RepositoryException {
-    String profileNodePath = PersonalUtils.getProfilePath(user);
-    Session session = createMock(Session.class);
-    Node node = createMock(Node.class);
-    Property property = createMock(Property.class);
-    expect(slingRepository.loginAdministrative(null)).andReturn(session);
-    expect(session.getItem(eq(profileNodePath))).andReturn(node);
-    expect(node.hasProperty(eq(PersonalConstants.EMAIL_ADDRESS))).andReturn(true).times(2);
-    expect(node.getProperty(eq(PersonalConstants.EMAIL_ADDRESS))).andReturn(property);
+  @Test
+  public void testJoinThenPartIsNotSent() throws Exception {
+    createUsers("alice");
+    createGroup("course-students");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice"));
+    Dictionary<String, Object> properties = properties("course-students");
+    properties.put("removed", "alice");
+    groupManager.handleEvent(new Event(UPDATED, properties));
+    groupManager.getSync().flush();
+    assertEquals(0, mailman.calls("/admin/course-students/members/remove"));
+    assertEquals(0, mailman.calls("/admin/course-students/members/add"));
+  }
 
-    PropertyDefinition propDef = createMock(PropertyDefinition.class);
-    expect(propDef.isMultiple()).andReturn(false);
-    expect(property.getDefinition()).andReturn(propDef);
+  @Test
+  public void testFailedChangesAreRetried() throws Exception {
+    createUsers("alice");
+    createGroup("course-students", "alice");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice"));
+    mailman.failing = true;
+    groupManager.getSync().flush();
+    assertEquals(2, groupManager.getSync().getPending());
+    mailman.failing = false;
+    groupManager.getSync().flush();
+    assertEquals(0, groupManager.getSync().getPending());
+    assertEquals(set("alice@example.com"), mailman.members("course-students"));
+  }
 
-    Value value = createMock(Value.class);
-    expect(value.getString()).andReturn(testAddress);
-    expect(property.getValue()).andReturn(value);
+  @Test
+  public void testPendingChangesSurviveRestart() throws Exception {
+    createUsers("alice");
+    createGroup("course-students", "alice");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice"));
+    groupManager.deactivate();
+    assertEquals(0, mailman.total());
 
-    session.logout();
+    groupManager = activate();
+    assertEquals(2, groupManager.getSync().getPending());
+    groupManager.getSync().flush();
+    assertEquals(set("alice@example.com"), mailman.members("course-students"));
+    assertEquals(set("alice@example.com"), mailman.members("course"));
+  }
+
+  @Test
+  public void testReconcileCatchesUpMissedChanges() throws Exception {
+    createUsers("alice", "bob", "carol");
+    createGroup("course-students", "alice", "bob");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice;bob"));
+    groupManager.getSync().flush();
+
+    // changed without events.
+    Group group = (Group) authorizableManager.findAuthorizable("course-students");
+    group.removeMember("bob");
+    group.addMember("carol");
+    authorizableManager.updateAuthorizable(group);
+    groupManager.getSync().reconcile();
+    assertEquals(set("alice@example.com", "carol@example.com"),
+        mailman.members("course-students"));
+    // the parent list keeps those in the lists below it.
+    assertEquals(set("alice@example.com", "carol@example.com"), mailman.members("course"));
+  }
+
+  @Test
+  public void testReconcileOnlySendsWhatTheRosterLacks() throws Exception {
+    createUsers("alice", "bob");
+    createGroup("course-students", "alice", "bob");
+    groupManager.handleEvent(event(UPDATED, "course-students", "alice;bob"));
+    groupManager.getSync().flush();
+    int added = mailman.calls("/admin/course-students/members/add");
+
+    groupManager.getSync().reconcile();
+    assertEquals(added, mailman.calls("/admin/course-students/members/add"));
+    assertEquals(0, mailman.calls("/admin/course-students/members/remove"));
+
+    // unsubscribed in Mailman itself.
+    mailman.members("course-students").remove("bob@example.com");
+    groupManager.getSync().reconcile();
+    assertEquals(added + 1, mailman.calls("/admin/course-students/members/add"));
+    assertEquals(set("alice@example.com", "bob@example.com"),
+        mailman.members("course-students"));
+  }
+
+  private MailmanGroupManager activate() throws Exception {
+    MailmanGroupManager manager = new MailmanGroupManager(mailmanManager, repository);
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("mailman.listmanagement.password", "secret");
+    // flushed by hand.
+    props.put(MailmanGroupManager.SYNC_DELAY, 60000L);
+    props.put(MailmanGroupManager.SYNC_RECONCILE, 0L);
+    manager.activate(props);
+    return manager;
+  }
+
+  private String[] createUsers(int count, String prefix) throws Exception {
+    String[] ids = new String[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = prefix + i;
+    }
+    return createUsers(ids);
+  }
+
+  private String[] createUsers(String... ids) throws Exception {
+    for (String id : ids) {
+      authorizableManager.createUser(id, id, "test",
+          ImmutableMap.of("email", (Object) (id + "@example.com")));
+    }
+    return ids;
+  }
+
+  private void createGroup(String id, String... members) throws Exception {
+    authorizableManager.createGroup(id, id, null);
+    Group group = (Group) authorizableManager.findAuthorizable(id);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+
+  private Dictionary<String, Object> properties(String groupId) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, groupId);
+    properties.put("type", "group");
+    return properties;
+  }
+
+  private Event event(String topic, String groupId, String added, String... before) {
+    Dictionary<String, Object> properties = properties(groupId);
+    if (added != null) {
+      properties.put("added", added);
+    }
+    if (before.length > 0) {
+      properties.put(StoreListener.BEFORE_EVENT_PROPERTY,
+          ImmutableMap.of("members", (Object) before));
+    }
+    return new Event(topic, properties);
   }
 
-  private Group createDummyGroup(String groupName) throws RepositoryException {
-    Group group = createMock(Group.class);
-    expect(group.getID()).andReturn(groupName).anyTimes();
-    expect(group.isGroup()).andReturn(true).anyTimes();
-    return group;
+  private Set<String> set(String... values) {
+    return new TreeSet<String>(Arrays.asList(values));
   }
 
-  private User createDummyUser(String userName) throws RepositoryException {
-    User user = EasyMock.createNiceMock(User.class);
-    expect(user.getID()).andReturn(userName).anyTimes();
-    expect(user.isGroup()).andReturn(false).anyTimes();
-    return user;
+  /**
+   * Answers the roster and the mass subscription and removal pages of each list as
+   * Mailman does, and
+   * anything else with an empty page, counting the calls made to each page.
+   */
+  private static class StubMailman extends AbstractHandler {
+
+    private final Server server;
+    private final int port;
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, Set<String>> lists = new ConcurrentHashMap<String, Set<String>>();
+    private volatile boolean failing;
+
+    StubMailman() throws Exception {
+      server = new Server(0);
+      server.setHandler(this);
+      server.start();
+      port = server.getConnectors()[0].getLocalPort();
+    }
+
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException, ServletException {
+      String page = target.substring("/mailman".length());
+      AtomicInteger count = calls.get(page);
+      if (count == null) {
+        count = new AtomicInteger();
+        calls.put(page, count);
+      }
+      count.incrementAndGet();
+      ((Request) request).setHandled(true);
+      if (failing) {
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+      response.setContentType("text/html");
+      StringBuilder body = new StringBuilder("<html><body>");
+      String[] parts = page.split("/");
+      if (page.endsWith("/members/add")) {
+        Set<String> changed = members(parts[2]);
+        changed = change(changed, request.getParameter("subscribees_upload"), true);
+        body.append(list("Successfully subscribed:", changed));
+      } else if (page.endsWith("/members/remove")) {
+        Set<String> changed = members(parts[2]);
+        changed = change(changed, request.getParameter("unsubscribees_upload"), false);
+        body.append(list("Successfully Unsubscribed:", changed));
+      } else if (page.endsWith("/members")) {
+        for (String address : members(parts[2])) {
+          body.append("<input type=\"CHECKBOX\" name=\"").append(
+              URLEncoder.encode(address, "utf8")).append("_unsub\" value=\"off\">\n");
+        }
+      }
+      response.getWriter().print(body.append("</body></html>"));
+    }
+
+    private synchronized Set<String> change(Set<String> members, String upload,
+        boolean subscribe) {
+      Set<String> changed = new LinkedHashSet<String>();
+      for (String address : upload.split("\n")) {
+        if (address.length() > 0
+            && (subscribe ? members.add(address) : members.remove(address))) {
+          changed.add(address);
+        }
+      }
+      return changed;
+    }
+
+    private String list(String heading, Set<String> addresses) {
+      StringBuilder sb = new StringBuilder("<h5>").append(heading).append("</h5>\n<ul>\n");
+      for (String address : addresses) {
+        sb.append("<li>").append(address).append("\n");
+      }
+      return sb.append("</ul>").toString();
+    }
+
+    synchronized Set<String> members(String list) {
+      Set<String> members = lists.get(list);
+      if (members == null) {
+        members = new TreeSet<String>();
+        lists.put(list, members);
+      }
+      return members;
+    }
+
+    int calls(String page) {
+      AtomicInteger count = calls.get(page);
+      return count == null ? 0 : count.get();
+    }
+
+    int total() {
+      int total = 0;
+      for (AtomicInteger count : calls.values()) {
+        total += count.get();
+      }
+      return total;
+    }
+
+    void close() throws Exception {
+      server.stop();
+    }
   }
 }
@@ -18,6 +18,7 @@ import org.sakaiproject.nakamura.testutils.http.DummyServer;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 public class MailmanInterfaceTest extends AbstractEasyMockTest {
@@ -122,4 +123,37 @@ public class MailmanInterfaceTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testMassSubscribe() throws Exception {
+    dummyServer.setResponseBodyFromFile("useradded.html");
+    replay();
+    List<String> added = mailMan.addMembers("testlist", "testpassword",
+        Arrays.asList("user@example.com", "other@example.com"));
+    assertEquals("Expected only the subscribed address", Arrays.asList("user@example.com"), added);
+    assertEquals("POST", dummyServer.getRequest().getMethod());
+    assertTrue("Expected both addresses to be posted", dummyServer.getRequest().getRequestBody()
+        .contains("subscribees_upload=user%40example.com%0Aother%40example.com"));
+    verify();
+  }
+
+  @Test
+  public void testMassUnsubscribe() throws Exception {
+    dummyServer.setResponseBodyFromFile("userremoved.html");
+    replay();
+    List<String> removed = mailMan.removeMembers("testlist", "testpassword",
+        Arrays.asList("user@example.com"));
+    assertEquals("Expected the address to be unsubscribed", Arrays.asList("user@example.com"), removed);
+    verify();
+  }
+
+  @Test
+  public void testMassUnsubscribeFails() throws Exception {
+    dummyServer.setResponseBodyFromFile("usernotremoved.html");
+    replay();
+    List<String> removed = mailMan.removeMembers("testlist", "testpassword",
+        Arrays.asList("user@example.com"));
+    assertTrue("Expected no address to be unsubscribed", removed.isEmpty());
+    verify();
+  }
+
 }
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. The SF licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.sakaiproject.nakamura.api.persondirectory;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link PersonProvider} that can look up several people at once more cheaply than
+ * one at a time.
+ */
+public interface BatchPersonProvider extends PersonProvider {
+
+  /**
+   * Get a particular section of attributes for several people.
+   *
+   * @param parameters
+   *          The section nodes being accessed.
+   * @return The attributes found for each section node, as
+   *         {@link #getProfileSection(Content)} would return them.
+   */
+  Map<Content, Map<String, Object>> getProfileSections(Collection<Content> parameters)
+      throws PersonProviderException;
+}
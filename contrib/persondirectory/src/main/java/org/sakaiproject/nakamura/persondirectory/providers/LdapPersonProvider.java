@@ -1,11 +1,6 @@
 package org.sakaiproject.nakamura.persondirectory.providers;
 
-import com.novell.ldap.LDAPAttribute;
-import com.novell.ldap.LDAPAttributeSet;
-import com.novell.ldap.LDAPConnection;
-import com.novell.ldap.LDAPEntry;
 import com.novell.ldap.LDAPException;
-import com.novell.ldap.LDAPSearchResults;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -15,26 +10,33 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentException;
+import org.sakaiproject.nakamura.api.ldap.CachingLdapDirectory;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.ldap.LdapDirectoryEntry;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
+import org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
 
 /**
- * Person provider implementation that gets its information from an LDAP store.
+ * Person provider implementation that gets its information from an LDAP store. Entries
+ * are kept in a {@link CachingLdapDirectory} so that rendering a profile section does
+ * not search the directory every time.
  */
 @Component(metatype = true, configurationFactory = true, policy = ConfigurationPolicy.REQUIRE)
 @Service
-public class LdapPersonProvider implements PersonProvider {
+public class LdapPersonProvider implements BatchPersonProvider {
   private static final Logger LOG = LoggerFactory.getLogger(LdapPersonProvider.class);
 
   /** Constant for the sling resource type property name */
@@ -60,6 +62,20 @@ public class LdapPersonProvider implements PersonProvider {
   protected static final String PROP_ATTRIBUTES_MAP = "sakai.pd.ldap.attributes.map";
   private HashMap<String, String> attrsMap = new HashMap<String, String>();
 
+  static final long DEFAULT_CACHE_TTL = 300000L;
+  @Property(longValue = DEFAULT_CACHE_TTL)
+  protected static final String CACHE_TTL = "sakai.pd.ldap.cache.ttl";
+
+  static final long DEFAULT_CACHE_NEGATIVE_TTL = 60000L;
+  @Property(longValue = DEFAULT_CACHE_NEGATIVE_TTL)
+  protected static final String CACHE_NEGATIVE_TTL = "sakai.pd.ldap.cache.negativettl";
+
+  static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+  @Property(intValue = DEFAULT_CACHE_MAX_ENTRIES)
+  protected static final String CACHE_MAX_ENTRIES = "sakai.pd.ldap.cache.maxentries";
+
+  private CachingLdapDirectory directory;
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -105,10 +121,21 @@ public class LdapPersonProvider implements PersonProvider {
       attrsMap = new HashMap<String, String>();
     }
 
-    // create an attribute array for looking things up
-    Set<String> attrKeys = attrsMap.keySet();
-    String[] attrs = new String[attrKeys.size()];
-    attrKeys.toArray(attrs);
+    long ttl = OsgiUtil.toLong(props.get(CACHE_TTL), DEFAULT_CACHE_TTL);
+    long negativeTtl = OsgiUtil.toLong(props.get(CACHE_NEGATIVE_TTL),
+        DEFAULT_CACHE_NEGATIVE_TTL);
+    int maxEntries = OsgiUtil.toInteger(props.get(CACHE_MAX_ENTRIES),
+        DEFAULT_CACHE_MAX_ENTRIES);
+    String[] attributes = attrsMap.keySet().toArray(new String[attrsMap.size()]);
+    directory = new CachingLdapDirectory(connMgr, baseDn, filterPattern, attributes, ttl,
+        negativeTtl, maxEntries);
+  }
+
+  /**
+   * @return the cache of directory entries, exposing its hit and search counts.
+   */
+  protected CachingLdapDirectory getDirectory() {
+    return directory;
   }
 
   protected Map<String, String> getAttributesMap() {
@@ -118,48 +145,38 @@ public class LdapPersonProvider implements PersonProvider {
   public Map<String, Object> getProfileSection(Content parameters)
       throws PersonProviderException {
     try {
-      HashMap<String, Object> person = new HashMap<String, Object>();
-
       // get the user ID
       String uid = findUserId(parameters);
+      return toPerson(directory.lookup(uid));
+    } catch (LDAPException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    } catch (RepositoryException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    }
+  }
 
-      // set the properties
-      String filter = filterPattern.replace("{}", uid);
-
-      String[] attributes = attrsMap.keySet().toArray(new String[]{});
-
-      LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-          new Object[] { baseDn, filter, attributes });
-
-      // get a connection bound to the application user
-      LDAPConnection conn = connMgr.getBoundConnection(null, null);
-      LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-          filter, attributes, false);
-      if (searchResults.hasMore()) {
-        // pick off the first result returned
-        LDAPEntry entry = searchResults.next();
-
-        // get the attributes from the entry and loop through them
-        LDAPAttributeSet attrs = entry.getAttributeSet();
-        Iterator<?> attrIter = attrs.iterator();
-        while (attrIter.hasNext()) {
-          // get the key and values from the attribute
-          LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-          String name = attr.getName();
-          String[] vals = attr.getStringValueArray();
-
-          // check for an aliased name
-          String mappingName = attrsMap.get(name);
-
-          // add the values under the appropriate key
-          if (vals.length == 1) {
-            person.put(mappingName, vals[0]);
-          } else if (vals.length > 1) {
-            person.put(mappingName, vals);
-          }
-        }
+  /**
+   * {@inheritDoc}
+   *
+   * Users whose entries are not cached are looked up together.
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider#getProfileSections(java.util.Collection)
+   */
+  public Map<Content, Map<String, Object>> getProfileSections(
+      Collection<Content> parameters) throws PersonProviderException {
+    try {
+      Map<Content, String> uids = new LinkedHashMap<Content, String>();
+      for (Content content : parameters) {
+        uids.put(content, findUserId(content));
+      }
+      List<String> keys = new ArrayList<String>(uids.values());
+      Map<String, LdapDirectoryEntry> entries = directory.lookupAll(keys);
+
+      Map<Content, Map<String, Object>> people = new LinkedHashMap<Content, Map<String, Object>>();
+      for (Entry<Content, String> uid : uids.entrySet()) {
+        people.put(uid.getKey(), toPerson(entries.get(uid.getValue())));
       }
-      return person;
+      return people;
     } catch (LDAPException e) {
       throw new PersonProviderException(e.getMessage(), e);
     } catch (RepositoryException e) {
@@ -167,6 +184,26 @@ public class LdapPersonProvider implements PersonProvider {
     }
   }
 
+  private Map<String, Object> toPerson(LdapDirectoryEntry entry) {
+    HashMap<String, Object> person = new HashMap<String, Object>();
+    if (entry != null) {
+      for (Entry<String, String[]> attr : entry.getAttributes().entrySet()) {
+        String[] vals = attr.getValue();
+
+        // check for an aliased name
+        String mappingName = attrsMap.get(attr.getKey());
+
+        // add the values under the appropriate key
+        if (vals.length == 1) {
+          person.put(mappingName, vals[0]);
+        } else if (vals.length > 1) {
+          person.put(mappingName, vals);
+        }
+      }
+    }
+    return person;
+  }
+
   private String findUserId(Content content) throws RepositoryException, PersonProviderException {
     if (content.hasProperty(SLING_RESOURCE_TYPE)
         && SAKAI_USER_PROFILE.equals((String) content.getProperty(SLING_RESOURCE_TYPE))
@@ -23,15 +23,18 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.util.ImmediateFuture;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.Future;
 
 /**
@@ -58,6 +61,25 @@ public class PersonProfileProviderAdapter implements ProfileProvider {
 
     Map<Content, Future<Map<String, Object>>> resultMap = new HashMap<Content, Future<Map<String, Object>>>();
 
+    if (list.size() > 1 && personProvider instanceof BatchPersonProvider) {
+      List<Content> nodes = new ArrayList<Content>();
+      for (ProviderSettings s : list) {
+        nodes.add(s.getNode());
+      }
+      try {
+        Map<Content, Map<String, Object>> profiles = ((BatchPersonProvider) personProvider)
+            .getProfileSections(nodes);
+        for (Entry<Content, Map<String, Object>> profile : profiles.entrySet()) {
+          resultMap.put(profile.getKey(), new ImmediateFuture<Map<String, Object>>(
+              profile.getValue()));
+        }
+        return resultMap;
+      } catch (PersonProviderException e) {
+        // fall back to looking each section up so that errors are reported per section.
+        resultMap.clear();
+      }
+    }
+
     for (ProviderSettings s : list) {
       Content c = s.getNode();
       try {
@@ -46,6 +46,7 @@ import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -130,6 +131,33 @@ public class LdapPersonProviderTest {
     assertTrue(hasUser && hasLuser);
   }
 
+  @Test
+  public void testGetProfileSectionIsCached() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap);
+    provider.getProfileSection(hasAllProperties(content, "tUser"));
+    Map<String, Object> person = provider.getProfileSection(hasAllProperties(content,
+        "tUser"));
+
+    assertEquals("Tester", person.get("called"));
+    assertEquals(1, provider.getDirectory().getSearchCount());
+    assertEquals(1, provider.getDirectory().getHitCount());
+  }
+
+  @Test
+  public void testGetProfileSections() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap);
+    Content one = hasAllProperties(new Content("/one", null), "tUser");
+    Content other = hasAllProperties(new Content("/other", null), "tUser");
+    Map<Content, Map<String, Object>> people = provider.getProfileSections(Arrays
+        .asList(one, other));
+
+    assertEquals(2, people.size());
+    assertEquals("Tester", people.get(other).get("called"));
+    assertEquals(1, provider.getDirectory().getSearchCount());
+  }
+
   @Test
   public void testProfileSectionNotFound() throws Exception {
     String[] attrMap = new String[] { "firstname => called", "lastname" };
@@ -1,6 +1,10 @@
 package org.sakaiproject.nakamura.persondirectory.providers;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.Test;
@@ -9,6 +13,7 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
@@ -49,6 +54,35 @@ public class PersonProfileProviderAdapterTest {
     assertEquals(profileSection, fut.get());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testGetProvidedMapBatches() throws Exception {
+    BatchPersonProvider batchProvider = mock(BatchPersonProvider.class);
+    PersonProfileProviderAdapter pppa = new PersonProfileProviderAdapter();
+    pppa.personProvider = batchProvider;
+
+    Content c1 = new Content("/one", null);
+    Content c2 = new Content("/two", null);
+    ProviderSettings ps2 = mock(ProviderSettings.class);
+    when(ps1.getNode()).thenReturn(c1);
+    when(ps2.getNode()).thenReturn(c2);
+    ArrayList<ProviderSettings> list = new ArrayList<ProviderSettings>();
+    list.add(ps1);
+    list.add(ps2);
+
+    Map<String, Object> profileSection = new HashMap<String, Object>();
+    profileSection.put("foo", "bar");
+    Map<Content, Map<String, Object>> sections = new HashMap<Content, Map<String, Object>>();
+    sections.put(c1, profileSection);
+    sections.put(c2, profileSection);
+    when(batchProvider.getProfileSections(anyCollectionOf(Content.class))).thenReturn(
+        sections);
+
+    Map<Content, Future<Map<String, Object>>> result = (Map<Content, Future<Map<String, Object>>>) pppa.getProvidedMap(list);
+    assertEquals(profileSection, result.get(c2).get());
+    verify(batchProvider, never()).getProfileSection(c1);
+  }
+
   @Test
   public void testGetProvidedMapHandlesException() throws PersonProviderException,
       InterruptedException, ExecutionException {
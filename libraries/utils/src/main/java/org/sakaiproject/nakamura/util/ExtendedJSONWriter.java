@@ -158,6 +158,10 @@ public class ExtendedJSONWriter extends JSONWriter {
 
   public static void writeNodeContentsToWriter(JSONWriter write, Content content)
       throws JSONException {
+    if (write instanceof StreamingJSONWriter) {
+      ((StreamingJSONWriter) write).contentProperties(content);
+      return;
+    }
     // Since removal of bigstore we add in jcr:path and jcr:name
     write.key("jcr:path");
     write.value(PathUtils.translateAuthorizablePath(content.getPath()));
@@ -217,7 +221,7 @@ public class ExtendedJSONWriter extends JSONWriter {
     }
   }
 
-  private static boolean isUserPath(String name, Object value) {
+  static boolean isUserPath(String name, Object value) {
     if ("jcr:path".equals(name) || "path".equals(name) || "userProfilePath".equals(name)) {
       String s = String.valueOf(value);
       if (s != null && s.length() > 4) {
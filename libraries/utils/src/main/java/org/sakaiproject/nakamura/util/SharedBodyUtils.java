@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content whose body is shared with other content that has the same body. Such content
+ * has no body of its own, but the path of the content that holds the body in
+ * {@link #SHARED_BODY_PROPERTY}. Anything that reads the default body of content that
+ * may be shared should read it through here.
+ * <p>
+ * Shared bodies are kept under {@link #SHARED_BODIES_PATH}, which only the administrator
+ * can read, so they are read with an administrative session once the caller has been
+ * found to be able to read the content. A pointer anywhere else is ignored, and the
+ * content is taken to have a body of its own.
+ */
+public class SharedBodyUtils {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedBodyUtils.class);
+
+  /**
+   * The path of the content holding the body, when the body is shared. Only the shared
+   * body store sets it; it is ignored when posted, imported or created in a tree.
+   */
+  public static final String SHARED_BODY_PROPERTY = "sakai:shared-body";
+
+  /**
+   * The content under which shared bodies are kept.
+   */
+  public static final String SHARED_BODIES_PATH = "var/pool/bodies";
+
+  /**
+   * When the body of the content was last written, which for a shared body is when the
+   * content holding it was.
+   */
+  public static final String BODY_LAST_MODIFIED_FIELD = "_bodyLastModified";
+
+  /**
+   * @return true if the body of the content is shared.
+   */
+  public static boolean isShared(Content content) {
+    return isSharedBodyPath(content.getProperty(SHARED_BODY_PROPERTY));
+  }
+
+  /**
+   * @return true if the path is that of a shared body, directly under
+   *         {@link #SHARED_BODIES_PATH}.
+   */
+  public static boolean isSharedBodyPath(Object path) {
+    if (!(path instanceof String)) {
+      return false;
+    }
+    String s = (String) path;
+    if (!s.startsWith(SHARED_BODIES_PATH + "/")) {
+      return false;
+    }
+    String name = s.substring(SHARED_BODIES_PATH.length() + 1);
+    return name.length() > 0 && name.indexOf('/') < 0 && !".".equals(name)
+        && !"..".equals(name);
+  }
+
+  /**
+   * @return the path of the content holding the body of the content, which is the
+   *         content's own path unless its body is shared.
+   */
+  public static String getBodyPath(Content content) {
+    if (isShared(content)) {
+      return (String) content.getProperty(SHARED_BODY_PROPERTY);
+    }
+    return content.getPath();
+  }
+
+  /**
+   * Points content at a shared body, with the length and the time of the body on the
+   * content itself, as content with a body of its own has them.
+   *
+   * @param body
+   *          the content holding the body, as read by the administrator.
+   */
+  public static void setSharedBody(Content content, Content body) {
+    content.setProperty(SHARED_BODY_PROPERTY, body.getPath());
+    Object length = body.getProperty(Content.LENGTH_FIELD);
+    if (length != null) {
+      content.setProperty(Content.LENGTH_FIELD, length);
+    }
+    Object lastModified = body.getProperty(BODY_LAST_MODIFIED_FIELD);
+    if (lastModified == null) {
+      lastModified = body.getProperty(Content.LASTMODIFIED_FIELD);
+    }
+    if (lastModified != null) {
+      content.setProperty(BODY_LAST_MODIFIED_FIELD, lastModified);
+    }
+  }
+
+  /**
+   * @param session
+   *          the session of the caller, which must be able to read the content.
+   * @param repository
+   *          the repository to read a shared body from as the administrator.
+   * @return the content holding the body of the content, with the length and type of the
+   *         body, or null if it does not exist.
+   * @throws IllegalArgumentException
+   *           if the body is shared and there is no repository to read it from.
+   */
+  public static Content getBodyContent(Session session, Repository repository,
+      Content content) throws StorageClientException, AccessDeniedException {
+    if (!isShared(content)) {
+      return content;
+    }
+    Session adminSession = loginToRead(session, repository, content);
+    try {
+      return adminSession.getContentManager().get(getBodyPath(content));
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * @param session
+   *          the session of the caller, which must be able to read the content.
+   * @param repository
+   *          the repository to read a shared body from as the administrator.
+   * @return the body of the content, or null if it has none. A shared body holds an
+   *         administrative session until it is closed.
+   * @throws IllegalArgumentException
+   *           if the body is shared and there is no repository to read it from.
+   */
+  public static InputStream getInputStream(Session session, Repository repository,
+      Content content) throws StorageClientException, AccessDeniedException, IOException {
+    if (!isShared(content)) {
+      return session.getContentManager().getInputStream(content.getPath());
+    }
+    final Session adminSession = loginToRead(session, repository, content);
+    InputStream in = null;
+    try {
+      in = adminSession.getContentManager().getInputStream(getBodyPath(content));
+    } finally {
+      if (in == null) {
+        logout(adminSession);
+      }
+    }
+    if (in == null) {
+      return null;
+    }
+    return new FilterInputStream(in) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          if (!closed) {
+            closed = true;
+            logout(adminSession);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * @return true if the content has a body, of its own or shared.
+   * @throws IllegalArgumentException
+   *           if the body is shared and there is no repository to read it from.
+   */
+  public static boolean hasBody(Session session, Repository repository, Content content)
+      throws StorageClientException, AccessDeniedException {
+    if (!isShared(content)) {
+      return session.getContentManager().hasBody(content.getPath(), null);
+    }
+    Session adminSession = loginToRead(session, repository, content);
+    try {
+      return adminSession.getContentManager().hasBody(getBodyPath(content), null);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * @return an administrative session to read the shared body of content the session can
+   *         read.
+   */
+  private static Session loginToRead(Session session, Repository repository,
+      Content content) throws StorageClientException, AccessDeniedException {
+    if (repository == null) {
+      throw new IllegalArgumentException("The shared body of " + content.getPath()
+          + " can only be read as the administrator, and there is no repository to do so");
+    }
+    session.getAccessControlManager().check(Security.ZONE_CONTENT, content.getPath(),
+        Permissions.CAN_READ);
+    return repository.loginAdministrative();
+  }
+
+  private static void logout(Session adminSession) {
+    try {
+      adminSession.logout();
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
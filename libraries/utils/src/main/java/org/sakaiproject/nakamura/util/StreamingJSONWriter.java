@@ -0,0 +1,622 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link ExtendedJSONWriter} that encodes what it writes as UTF-8 straight into a
+ * buffer of its own, and writes that to a stream as it fills. What is written is byte
+ * for byte what an {@link ExtendedJSONWriter} would write to a writer encoding UTF-8,
+ * tidy or not.
+ * <p>
+ * Strings and numbers are encoded as they are written rather than quoted into strings of
+ * their own first, property names are quoted once and kept, and the properties of
+ * {@link Content} are written without going through
+ * {@link ExtendedJSONWriter#value(Object)}. Nothing is written to the stream until the
+ * buffer is full, so {@link #flush()} must be called once done.
+ */
+public class StreamingJSONWriter extends ExtendedJSONWriter {
+
+  private static final int MAX_DEPTH = 50;
+  private static final int BUFFER_SIZE = 8192;
+  /**
+   * Property names longer than this are quoted each time they are written.
+   */
+  private static final int MAX_CACHED_KEY_LENGTH = 64;
+  /**
+   * Once this many property names have been quoted, others are quoted each time they are
+   * written.
+   */
+  private static final int MAX_CACHED_KEYS = 4096;
+  private static final ConcurrentHashMap<String, byte[]> QUOTED_KEYS = new ConcurrentHashMap<String, byte[]>();
+  private static final byte[][] INDENTS = new byte[MAX_DEPTH][];
+  private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+  private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+  private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+      'a', 'b', 'c', 'd', 'e', 'f' };
+
+  static {
+    for (int i = 0; i < INDENTS.length; i++) {
+      INDENTS[i] = new byte[i * 2];
+      for (int j = 0; j < INDENTS[i].length; j++) {
+        INDENTS[i][j] = ' ';
+      }
+    }
+  }
+
+  private final Utf8Writer out;
+  private final char[] stack = new char[MAX_DEPTH];
+  private int top;
+  private boolean comma;
+  private boolean tidy;
+
+  /**
+   * @param out
+   *          the stream to write to, such as that of a response whose character encoding
+   *          is UTF-8.
+   */
+  public StreamingJSONWriter(OutputStream out) {
+    this(new Utf8Writer(out));
+  }
+
+  private StreamingJSONWriter(Utf8Writer out) {
+    super(out);
+    this.out = out;
+  }
+
+  /**
+   * Writes out whatever is buffered, and flushes the stream.
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void setTidy(boolean tidy) {
+    super.setTidy(tidy);
+    this.tidy = tidy;
+  }
+
+  @Override
+  public JSONWriter array() throws JSONException {
+    if (mode == 'i' || mode == 'o' || mode == 'a') {
+      push('a');
+      beginValue(true);
+      ascii('[');
+      endValue();
+      comma = false;
+      return this;
+    }
+    throw new JSONException("Misplaced array.");
+  }
+
+  @Override
+  public JSONWriter endArray() throws JSONException {
+    return end('a', ']');
+  }
+
+  @Override
+  public JSONWriter object() throws JSONException {
+    if (mode == 'i') {
+      mode = 'o';
+    }
+    if (mode == 'o' || mode == 'a') {
+      beginValue(true);
+      ascii('{');
+      endValue();
+      push('k');
+      comma = false;
+      return this;
+    }
+    throw new JSONException("Misplaced object.");
+  }
+
+  @Override
+  public JSONWriter endObject() throws JSONException {
+    return end('k', '}');
+  }
+
+  @Override
+  public JSONWriter key(String key) throws JSONException {
+    if (key == null) {
+      throw new JSONException("Null key.");
+    }
+    if (mode != 'k') {
+      throw new JSONException("Misplaced key.");
+    }
+    try {
+      if (comma) {
+        out.ascii(',');
+      }
+      if (tidy) {
+        indent();
+      }
+      out.bytes(quoteKey(key));
+      out.ascii(':');
+      if (tidy) {
+        out.ascii(' ');
+      }
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    comma = false;
+    mode = 'o';
+    return this;
+  }
+
+  @Override
+  public JSONWriter value(boolean b) throws JSONException {
+    beginValue(false);
+    try {
+      out.bytes(b ? TRUE : FALSE);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return endValue();
+  }
+
+  @Override
+  public JSONWriter value(double d) throws JSONException {
+    return value(Double.valueOf(d));
+  }
+
+  @Override
+  public JSONWriter value(long l) throws JSONException {
+    beginValue(false);
+    try {
+      out.number(l);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return endValue();
+  }
+
+  @Override
+  public JSONWriter value(Object object) throws JSONException {
+    if (object instanceof Object[]) {
+      Object[] oarray = (Object[]) object;
+      if (oarray.length == 1) {
+        value(oarray[0]);
+      } else if (oarray.length > 1) {
+        array();
+        for (Object o : oarray) {
+          value(o);
+        }
+        endArray();
+      }
+      return this;
+    }
+    if (object instanceof String) {
+      beginValue(false);
+      try {
+        out.quoted((String) object);
+      } catch (IOException e) {
+        throw new JSONException(e);
+      }
+      return endValue();
+    }
+    if (object instanceof Integer || object instanceof Long || object instanceof Short
+        || object instanceof Byte) {
+      return value(((Number) object).longValue());
+    }
+    if (object instanceof Boolean) {
+      return value(((Boolean) object).booleanValue());
+    }
+    String s = JSONObject.valueToString(object);
+    beginValue(false);
+    try {
+      out.write(s);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return endValue();
+  }
+
+  /**
+   * Writes the properties of content as
+   * {@link ExtendedJSONWriter#writeNodeContentsToWriter(JSONWriter, Content)} does.
+   */
+  void contentProperties(Content content) throws JSONException {
+    String path = content.getPath();
+    key("jcr:path");
+    value(PathUtils.translateAuthorizablePath(path));
+    key("jcr:name");
+    value(StorageClientUtils.getObjectName(path));
+
+    Map<String, Object> props = content.getProperties();
+    for (Entry<String, Object> prop : props.entrySet()) {
+      String propName = prop.getKey();
+      Object propValue = prop.getValue();
+
+      if ("_path".equals(propName)) {
+        continue;
+      }
+
+      key(propName);
+      if (propValue instanceof Object[]) {
+        array();
+        for (Object value : (Object[]) propValue) {
+          contentValue(propName, value);
+        }
+        endArray();
+      } else if (propValue instanceof Calendar) {
+        beginValue(false);
+        try {
+          out.iso8601((Calendar) propValue);
+        } catch (IOException e) {
+          throw new JSONException(e);
+        }
+        endValue();
+      } else {
+        contentValue(propName, propValue);
+      }
+    }
+  }
+
+  private void contentValue(String propName, Object value) throws JSONException {
+    if (isUserPath(propName, value)) {
+      value(PathUtils.translateAuthorizablePath(value));
+    } else {
+      value(value);
+    }
+  }
+
+  private void beginValue(boolean container) throws JSONException {
+    if (mode != 'o' && mode != 'a') {
+      throw new JSONException("Value out of sequence.");
+    }
+    try {
+      if (comma && mode == 'a') {
+        out.ascii(',');
+      }
+      if (tidy && mode == 'a' && !container) {
+        indent();
+      }
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+  }
+
+  private JSONWriter endValue() {
+    if (mode == 'o') {
+      mode = 'k';
+    }
+    comma = true;
+    return this;
+  }
+
+  private JSONWriter end(char m, char c) throws JSONException {
+    if (mode != m) {
+      throw new JSONException(m == 'a' ? "Misplaced endArray." : "Misplaced endObject.");
+    }
+    pop(m);
+    try {
+      if (tidy) {
+        indent();
+      }
+      out.ascii(c);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    comma = true;
+    return this;
+  }
+
+  private void push(char c) throws JSONException {
+    if (top >= MAX_DEPTH) {
+      throw new JSONException("Nesting too deep (maximum is " + MAX_DEPTH + " levels)");
+    }
+    stack[top] = c;
+    mode = c;
+    top++;
+  }
+
+  private void pop(char c) throws JSONException {
+    if (top <= 0 || stack[top - 1] != c) {
+      throw new JSONException("Nesting error.");
+    }
+    top--;
+    mode = top == 0 ? 'd' : stack[top - 1];
+  }
+
+  private void ascii(char c) throws JSONException {
+    try {
+      out.ascii(c);
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+  }
+
+  private void indent() throws IOException {
+    out.ascii('\n');
+    out.bytes(INDENTS[top]);
+  }
+
+  /**
+   * @return the key quoted, as UTF-8.
+   */
+  private static byte[] quoteKey(String key) throws JSONException {
+    byte[] quoted = QUOTED_KEYS.get(key);
+    if (quoted == null) {
+      try {
+        quoted = JSONObject.quote(key).getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new JSONException(e);
+      }
+      if (key.length() <= MAX_CACHED_KEY_LENGTH && QUOTED_KEYS.size() < MAX_CACHED_KEYS) {
+        QUOTED_KEYS.putIfAbsent(key, quoted);
+      }
+    }
+    return quoted;
+  }
+
+  /**
+   * Encodes characters as UTF-8 into a buffer, which is written to a stream as it fills.
+   * Surrogates that are not in pairs are encoded as '?', as the encoders of the JVM do.
+   */
+  private static class Utf8Writer extends Writer {
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[20];
+    private int count;
+    /**
+     * A high surrogate whose low surrogate has not been written yet, or 0.
+     */
+    private char high;
+
+    Utf8Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        encode(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        encode(str.charAt(i));
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      drain();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      out.close();
+    }
+
+    /**
+     * Writes a string quoted as {@link JSONObject#quote(String)} does.
+     */
+    void quoted(String s) throws IOException {
+      ascii('"');
+      char c = 0;
+      for (int i = 0, len = s.length(); i < len; i++) {
+        char b = c;
+        c = s.charAt(i);
+        switch (c) {
+        case '"':
+        case '\\':
+          ascii('\\');
+          ascii(c);
+          break;
+        case '/':
+          if (b == '<') {
+            ascii('\\');
+          }
+          ascii(c);
+          break;
+        case '\b':
+          escape('b');
+          break;
+        case '\t':
+          escape('t');
+          break;
+        case '\n':
+          escape('n');
+          break;
+        case '\f':
+          escape('f');
+          break;
+        case '\r':
+          escape('r');
+          break;
+        default:
+          if (c < ' ') {
+            escape('u');
+            ascii('0');
+            ascii('0');
+            ascii(HEX[c >> 4]);
+            ascii(HEX[c & 0xf]);
+          } else {
+            encode(c);
+          }
+        }
+      }
+      ascii('"');
+    }
+
+    /**
+     * Writes a number as {@link Long#toString(long)} does.
+     */
+    void number(long l) throws IOException {
+      if (l == Long.MIN_VALUE) {
+        write(Long.toString(l));
+        return;
+      }
+      if (l < 0) {
+        ascii('-');
+        l = -l;
+      }
+      int i = digits.length;
+      do {
+        digits[--i] = (byte) ('0' + (l % 10));
+        l /= 10;
+      } while (l != 0);
+      bytes(digits, i, digits.length - i);
+    }
+
+    /**
+     * Writes a date quoted as {@link DateUtils#iso8601(Calendar)} formats it, in the time
+     * zone of the calendar.
+     */
+    void iso8601(Calendar c) throws IOException {
+      ascii('"');
+      padded(c.get(Calendar.YEAR), 4);
+      ascii('-');
+      padded(c.get(Calendar.MONTH) + 1, 2);
+      ascii('-');
+      padded(c.get(Calendar.DAY_OF_MONTH), 2);
+      ascii('T');
+      padded(c.get(Calendar.HOUR_OF_DAY), 2);
+      ascii(':');
+      padded(c.get(Calendar.MINUTE), 2);
+      ascii(':');
+      padded(c.get(Calendar.SECOND), 2);
+      int offset = c.get(Calendar.ZONE_OFFSET) + c.get(Calendar.DST_OFFSET);
+      if (offset < 0) {
+        ascii('-');
+        offset = -offset;
+      } else {
+        ascii('+');
+      }
+      int hours = offset / (60 * 60 * 1000);
+      padded(hours, 2);
+      ascii(':');
+      padded(offset / (60 * 1000) - 60 * hours, 2);
+      ascii('"');
+    }
+
+    private void padded(int value, int width) throws IOException {
+      int start = digits.length;
+      do {
+        digits[--start] = (byte) ('0' + (value % 10));
+        value /= 10;
+      } while (value != 0);
+      for (int i = digits.length - start; i < width; i++) {
+        ascii('0');
+      }
+      bytes(digits, start, digits.length - start);
+    }
+
+    private void escape(char c) throws IOException {
+      ascii('\\');
+      ascii(c);
+    }
+
+    void ascii(int b) throws IOException {
+      if (high != 0) {
+        high = 0;
+        put('?');
+      }
+      put(b);
+    }
+
+    void bytes(byte[] b) throws IOException {
+      bytes(b, 0, b.length);
+    }
+
+    private void bytes(byte[] b, int off, int len) throws IOException {
+      if (high != 0) {
+        high = 0;
+        put('?');
+      }
+      if (len > buffer.length - count) {
+        drain();
+        if (len > buffer.length) {
+          out.write(b, off, len);
+          return;
+        }
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    private void encode(char c) throws IOException {
+      if (high != 0) {
+        char h = high;
+        high = 0;
+        if (Character.isLowSurrogate(c)) {
+          int cp = Character.toCodePoint(h, c);
+          put(0xf0 | (cp >> 18));
+          put(0x80 | ((cp >> 12) & 0x3f));
+          put(0x80 | ((cp >> 6) & 0x3f));
+          put(0x80 | (cp & 0x3f));
+          return;
+        }
+        put('?');
+      }
+      if (c < 0x80) {
+        put(c);
+      } else if (c < 0x800) {
+        put(0xc0 | (c >> 6));
+        put(0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)) {
+        high = c;
+      } else if (Character.isLowSurrogate(c)) {
+        put('?');
+      } else {
+        put(0xe0 | (c >> 12));
+        put(0x80 | ((c >> 6) & 0x3f));
+        put(0x80 | (c & 0x3f));
+      }
+    }
+
+    private void put(int b) throws IOException {
+      if (count == buffer.length) {
+        drain();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+      if (count > 0) {
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+  }
+}
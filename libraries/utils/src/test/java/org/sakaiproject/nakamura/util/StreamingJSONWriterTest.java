@@ -0,0 +1,425 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Assume;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Checks that a {@link StreamingJSONWriter} writes exactly what an
+ * {@link ExtendedJSONWriter} writes through a writer encoding UTF-8.
+ */
+public class StreamingJSONWriterTest {
+
+  private interface Script {
+    void write(JSONWriter writer) throws Exception;
+  }
+
+  @Test
+  public void testScalars() throws Exception {
+    assertSame(new Script() {
+      public void write(JSONWriter w) throws Exception {
+        w.array();
+        w.value(true);
+        w.value(false);
+        w.value(0);
+        w.value(-1);
+        w.value(Long.MAX_VALUE);
+        w.value(Long.MIN_VALUE);
+        w.value(1.5);
+        w.value(2.0);
+        w.value(1e21);
+        w.value((Object) Integer.valueOf(42));
+        w.value((Object) Short.valueOf((short) -7));
+        w.value((Object) Float.valueOf(0.25f));
+        w.value(new BigDecimal("10.500"));
+        w.value((Object) Boolean.TRUE);
+        w.value(null);
+        w.value(JSONObject.NULL);
+        w.value(new StringBuilder("not a string"));
+        w.value(new JSONObject("{\"a\":\"\u00e9\"}"));
+        w.value(new JSONArray("[1,\"two\"]"));
+        w.endArray();
+      }
+    });
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    final String[] strings = { "", "plain", "\"quoted\" and \\back\\slashed",
+        "</script> and a/b", "\b\t\n\f\r", "\u0000\u0001\u001f", "caf\u00e9 \u00ff",
+        "\u4e2d\u6587", "\ud83d\ude00 pair", "lone \ud83d high", "lone \ude00 low",
+        "ends high \ud83d", "\ud83d\"" };
+    assertSame(new Script() {
+      public void write(JSONWriter w) throws Exception {
+        w.object();
+        for (int i = 0; i < strings.length; i++) {
+          w.key(strings[i]);
+          w.value(strings[i]);
+        }
+        w.endObject();
+      }
+    });
+  }
+
+  @Test
+  public void testEscapingEveryCharacter() throws Exception {
+    // every UTF-16 unit, in keys short enough to be cached and too long to be, and in
+    // values, with '<' before each so that "</" turns up wherever '/' does.
+    final List<String> strings = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+      sb.append('<').append((char) c);
+      int length = strings.size() % 2 == 0 ? 32 : 200;
+      if (sb.length() == length || c == Character.MAX_VALUE) {
+        strings.add(sb.toString());
+        sb.setLength(0);
+      }
+    }
+    assertSame(new Script() {
+      public void write(JSONWriter w) throws Exception {
+        w.object();
+        for (int i = 0; i < strings.size(); i++) {
+          w.key(i + strings.get(i));
+          w.value(strings.get(i));
+        }
+        w.endObject();
+      }
+    });
+  }
+
+  @Test
+  public void testEscapingAcrossTheBuffer() throws Exception {
+    // "</", a surrogate pair and an escape split where the buffer fills up.
+    final String[] tails = { "</script>", new String(Character.toChars(0x1f600)),
+        "\"\\\n\u0001" };
+    for (final String tail : tails) {
+      for (int pad = 8170; pad < 8200; pad++) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pad; i++) {
+          sb.append('a');
+        }
+        final String value = sb.append(tail).toString();
+        assertSame(new Script() {
+          public void write(JSONWriter w) throws Exception {
+            w.object();
+            w.key(tail);
+            w.value(value);
+            w.endObject();
+          }
+        });
+      }
+    }
+  }
+
+  @Test
+  public void testTidyNesting() throws Exception {
+    for (final boolean tidy : new boolean[] { false, true }) {
+      assertSame(new Script() {
+        public void write(JSONWriter w) throws Exception {
+          w.setTidy(tidy);
+          w.object();
+          w.key("empty object");
+          w.object();
+          w.endObject();
+          w.key("empty array");
+          w.array();
+          w.endArray();
+          w.key("items");
+          w.array();
+          w.object();
+          w.key("a");
+          w.value(1);
+          w.endObject();
+          w.array();
+          w.value("x");
+          w.array();
+          w.endArray();
+          w.endArray();
+          w.value("y");
+          w.endArray();
+          w.endObject();
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testValueMaps() throws Exception {
+    final Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("none", new Object[0]);
+    map.put("one", new Object[] { "only" });
+    map.put("many", new Object[] { "a", 2, new Object[] { "nested" } });
+    map.put("single", Arrays.asList("s"));
+    map.put("list", Arrays.asList("a", "b", 3));
+    Map<String, Object> child = new LinkedHashMap<String, Object>();
+    child.put("name", "child");
+    child.put("values", new String[] { "v1", "v2" });
+    map.put("child", child);
+    for (final boolean tidy : new boolean[] { false, true }) {
+      assertSame(new Script() {
+        public void write(JSONWriter w) throws Exception {
+          w.setTidy(tidy);
+          w.array();
+          ExtendedJSONWriter.writeValueMap(w, map);
+          ((ExtendedJSONWriter) w).valueMap(map);
+          w.value(new Object[0]);
+          w.value(new Object[] { "one" });
+          w.value(new Object[] { "one", "two" });
+          w.endArray();
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testContent() throws Exception {
+    String[] zones = { "UTC", "Europe/London", "America/St_Johns", "Asia/Kolkata",
+        "Asia/Kathmandu", "Pacific/Chatham", "America/Los_Angeles" };
+    final List<Content> contents = new ArrayList<Content>();
+    for (String zone : zones) {
+      Calendar winter = new GregorianCalendar(TimeZone.getTimeZone(zone));
+      winter.setTimeInMillis(1294000000000L);
+      Calendar summer = new GregorianCalendar(TimeZone.getTimeZone(zone));
+      summer.setTimeInMillis(1309000000000L);
+      Calendar early = new GregorianCalendar(TimeZone.getTimeZone(zone));
+      early.set(5, Calendar.MARCH, 1, 0, 0, 0);
+      Map<String, Object> props = new HashMap<String, Object>();
+      props.put("_path", "a:alice/files/" + zone);
+      props.put("winter", winter);
+      props.put("summer", summer);
+      props.put("early", early);
+      props.put("title", "Caf\u00e9 </script>");
+      props.put("tags", new String[] { "one", "two" });
+      props.put("single", new String[] { "one" });
+      props.put("size", 1024L);
+      props.put("public", true);
+      props.put("path", "/_user/a/al/alice/public/authprofile");
+      props.put("userProfilePath", new String[] { "/_group/g/gr/group" });
+      contents.add(new Content("a:alice/files/" + zone, props));
+    }
+    for (final boolean tidy : new boolean[] { false, true }) {
+      assertSame(new Script() {
+        public void write(JSONWriter w) throws Exception {
+          w.setTidy(tidy);
+          w.array();
+          for (Content content : contents) {
+            w.object();
+            ExtendedJSONWriter.writeNodeContentsToWriter(w, content);
+            w.endObject();
+          }
+          w.endArray();
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testLargerThanBuffer() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append("\u00e9\u4e2d\ud83d\ude00a\"");
+    }
+    final String big = sb.toString();
+    assertSame(new Script() {
+      public void write(JSONWriter w) throws Exception {
+        w.array();
+        for (int i = 0; i < 3000; i++) {
+          w.value("item " + i);
+        }
+        w.value(big);
+        w.endArray();
+      }
+    });
+  }
+
+  @Test
+  public void testOutOfSequence() throws Exception {
+    StreamingJSONWriter w = new StreamingJSONWriter(new ByteArrayOutputStream());
+    try {
+      w.key("a");
+      fail("A key outside an object should not be written");
+    } catch (JSONException e) {
+      // expected
+    }
+    w.object();
+    try {
+      w.value("a");
+      fail("A value without a key should not be written");
+    } catch (JSONException e) {
+      // expected
+    }
+    try {
+      w.endArray();
+      fail("An object should not be ended as an array");
+    } catch (JSONException e) {
+      // expected
+    }
+    try {
+      w.key(null);
+      fail("A null key should not be written");
+    } catch (JSONException e) {
+      // expected
+    }
+    w.endObject();
+    try {
+      w.value(1);
+      fail("Nothing should be written after the end");
+    } catch (JSONException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Writes search results made of content with a typical set of properties, repeatedly,
+   * with each writer, and prints the throughput and the bytes allocated per result. Run
+   * with -Dsakai.benchmark=true.
+   */
+  @Test
+  public void benchmarkSearchResults() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("sakai.benchmark"));
+    final List<Content> results = new ArrayList<Content>();
+    for (int i = 0; i < 1000; i++) {
+      Map<String, Object> props = new HashMap<String, Object>();
+      props.put("_path", "p/" + i);
+      props.put("sakai:pooled-content-file-name", "Lecture notes " + i + ".pdf");
+      props.put("sakai:description", "Notes for the lecture on \"streams\", week " + i);
+      props.put("sakai:pool-content-created-for", "user" + i);
+      props.put("sakai:permissions", "public");
+      props.put("sakai:copyright", "creativecommons");
+      props.put("sakai:tags", new String[] { "lecture", "notes", "week" + (i % 12) });
+      props.put("sakai:pooled-content-manager", new String[] { "user" + i });
+      props.put("sakai:pooled-content-viewer", new String[] { "anonymous", "everyone" });
+      props.put("_mimeType", "application/pdf");
+      props.put("_length", 100000L + i);
+      props.put("_lastModified", new GregorianCalendar());
+      props.put("_created", new GregorianCalendar());
+      props.put("commentCount", i % 7);
+      props.put("sakai:needsprocessing", false);
+      results.add(new Content("p/" + i, props));
+    }
+    Script script = new Script() {
+      public void write(JSONWriter w) throws Exception {
+        w.object();
+        w.key("items");
+        w.value(25);
+        w.key("results");
+        w.array();
+        for (Content content : results) {
+          ExtendedJSONWriter.writeContentTreeToWriter(w, content, 0);
+        }
+        w.endArray();
+        w.key("total");
+        w.value(results.size());
+        w.endObject();
+      }
+    };
+    System.out.println("writer, results/s, MB/s, bytes allocated/result");
+    for (int round = 0; round < 3; round++) {
+      for (boolean streaming : new boolean[] { false, true }) {
+        run(script, streaming, results.size());
+      }
+    }
+  }
+
+  private void run(Script script, boolean streaming, int perRun) throws Exception {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = mx instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) mx
+        : null;
+    long id = Thread.currentThread().getId();
+    CountingOutputStream out = new CountingOutputStream();
+    int runs = 200;
+    long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(id);
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++) {
+      write(script, streaming, out);
+    }
+    long nanos = System.nanoTime() - start;
+    if (allocations != null) {
+      allocated = allocations.getThreadAllocatedBytes(id) - allocated;
+    }
+    long results = (long) runs * perRun;
+    System.out.println((streaming ? "streaming" : "extended") + ", "
+        + (results * 1000000000L / nanos) + ", "
+        + (out.count * 1000L / nanos) + ", "
+        + (allocations == null ? "n/a" : String.valueOf(allocated / results)));
+  }
+
+  private void assertSame(Script script) throws Exception {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    write(script, false, expected);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    write(script, true, actual);
+    assertTrue(expected.size() > 0);
+    assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+  }
+
+  private void write(Script script, boolean streaming, OutputStream out) throws Exception {
+    if (streaming) {
+      StreamingJSONWriter writer = new StreamingJSONWriter(out);
+      script.write(writer);
+      writer.flush();
+    } else {
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+      script.write(new ExtendedJSONWriter(pw));
+      pw.flush();
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) throws IOException {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+    }
+  }
+}